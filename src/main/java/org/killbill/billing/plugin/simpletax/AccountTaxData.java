@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax;
+
+import java.util.List;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.catalog.api.CatalogApiException;
+import org.killbill.billing.catalog.api.StaticCatalog;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.internal.Country;
+import org.killbill.billing.plugin.simpletax.util.CheckedSupplier;
+import org.killbill.billing.util.customfield.CustomField;
+
+/**
+ * An immutable holder for the data of an account that are fetched from Kill
+ * Bill when computing taxes, so that they can be shared between the invoice
+ * plugin call and the subsequent {@code INVOICE_CREATION} event for the same
+ * invoice.
+ * <p>
+ * The new invoice being created is not part of these data, because it changes
+ * between those two calls.
+ *
+ * @author Benjamin Gandon
+ */
+class AccountTaxData {
+
+    private SimpleTaxConfig config;
+    private Account account;
+    private Country accountTaxCountry;
+    private List<Invoice> invoices;
+    private List<CustomField> invoiceItemFields;
+    private CheckedSupplier<StaticCatalog, CatalogApiException> catalog;
+
+    /**
+     * Constructs an immutable holder for account data.
+     *
+     * @param config
+     *            The plugin configuration that was in use when fetching data.
+     * @param account
+     *            The account.
+     * @param accountTaxCountry
+     *            The tax country of the account, or {@code null}.
+     * @param invoices
+     *            The invoices of the account, as known by Kill Bill.
+     * @param invoiceItemFields
+     *            The custom fields of all invoice items of the account.
+     * @param catalog
+     *            A lazy supplier for the current catalog of the tenant.
+     */
+    AccountTaxData(SimpleTaxConfig config, Account account, @Nullable Country accountTaxCountry,
+            List<Invoice> invoices, List<CustomField> invoiceItemFields,
+            CheckedSupplier<StaticCatalog, CatalogApiException> catalog) {
+        super();
+        this.config = config;
+        this.account = account;
+        this.accountTaxCountry = accountTaxCountry;
+        this.invoices = invoices;
+        this.invoiceItemFields = invoiceItemFields;
+        this.catalog = catalog;
+    }
+
+    /**
+     * @return The plugin configuration that was in use when fetching data.
+     */
+    SimpleTaxConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return The account.
+     */
+    Account getAccount() {
+        return account;
+    }
+
+    /**
+     * @return The tax country of the account, or {@code null}.
+     */
+    @Nullable
+    Country getAccountTaxCountry() {
+        return accountTaxCountry;
+    }
+
+    /**
+     * @return The invoices of the account, as known by Kill Bill.
+     */
+    List<Invoice> getInvoices() {
+        return invoices;
+    }
+
+    /**
+     * @return The custom fields of all invoice items of the account.
+     */
+    List<CustomField> getInvoiceItemFields() {
+        return invoiceItemFields;
+    }
+
+    /**
+     * @return A lazy supplier for the current catalog of the tenant.
+     */
+    CheckedSupplier<StaticCatalog, CatalogApiException> getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * The key for caching {@link AccountTaxData}, made of a tenant identifier
+     * and an account identifier.
+     *
+     * @author Benjamin Gandon
+     */
+    static final class Key {
+
+        private UUID tenantId;
+        private UUID accountId;
+
+        /**
+         * @param tenantId
+         *            The tenant identifier, or {@code null} for the default
+         *            tenant.
+         * @param accountId
+         *            The account identifier.
+         */
+        Key(@Nullable UUID tenantId, UUID accountId) {
+            super();
+            this.tenantId = tenantId;
+            this.accountId = accountId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null) {
+                return false;
+            }
+            if (obj == this) {
+                return true;
+            }
+            if (obj.getClass() != getClass()) {
+                return false;
+            }
+            Key rhs = (Key) obj;
+            return new EqualsBuilder()//
+                    .append(tenantId, rhs.tenantId)//
+                    .append(accountId, rhs.accountId)//
+                    .isEquals();
+        }
+
+        @Override
+        public int hashCode() {
+            return new HashCodeBuilder()//
+                    .append(tenantId)//
+                    .append(accountId)//
+                    .toHashCode();
+        }
+    }
+}
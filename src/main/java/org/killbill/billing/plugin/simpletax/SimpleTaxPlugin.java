@@ -16,38 +16,44 @@
  */
 package org.killbill.billing.plugin.simpletax;
 
+import static com.google.common.base.Optional.fromNullable;
 import static com.google.common.base.Preconditions.checkArgument;
-import static com.google.common.collect.ImmutableSetMultimap.builder;
-import static com.google.common.collect.Iterables.filter;
 import static com.google.common.collect.Iterables.transform;
 import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Maps.newHashMap;
 import static com.google.common.collect.Ordering.natural;
 import static java.math.BigDecimal.ZERO;
-import static java.math.RoundingMode.HALF_UP;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.killbill.billing.ObjectType.CUSTOM_FIELD;
 import static org.killbill.billing.ObjectType.INVOICE;
 import static org.killbill.billing.ObjectType.INVOICE_ITEM;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.CUSTOM_FIELD_CREATION;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.CUSTOM_FIELD_DELETION;
 import static org.killbill.billing.notification.plugin.api.ExtBusEventType.INVOICE_CREATION;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.TENANT_CONFIG_CHANGE;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.TENANT_CONFIG_DELETION;
 import static org.killbill.billing.plugin.api.invoice.PluginInvoiceItem.createAdjustmentItem;
 import static org.killbill.billing.plugin.api.invoice.PluginInvoiceItem.createTaxItem;
 import static org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig.DEFAULT_TAX_ITEM_DESC;
 import static org.killbill.billing.plugin.simpletax.config.http.CustomFieldService.TAX_COUNTRY_CUSTOM_FIELD_NAME;
+import static org.killbill.billing.plugin.simpletax.internal.ReconciliationWatermark.fingerprint;
 import static org.killbill.billing.plugin.simpletax.internal.TaxCodeService.TAX_CODES_FIELD_NAME;
 import static org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxActivator.PLUGIN_NAME;
-import static org.killbill.billing.plugin.simpletax.util.InvoiceHelpers.amountWithAdjustments;
+import static org.killbill.billing.plugin.simpletax.util.FixedPointMath.multiplyAndRound;
 import static org.killbill.billing.plugin.simpletax.util.InvoiceHelpers.sumAmounts;
 import static org.osgi.service.log.LogService.LOG_DEBUG;
 import static org.osgi.service.log.LogService.LOG_ERROR;
 import static org.osgi.service.log.LogService.LOG_INFO;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.math.BigDecimal;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -55,6 +61,7 @@ import javax.annotation.Nullable;
 import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.killbill.billing.account.api.Account;
+import org.killbill.billing.ObjectType;
 import org.killbill.billing.catalog.api.CatalogApiException;
 import org.killbill.billing.catalog.api.StaticCatalog;
 import org.killbill.billing.invoice.api.Invoice;
@@ -67,15 +74,24 @@ import org.killbill.billing.plugin.api.PluginTenantContext;
 import org.killbill.billing.plugin.api.invoice.PluginInvoicePluginApi;
 import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
 import org.killbill.billing.plugin.simpletax.config.http.CustomFieldService;
+import org.killbill.billing.plugin.simpletax.config.http.InvoiceService;
+import org.killbill.billing.plugin.simpletax.dao.TaxCodesDao;
+import org.killbill.billing.plugin.simpletax.internal.AccountInvoiceIndex;
 import org.killbill.billing.plugin.simpletax.internal.Country;
+import org.killbill.billing.plugin.simpletax.internal.PlanProductCache;
+import org.killbill.billing.plugin.simpletax.internal.ReconciliationWatermark;
 import org.killbill.billing.plugin.simpletax.internal.TaxCode;
 import org.killbill.billing.plugin.simpletax.internal.TaxCodeService;
+import org.killbill.billing.plugin.simpletax.internal.TaxCodeTimeline;
 import org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxConfigurationHandler;
 import org.killbill.billing.plugin.simpletax.resolving.NullTaxResolver;
 import org.killbill.billing.plugin.simpletax.resolving.TaxResolver;
+import org.killbill.billing.plugin.simpletax.resolving.TaxResolverFactory;
 import org.killbill.billing.plugin.simpletax.util.CheckedLazyValue;
 import org.killbill.billing.plugin.simpletax.util.CheckedSupplier;
+import org.killbill.billing.plugin.simpletax.util.CoalescingExecutor;
 import org.killbill.billing.plugin.simpletax.util.ImmutableCustomField;
+import org.killbill.billing.plugin.simpletax.util.PluginMetrics;
 import org.killbill.billing.util.api.CustomFieldApiException;
 import org.killbill.billing.util.api.CustomFieldUserApi;
 import org.killbill.billing.util.callcontext.CallContext;
@@ -89,12 +105,15 @@ import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 import org.killbill.killbill.osgi.libs.killbill.OSGIServiceNotAvailable;
 
 import com.google.common.base.Function;
-import com.google.common.base.Predicate;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
-import com.google.common.collect.Multimap;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.SetMultimap;
 
@@ -123,8 +142,81 @@ import com.google.common.collect.SetMultimap;
  */
 public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillbillEventHandler {
 
+    /**
+     * The maximum number of accounts for which the state of incremental
+     * reconciliation is kept in memory. Accounts that are evicted just get a
+     * full reconciliation on their next invoice.
+     */
+    private static final int MAX_RECONCILIATION_WATERMARKS = 10000;
+
+    /**
+     * The minimum number of invoices that a parallel reconciliation task
+     * handles, so that small accounts are not split in too many tasks.
+     */
+    private static final int INVOICES_PER_RECONCILIATION_TASK = 8;
+
+    /**
+     * The maximum number of accounts for which the data fetched when creating
+     * an invoice are kept, until the related {@code INVOICE_CREATION} event is
+     * handled.
+     */
+    private static final int MAX_CACHED_ACCOUNTS = 1000;
+
+    /**
+     * The number of seconds after which the data fetched when creating an
+     * invoice are considered too old to be reused.
+     */
+    private static final long ACCOUNT_DATA_TTL_SECONDS = 30;
+
+    /**
+     * The maximum number of tenants for which the products of catalog plans
+     * are cached.
+     */
+    private static final int MAX_CACHED_TENANTS = 1000;
+
+    /**
+     * The distribution of the number of calls to
+     * {@link CustomFieldUserApi#addCustomFields} that are made to persist the
+     * new tax codes of an invoice.
+     */
+    public static final String TAX_CODES_PERSISTENCE_CALLS_METRIC = "taxCodes.persistence.addCustomFieldsCalls";
+
+    /** The number of tax codes custom fields that have been persisted. */
+    public static final String TAX_CODES_PERSISTED_METRIC = "taxCodes.persistence.fields";
+
+    /**
+     * The number of times the tax codes of some invoices were missing from the
+     * table of tax codes, and had to be read from custom fields instead.
+     */
+    public static final String TAX_CODES_TABLE_FALLBACKS_METRIC = "taxCodes.table.fallbacks";
+
+    /**
+     * The value saved in the table of tax codes for taxable items that have no
+     * tax codes, so that they can be told apart from missing rows.
+     */
+    private static final String NO_TAX_CODES = "";
+
     private SimpleTaxConfigurationHandler configHandler;
     private CustomFieldService customFieldService;
+    private PluginMetrics metrics;
+    private CoalescingExecutor postTreatmentExecutor;
+    private TaxCodesDao taxCodesDao;
+    private ForkJoinPool reconciliationPool;
+    private InvoiceService invoiceService;
+
+    private final Cache<UUID, ReconciliationWatermark> reconciliationWatermarks = CacheBuilder.newBuilder()
+            .maximumSize(MAX_RECONCILIATION_WATERMARKS).build();
+
+    private final Cache<AccountTaxData.Key, AccountTaxData> accountTaxDataCache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_ACCOUNTS).expireAfterWrite(ACCOUNT_DATA_TTL_SECONDS, SECONDS).build();
+
+    private final LoadingCache<Optional<UUID>, PlanProductCache> planProductCaches = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_TENANTS).build(new CacheLoader<Optional<UUID>, PlanProductCache>() {
+                @Override
+                public PlanProductCache load(Optional<UUID> tenantId) {
+                    return new PlanProductCache();
+                }
+            });
 
     /**
      * Creates a new simple-tax plugin.
@@ -142,13 +234,137 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
      *            The service to use when logging events.
      * @param clockService
      *            The clock service to use when accessing the current time.
+     * @param metrics
+     *            The registry of plugin metrics.
+     * @param postTreatmentExecutor
+     *            The executor that adds tax codes to new invoices, out of the
+     *            event bus thread, or {@code null} to do it synchronously.
+     */
+    public SimpleTaxPlugin(SimpleTaxConfigurationHandler configHandler, CustomFieldService customFieldService,
+            OSGIKillbillAPI metaApi, OSGIConfigPropertiesService configService, OSGIKillbillLogService logService,
+            Clock clockService, PluginMetrics metrics, @Nullable CoalescingExecutor postTreatmentExecutor) {
+        this(configHandler, customFieldService, metaApi, configService, logService, clockService, metrics,
+                postTreatmentExecutor, null);
+    }
+
+    /**
+     * Creates a new simple-tax plugin, that writes tax codes to the table it
+     * owns, alongside the custom fields of invoice items.
+     *
+     * @param configHandler
+     *            The configuration handler to use for this plugin instance.
+     * @param customFieldService
+     *            The service to use when accessing custom fields.
+     * @param metaApi
+     *            The Kill Bill meta-API.
+     * @param configService
+     *            The service to use for accessing the plugin configuration
+     *            properties.
+     * @param logService
+     *            The service to use when logging events.
+     * @param clockService
+     *            The clock service to use when accessing the current time.
+     * @param metrics
+     *            The registry of plugin metrics.
+     * @param postTreatmentExecutor
+     *            The executor that adds tax codes to new invoices, out of the
+     *            event bus thread, or {@code null} to do it synchronously.
+     * @param taxCodesDao
+     *            The data access object for the table of tax codes, or
+     *            {@code null} when this table is not used.
+     */
+    public SimpleTaxPlugin(SimpleTaxConfigurationHandler configHandler, CustomFieldService customFieldService,
+            OSGIKillbillAPI metaApi, OSGIConfigPropertiesService configService, OSGIKillbillLogService logService,
+            Clock clockService, PluginMetrics metrics, @Nullable CoalescingExecutor postTreatmentExecutor,
+            @Nullable TaxCodesDao taxCodesDao) {
+        this(configHandler, customFieldService, metaApi, configService, logService, clockService, metrics,
+                postTreatmentExecutor, taxCodesDao, null);
+    }
+
+    /**
+     * Creates a new simple-tax plugin, that reconciles the invoices of large
+     * accounts in parallel, with a fork/join pool that is shared by all
+     * tenants.
+     *
+     * @param configHandler
+     *            The configuration handler to use for this plugin instance.
+     * @param customFieldService
+     *            The service to use when accessing custom fields.
+     * @param metaApi
+     *            The Kill Bill meta-API.
+     * @param configService
+     *            The service to use for accessing the plugin configuration
+     *            properties.
+     * @param logService
+     *            The service to use when logging events.
+     * @param clockService
+     *            The clock service to use when accessing the current time.
+     * @param metrics
+     *            The registry of plugin metrics.
+     * @param postTreatmentExecutor
+     *            The executor that adds tax codes to new invoices, out of the
+     *            event bus thread, or {@code null} to do it synchronously.
+     * @param taxCodesDao
+     *            The data access object for the table of tax codes, or
+     *            {@code null} when this table is not used.
+     * @param reconciliationPool
+     *            The pool that reconciles invoices in parallel, or
+     *            {@code null} to always reconcile them sequentially.
      */
     public SimpleTaxPlugin(SimpleTaxConfigurationHandler configHandler, CustomFieldService customFieldService,
             OSGIKillbillAPI metaApi, OSGIConfigPropertiesService configService, OSGIKillbillLogService logService,
-            Clock clockService) {
+            Clock clockService, PluginMetrics metrics, @Nullable CoalescingExecutor postTreatmentExecutor,
+            @Nullable TaxCodesDao taxCodesDao, @Nullable ForkJoinPool reconciliationPool) {
+        this(configHandler, customFieldService, metaApi, configService, logService, clockService, metrics,
+                postTreatmentExecutor, taxCodesDao, reconciliationPool, null);
+    }
+
+    /**
+     * Creates a new simple-tax plugin, that feeds the index of invoice items
+     * of an invoice service with the invoices it loads, so that the invoice
+     * service can resolve them without searching invoices.
+     *
+     * @param configHandler
+     *            The configuration handler to use for this plugin instance.
+     * @param customFieldService
+     *            The service to use when accessing custom fields.
+     * @param metaApi
+     *            The Kill Bill meta-API.
+     * @param configService
+     *            The service to use for accessing the plugin configuration
+     *            properties.
+     * @param logService
+     *            The service to use when logging events.
+     * @param clockService
+     *            The clock service to use when accessing the current time.
+     * @param metrics
+     *            The registry of plugin metrics.
+     * @param postTreatmentExecutor
+     *            The executor that adds tax codes to new invoices, out of the
+     *            event bus thread, or {@code null} to do it synchronously.
+     * @param taxCodesDao
+     *            The data access object for the table of tax codes, or
+     *            {@code null} when this table is not used.
+     * @param reconciliationPool
+     *            The pool that reconciles invoices in parallel, or
+     *            {@code null} to always reconcile them sequentially.
+     * @param invoiceService
+     *            The invoice service whose index of invoice items is to be
+     *            fed, or {@code null}.
+     */
+    public SimpleTaxPlugin(SimpleTaxConfigurationHandler configHandler, CustomFieldService customFieldService,
+            OSGIKillbillAPI metaApi, OSGIConfigPropertiesService configService, OSGIKillbillLogService logService,
+            Clock clockService, PluginMetrics metrics, @Nullable CoalescingExecutor postTreatmentExecutor,
+            @Nullable TaxCodesDao taxCodesDao, @Nullable ForkJoinPool reconciliationPool,
+            @Nullable InvoiceService invoiceService) {
         super(metaApi, configService, logService, clockService);
         this.configHandler = configHandler;
         this.customFieldService = customFieldService;
+        this.metrics = metrics;
+        this.postTreatmentExecutor = postTreatmentExecutor;
+        this.taxCodesDao = taxCodesDao;
+        this.reconciliationPool = reconciliationPool;
+        this.invoiceService = invoiceService;
     }
 
     /**
@@ -173,6 +389,16 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
      * <p>
      * Plus, tax codes can be added, changed or removed on historical invoices.
      * The affected tax amounts will be adjusted accordingly.
+     * <p>
+     * When {@linkplain SimpleTaxConfig#isIncrementalReconciliation()
+     * configured so}, historical invoices that have been found properly taxed
+     * before, and that haven't changed since, are not examined again. Though
+     * all of them are re-examined
+     * {@linkplain SimpleTaxConfig#getFullSweepInterval() periodically}.
+     * <p>
+     * Accounts with {@linkplain SimpleTaxConfig#getParallelReconciliationThreshold()
+     * many invoices} get them reconciled in parallel. The resulting items are
+     * listed in the same order as with a sequential reconciliation.
      *
      * @param newInvoice
      *            The invoice that is being created.
@@ -192,22 +418,143 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
     public List<InvoiceItem> getAdditionalInvoiceItems(Invoice newInvoice, Iterable<PluginProperty> properties,
             CallContext callCtx) {
 
-        TaxComputationContext taxCtx = createTaxComputationContext(newInvoice, callCtx);
+        SimpleTaxConfig cfg = configHandler.getConfigurable(callCtx.getTenantId());
+        AccountTaxData accountData = loadAccountTaxData(newInvoice.getAccountId(), cfg, callCtx);
+        accountTaxDataCache.put(new AccountTaxData.Key(callCtx.getTenantId(), newInvoice.getAccountId()),
+                accountData);
+
+        TaxComputationContext taxCtx = createTaxComputationContext(newInvoice, accountData, callCtx);
         TaxResolver taxResolver = instanciateTaxResolver(taxCtx);
         Map<UUID, TaxCode> newTaxCodes = addMissingTaxCodes(newInvoice, taxResolver, taxCtx, callCtx);
 
-        ImmutableList.Builder<InvoiceItem> additionalItems = ImmutableList.builder();
-        for (Invoice invoice : taxCtx.getAllInvoices()) {
+        ReconciliationWatermark watermark = reconciliationWatermark(taxCtx);
+        boolean fullSweep = (watermark == null)
+                || watermark.startRun(taxCtx.getConfig().getFullSweepInterval());
 
-            List<InvoiceItem> newItems;
-            if (invoice.equals(newInvoice)) {
-                newItems = computeTaxOrAdjustmentItemsForNewInvoice(invoice, taxCtx, newTaxCodes);
-            } else {
-                newItems = computeTaxOrAdjustmentItemsForHistoricalInvoice(invoice, taxCtx);
+        List<Invoice> allInvoices = ImmutableList.copyOf(taxCtx.getAllInvoices());
+        int slices = reconciliationSlices(allInvoices.size(), cfg);
+        ReconciliationTask reconciliation = new ReconciliationTask(allInvoices, 0, allInvoices.size(), slices,
+                newInvoice, taxCtx, newTaxCodes, watermark, fullSweep);
+
+        if (slices <= 1) {
+            return reconciliation.computeSequentially();
+        }
+        return reconciliationPool.invoke(reconciliation);
+    }
+
+    /**
+     * Returns the number of tasks that reconcile the invoices of an account.
+     * <p>
+     * The shared reconciliation pool is sized after the default configuration,
+     * so the {@linkplain SimpleTaxConfig#getReconciliationParallelism()
+     * parallelism} of a tenant is enforced by never splitting its invoices in
+     * more tasks than that.
+     *
+     * @param nbInvoices
+     *            The number of invoices of the account.
+     * @param cfg
+     *            The configuration of the tenant.
+     * @return The number of tasks, {@code 1} meaning that invoices are to be
+     *         reconciled sequentially.
+     */
+    private int reconciliationSlices(int nbInvoices, SimpleTaxConfig cfg) {
+        int parallelThreshold = cfg.getParallelReconciliationThreshold();
+        if ((reconciliationPool == null) || (parallelThreshold < 1) || (nbInvoices < parallelThreshold)) {
+            return 1;
+        }
+        int maxSlices = (nbInvoices + INVOICES_PER_RECONCILIATION_TASK - 1) / INVOICES_PER_RECONCILIATION_TASK;
+        return Math.min(cfg.getReconciliationParallelism(), maxSlices);
+    }
+
+    /**
+     * Computes the new items for a given invoice of the account.
+     *
+     * @param invoice
+     *            Any invoice of the account.
+     * @param newInvoice
+     *            The invoice that is being created.
+     * @param taxCtx
+     *            The context data to use.
+     * @param newTaxCodes
+     *            The new tax codes for the items of the new invoice.
+     * @param watermark
+     *            The incremental reconciliation state of the account, or
+     *            {@code null}.
+     * @param fullSweep
+     *            Whether historical invoices are to be examined anyway.
+     * @return A new immutable list of new tax items, or adjustments on existing
+     *         tax items. Never {@code null}, and guaranteed not having any
+     *         {@code null} elements.
+     */
+    private List<InvoiceItem> computeNewItems(Invoice invoice, Invoice newInvoice, TaxComputationContext taxCtx,
+            Map<UUID, TaxCode> newTaxCodes, @Nullable ReconciliationWatermark watermark, boolean fullSweep) {
+        if (invoice.equals(newInvoice)) {
+            return computeTaxOrAdjustmentItemsForNewInvoice(invoice, taxCtx, newTaxCodes);
+        }
+        return reconcileHistoricalInvoice(invoice, taxCtx, watermark, fullSweep);
+    }
+
+    /**
+     * A fork/join task that computes the new items for a range of invoices of
+     * an account, recursively splitting the range in halves, until it is
+     * divided in the requested number of slices.
+     * <p>
+     * The resulting items are listed in the order of the invoices, whatever the
+     * order in which sub-tasks complete.
+     */
+    private final class ReconciliationTask extends RecursiveTask<List<InvoiceItem>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Invoice> invoices;
+        private final int from, to;
+        private final int slices;
+        private final Invoice newInvoice;
+        private final TaxComputationContext taxCtx;
+        private final Map<UUID, TaxCode> newTaxCodes;
+        private final ReconciliationWatermark watermark;
+        private final boolean fullSweep;
+
+        private ReconciliationTask(List<Invoice> invoices, int from, int to, int slices, Invoice newInvoice,
+                TaxComputationContext taxCtx, Map<UUID, TaxCode> newTaxCodes,
+                @Nullable ReconciliationWatermark watermark, boolean fullSweep) {
+            super();
+            this.invoices = invoices;
+            this.from = from;
+            this.to = to;
+            this.slices = slices;
+            this.newInvoice = newInvoice;
+            this.taxCtx = taxCtx;
+            this.newTaxCodes = newTaxCodes;
+            this.watermark = watermark;
+            this.fullSweep = fullSweep;
+        }
+
+        private ReconciliationTask subTask(int subFrom, int subTo, int subSlices) {
+            return new ReconciliationTask(invoices, subFrom, subTo, subSlices, newInvoice, taxCtx, newTaxCodes,
+                    watermark, fullSweep);
+        }
+
+        @Override
+        protected List<InvoiceItem> compute() {
+            if (slices <= 1) {
+                return computeSequentially();
+            }
+            int firstSlices = slices / 2;
+            int middle = from + (int) ((long) (to - from) * firstSlices / slices);
+            ReconciliationTask first = subTask(from, middle, firstSlices);
+            first.fork();
+            List<InvoiceItem> secondItems = subTask(middle, to, slices - firstSlices).compute();
+            return ImmutableList.<InvoiceItem> builder().addAll(first.join()).addAll(secondItems).build();
+        }
+
+        private List<InvoiceItem> computeSequentially() {
+            ImmutableList.Builder<InvoiceItem> additionalItems = ImmutableList.builder();
+            for (Invoice invoice : invoices.subList(from, to)) {
+                additionalItems.addAll(computeNewItems(invoice, newInvoice, taxCtx, newTaxCodes, watermark,
+                        fullSweep));
             }
-            additionalItems.addAll(newItems);
+            return additionalItems.build();
         }
-        return additionalItems.build();
     }
 
     @Override
@@ -216,14 +563,132 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
                 + "] of type [" + event.getObjectType() + "] belonging to account [" + event.getAccountId()
                 + "] in tenant [" + event.getTenantId() + "]");
 
+        if (TENANT_CONFIG_CHANGE.equals(event.getEventType())
+                || TENANT_CONFIG_DELETION.equals(event.getEventType())) {
+            // A new catalog version might have been uploaded. New plugin
+            // configurations are handled by the configuration handler.
+            planProductCaches.invalidate(fromNullable(event.getTenantId()));
+            return;
+        }
+        if (CUSTOM_FIELD_CREATION.equals(event.getEventType())
+                || CUSTOM_FIELD_DELETION.equals(event.getEventType())) {
+            handleCustomFieldEvent(event);
+            return;
+        }
         if (!INVOICE_CREATION.equals(event.getEventType())) {
             return;
         }
         if (!INVOICE.equals(event.getObjectType())) {
             return;
         }
-        UUID invoiceId = event.getObjectId();
-        UUID tenantId = event.getTenantId();
+        final UUID invoiceId = event.getObjectId();
+        final UUID tenantId = event.getTenantId();
+        if (postTreatmentExecutor == null) {
+            addTaxCodesToInvoice(invoiceId, tenantId);
+            return;
+        }
+        boolean submitted = postTreatmentExecutor.submit(invoiceId, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    addTaxCodesToInvoice(invoiceId, tenantId);
+                } catch (RuntimeException exc) {
+                    // Failures on worker threads never reach the event bus
+                    logService.log(LOG_ERROR, "Cannot add tax codes to invoice [" + invoiceId
+                            + "] as post-creation treatment for tenant [" + tenantId + "]", exc);
+                    throw exc;
+                }
+            }
+        });
+        if (!submitted) {
+            logService.log(LOG_DEBUG, "Tax codes are already about to be added to invoice [" + invoiceId
+                    + "] for tenant [" + tenantId + "]");
+        }
+    }
+
+    /**
+     * Keeps the table of tax codes in sync with the tax codes custom fields on
+     * the invoice items of an account, when these fields are created or
+     * deleted through Kill Bill, and when the tenant reads this table.
+     * <p>
+     * Events that designate custom fields on other objects than invoice items
+     * are ignored. Events that only designate the custom field itself cannot
+     * tell, and are handled. As many such events are sent for the fields of
+     * one invoice, they are coalesced per account when the post-treatment
+     * executor is enabled.
+     *
+     * @param event
+     *            The custom field event.
+     */
+    private void handleCustomFieldEvent(ExtBusEvent event) {
+        ObjectType objectType = event.getObjectType();
+        if ((objectType != null) && !INVOICE_ITEM.equals(objectType) && !CUSTOM_FIELD.equals(objectType)) {
+            return;
+        }
+        final UUID accountId = event.getAccountId();
+        final UUID tenantId = event.getTenantId();
+        if ((accountId == null) || !readsTaxCodesTable(tenantId)) {
+            return;
+        }
+        if (postTreatmentExecutor == null) {
+            syncTaxCodesTable(accountId, tenantId);
+            return;
+        }
+        // Note: other tasks of the executor have keys of other types or
+        // sizes, which never equal these keys
+        Object key = ImmutableList.<Object> of(TAX_CODES_FIELD_NAME, tenantId, accountId);
+        boolean submitted = postTreatmentExecutor.submit(key, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    syncTaxCodesTable(accountId, tenantId);
+                } catch (RuntimeException exc) {
+                    // Failures on worker threads never reach the event bus
+                    logService.log(LOG_ERROR, "Cannot sync the tax codes of account [" + accountId
+                            + "] for tenant [" + tenantId + "] to the table of tax codes", exc);
+                    throw exc;
+                }
+            }
+        });
+        if (!submitted) {
+            logService.log(LOG_DEBUG, "Tax codes of account [" + accountId + "] are already about to be synced"
+                    + " for tenant [" + tenantId + "]");
+        }
+    }
+
+    /**
+     * Updates the rows of the table of tax codes for a given account, with the
+     * values of the tax codes custom fields on its invoice items, that remain
+     * the source of truth.
+     *
+     * @param accountId
+     *            The identifier of the account.
+     * @param tenantId
+     *            The identifier of the tenant.
+     */
+    private void syncTaxCodesTable(UUID accountId, UUID tenantId) {
+        List<CustomField> invoiceItemFields = loadInvoiceItemFields(accountId, new PluginTenantContext(tenantId));
+        try {
+            int updated = taxCodesDao.syncTaxCodesOfAccount(tenantId, accountId, invoiceItemFields,
+                    clock.getUTCNow());
+            logService.log(LOG_DEBUG, "Synced " + updated + " rows of tax codes of account [" + accountId
+                    + "] for tenant [" + tenantId + "]");
+        } catch (SQLException exc) {
+            logService.log(LOG_ERROR, "Cannot sync the tax codes of account [" + accountId + "] for tenant ["
+                    + tenantId + "] to the table of tax codes. The table needs to be back-filled.", exc);
+        }
+    }
+
+    /**
+     * Adds the tax codes that were missing on the taxable items of a newly
+     * created invoice, as custom fields.
+     *
+     * @param invoiceId
+     *            The identifier of the new invoice.
+     * @param tenantId
+     *            The identifier of the tenant.
+     */
+    private void addTaxCodesToInvoice(UUID invoiceId, UUID tenantId) {
         logService.log(LOG_INFO, "Adding tax codes to invoice [" + invoiceId
                 + "] as post-creation treatment for tenant [" + tenantId + "]");
 
@@ -243,55 +708,242 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
 
         CallContext callCtx = new PluginCallContext(PLUGIN_NAME, DateTime.now(), tenantId);
 
-        TaxComputationContext taxCtx = createTaxComputationContext(newInvoice, callCtx);
+        SimpleTaxConfig cfg = configHandler.getConfigurable(tenantId);
+        AccountTaxData accountData = reuseAccountTaxData(newInvoice.getAccountId(), cfg, callCtx);
+
+        TaxComputationContext taxCtx = createTaxComputationContext(newInvoice, accountData, callCtx);
         TaxResolver taxResolver = instanciateTaxResolver(taxCtx);
         Map<UUID, TaxCode> newTaxCodes = addMissingTaxCodes(newInvoice, taxResolver, taxCtx, callCtx);
 
-        for (Entry<UUID, TaxCode> entry : newTaxCodes.entrySet()) {
-            UUID invoiceItemId = entry.getKey();
-            TaxCode taxCode = entry.getValue();
-            persistTaxCode(taxCode, invoiceItemId, newInvoice, callCtx);
+        persistTaxCodes(newTaxCodes, newInvoice, callCtx);
+        saveTaxCodesInTable(newTaxCodes, newInvoice, taxCtx, callCtx);
+    }
+
+    /**
+     * Back-fills the table of tax codes for a given account, with the values
+     * of the tax codes custom fields on its invoice items, that remain the
+     * source of truth. Taxable items that have no tax codes are saved with an
+     * empty list of tax codes, so that the table has one row for each taxable
+     * item.
+     * <p>
+     * This is to be done for all accounts of a tenant, before reading tax codes
+     * from the table is {@linkplain SimpleTaxConfig#isTaxCodesTableEnabled()
+     * enabled} for this tenant. Invoices that still miss some rows are read
+     * from custom fields anyway.
+     *
+     * @param accountId
+     *            The identifier of the account.
+     * @param tenantId
+     *            The identifier of the tenant.
+     * @throws IllegalStateException
+     *             when the table of tax codes is not used.
+     * @throws RuntimeException
+     *             when the table of tax codes cannot be back-filled.
+     */
+    public void backfillTaxCodes(@Nonnull UUID accountId, @Nonnull UUID tenantId) {
+        if (taxCodesDao == null) {
+            throw new IllegalStateException("the table of tax codes is not enabled in the default configuration");
+        }
+        TenantContext tenantCtx = new PluginTenantContext(tenantId);
+        List<Invoice> invoices = ImmutableList.copyOf(getInvoicesByAccountId(accountId, tenantCtx));
+        feedInvoiceItemsIndex(invoices);
+        AccountInvoiceIndex invoiceIndex = indexInvoiceItems(ImmutableSet.copyOf(invoices));
+        SetMultimap<UUID, CustomField> taxFieldsOfAllInvoices = taxFieldsOfInvoices(
+                loadInvoiceItemFields(accountId, tenantCtx), invoiceIndex);
+        ImmutableSetMultimap.Builder<UUID, CustomField> rows = ImmutableSetMultimap.builder();
+        rows.putAll(taxFieldsOfAllInvoices);
+        for (Invoice invoice : invoices) {
+            Set<UUID> itemsWithTaxCodes = objectIdsOf(taxFieldsOfAllInvoices.get(invoice.getId()));
+            for (InvoiceItem item : invoiceIndex.getTaxableItemsOf(invoice)) {
+                if (!itemsWithTaxCodes.contains(item.getId())) {
+                    rows.put(invoice.getId(), noTaxCodesField(item.getId()));
+                }
+            }
+        }
+        try {
+            taxCodesDao.replaceTaxCodesOfAccount(tenantId, accountId, rows.build(), clock.getUTCNow());
+        } catch (SQLException exc) {
+            logService.log(LOG_ERROR, "Cannot back-fill the tax codes of account [" + accountId + "] for tenant ["
+                    + tenantId + "]", exc);
+            throw new RuntimeException("unexpected error while back-filling the tax codes of account [" + accountId
+                    + "] for tenant [" + tenantId + "]", exc);
         }
     }
 
     /**
-     * Pre-compute data that will be useful to computing tax items and tax
-     * adjustment items.
+     * @return Whether the tax codes of invoice items are to be read from the
+     *         table of tax codes, instead of the custom fields of the invoice
+     *         items.
+     */
+    private boolean readsTaxCodesTable(SimpleTaxConfig cfg, TenantContext tenantCtx) {
+        return (taxCodesDao != null) && (tenantCtx.getTenantId() != null) && cfg.isTaxCodesTableEnabled();
+    }
+
+    /**
+     * @param tenantId
+     *            The identifier of the tenant.
+     * @return Whether the tax codes of invoice items are to be read from the
+     *         table of tax codes for the given tenant, as per its own
+     *         configuration.
+     */
+    public boolean readsTaxCodesTable(@Nullable UUID tenantId) {
+        if ((taxCodesDao == null) || (tenantId == null)) {
+            return false;
+        }
+        return configHandler.getConfigurable(tenantId).isTaxCodesTableEnabled();
+    }
+
+    /**
+     * @param item
+     *            An invoice item.
+     * @return Whether the given item is of a taxable type, and thus has a row
+     *         in the table of tax codes once this table is back-filled.
+     */
+    public boolean isTaxable(@Nonnull InvoiceItem item) {
+        return isTaxableItem(item);
+    }
+
+    /**
+     * Fetches from Kill Bill the data of an account that are needed for
+     * computing taxes.
      *
-     * @param newInvoice
-     *            The invoice that is being created.
+     * @param accountId
+     *            The identifier of the account.
+     * @param cfg
+     *            The plugin configuration in use.
      * @param tenantCtx
      *            The context in which this code is running.
-     * @return An immutable holder for helpful pre-computed data when adding or
-     *         adjusting taxes in the account invoices. Never {@code null}.
+     * @return An immutable holder for the account data. Never {@code null}.
      */
-    private TaxComputationContext createTaxComputationContext(Invoice newInvoice, TenantContext tenantCtx) {
-
-        SimpleTaxConfig cfg = configHandler.getConfigurable(tenantCtx.getTenantId());
-
-        UUID accountId = newInvoice.getAccountId();
+    private AccountTaxData loadAccountTaxData(UUID accountId, SimpleTaxConfig cfg, final TenantContext tenantCtx) {
         Account account = getAccount(accountId, tenantCtx);
         CustomField taxCountryField = customFieldService.findFieldByNameAndAccountAndTenant(
                 TAX_COUNTRY_CUSTOM_FIELD_NAME, accountId, tenantCtx);
         Country accountTaxCountry = null;
         if (taxCountryField != null) {
             try {
-                accountTaxCountry = new Country(taxCountryField.getFieldValue());
+                accountTaxCountry = Country.of(taxCountryField.getFieldValue());
             } catch (IllegalArgumentException exc) {
                 logService.log(LOG_ERROR, "Illegal value of [" + taxCountryField.getFieldValue() + "] in field '"
                         + TAX_COUNTRY_CUSTOM_FIELD_NAME + "' for account " + accountId, exc);
             }
         }
 
-        Set<Invoice> allInvoices = allInvoicesOfAccount(account, newInvoice, tenantCtx);
+        List<Invoice> invoices = ImmutableList.copyOf(getInvoicesByAccountId(accountId, tenantCtx));
+        feedInvoiceItemsIndex(invoices);
 
-        Function<InvoiceItem, BigDecimal> toAdjustedAmount = toAdjustedAmount(allInvoices);
+        CheckedSupplier<StaticCatalog, CatalogApiException> catalog = new CheckedLazyValue<StaticCatalog, CatalogApiException>() {
+            @Override
+            protected StaticCatalog initialize() throws CatalogApiException {
+                return services().getCatalogUserApi().getCurrentCatalog(null, tenantCtx);
+            }
+        };
+
+        // Note: tax codes are read later on from the table of tax codes, when
+        // enabled, and only for the invoices that need them
+        List<CustomField> invoiceItemFields = ImmutableList.of();
+        if (!readsTaxCodesTable(cfg, tenantCtx)) {
+            invoiceItemFields = loadInvoiceItemFields(accountId, tenantCtx);
+        }
+
+        return new AccountTaxData(cfg, account, accountTaxCountry, invoices, invoiceItemFields, catalog);
+    }
+
+    /**
+     * @return The custom fields on all invoice items of a given account. Never
+     *         {@code null}.
+     */
+    private List<CustomField> loadInvoiceItemFields(UUID accountId, TenantContext tenantCtx) {
+        CustomFieldUserApi customFieldsService = services().getCustomFieldUserApi();
+        List<CustomField> invoiceItemFields = customFieldsService.getCustomFieldsForAccountType(accountId,
+                INVOICE_ITEM, tenantCtx);
+        if (invoiceItemFields == null) {
+            return ImmutableList.of();
+        }
+        return invoiceItemFields;
+    }
+
+    /**
+     * Records the invoice of each of their items in the index of the shared
+     * invoice service, if any, so that the invoices that are loaded here are
+     * not fetched or searched again for resolving their items.
+     *
+     * @param invoices
+     *            Invoices that have just been loaded.
+     */
+    private void feedInvoiceItemsIndex(List<Invoice> invoices) {
+        if (invoiceService == null) {
+            return;
+        }
+        for (Invoice invoice : invoices) {
+            invoiceService.indexItemsOf(invoice);
+        }
+    }
+
+    /**
+     * Returns the data of an account that have been fetched from Kill Bill
+     * recently, or fetches them if none are available.
+     * <p>
+     * Cached data are used once at most. They are discarded when they were
+     * fetched with another configuration.
+     *
+     * @param accountId
+     *            The identifier of the account.
+     * @param cfg
+     *            The plugin configuration in use.
+     * @param tenantCtx
+     *            The context in which this code is running.
+     * @return An immutable holder for the account data. Never {@code null}.
+     */
+    private AccountTaxData reuseAccountTaxData(UUID accountId, SimpleTaxConfig cfg, TenantContext tenantCtx) {
+        AccountTaxData.Key key = new AccountTaxData.Key(tenantCtx.getTenantId(), accountId);
+        AccountTaxData accountData = accountTaxDataCache.getIfPresent(key);
+        if (accountData != null) {
+            accountTaxDataCache.invalidate(key);
+            if (accountData.getConfig() == cfg) {
+                return accountData;
+            }
+        }
+        return loadAccountTaxData(accountId, cfg, tenantCtx);
+    }
+
+    /**
+     * Pre-compute data that will be useful to computing tax items and tax
+     * adjustment items.
+     *
+     * @param newInvoice
+     *            The invoice that is being created.
+     * @param accountData
+     *            The data of the account, as fetched from Kill Bill.
+     * @param tenantCtx
+     *            The context in which this code is running.
+     * @return An immutable holder for helpful pre-computed data when adding or
+     *         adjusting taxes in the account invoices. Never {@code null}.
+     */
+    private TaxComputationContext createTaxComputationContext(Invoice newInvoice, AccountTaxData accountData,
+            TenantContext tenantCtx) {
+
+        SimpleTaxConfig cfg = accountData.getConfig();
+
+        Set<Invoice> allInvoices = allInvoicesOfAccount(accountData.getInvoices(), newInvoice);
+
+        AccountInvoiceIndex invoiceIndex = indexInvoiceItems(allInvoices);
+        Function<InvoiceItem, BigDecimal> toAdjustedAmount = toAdjustedAmount(invoiceIndex);
         Ordering<InvoiceItem> byAdjustedAmount = natural().onResultOf(toAdjustedAmount);
 
-        TaxCodeService taxCodeService = taxCodeService(account, allInvoices, cfg, tenantCtx);
+        SetMultimap<UUID, CustomField> taxFieldsOfAllInvoices;
+        if (readsTaxCodesTable(cfg, tenantCtx)) {
+            taxFieldsOfAllInvoices = readTaxCodesTable(allInvoices, newInvoice, accountData, invoiceIndex,
+                    tenantCtx);
+        } else {
+            taxFieldsOfAllInvoices = taxFieldsOfInvoices(accountData.getInvoiceItemFields(), invoiceIndex);
+        }
+        PlanProductCache planProductCache = planProductCaches.getUnchecked(fromNullable(tenantCtx.getTenantId()));
+        TaxCodeService taxCodeService = new TaxCodeService(accountData.getCatalog(), planProductCache, cfg,
+                taxFieldsOfAllInvoices);
 
-        return new TaxComputationContext(cfg, account, accountTaxCountry, allInvoices, toAdjustedAmount,
-                byAdjustedAmount, taxCodeService);
+        return new TaxComputationContext(cfg, accountData.getAccount(), accountData.getAccountTaxCountry(),
+                allInvoices, invoiceIndex, toAdjustedAmount, byAdjustedAmount, taxCodeService);
     }
 
     /**
@@ -303,20 +955,27 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
      * passed {@code newInvoice}. Persisted and not persisted invoices are
      * supported. This is a consequence of the workaround implemented to solve
      * the <a href="https://github.com/killbill/killbill/issues/265">issue
-     * #265</a>.
+     * #265</a>. Any known version of the new invoice is replaced by the passed
+     * one, which is the most recent.
      *
+     * @param invoices
+     *            The invoices of the account, as known by Kill Bill.
      * @param newInvoice
      *            The new invoice that is being created, which might have
      *            already been saved or not.
-     * @param tenantCtx
-     *            The context in which this code is running.
      * @return A new immutable set of all invoices for the account, including
      *         the new one being created. Never {@code null}, and guaranteed not
      *         having any {@code null} elements.
      */
-    private Set<Invoice> allInvoicesOfAccount(Account account, Invoice newInvoice, TenantContext tenantCtx) {
+    private Set<Invoice> allInvoicesOfAccount(List<Invoice> invoices, Invoice newInvoice) {
         ImmutableSet.Builder<Invoice> builder = ImmutableSet.builder();
-        builder.addAll(getInvoicesByAccountId(account.getId(), tenantCtx));
+        for (Invoice invoice : invoices) {
+            if (newInvoice.getId().equals(invoice.getId())) {
+                builder.add(newInvoice);
+            } else {
+                builder.add(invoice);
+            }
+        }
 
         // Workaround for https://github.com/killbill/killbill/issues/265
         builder.add(newInvoice);
@@ -327,115 +986,180 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
     /**
      * Creates the {@linkplain Function function} that returns the adjusted
      * amount out of a given {@linkplain InvoiceItem invoice item}.
+     * <p>
+     * Adjusted amounts of taxable items and tax items are pre-computed by the
+     * index, so that repeatedly applying the function to them is cheap.
      *
-     * @param allInvoices
-     *            The collection of all invoices for a given account.
+     * @param invoiceIndex
+     *            The index of the items of all invoices for a given account.
      * @return The function that returns the adjusted amount of an invoice item.
      *         Never {@code null}.
      */
-    private Function<InvoiceItem, BigDecimal> toAdjustedAmount(Set<Invoice> allInvoices) {
-        final Multimap<UUID, InvoiceItem> allAdjustments = allAjdustmentsGroupedByAdjustedItem(allInvoices);
-
+    private Function<InvoiceItem, BigDecimal> toAdjustedAmount(final AccountInvoiceIndex invoiceIndex) {
         return new Function<InvoiceItem, BigDecimal>() {
             @Override
             public BigDecimal apply(InvoiceItem item) {
-                return amountWithAdjustments(item, allAdjustments);
+                return invoiceIndex.getAdjustedAmount(item);
             }
         };
     }
 
     /**
-     * Groups the {@linkplain #isAdjustmentItem adjustment items} (found in a
-     * given set of invoices) by the identifier of their
-     * {@linkplain InvoiceItem#getLinkedItemId related} “adjusted” items.
+     * Indexes the items of a given set of invoices in one single pass, grouping
+     * {@linkplain #isTaxableItem taxable items} by invoice, and
+     * {@linkplain #isTaxItem tax items} and {@linkplain #isAdjustmentItem
+     * adjustment items} by the identifier of their
+     * {@linkplain InvoiceItem#getLinkedItemId related} items.
      * <p>
-     * The resulting collection is typically computed on all invoices of a given
+     * The resulting index is typically computed on all invoices of a given
      * account.
      *
      * @param allInvoices
-     *            A list of invoices.
-     * @return A new immutable multi-map of the adjustment items, grouped by the
-     *         items they relate to. Never {@code null}, and guaranteed not
-     *         having any {@code null} elements.
+     *            A set of invoices.
+     * @return A new immutable index of the invoice items. Never {@code null}.
      */
-    private Multimap<UUID, InvoiceItem> allAjdustmentsGroupedByAdjustedItem(Set<Invoice> allInvoices) {
-        ImmutableSetMultimap.Builder<UUID, InvoiceItem> builder = builder();
+    private AccountInvoiceIndex indexInvoiceItems(Set<Invoice> allInvoices) {
+        AccountInvoiceIndex.Builder index = AccountInvoiceIndex.builder();
         for (Invoice invoice : allInvoices) {
             for (InvoiceItem item : invoice.getInvoiceItems()) {
+                index.withItem(invoice, item);
+                if (isTaxableItem(item)) {
+                    index.withTaxableItem(invoice, item);
+                }
+                if (isTaxItem(item)) {
+                    index.withTaxItem(invoice, item);
+                }
                 if (isAdjustmentItem(item)) {
-                    builder.put(item.getLinkedItemId(), item);
+                    index.withAdjustment(item);
                 }
             }
         }
-        return builder.build();
+        return index.build();
     }
 
     /**
-     * Creates an instance of a tax code service.
+     * Groups the {@linkplain CustomField custom fields} on
+     * {@linkplain #INVOICE_ITEM invoice items} by the
+     * {@linkplain Invoice#getId() identifier} of their related
+     * {@linkplain Invoice invoices}.
+     * <p>
+     * Custom fields on items that are not part of the indexed invoices are
+     * ignored.
      *
-     * @param account
-     *            The account to consider.
-     * @param allInvoices
-     *            The collection of all invoices for the given account.
-     * @param cfg
-     *            The plugin configuration.
-     * @param tenantCtx
-     *            The context in which this code is running.
-     * @return A new tax codes service.
+     * @param invoiceItemFields
+     *            The custom fields on all invoice items of the account.
+     * @param invoiceIndex
+     *            The index of the items of all invoices for the account.
+     * @return A new immutable multi-map containing the tax codes custom fields
+     *         on all invoice items of the given account, grouped by the
+     *         identifier of their relate invoice. Never {@code null}, and
+     *         guaranteed not having any {@code null} elements.
      */
-    private TaxCodeService taxCodeService(Account account, Set<Invoice> allInvoices, SimpleTaxConfig cfg,
-            final TenantContext tenantCtx) {
-        CheckedSupplier<StaticCatalog, CatalogApiException> catalog = new CheckedLazyValue<StaticCatalog, CatalogApiException>() {
-            @Override
-            protected StaticCatalog initialize() throws CatalogApiException {
-                return services().getCatalogUserApi().getCurrentCatalog(null, tenantCtx);
+    private SetMultimap<UUID, CustomField> taxFieldsOfInvoices(List<CustomField> invoiceItemFields,
+            AccountInvoiceIndex invoiceIndex) {
+        if (invoiceItemFields.isEmpty()) {
+            return ImmutableSetMultimap.of();
+        }
+        ImmutableSetMultimap.Builder<UUID, CustomField> taxFieldsOfInvoice = ImmutableSetMultimap.builder();
+        for (CustomField field : invoiceItemFields) {
+            if (TAX_CODES_FIELD_NAME.equals(field.getFieldName())) {
+                Invoice invoice = invoiceIndex.getInvoiceOf(field.getObjectId());
+                if (invoice != null) {
+                    taxFieldsOfInvoice.put(invoice.getId(), field);
+                }
             }
-        };
-        SetMultimap<UUID, CustomField> taxFieldsOfAllInvoices = taxFieldsOfInvoices(account, allInvoices, tenantCtx);
-        return new TaxCodeService(catalog, cfg, taxFieldsOfAllInvoices);
+        }
+        return taxFieldsOfInvoice.build();
     }
 
     /**
-     * Groups the {@linkplain CustomField custom fields} on
-     * {@linkplain #INVOICE_ITEM invoice items} by the
-     * {@linkplain Invoice#getId() identifier} of their related
-     * {@linkplain Invoice invoices}.
+     * Reads the tax codes of the items of a given set of invoices from the
+     * table of tax codes.
+     * <p>
+     * A taxable item with no row in this table is not known to have no tax
+     * codes, because the table might not have been back-filled yet. So the
+     * custom fields on the invoice items of the account are used instead for
+     * any invoice, other than the new one, that has such items. They are also
+     * used for all invoices when this table cannot be read.
      *
-     * @param account
-     *            The account to consider
      * @param allInvoices
-     *            The collection of all invoices for the given account.
+     *            The invoices of the account.
+     * @param newInvoice
+     *            The invoice that is being created, or post-treated, which
+     *            rows are not expected to be saved yet.
+     * @param accountData
+     *            The data of the account, as fetched from Kill Bill.
+     * @param invoiceIndex
+     *            The index of the items of all invoices for the account.
      * @param tenantCtx
      *            The context in which this code is running.
-     * @return A new immutable multi-map containing the custom fields on all
-     *         invoice items of the given account, grouped by the identifier of
-     *         their relate invoice. Never {@code null}, and guaranteed not
+     * @return An immutable multi-map containing the tax codes custom fields on
+     *         the items of the given invoices, grouped by the identifier of
+     *         their related invoice. Never {@code null}, and guaranteed not
      *         having any {@code null} elements.
      */
-    private SetMultimap<UUID, CustomField> taxFieldsOfInvoices(Account account, Set<Invoice> allInvoices,
-            TenantContext tenantCtx) {
-        CustomFieldUserApi customFieldsService = services().getCustomFieldUserApi();
-        List<CustomField> allCustomFields = customFieldsService.getCustomFieldsForAccountType(account.getId(),
-                INVOICE_ITEM, tenantCtx);
-        if ((allCustomFields == null) || allCustomFields.isEmpty()) {
-            return ImmutableSetMultimap.of();
+    private SetMultimap<UUID, CustomField> readTaxCodesTable(Set<Invoice> allInvoices, Invoice newInvoice,
+            AccountTaxData accountData, AccountInvoiceIndex invoiceIndex, TenantContext tenantCtx) {
+        UUID accountId = accountData.getAccount().getId();
+        ImmutableSet.Builder<UUID> invoiceIds = ImmutableSet.builder();
+        for (Invoice invoice : allInvoices) {
+            invoiceIds.add(invoice.getId());
+        }
+        SetMultimap<UUID, CustomField> taxFieldsFromTable;
+        try {
+            taxFieldsFromTable = taxCodesDao.getTaxFieldsOfInvoices(tenantCtx.getTenantId(), invoiceIds.build());
+        } catch (SQLException exc) {
+            logService.log(LOG_ERROR, "Cannot read the tax codes of account [" + accountId + "] for tenant ["
+                    + tenantCtx.getTenantId() + "] from the table of tax codes."
+                    + " Falling back to reading custom fields.", exc);
+            return taxFieldsOfInvoices(loadInvoiceItemFields(accountId, tenantCtx), invoiceIndex);
         }
 
-        Map<UUID, Invoice> invoiceOfItem = newHashMap();
+        ImmutableSet.Builder<UUID> invoicesMissingRowsBuilder = ImmutableSet.builder();
         for (Invoice invoice : allInvoices) {
-            for (InvoiceItem item : invoice.getInvoiceItems()) {
-                invoiceOfItem.put(item.getId(), invoice);
+            if (invoice.getId().equals(newInvoice.getId())) {
+                continue;
+            }
+            Set<UUID> itemsWithRows = objectIdsOf(taxFieldsFromTable.get(invoice.getId()));
+            for (InvoiceItem item : invoiceIndex.getTaxableItemsOf(invoice)) {
+                if (!itemsWithRows.contains(item.getId())) {
+                    invoicesMissingRowsBuilder.add(invoice.getId());
+                    break;
+                }
             }
         }
+        Set<UUID> invoicesMissingRows = invoicesMissingRowsBuilder.build();
+        if (invoicesMissingRows.isEmpty()) {
+            return taxFieldsFromTable;
+        }
 
-        ImmutableSetMultimap.Builder<UUID, CustomField> taxFieldsOfInvoice = ImmutableSetMultimap.builder();
-        for (CustomField field : allCustomFields) {
-            if (TAX_CODES_FIELD_NAME.equals(field.getFieldName())) {
-                Invoice invoice = invoiceOfItem.get(field.getObjectId());
-                taxFieldsOfInvoice.put(invoice.getId(), field);
+        metrics.increment(TAX_CODES_TABLE_FALLBACKS_METRIC);
+        logService.log(LOG_INFO, "Tax codes of invoices " + invoicesMissingRows + " of account [" + accountId
+                + "] for tenant [" + tenantCtx.getTenantId() + "] are missing from the table of tax codes."
+                + " Falling back to reading custom fields for these invoices. The table needs to be back-filled.");
+        SetMultimap<UUID, CustomField> taxFieldsFromCustomFields = taxFieldsOfInvoices(
+                loadInvoiceItemFields(accountId, tenantCtx), invoiceIndex);
+        ImmutableSetMultimap.Builder<UUID, CustomField> taxFields = ImmutableSetMultimap.builder();
+        for (Invoice invoice : allInvoices) {
+            if (invoicesMissingRows.contains(invoice.getId())) {
+                taxFields.putAll(invoice.getId(), taxFieldsFromCustomFields.get(invoice.getId()));
+            } else {
+                taxFields.putAll(invoice.getId(), taxFieldsFromTable.get(invoice.getId()));
             }
         }
-        return taxFieldsOfInvoice.build();
+        return taxFields.build();
+    }
+
+    /**
+     * @return The identifiers of the objects that the given custom fields are
+     *         attached to. Never {@code null}.
+     */
+    private static Set<UUID> objectIdsOf(Iterable<CustomField> fields) {
+        ImmutableSet.Builder<UUID> objectIds = ImmutableSet.builder();
+        for (CustomField field : fields) {
+            objectIds.add(field.getObjectId());
+        }
+        return objectIds.build();
     }
 
     /**
@@ -444,34 +1168,13 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
      *
      * @param taxCtx
      *            The context data to use when resolving tax codes.
-     * @return A new instance of the configured {@link TaxResolver}, or an
+     * @return An instance of the configured {@link TaxResolver}, or an
      *         instance of {@link NullTaxResolver} if none was configured. Never
      *         {@code null}.
+     * @see TaxResolverFactory
      */
     private TaxResolver instanciateTaxResolver(TaxComputationContext taxCtx) {
-        Constructor<? extends TaxResolver> constructor = taxCtx.getConfig().getTaxResolverConstructor();
-        Throwable issue;
-        try {
-            return constructor.newInstance(taxCtx);
-        } catch (IllegalAccessException shouldNeverHappen) {
-            // This should not happen because we are supposed to deal with a
-            // public constructor by SimpleTaxConfig contract. Let it crash.
-            throw new RuntimeException(shouldNeverHappen);
-        } catch (IllegalArgumentException shouldNeverHappen) {
-            // This should not happen because by SimpleTaxConfig contract, we
-            // are supposed to deal with a constructor that accepts the expected
-            // arguments types. Let it crash.
-            throw shouldNeverHappen;
-        } catch (InstantiationException exc) {
-            issue = exc;
-        } catch (InvocationTargetException exc) {
-            issue = exc;
-        } catch (ExceptionInInitializerError err) {
-            issue = err;
-        }
-        logService.log(LOG_ERROR, "Cannot instanciate tax resolver. Defaulting to [" + NullTaxResolver.class.getName()
-                + "].", issue);
-        return new NullTaxResolver(taxCtx);
+        return taxCtx.getConfig().getTaxResolverFactory().createTaxResolver(taxCtx);
     }
 
     /**
@@ -494,8 +1197,8 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
             final TaxComputationContext taxCtx, CallContext callCtx) {
         // Obtain tax codes from products of invoice items
         TaxCodeService taxCodesService = taxCtx.getTaxCodeService();
-        SetMultimap<UUID, TaxCode> configuredTaxCodesForInvoiceItems = taxCodesService
-                .resolveTaxCodesFromConfig(newInvoice);
+        Map<UUID, TaxCodeTimeline> configuredTaxCodesForInvoiceItems = taxCodesService.resolveTaxCodesFromConfig(
+                newInvoice, taxCtx.getAccountTaxCountry());
 
         SetMultimap<UUID, TaxCode> existingTaxCodesForInvoiceItems = taxCodesService.findExistingTaxCodes(newInvoice);
 
@@ -505,9 +1208,9 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
             if (!isTaxableItem(item)) {
                 continue;
             }
-            Set<TaxCode> expectedTaxCodes = configuredTaxCodesForInvoiceItems.get(item.getId());
-            // Note: expectedTaxCodes != null as per the Multimap contract
-            if (expectedTaxCodes.isEmpty()) {
+            // Note: expected tax codes are already restricted to the account tax country
+            TaxCodeTimeline expectedTaxCodes = configuredTaxCodesForInvoiceItems.get(item.getId());
+            if (expectedTaxCodes == null) {
                 continue;
             }
             Set<TaxCode> existingTaxCodes = existingTaxCodesForInvoiceItems.get(item.getId());
@@ -517,17 +1220,8 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
                 continue;
             }
 
-            final String accountTaxCountry = taxCtx.getAccountTaxCountry() == null ? null : taxCtx
-                    .getAccountTaxCountry().getCode();
-            Iterable<TaxCode> expectedInAccountCountry = filter(expectedTaxCodes, new Predicate<TaxCode>() {
-                @Override
-                public boolean apply(TaxCode taxCode) {
-                    Country restrict = taxCode.getCountry();
-                    return (restrict == null) || restrict.getCode().equals(accountTaxCountry);
-                }
-            });
             // resolve tax codes using regulation-specific logic
-            TaxCode applicableCode = resolver.applicableCodeForItem(expectedInAccountCountry, item);
+            TaxCode applicableCode = resolver.applicableCodeForItem(expectedTaxCodes, item);
             if (applicableCode == null) {
                 continue;
             }
@@ -537,16 +1231,187 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
         return newTaxCodes.build();
     }
 
-    private void persistTaxCode(TaxCode applicableCode, UUID invoiceItemId, Invoice newInvoice, CallContext callCtx) {
+    /**
+     * Persists the new tax codes of an invoice, as custom fields of their
+     * invoice items, all at once.
+     * <p>
+     * When some invoice item turns out not to exist, the tax codes are
+     * persisted one by one instead, so that all others are still saved. As
+     * the failed call might have added some of the custom fields already,
+     * only the invoice items that still have no tax codes are retried.
+     *
+     * @param newTaxCodes
+     *            The new tax codes to persist, mapped from the identifiers of
+     *            their related invoice items.
+     * @param newInvoice
+     *            The new invoice that has just been created.
+     * @param callCtx
+     *            The context in which this code is running.
+     * @throws RuntimeException
+     *             When the custom fields cannot be added.
+     */
+    private void persistTaxCodes(Map<UUID, TaxCode> newTaxCodes, Invoice newInvoice, CallContext callCtx) {
+        if (newTaxCodes.isEmpty()) {
+            metrics.record(TAX_CODES_PERSISTENCE_CALLS_METRIC, 0L);
+            return;
+        }
+        if (newTaxCodes.size() == 1) {
+            Entry<UUID, TaxCode> entry = newTaxCodes.entrySet().iterator().next();
+            persistTaxCode(entry.getValue(), entry.getKey(), newInvoice, callCtx);
+            metrics.record(TAX_CODES_PERSISTENCE_CALLS_METRIC, 1L);
+            return;
+        }
+
+        ImmutableList.Builder<CustomField> fieldsBuilder = ImmutableList.builder();
+        for (Entry<UUID, TaxCode> entry : newTaxCodes.entrySet()) {
+            fieldsBuilder.add(taxCodesField(entry.getValue(), entry.getKey()));
+        }
+        List<CustomField> fields = fieldsBuilder.build();
+
         CustomFieldUserApi customFieldsService = services().getCustomFieldUserApi();
-        ImmutableCustomField.Builder taxCodesField = ImmutableCustomField.builder()//
+        try {
+            customFieldsService.addCustomFields(newArrayList(fields), callCtx);
+            metrics.add(TAX_CODES_PERSISTED_METRIC, fields.size());
+            metrics.record(TAX_CODES_PERSISTENCE_CALLS_METRIC, 1L);
+        } catch (CustomFieldApiException exc) {
+            metrics.record(TAX_CODES_PERSISTENCE_CALLS_METRIC, 1L);
+            logService.log(LOG_ERROR, "Cannot add custom fields [" + TAX_CODES_FIELD_NAME + "] with values "
+                    + describe(fields) + " of invoice [" + newInvoice.getId() + "] for tenant ["
+                    + callCtx.getTenantId() + "]", exc);
+            throw new RuntimeException("unexpected error while adding custom fields [" + TAX_CODES_FIELD_NAME
+                    + "] with values " + describe(fields) + " of invoice [" + newInvoice.getId()
+                    + "] for tenant [" + callCtx.getTenantId() + "]", exc);
+        } catch (IllegalStateException exc) {
+            if (!isObjectDoesNotExist(exc)) {
+                throw exc;
+            }
+            logService.log(LOG_DEBUG, "Cannot add custom fields [" + TAX_CODES_FIELD_NAME + "] with values "
+                    + describe(fields) + " of invoice [" + newInvoice.getId() + "] for tenant ["
+                    + callCtx.getTenantId() + "] because some invoice item does not exist."
+                    + " Falling back to adding the missing ones one by one.");
+            Set<UUID> itemsWithTaxCodes = itemsWithTaxCodesField(newInvoice.getAccountId(), callCtx);
+            int nbCalls = 1;
+            for (Entry<UUID, TaxCode> entry : newTaxCodes.entrySet()) {
+                if (itemsWithTaxCodes.contains(entry.getKey())) {
+                    metrics.increment(TAX_CODES_PERSISTED_METRIC);
+                    continue;
+                }
+                persistTaxCode(entry.getValue(), entry.getKey(), newInvoice, callCtx);
+                nbCalls += 1;
+            }
+            metrics.record(TAX_CODES_PERSISTENCE_CALLS_METRIC, nbCalls);
+        }
+    }
+
+    /**
+     * @return The identifiers of the invoice items of an account that
+     *         currently have a tax codes custom field. Never {@code null}.
+     */
+    private Set<UUID> itemsWithTaxCodesField(UUID accountId, TenantContext tenantCtx) {
+        ImmutableSet.Builder<UUID> itemIds = ImmutableSet.builder();
+        for (CustomField field : loadInvoiceItemFields(accountId, tenantCtx)) {
+            if (TAX_CODES_FIELD_NAME.equals(field.getFieldName())) {
+                itemIds.add(field.getObjectId());
+            }
+        }
+        return itemIds.build();
+    }
+
+    /**
+     * Saves the tax codes of all taxable items of an invoice to the table of
+     * tax codes, when used, after the new ones have been persisted as custom
+     * fields. Taxable items that have no tax codes are saved with an empty
+     * list of tax codes, so that the table has one row for each taxable item.
+     * <p>
+     * Custom fields remain the source of truth, so any error here is only
+     * reported, and fixed by {@linkplain #backfillTaxCodes back-filling} the
+     * table.
+     *
+     * @param newTaxCodes
+     *            The new tax codes to save, mapped from the identifiers of
+     *            their related invoice items.
+     * @param newInvoice
+     *            The new invoice that has just been created.
+     * @param taxCtx
+     *            The context data that were used when adding the new tax
+     *            codes.
+     * @param callCtx
+     *            The context in which this code is running.
+     */
+    private void saveTaxCodesInTable(Map<UUID, TaxCode> newTaxCodes, Invoice newInvoice,
+            TaxComputationContext taxCtx, CallContext callCtx) {
+        if ((taxCodesDao == null) || (callCtx.getTenantId() == null)) {
+            return;
+        }
+        Map<UUID, String> existingTaxCodes = newHashMap();
+        for (CustomField field : taxCtx.getTaxCodeService().getTaxFieldsOf(newInvoice)) {
+            if (field.getFieldValue() != null) {
+                existingTaxCodes.put(field.getObjectId(), field.getFieldValue());
+            }
+        }
+        ImmutableMap.Builder<UUID, String> taxCodesOfItems = ImmutableMap.builder();
+        for (InvoiceItem item : taxCtx.getInvoiceIndex().getTaxableItemsOf(newInvoice)) {
+            TaxCode newTaxCode = newTaxCodes.get(item.getId());
+            if (newTaxCode != null) {
+                taxCodesOfItems.put(item.getId(), newTaxCode.getName());
+            } else if (existingTaxCodes.containsKey(item.getId())) {
+                taxCodesOfItems.put(item.getId(), existingTaxCodes.get(item.getId()));
+            } else {
+                taxCodesOfItems.put(item.getId(), NO_TAX_CODES);
+            }
+        }
+        try {
+            taxCodesDao.saveTaxCodes(callCtx.getTenantId(), newInvoice.getAccountId(), newInvoice.getId(),
+                    taxCodesOfItems.build(), clock.getUTCNow());
+        } catch (SQLException exc) {
+            logService.log(LOG_ERROR, "Cannot save the tax codes of invoice [" + newInvoice.getId()
+                    + "] for tenant [" + callCtx.getTenantId() + "] to the table of tax codes."
+                    + " The table needs to be back-filled.", exc);
+        }
+    }
+
+    /**
+     * @return A textual description of tax codes custom fields, for logging
+     *         purpose.
+     */
+    private static String describe(List<CustomField> taxCodesFields) {
+        StringBuilder description = new StringBuilder();
+        for (CustomField field : taxCodesFields) {
+            description.append(description.length() == 0 ? "[" : ", ")//
+                    .append(field.getFieldValue()).append(" to invoice item ").append(field.getObjectId());
+        }
+        return description.append(']').toString();
+    }
+
+    private static boolean isObjectDoesNotExist(IllegalStateException exc) {
+        return "org.killbill.billing.util.callcontext.InternalCallContextFactory$ObjectDoesNotExist".equals(exc
+                .getClass().getName());
+    }
+
+    private static CustomField taxCodesField(TaxCode taxCode, UUID invoiceItemId) {
+        return ImmutableCustomField.builder()//
+                .withFieldName(TAX_CODES_FIELD_NAME)//
+                .withFieldValue(taxCode.getName())//
+                .withObjectType(INVOICE_ITEM)//
+                .withObjectId(invoiceItemId)//
+                .build();
+    }
+
+    private static CustomField noTaxCodesField(UUID invoiceItemId) {
+        return ImmutableCustomField.builder()//
                 .withFieldName(TAX_CODES_FIELD_NAME)//
-                .withFieldValue(applicableCode.getName())//
+                .withFieldValue(NO_TAX_CODES)//
                 .withObjectType(INVOICE_ITEM)//
-                .withObjectId(invoiceItemId);
-        CustomField field = taxCodesField.build();
+                .withObjectId(invoiceItemId)//
+                .build();
+    }
+
+    private void persistTaxCode(TaxCode applicableCode, UUID invoiceItemId, Invoice newInvoice, CallContext callCtx) {
+        CustomFieldUserApi customFieldsService = services().getCustomFieldUserApi();
+        CustomField field = taxCodesField(applicableCode, invoiceItemId);
         try {
             customFieldsService.addCustomFields(newArrayList(field), callCtx);
+            metrics.increment(TAX_CODES_PERSISTED_METRIC);
         } catch (CustomFieldApiException exc) {
             logService.log(LOG_ERROR,
                     "Cannot add custom field [" + field.getFieldName() + "] with value [" + field.getFieldValue()
@@ -556,8 +1421,7 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
                     + "] with value [" + field.getFieldValue() + "] to invoice item [" + invoiceItemId
                     + "] of invoice [" + newInvoice.getId() + "] for tenant [" + callCtx.getTenantId() + "]", exc);
         } catch (IllegalStateException exc) {
-            if (!"org.killbill.billing.util.callcontext.InternalCallContextFactory$ObjectDoesNotExist".equals(exc
-                    .getClass().getName())) {
+            if (!isObjectDoesNotExist(exc)) {
                 throw exc;
             }
             logService.log(
@@ -587,15 +1451,12 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
     private List<InvoiceItem> computeTaxOrAdjustmentItemsForNewInvoice(Invoice newInvoice, TaxComputationContext ctx,
             Map<UUID, TaxCode> newTaxCodes) {
 
-        SetMultimap<UUID, InvoiceItem> currentTaxItems = taxItemsGroupedByRelatedTaxedItems(newInvoice);
+        AccountInvoiceIndex invoiceIndex = ctx.getInvoiceIndex();
 
         SetMultimap<UUID, TaxCode> existingTaxCodes = ctx.getTaxCodeService().findExistingTaxCodes(newInvoice);
 
         ImmutableList.Builder<InvoiceItem> newItems = ImmutableList.builder();
-        for (InvoiceItem item : newInvoice.getInvoiceItems()) {
-            if (!isTaxableItem(item)) {
-                continue;
-            }
+        for (InvoiceItem item : invoiceIndex.getTaxableItemsOf(newInvoice)) {
 
             TaxCode tax = null;
             Set<TaxCode> taxes = existingTaxCodes.get(item.getId());
@@ -610,7 +1471,7 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
             BigDecimal adjustedAmount = ctx.toAdjustedAmount().apply(item);
             BigDecimal expectedTaxAmount = computeTaxAmount(item, adjustedAmount, tax, ctx.getConfig());
 
-            Set<InvoiceItem> relatedTaxItems = currentTaxItems.get(item.getId());
+            Set<InvoiceItem> relatedTaxItems = invoiceIndex.getTaxItemsOf(item);
             BigDecimal currentTaxAmount = sumAmounts(transform(relatedTaxItems, ctx.toAdjustedAmount()));
 
             String taxItemDescription = tax == null ? DEFAULT_TAX_ITEM_DESC : tax.getTaxItemDescription();
@@ -650,28 +1511,6 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
         return newItems.build();
     }
 
-    /**
-     * Groups the {@linkplain #isTaxItem tax items} (found in a given invoice)
-     * by the identifier of their {@linkplain InvoiceItem#getLinkedItemId
-     * related} “taxable” items.
-     *
-     * @param invoice
-     *            An invoice.
-     * @return An immutable multi-map of the tax items for the given invoice,
-     *         grouped by the identifier of their related (taxed) item. Never
-     *         {@code null}, and guaranteed not having any {@code null}
-     *         elements.
-     */
-    private SetMultimap<UUID, InvoiceItem> taxItemsGroupedByRelatedTaxedItems(Invoice invoice) {
-        ImmutableSetMultimap.Builder<UUID, InvoiceItem> currentTaxItemsBuilder = builder();
-        for (InvoiceItem item : invoice.getInvoiceItems()) {
-            if (isTaxItem(item)) {
-                currentTaxItemsBuilder.put(item.getLinkedItemId(), item);
-            }
-        }
-        return currentTaxItemsBuilder.build();
-    }
-
     /**
      * Computes the amount of tax for a given amount, in the context of a given
      * invoice item, invoice, and account.
@@ -690,7 +1529,7 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
         if (tax == null) {
             return ZERO;
         }
-        return amount.multiply(tax.getRate()).setScale(cfg.getTaxAmountPrecision(), HALF_UP);
+        return multiplyAndRound(amount, tax.getRate(), cfg.getTaxAmountPrecision());
     }
 
     /**
@@ -773,6 +1612,72 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
                 description);
     }
 
+    /**
+     * Returns the incremental reconciliation state for the account of a given
+     * computation context, or {@code null} if historical invoices are not to be
+     * reconciled incrementally.
+     * <p>
+     * Any state that was built with another configuration is discarded.
+     *
+     * @param taxCtx
+     *            The context data to use.
+     * @return The reconciliation watermark of the account, or {@code null}.
+     */
+    @Nullable
+    private ReconciliationWatermark reconciliationWatermark(TaxComputationContext taxCtx) {
+        SimpleTaxConfig cfg = taxCtx.getConfig();
+        if (!cfg.isIncrementalReconciliation()) {
+            return null;
+        }
+        UUID accountId = taxCtx.getAccount().getId();
+        ReconciliationWatermark watermark = reconciliationWatermarks.getIfPresent(accountId);
+        if ((watermark == null) || watermark.isObsoleteFor(cfg)) {
+            watermark = new ReconciliationWatermark(cfg);
+            reconciliationWatermarks.put(accountId, watermark);
+        }
+        return watermark;
+    }
+
+    /**
+     * Compute adjustment items on existing tax items in a <em>historical</em>
+     * invoice, unless the invoice is known to be properly taxed already.
+     * <p>
+     * Invoices that require no new item are marked as reconciled in the given
+     * watermark, so that they can be skipped on next runs, as long as they
+     * don't change.
+     *
+     * @param oldInvoice
+     *            An historical invoice.
+     * @param ctx
+     *            The context data to use.
+     * @param watermark
+     *            The incremental reconciliation state of the account, or
+     *            {@code null} if the invoice is to be examined anyway.
+     * @param fullSweep
+     *            Whether the invoice is to be examined anyway.
+     * @return A new immutable list of new adjustment items to add to the
+     *         invoice. Never {@code null}, and guaranteed not having any
+     *         {@code null} elements.
+     */
+    private List<InvoiceItem> reconcileHistoricalInvoice(Invoice oldInvoice, TaxComputationContext ctx,
+            @Nullable ReconciliationWatermark watermark, boolean fullSweep) {
+        if (watermark == null) {
+            return computeTaxOrAdjustmentItemsForHistoricalInvoice(oldInvoice, ctx);
+        }
+        long fingerprint = fingerprint(oldInvoice, ctx.getInvoiceIndex().getAllAdjustments(),
+                ctx.getTaxCodeService().getTaxFieldsOf(oldInvoice));
+        if (!fullSweep && watermark.isReconciled(oldInvoice, fingerprint)) {
+            return ImmutableList.of();
+        }
+        List<InvoiceItem> newItems = computeTaxOrAdjustmentItemsForHistoricalInvoice(oldInvoice, ctx);
+        if (newItems.isEmpty()) {
+            watermark.markReconciled(oldInvoice, fingerprint);
+        } else {
+            watermark.markUnreconciled(oldInvoice);
+        }
+        return newItems;
+    }
+
     /**
      * Compute adjustment items on existing tax items in a <em>historical</em>
      * invoice.
@@ -791,17 +1696,14 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
     private List<InvoiceItem> computeTaxOrAdjustmentItemsForHistoricalInvoice(Invoice oldInvoice,
             TaxComputationContext ctx) {
 
-        SetMultimap<UUID, InvoiceItem> currentTaxItems = taxItemsGroupedByRelatedTaxedItems(oldInvoice);
+        AccountInvoiceIndex invoiceIndex = ctx.getInvoiceIndex();
 
         SetMultimap<UUID, TaxCode> existingTaxCodes = ctx.getTaxCodeService().findExistingTaxCodes(oldInvoice);
 
         ImmutableList.Builder<InvoiceItem> newItems = ImmutableList.builder();
-        for (InvoiceItem item : oldInvoice.getInvoiceItems()) {
-            if (!isTaxableItem(item)) {
-                continue;
-            }
+        for (InvoiceItem item : invoiceIndex.getTaxableItemsOf(oldInvoice)) {
 
-            Set<InvoiceItem> relatedTaxItems = currentTaxItems.get(item.getId());
+            Set<InvoiceItem> relatedTaxItems = invoiceIndex.getTaxItemsOf(item);
 
             TaxCode tax = null;
             Set<TaxCode> taxes = existingTaxCodes.get(item.getId());
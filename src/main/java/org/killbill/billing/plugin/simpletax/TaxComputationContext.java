@@ -23,6 +23,7 @@ import org.killbill.billing.account.api.Account;
 import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.internal.AccountInvoiceIndex;
 import org.killbill.billing.plugin.simpletax.internal.Country;
 import org.killbill.billing.plugin.simpletax.internal.TaxCodeService;
 
@@ -63,6 +64,8 @@ public class TaxComputationContext {
 
     private Set<Invoice> allInvoices;
 
+    private AccountInvoiceIndex invoiceIndex;
+
     private Function<InvoiceItem, BigDecimal> toAdjustedAmount;
 
     private Ordering<InvoiceItem> byAdjustedAmount;
@@ -80,6 +83,9 @@ public class TaxComputationContext {
      *            The tax country for the given account.
      * @param allInvoices
      *            The set of all invoices for the given account.
+     * @param invoiceIndex
+     *            The index of the items of all invoices for the given
+     *            account.
      * @param toAdjustedAmount
      *            A function that computes adjusted amounts for the listed
      *            invoices of the given account.
@@ -90,13 +96,15 @@ public class TaxComputationContext {
      *            The tax code service to use.
      */
     public TaxComputationContext(SimpleTaxConfig config, Account account, Country accountTaxCountry,
-            Set<Invoice> allInvoices, Function<InvoiceItem, BigDecimal> toAdjustedAmount,
-            Ordering<InvoiceItem> byAdjustedAmount, TaxCodeService taxCodeService) {
+            Set<Invoice> allInvoices, AccountInvoiceIndex invoiceIndex,
+            Function<InvoiceItem, BigDecimal> toAdjustedAmount, Ordering<InvoiceItem> byAdjustedAmount,
+            TaxCodeService taxCodeService) {
         super();
         this.config = config;
         this.account = account;
         this.accountTaxCountry = accountTaxCountry;
         this.allInvoices = allInvoices;
+        this.invoiceIndex = invoiceIndex;
         this.toAdjustedAmount = toAdjustedAmount;
         this.byAdjustedAmount = byAdjustedAmount;
         this.taxCodeService = taxCodeService;
@@ -131,6 +139,14 @@ public class TaxComputationContext {
         return allInvoices;
     }
 
+    /**
+     * @return The index of the items of all invoices for the
+     *         {@linkplain #getAccount() given account}.
+     */
+    public AccountInvoiceIndex getInvoiceIndex() {
+        return invoiceIndex;
+    }
+
     /**
      * @return A function that computes adjusted amounts for the
      *         {@linkplain #getAllInvoices() set of invoices} of the
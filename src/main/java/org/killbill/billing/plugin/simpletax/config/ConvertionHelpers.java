@@ -18,8 +18,10 @@ package org.killbill.billing.plugin.simpletax.config;
 
 import static com.google.common.base.MoreObjects.firstNonNull;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Maps.newConcurrentMap;
 import static com.google.common.primitives.Ints.tryParse;
 import static java.lang.Thread.currentThread;
+import static org.apache.commons.lang3.BooleanUtils.toBooleanObject;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.split;
 import static org.apache.commons.lang3.StringUtils.trim;
@@ -30,6 +32,7 @@ import java.math.BigDecimal;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -114,6 +117,36 @@ public final class ConvertionHelpers {
         return firstNonNull(convertedValue, defaultValue);
     }
 
+    /**
+     * Returns a boolean value from a configuration property, or return a
+     * default value when the property is blank, inexistent, or not recognized
+     * as a boolean.
+     * <p>
+     * Recognized values are those of
+     * {@link org.apache.commons.lang3.BooleanUtils#toBooleanObject(String)},
+     * like {@code true}, {@code false}, {@code yes}, {@code no}, {@code on} or
+     * {@code off}, whatever the case.
+     *
+     * @param cfg
+     *            The plugin configuration properties.
+     * @param propName
+     *            The property name.
+     * @param defaultValue
+     *            The default value.
+     * @return A boolean value reflecting the designated configuration
+     *         property, or the given default value.
+     * @throws NullPointerException
+     *             When {@code cfg} is {@code null}.
+     */
+    static boolean bool(Map<String, String> cfg, String propName, boolean defaultValue) {
+        String strValue = cfg.get(propName);
+        if (isBlank(strValue)) {
+            return defaultValue;
+        }
+        Boolean convertedValue = toBooleanObject(trim(strValue));
+        return firstNonNull(convertedValue, defaultValue);
+    }
+
     /**
      * Returns a non-{@code null} {@link String} from a configuration property,
      * or return a default value when the property is blank or inexistent.
@@ -279,7 +312,7 @@ public final class ConvertionHelpers {
             return defaultCountry;
         }
         try {
-            return new Country(trim(countryCode));
+            return Country.of(trim(countryCode));
         } catch (IllegalArgumentException e) {
             return defaultCountry;
         }
@@ -354,9 +387,65 @@ public final class ConvertionHelpers {
      */
     public static LocalDate convertTimeZone(LocalDate localDate, DateTimeZone originTimeZone,
             DateTimeZone targetTimeZone) {
+        checkNotNull(localDate);
         checkNotNull(originTimeZone);
         checkNotNull(targetTimeZone);
-        return localDate.toDateTimeAtStartOfDay(originTimeZone).withZone(targetTimeZone).toLocalDate();
+        DayInTimeZones key = new DayInTimeZones(localDate, originTimeZone, targetTimeZone);
+        LocalDate convertedDate = CONVERTED_DATES.get(key);
+        if (convertedDate == null) {
+            convertedDate = localDate.toDateTimeAtStartOfDay(originTimeZone).withZone(targetTimeZone).toLocalDate();
+            if (CONVERTED_DATES.size() >= MAX_CACHED_CONVERTED_DATES) {
+                // Cheaper than any eviction policy, for such a rare case
+                CONVERTED_DATES.clear();
+            }
+            CONVERTED_DATES.put(key, convertedDate);
+        }
+        return convertedDate;
+    }
+
+    private static final int MAX_CACHED_CONVERTED_DATES = 10000;
+
+    /**
+     * Invoice items mostly share the same few dates, and the same pair of
+     * account and taxation time zones, so that conversions are cached.
+     */
+    private static final ConcurrentMap<DayInTimeZones, LocalDate> CONVERTED_DATES = newConcurrentMap();
+
+    /**
+     * The cache key for {@linkplain #convertTimeZone time zone conversions}.
+     */
+    private static final class DayInTimeZones {
+        private final LocalDate localDate;
+        private final DateTimeZone originTimeZone;
+        private final DateTimeZone targetTimeZone;
+
+        private DayInTimeZones(LocalDate localDate, DateTimeZone originTimeZone, DateTimeZone targetTimeZone) {
+            super();
+            this.localDate = localDate;
+            this.originTimeZone = originTimeZone;
+            this.targetTimeZone = targetTimeZone;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null) {
+                return false;
+            }
+            if (obj == this) {
+                return true;
+            }
+            if (obj.getClass() != getClass()) {
+                return false;
+            }
+            DayInTimeZones rhs = (DayInTimeZones) obj;
+            return localDate.equals(rhs.localDate) && originTimeZone.equals(rhs.originTimeZone)
+                    && targetTimeZone.equals(rhs.targetTimeZone);
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * ((31 * localDate.hashCode()) + originTimeZone.hashCode())) + targetTimeZone.hashCode();
+        }
     }
 
     /** An exact regular expression to match UUIDs. */
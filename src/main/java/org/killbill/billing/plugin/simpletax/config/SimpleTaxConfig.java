@@ -23,6 +23,7 @@ import static org.apache.commons.lang3.StringUtils.indexOf;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.startsWith;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.bigDecimal;
+import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.bool;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.country;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.integer;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.localDate;
@@ -35,6 +36,7 @@ import static org.osgi.service.log.LogService.LOG_WARNING;
 
 import java.lang.reflect.Constructor;
 import java.math.BigDecimal;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -46,13 +48,25 @@ import org.joda.time.DateTimeZone;
 import org.joda.time.LocalDate;
 import org.killbill.billing.plugin.simpletax.TaxComputationContext;
 import org.killbill.billing.plugin.simpletax.internal.Country;
+import org.killbill.billing.plugin.simpletax.internal.ProductTaxCodes;
 import org.killbill.billing.plugin.simpletax.internal.TaxCode;
+import org.killbill.billing.plugin.simpletax.internal.TaxCodeTimeline;
+import org.killbill.billing.plugin.simpletax.resolving.ConstructorTaxResolverFactory;
 import org.killbill.billing.plugin.simpletax.resolving.NullTaxResolver;
 import org.killbill.billing.plugin.simpletax.resolving.TaxResolver;
+import org.killbill.billing.plugin.simpletax.resolving.TaxResolverFactory;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 
 /**
  * A configuration accessor for the simple-tax plugin.
@@ -98,6 +112,66 @@ import com.google.common.collect.ImmutableSet;
  * <dt>{@value #TAXATION_TIME_ZONE_PROPERTY}</dt>
  * <dd>The time zone to consider when using dates to apply taxes. It is up to
  * the {@link TaxResolver} implementation to use this property or not.</dd>
+ * <dt>{@value #INCREMENTAL_RECONCILIATION_PROPERTY}</dt>
+ * <dd>Whether historical invoices should be reconciled incrementally, i.e.
+ * only when their items, adjustments, or tax codes have changed since they
+ * were last found properly taxed. Defaults to {@code false}, which means that
+ * all historical invoices are re-examined each time a new invoice is
+ * created.</dd>
+ * <dt>{@value #FULL_SWEEP_INTERVAL_PROPERTY}</dt>
+ * <dd>When reconciling incrementally, the number of invoicing runs for an
+ * account after which all its historical invoices are re-examined anyway, as a
+ * safety net. Defaults to {@value #DEFAULT_FULL_SWEEP_INTERVAL}. A value lower
+ * than {@code 1} disables these periodic full sweeps.</dd>
+ * <dt>{@value #PARALLEL_RECONCILIATION_THRESHOLD_PROPERTY}</dt>
+ * <dd>The number of invoices from which the invoices of an account are
+ * reconciled in parallel. Defaults to {@value #DEFAULT_PARALLEL_THRESHOLD},
+ * which means that invoices are always reconciled sequentially. Any value lower
+ * than {@code 1} also disables parallel reconciliation.</dd>
+ * <dt>{@value #RECONCILIATION_PARALLELISM_PROPERTY}</dt>
+ * <dd>The maximum number of tasks in which the invoices of an account are split
+ * when they are reconciled in parallel. Defaults to the number of available
+ * processors, and cannot exceed {@value #MAX_PARALLELISM}. The value of the
+ * default configuration also sets the number of threads of the pool that is
+ * shared by all tenants.</dd>
+ * <dt>{@value #POST_TREATMENT_WORKERS_PROPERTY}</dt>
+ * <dd>The number of threads that add tax codes to new invoices, out of the Kill
+ * Bill event bus thread. Defaults to {@value #DEFAULT_POST_TREATMENT_WORKERS},
+ * which means that invoices are post-treated synchronously, as events are
+ * received. Cannot exceed {@value #MAX_PARALLELISM}. This is only read from
+ * the default configuration, and not from per-tenant configurations.</dd>
+ * <dt>{@value #POST_TREATMENT_QUEUE_CAPACITY_PROPERTY}</dt>
+ * <dd>The maximum number of invoices waiting for their post-treatment, beyond
+ * which events are post-treated synchronously again, as a back-pressure
+ * mechanism. Defaults to {@value #DEFAULT_POST_TREATMENT_QUEUE_CAPACITY}. This
+ * is only read from the default configuration, and not from per-tenant
+ * configurations.</dd>
+ * <dt>{@value #TAX_CODES_TABLE_PROPERTY}</dt>
+ * <dd>Whether the tax codes of invoice items are read from the table that the
+ * plugin owns, instead of the custom fields of the account invoice items.
+ * Defaults to {@code false}. When enabled in the default configuration, tax
+ * codes are also written to this table, alongside the custom fields, for all
+ * tenants. Custom fields remain the source of truth, so the table has to be
+ * back-filled from them before being enabled for any tenant, by posting to the
+ * {@code /accounts/{accountId}/taxCodes/backfill} endpoint of the plugin for
+ * each account. Invoices that miss some rows are read from custom fields.</dd>
+ * <dt>{@value #SEARCH_PAGE_SIZE_PROPERTY}</dt>
+ * <dd>The initial number of custom fields that are fetched with each search
+ * request, when listing the tax countries or the VAT identification numbers of
+ * all accounts. Defaults to {@value #DEFAULT_SEARCH_PAGE_SIZE}, and cannot
+ * exceed {@value #MAX_SEARCH_PAGE_SIZE}. This is only read from the default
+ * configuration, and not from per-tenant configurations.</dd>
+ * <dt>{@value #SEARCH_TARGET_LATENCY_PROPERTY}</dt>
+ * <dd>The time in milliseconds that each search request should take, to which
+ * the number of custom fields that are fetched with each request is adapted.
+ * Defaults to {@value #DEFAULT_SEARCH_TARGET_LATENCY}. A value lower than
+ * {@code 1} disables this adaptation. This is only read from the default
+ * configuration, and not from per-tenant configurations.</dd>
+ * <dt>{@value #SEARCH_PREFETCH_PROPERTY}</dt>
+ * <dd>Whether the next page of custom fields is fetched in the background,
+ * while the current one is processed. Defaults to {@code true}. This is only
+ * read from the default configuration, and not from per-tenant
+ * configurations.</dd>
  * </dl>
  * </blockquote>
  * <p>
@@ -127,6 +201,18 @@ public class SimpleTaxConfig {
     private static final String TAXATION_TIME_ZONE_PROPERTY = PROPERTY_PREFIX + "taxationTimeZone";
     private static final String TAX_AMOUNT_PRECISION_PROPERTY = PROPERTY_PREFIX + "taxItem.amount.precision";
     private static final String TAX_RESOLVER_PROPERTY = PROPERTY_PREFIX + "taxResolver";
+    private static final String INCREMENTAL_RECONCILIATION_PROPERTY = PROPERTY_PREFIX + "reconciliation.incremental";
+    private static final String FULL_SWEEP_INTERVAL_PROPERTY = PROPERTY_PREFIX + "reconciliation.fullSweepInterval";
+    private static final String PARALLEL_RECONCILIATION_THRESHOLD_PROPERTY = PROPERTY_PREFIX
+            + "reconciliation.parallelThreshold";
+    private static final String RECONCILIATION_PARALLELISM_PROPERTY = PROPERTY_PREFIX + "reconciliation.parallelism";
+    private static final String POST_TREATMENT_WORKERS_PROPERTY = PROPERTY_PREFIX + "postTreatment.workers";
+    private static final String POST_TREATMENT_QUEUE_CAPACITY_PROPERTY = PROPERTY_PREFIX
+            + "postTreatment.queueCapacity";
+    private static final String TAX_CODES_TABLE_PROPERTY = PROPERTY_PREFIX + "persistence.taxCodesTable";
+    private static final String SEARCH_PAGE_SIZE_PROPERTY = PROPERTY_PREFIX + "customFields.searchPageSize";
+    private static final String SEARCH_TARGET_LATENCY_PROPERTY = PROPERTY_PREFIX + "customFields.searchTargetLatency";
+    private static final String SEARCH_PREFETCH_PROPERTY = PROPERTY_PREFIX + "customFields.searchPrefetch";
 
     private static final String PRODUCT_TAX_CODE_PREFIX = PROPERTY_PREFIX + "products.";
     private static final String TAX_CODES_PREFIX = PROPERTY_PREFIX + "taxCodes.";
@@ -146,6 +232,29 @@ public class SimpleTaxConfig {
     private static final DateTimeZone DEFAULT_TAXATION_TIME_ZONE = null;
     private static final int DEFAULT_TAX_AMOUNT_PRECISION = 2;
     private static final BigDecimal DEFAULT_TAX_RATE = new BigDecimal("0.00");
+    private static final boolean DEFAULT_INCREMENTAL_RECONCILIATION = false;
+    private static final int DEFAULT_FULL_SWEEP_INTERVAL = 12;
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 0;
+    private static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_PARALLELISM = 64;
+    private static final int DEFAULT_POST_TREATMENT_WORKERS = 0;
+    private static final int DEFAULT_POST_TREATMENT_QUEUE_CAPACITY = 1000;
+    private static final boolean DEFAULT_TAX_CODES_TABLE = false;
+    private static final int DEFAULT_SEARCH_PAGE_SIZE = 100;
+    private static final int MAX_SEARCH_PAGE_SIZE = 1000;
+    private static final int DEFAULT_SEARCH_TARGET_LATENCY = 500;
+    private static final boolean DEFAULT_SEARCH_PREFETCH = true;
+    /**
+     * The maximum number of distinct lists of tax code names, for which
+     * resolved tax codes are cached.
+     */
+    private static final int MAX_CACHED_TAX_CODES_LISTS = 1000;
+
+    /**
+     * Tax codes that are defined identically in several configurations, which
+     * is common when many tenants use the same tax codes, are shared.
+     */
+    private static final Interner<TaxCode> TAX_CODES = Interners.newWeakInterner();
     private static final Class<? extends TaxResolver> DEFAULT_RESOLVER = NullTaxResolver.class;
     private static final Constructor<? extends TaxResolver> DEFAULT_RESOLVER_CONSTRUCTOR;
     static {
@@ -160,10 +269,30 @@ public class SimpleTaxConfig {
     private OSGIKillbillLogService logService;
 
     private Map<String, TaxCode> taxCodesByName;
+    private Map<String, ProductTaxCodes> taxCodesByProductAndCountry;
+
+    private final LoadingCache<String, ResolvedTaxCodes> resolvedTaxCodes = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_TAX_CODES_LISTS).build(new CacheLoader<String, ResolvedTaxCodes>() {
+                @Override
+                public ResolvedTaxCodes load(String names) {
+                    return resolveTaxCodes(names);
+                }
+            });
 
     private DateTimeZone taxationTimeZone;
     private int taxAmountPrecision;
     private Constructor<? extends TaxResolver> taxResolverConstructor;
+    private TaxResolverFactory taxResolverFactory;
+    private boolean incrementalReconciliation;
+    private int fullSweepInterval;
+    private int parallelReconciliationThreshold;
+    private int reconciliationParallelism;
+    private int postTreatmentWorkers;
+    private int postTreatmentQueueCapacity;
+    private boolean taxCodesTableEnabled;
+    private int searchPageSize;
+    private int searchTargetLatency;
+    private boolean searchPrefetchEnabled;
 
     /**
      * Construct a new configuration accessor for the given configuration
@@ -190,8 +319,34 @@ public class SimpleTaxConfig {
         taxationTimeZone = timeZone(cfg, TAXATION_TIME_ZONE_PROPERTY, DEFAULT_TAXATION_TIME_ZONE);
         taxAmountPrecision = integer(cfg, TAX_AMOUNT_PRECISION_PROPERTY, DEFAULT_TAX_AMOUNT_PRECISION);
         taxResolverConstructor = resolverConstructor(cfg, TAX_RESOLVER_PROPERTY, DEFAULT_RESOLVER_CONSTRUCTOR);
+        taxResolverFactory = new ConstructorTaxResolverFactory(taxResolverConstructor, logService);
+        incrementalReconciliation = bool(cfg, INCREMENTAL_RECONCILIATION_PROPERTY, DEFAULT_INCREMENTAL_RECONCILIATION);
+        fullSweepInterval = integer(cfg, FULL_SWEEP_INTERVAL_PROPERTY, DEFAULT_FULL_SWEEP_INTERVAL);
+        parallelReconciliationThreshold = integer(cfg, PARALLEL_RECONCILIATION_THRESHOLD_PROPERTY,
+                DEFAULT_PARALLEL_THRESHOLD);
+        reconciliationParallelism = integer(cfg, RECONCILIATION_PARALLELISM_PROPERTY, DEFAULT_PARALLELISM);
+        if (reconciliationParallelism < 1) {
+            reconciliationParallelism = DEFAULT_PARALLELISM;
+        }
+        reconciliationParallelism = Math.min(reconciliationParallelism, MAX_PARALLELISM);
+        postTreatmentWorkers = integer(cfg, POST_TREATMENT_WORKERS_PROPERTY, DEFAULT_POST_TREATMENT_WORKERS);
+        postTreatmentWorkers = Math.min(Math.max(postTreatmentWorkers, 0), MAX_PARALLELISM);
+        postTreatmentQueueCapacity = integer(cfg, POST_TREATMENT_QUEUE_CAPACITY_PROPERTY,
+                DEFAULT_POST_TREATMENT_QUEUE_CAPACITY);
+        if (postTreatmentQueueCapacity < 1) {
+            postTreatmentQueueCapacity = DEFAULT_POST_TREATMENT_QUEUE_CAPACITY;
+        }
+        taxCodesTableEnabled = bool(cfg, TAX_CODES_TABLE_PROPERTY, DEFAULT_TAX_CODES_TABLE);
+        searchPageSize = integer(cfg, SEARCH_PAGE_SIZE_PROPERTY, DEFAULT_SEARCH_PAGE_SIZE);
+        if (searchPageSize < 1) {
+            searchPageSize = DEFAULT_SEARCH_PAGE_SIZE;
+        }
+        searchPageSize = Math.min(searchPageSize, MAX_SEARCH_PAGE_SIZE);
+        searchTargetLatency = Math.max(integer(cfg, SEARCH_TARGET_LATENCY_PROPERTY, DEFAULT_SEARCH_TARGET_LATENCY), 0);
+        searchPrefetchEnabled = bool(cfg, SEARCH_PREFETCH_PROPERTY, DEFAULT_SEARCH_PREFETCH);
 
         taxCodesByName = parseTaxCodes(cfg);
+        taxCodesByProductAndCountry = partitionByCountry(parseProductTaxCodes(cfg, taxCodesByName));
     }
 
     private static final String DEFAULT_TAXATION_MSG = " Default taxation of [" + DEFAULT_RESOLVER
@@ -247,6 +402,41 @@ public class SimpleTaxConfig {
                 }
             }
         }
+
+        for (Entry<String, ProductTaxCodes> productCodes : taxCodesByProductAndCountry.entrySet()) {
+            checkOverlappingTaxCodes(productCodes.getKey(), productCodes.getValue());
+        }
+    }
+
+    /**
+     * Reports the tax codes of a product, that apply to the same country, and
+     * which periods of application overlap.
+     */
+    private void checkOverlappingTaxCodes(String productName, ProductTaxCodes taxCodes) {
+        Set<Country> countries = taxCodes.getCountries();
+        if (countries.isEmpty()) {
+            checkOverlappingTaxCodes(productName, taxCodes.inCountry(null), null);
+        }
+        for (Country country : countries) {
+            checkOverlappingTaxCodes(productName, taxCodes.inCountry(country), country);
+        }
+    }
+
+    private void checkOverlappingTaxCodes(String productName, TaxCodeTimeline timeline, @Nullable Country country) {
+        if (timeline.hasOverlaps()) {
+            logService.log(LOG_ERROR, "Inconsistent config property [" + PRODUCT_TAX_CODE_PREFIX + productName
+                    + "], because the tax codes " + names(timeline.getOverlappingCodes()) + " have overlapping dates"
+                    + (country == null ? "" : " in country [" + country.getCode() + "]")
+                    + ". Only the first applicable one will be used. You should fix this!");
+        }
+    }
+
+    private static List<String> names(Iterable<TaxCode> taxCodes) {
+        ImmutableList.Builder<String> names = ImmutableList.builder();
+        for (TaxCode taxCode : taxCodes) {
+            names.add(taxCode.getName());
+        }
+        return names.build();
     }
 
     /**
@@ -276,11 +466,51 @@ public class SimpleTaxConfig {
             LocalDate startingOn = localDate(cfg, prefix + STARTING_ON_SUFFIX, null);
             LocalDate stoppingOn = localDate(cfg, prefix + STOPPING_ON_SUFFIX, null);
             Country country = country(cfg, prefix + COUNTRY_SUFFIX, null);
-            codes.put(name, new TaxCode(name, taxItemDescription, rate, startingOn, stoppingOn, country));
+            codes.put(name, TAX_CODES.intern(new TaxCode(name, taxItemDescription, rate, startingOn, stoppingOn,
+                    country)));
         }
         return codes.build();
     }
 
+    /**
+     * Compiles the tax codes that are configured for products, so that they
+     * can be looked up without any parsing nor allocation.
+     * <p>
+     * Undefined tax codes are silently skipped here, because they are reported
+     * once and for all by {@link #earlyConsistencyChecks()}.
+     *
+     * @return A new immutable map of the configured tax codes, identified by
+     *         the names of their products. Never {@code null}, with no
+     *         {@code null} elements.
+     */
+    private static Map<String, Set<TaxCode>> parseProductTaxCodes(Map<String, String> cfg,
+            Map<String, TaxCode> taxCodesByName) {
+        ImmutableMap.Builder<String, Set<TaxCode>> productCodes = ImmutableMap.builder();
+        for (Entry<String, String> prop : cfg.entrySet()) {
+            String propName = prop.getKey();
+            if (!startsWith(propName, PRODUCT_TAX_CODE_PREFIX)) {
+                continue;
+            }
+            ImmutableSet.Builder<TaxCode> taxCodes = ImmutableSet.builder();
+            for (String name : splitTaxCodes(prop.getValue())) {
+                TaxCode taxCode = taxCodesByName.get(name);
+                if (taxCode != null) {
+                    taxCodes.add(taxCode);
+                }
+            }
+            productCodes.put(propName.substring(PRODUCT_TAX_CODE_PREFIX.length()), taxCodes.build());
+        }
+        return productCodes.build();
+    }
+
+    private static Map<String, ProductTaxCodes> partitionByCountry(Map<String, Set<TaxCode>> taxCodesByProduct) {
+        ImmutableMap.Builder<String, ProductTaxCodes> partitioned = ImmutableMap.builder();
+        for (Entry<String, Set<TaxCode>> productCodes : taxCodesByProduct.entrySet()) {
+            partitioned.put(productCodes.getKey(), ProductTaxCodes.of(productCodes.getValue()));
+        }
+        return partitioned.build();
+    }
+
     /**
      * Utility method to extract a portion of a property named, supposed to be
      * delimited by {@linkplain #PROP_NAME_SEGMENT_SEPARATOR dots}.
@@ -322,6 +552,116 @@ public class SimpleTaxConfig {
         return taxResolverConstructor;
     }
 
+    /**
+     * The factory of the configured {@link TaxResolver} implementation, that
+     * is resolved once for this configuration.
+     *
+     * @return The factory to use when building the applicable
+     *         {@linkplain TaxResolver tax resolver}. Never {@code null}.
+     */
+    @Nonnull
+    public TaxResolverFactory getTaxResolverFactory() {
+        return taxResolverFactory;
+    }
+
+    /**
+     * @return {@code true} if historical invoices are to be reconciled
+     *         incrementally, or {@code false} if they are all to be re-examined
+     *         each time a new invoice is created.
+     */
+    public boolean isIncrementalReconciliation() {
+        return incrementalReconciliation;
+    }
+
+    /**
+     * @return The number of invoicing runs for an account after which a full
+     *         reconciliation of its historical invoices is performed, when
+     *         {@linkplain #isIncrementalReconciliation() reconciling
+     *         incrementally}. Values lower than {@code 1} mean that no periodic
+     *         full reconciliation is done.
+     */
+    public int getFullSweepInterval() {
+        return fullSweepInterval;
+    }
+
+    /**
+     * @return The number of invoices from which the invoices of an account are
+     *         reconciled in parallel. Values lower than {@code 1} mean that
+     *         invoices are always reconciled sequentially.
+     */
+    public int getParallelReconciliationThreshold() {
+        return parallelReconciliationThreshold;
+    }
+
+    /**
+     * @return The maximum number of tasks in which the invoices of an account
+     *         are split when reconciled in parallel. Always strictly positive,
+     *         and never greater than {@value #MAX_PARALLELISM}.
+     */
+    public int getReconciliationParallelism() {
+        return reconciliationParallelism;
+    }
+
+    /**
+     * @return The number of threads that add tax codes to new invoices. Zero
+     *         means that new invoices are post-treated synchronously. Never
+     *         negative, and never greater than {@value #MAX_PARALLELISM}.
+     */
+    public int getPostTreatmentWorkers() {
+        return postTreatmentWorkers;
+    }
+
+    /**
+     * @return The maximum number of invoices waiting for their post-treatment.
+     *         Always strictly positive.
+     */
+    public int getPostTreatmentQueueCapacity() {
+        return postTreatmentQueueCapacity;
+    }
+
+    /**
+     * @return {@code true} if the tax codes of invoice items are to be read
+     *         from the table that the plugin owns, or {@code false} if they are
+     *         to be read from the custom fields of the invoice items.
+     */
+    public boolean isTaxCodesTableEnabled() {
+        return taxCodesTableEnabled;
+    }
+
+    /**
+     * @return The initial number of custom fields to fetch with each search
+     *         request. Always strictly positive.
+     */
+    public int getSearchPageSize() {
+        return searchPageSize;
+    }
+
+    /**
+     * @return The upper bound for the number of custom fields to fetch with
+     *         each search request.
+     */
+    public int getMaxSearchPageSize() {
+        return MAX_SEARCH_PAGE_SIZE;
+    }
+
+    /**
+     * @return The time in milliseconds that each search request should take,
+     *         or {@code 0} if the number of custom fields to fetch with each
+     *         request should not adapt to the latency of searches.
+     */
+    public int getSearchTargetLatency() {
+        return searchTargetLatency;
+    }
+
+    /**
+     * @return {@code true} if the next page of search results is to be fetched
+     *         while the current one is processed, or {@code false} if pages are
+     *         to be fetched one after the other.
+     */
+    public boolean isSearchPrefetchEnabled() {
+        return searchPrefetchEnabled;
+    }
+
     /**
      * Finds the definition of a tax code, as identified by its (unique) name.
      *
@@ -336,22 +676,30 @@ public class SimpleTaxConfig {
     }
 
     /**
-     * Lists the configured tax codes for a given product of the catalog.
+     * Lists the configured tax codes for a given product of the catalog, that
+     * apply in a given country.
+     * <p>
+     * These are the tax codes that are restricted to this country, along with
+     * the ones that are not restricted to any country, in their configured
+     * order. They are partitioned once, when this configuration is loaded.
      *
      * @param productName
      *            The name of a product in the catalog. Should not be
      *            {@code null}.
-     * @return A new immutable set of configured tax code definitions. Never
+     * @param country
+     *            The country where taxes apply, or {@code null} when unknown,
+     *            in which case only the tax codes that are not restricted to
+     *            any country are listed.
+     * @return The timeline of the configured tax code definitions. Never
      *         {@code null}, with no {@code null} elements.
      */
     @Nonnull
-    public Set<TaxCode> getConfiguredTaxCodes(@Nonnull String productName) {
-        String names = cfg.get(PRODUCT_TAX_CODE_PREFIX + productName);
-        if (names == null) {
-            return ImmutableSet.of();
+    public TaxCodeTimeline getConfiguredTaxCodes(@Nonnull String productName, @Nullable Country country) {
+        ProductTaxCodes taxCodes = taxCodesByProductAndCountry.get(productName);
+        if (taxCodes == null) {
+            taxCodes = ProductTaxCodes.empty();
         }
-        return findTaxCodesInternal(names, "taxCode [%1$s] configured for product [" + productName
-                + "] is undefined. Config spelling error? Ignoring it.");
+        return taxCodes.inCountry(country);
     }
 
     /**
@@ -376,34 +724,66 @@ public class SimpleTaxConfig {
      */
     @Nonnull
     public Set<TaxCode> findTaxCodes(@Nonnull String names, @Nonnull String errMsgContext) {
-        return findTaxCodesInternal(names, "taxCode [%1$s] " + errMsgContext + " is undefined."
-                + " Erroneously removed from config? Ignoring it.");
+        return findTaxCodes(names, Suppliers.ofInstance(errMsgContext));
     }
 
     /**
+     * Converts a comma-separated list of tax codes into a set of tax code
+     * definitions, just like {@link #findTaxCodes(String, String)}, except that
+     * the context message for errors is only built when some error needs to be
+     * reported.
+     * <p>
+     * Resolved sets are cached by list of names, so that the common values of
+     * tax codes custom fields are not parsed again and again.
+     *
      * @param names
-     *            A comma-separated list of tax code names. Must not be
+     *            A comma-separated list of tax codes names. Must not be
      *            {@code null}.
-     * @param errMsgFmt
-     *            An error message {@linkplain java.util.Formatter format} where
-     *            {@code %1$s} will be replaced by the tax code that cannot be
-     *            found in the config. Must not be {@code null}.
-     * @return A set of configured tax code definitions. Never {@code null}.
+     * @param errMsgContext
+     *            A supplier for the context message of errors. Should not be
+     *            {@code null}.
+     * @return An immutable set of configured tax code definitions that match
+     *         the given list of names. Never {@code null}, with no {@code null}
+     *         elements.
      * @throws NullPointerException
-     *             when {@code names} is {@code null} or when {@code errMsgFmt}
-     *             is {@code null}.
+     *             when {@code names} is null.
      */
     @Nonnull
-    private Set<TaxCode> findTaxCodesInternal(@Nonnull String names, @Nonnull String errMsgFmt) {
+    public Set<TaxCode> findTaxCodes(@Nonnull String names, @Nonnull Supplier<String> errMsgContext) {
+        ResolvedTaxCodes resolved = resolvedTaxCodes.getUnchecked(names);
+        for (String undefinedName : resolved.undefinedNames) {
+            logService.log(LOG_ERROR, "taxCode [" + undefinedName + "] " + errMsgContext.get()
+                    + " is undefined. Erroneously removed from config? Ignoring it.");
+        }
+        return resolved.taxCodes;
+    }
+
+    private ResolvedTaxCodes resolveTaxCodes(String names) {
         ImmutableSet.Builder<TaxCode> taxCodes = ImmutableSet.builder();
+        ImmutableList.Builder<String> undefinedNames = ImmutableList.builder();
         for (String name : splitTaxCodes(names)) {
             TaxCode taxCode = findTaxCode(name);
             if (taxCode == null) {
-                logService.log(LOG_ERROR, String.format(errMsgFmt, name));
+                undefinedNames.add(name);
                 continue;
             }
             taxCodes.add(taxCode);
         }
-        return taxCodes.build();
+        return new ResolvedTaxCodes(taxCodes.build(), undefinedNames.build());
+    }
+
+    /**
+     * The tax codes that are resolved from a list of names, along with the
+     * names that could not be resolved.
+     */
+    private static final class ResolvedTaxCodes {
+        private final Set<TaxCode> taxCodes;
+        private final List<String> undefinedNames;
+
+        private ResolvedTaxCodes(Set<TaxCode> taxCodes, List<String> undefinedNames) {
+            super();
+            this.taxCodes = taxCodes;
+            this.undefinedNames = undefinedNames;
+        }
     }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.google.common.collect.Sets.newHashSet;
+import static java.lang.Boolean.TRUE;
+import static org.killbill.billing.plugin.simpletax.config.http.AccountUpdateStatusRsc.Status.DUPLICATE;
+import static org.killbill.billing.plugin.simpletax.config.http.AccountUpdateStatusRsc.Status.FAILED;
+import static org.killbill.billing.plugin.simpletax.config.http.AccountUpdateStatusRsc.Status.INVALID;
+import static org.killbill.billing.plugin.simpletax.config.http.AccountUpdateStatusRsc.Status.SAVED;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.api.PluginTenantContext;
+import org.killbill.billing.plugin.simpletax.config.http.AccountUpdateStatusRsc.Status;
+import org.killbill.billing.tenant.api.Tenant;
+
+/**
+ * A batch update of one custom field on many accounts, that validates and
+ * deduplicates the updates, saves them with bulk calls to Kill Bill, and
+ * reports the outcome of each update.
+ *
+ * @param <R>
+ *            The type of resources that hold the updates.
+ * @author Benjamin Gandon
+ */
+abstract class AccountFieldsBatchUpdate<R> {
+
+    private final CustomFieldService customFieldService;
+    private final String fieldName;
+
+    /**
+     * Constructs a new batch update of account custom fields.
+     *
+     * @param customFieldService
+     *            The service to use when accessing custom fields.
+     * @param fieldName
+     *            The name of the custom fields to update.
+     */
+    protected AccountFieldsBatchUpdate(CustomFieldService customFieldService, String fieldName) {
+        super();
+        this.customFieldService = customFieldService;
+        this.fieldName = fieldName;
+    }
+
+    /**
+     * @return Whether the given resource can be saved.
+     */
+    protected abstract boolean isValid(@Nullable R resource);
+
+    /**
+     * @return The identifier of the account of a resource, or {@code null}
+     *         when unknown.
+     */
+    @Nullable
+    protected abstract UUID accountIdOf(@Nullable R resource);
+
+    /**
+     * @return The raw custom field value of a valid resource.
+     */
+    protected abstract String fieldValueOf(@Nonnull R resource);
+
+    /**
+     * Records the saved values in any index, so that they are listed without
+     * fetching them again.
+     *
+     * @param tenantId
+     *            The identifier of the tenant.
+     * @param savedValues
+     *            The saved raw values, by the identifiers of their accounts.
+     */
+    protected abstract void indexSavedValues(UUID tenantId, Map<UUID, String> savedValues);
+
+    /**
+     * Persists the valid updates, only the first one for each account.
+     *
+     * @param resources
+     *            The resources to persist. Any {@code null} element stands for
+     *            an invalid resource. Must not be {@code null}.
+     * @param tenant
+     *            The tenant on which to operate.
+     * @return The {@linkplain AccountUpdateStatusRsc status} of each resource,
+     *         in the same order. Never {@code null}.
+     */
+    @Nonnull
+    public List<AccountUpdateStatusRsc> save(@Nonnull List<R> resources, Tenant tenant) {
+        Map<UUID, String> newValues = newLinkedHashMap();
+        for (R resource : resources) {
+            if (isValid(resource) && !newValues.containsKey(accountIdOf(resource))) {
+                newValues.put(accountIdOf(resource), fieldValueOf(resource));
+            }
+        }
+        Map<UUID, Boolean> saved = customFieldService.saveAccountFields(newValues, fieldName,
+                new PluginTenantContext(tenant.getId()));
+
+        Map<UUID, String> savedValues = newHashMap();
+        for (Entry<UUID, Boolean> accountSaved : saved.entrySet()) {
+            if (accountSaved.getValue()) {
+                savedValues.put(accountSaved.getKey(), newValues.get(accountSaved.getKey()));
+            }
+        }
+        indexSavedValues(tenant.getId(), savedValues);
+
+        List<AccountUpdateStatusRsc> statuses = newArrayList();
+        Set<UUID> reportedAccounts = newHashSet();
+        for (int i = 0; i < resources.size(); i++) {
+            R resource = resources.get(i);
+            UUID accountId = accountIdOf(resource);
+            Status status;
+            if (!isValid(resource)) {
+                status = INVALID;
+            } else if (!reportedAccounts.add(accountId)) {
+                status = DUPLICATE;
+            } else {
+                status = TRUE.equals(saved.get(accountId)) ? SAVED : FAILED;
+            }
+            statuses.add(new AccountUpdateStatusRsc(i, accountId, status));
+        }
+        return statuses;
+    }
+}
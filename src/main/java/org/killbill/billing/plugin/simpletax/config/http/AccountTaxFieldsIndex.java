@@ -0,0 +1,452 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static com.google.common.collect.Maps.newConcurrentMap;
+import static com.google.common.collect.Sets.newHashSet;
+import static com.google.common.collect.Sets.newSetFromMap;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.Collections.unmodifiableSet;
+import static org.killbill.billing.ObjectType.ACCOUNT;
+import static org.killbill.billing.ObjectType.CUSTOM_FIELD;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.CUSTOM_FIELD_CREATION;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.CUSTOM_FIELD_DELETION;
+import static org.killbill.billing.plugin.simpletax.config.http.CustomFieldService.TAX_COUNTRY_CUSTOM_FIELD_NAME;
+import static org.killbill.billing.plugin.simpletax.config.http.CustomFieldService.VATIN_CUSTOM_FIELD_NAME;
+import static org.osgi.service.log.LogService.LOG_DEBUG;
+import static org.osgi.service.log.LogService.LOG_ERROR;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.plugin.api.PluginTenantContext;
+import org.killbill.billing.plugin.simpletax.internal.Country;
+import org.killbill.billing.plugin.simpletax.util.CoalescingExecutor;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillEventDispatcher.OSGIKillbillEventHandler;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ * An in-memory index of the tax countries and VAT Identification Numbers
+ * (VATINs) of the accounts of each tenant, along with the reverse index of the
+ * accounts by tax country.
+ * <p>
+ * The custom fields of a tenant are searched once, when its index is first
+ * used. Indexes are then kept fresh with the custom fields that are saved
+ * through this plugin, and with the custom field events of Kill Bill, upon
+ * which the fields of the related account are fetched again. When an executor
+ * is provided, these refreshes are run asynchronously, and the ones that are
+ * still pending for the same account are coalesced.
+ * <p>
+ * Accounts that are updated while the index of their tenant is being loaded
+ * are updated in this index too. Their values override the ones that the
+ * search of custom fields returns, as these might be stale.
+ * <p>
+ * Indexed values are the raw values of custom fields. Invalid tax countries
+ * are just left out of the reverse index.
+ * <p>
+ * Instances of this class are thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+public class AccountTaxFieldsIndex implements OSGIKillbillEventHandler {
+
+    private static final int MAX_INDEXED_TENANTS = 100;
+
+    private CustomFieldService customFieldService;
+    private CoalescingExecutor refreshExecutor;
+    private OSGIKillbillLogService logService;
+
+    /** The indexes of the tenants that are being loaded. */
+    private final ConcurrentMap<UUID, TenantIndex> loadingIndexes = newConcurrentMap();
+
+    private final LoadingCache<UUID, TenantIndex> tenantIndexes = CacheBuilder.newBuilder()
+            .maximumSize(MAX_INDEXED_TENANTS).build(new CacheLoader<UUID, TenantIndex>() {
+                @Override
+                public TenantIndex load(UUID tenantId) {
+                    return loadTenantIndex(tenantId);
+                }
+            });
+
+    /**
+     * Constructs a new index of account tax fields.
+     *
+     * @param customFieldService
+     *            The service to use when accessing custom fields.
+     */
+    public AccountTaxFieldsIndex(CustomFieldService customFieldService) {
+        this(customFieldService, null, null);
+    }
+
+    /**
+     * Constructs a new index of account tax fields, that refreshes accounts
+     * asynchronously upon custom field events.
+     *
+     * @param customFieldService
+     *            The service to use when accessing custom fields.
+     * @param refreshExecutor
+     *            The executor that refreshes accounts, or {@code null} to
+     *            refresh them synchronously.
+     * @param logService
+     *            The service to use when logging asynchronous refreshes.
+     *            Must not be {@code null} when an executor is provided.
+     */
+    public AccountTaxFieldsIndex(CustomFieldService customFieldService, @Nullable CoalescingExecutor refreshExecutor,
+            @Nullable OSGIKillbillLogService logService) {
+        super();
+        this.customFieldService = customFieldService;
+        this.refreshExecutor = refreshExecutor;
+        this.logService = logService;
+    }
+
+    /**
+     * Lists the tax countries of all accounts of a tenant.
+     *
+     * @param tenantId
+     *            The identifier of the tenant.
+     * @return An unmodifiable view of the raw values of the tax country custom
+     *         fields, by the identifiers of their accounts, sorted by account
+     *         identifiers. Never {@code null}.
+     */
+    @Nonnull
+    public Map<UUID, String> getTaxCountries(@Nonnull UUID tenantId) {
+        return unmodifiableMap(loadedIndex(tenantId).taxCountries);
+    }
+
+    /**
+     * Lists the VAT Identification Numbers (VATINs) of all accounts of a
+     * tenant.
+     *
+     * @param tenantId
+     *            The identifier of the tenant.
+     * @return An unmodifiable view of the raw values of the VATIN custom
+     *         fields, by the identifiers of their accounts, sorted by account
+     *         identifiers. Never {@code null}.
+     */
+    @Nonnull
+    public Map<UUID, String> getVatins(@Nonnull UUID tenantId) {
+        return unmodifiableMap(loadedIndex(tenantId).vatins);
+    }
+
+    /**
+     * Lists the accounts of a tenant that have a given tax country.
+     *
+     * @param tenantId
+     *            The identifier of the tenant.
+     * @param taxCountry
+     *            A tax country.
+     * @return An unmodifiable view of the identifiers of the accounts. Never
+     *         {@code null}.
+     */
+    @Nonnull
+    public Set<UUID> getAccountsOfTaxCountry(@Nonnull UUID tenantId, @Nonnull Country taxCountry) {
+        Set<UUID> accounts = loadedIndex(tenantId).accountsByTaxCountry.get(taxCountry);
+        if (accounts == null) {
+            return ImmutableSet.of();
+        }
+        return unmodifiableSet(accounts);
+    }
+
+    /**
+     * Fetches the tax fields of an account again, when the index of its tenant
+     * is loaded or being loaded. This is to be called whenever these fields
+     * might have changed.
+     *
+     * @param tenantId
+     *            The identifier of the tenant.
+     * @param accountId
+     *            The identifier of the account.
+     */
+    public void refreshAccount(@Nullable UUID tenantId, @Nullable UUID accountId) {
+        if ((tenantId == null) || (accountId == null)) {
+            return;
+        }
+        TenantIndex index = indexIfLoadedOrLoading(tenantId);
+        if (index == null) {
+            return;
+        }
+        List<CustomField> accountFields = customFieldService.findAllFieldsOfAccount(accountId,
+                new PluginTenantContext(tenantId));
+        index.updateTaxCountry(accountId, fieldValueOrNull(accountFields, TAX_COUNTRY_CUSTOM_FIELD_NAME));
+        index.updateVatin(accountId, fieldValueOrNull(accountFields, VATIN_CUSTOM_FIELD_NAME));
+    }
+
+    /**
+     * @return The value of the first field with the given name, or
+     *         {@code null} if there is none.
+     */
+    @Nullable
+    private static String fieldValueOrNull(List<CustomField> fields, String fieldName) {
+        for (CustomField field : fields) {
+            if (fieldName.equals(field.getFieldName())) {
+                return field.getFieldValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records new tax countries for some accounts, when the index of their
+     * tenant is loaded or being loaded. This is to be called once these tax
+     * countries are saved, so that they are listed without fetching them
+     * again.
+     *
+     * @param tenantId
+     *            The identifier of the tenant.
+     * @param taxCountries
+     *            The raw values of the saved tax country custom fields, by
+     *            the identifiers of their accounts.
+     */
+    public void putTaxCountries(@Nonnull UUID tenantId, @Nonnull Map<UUID, String> taxCountries) {
+        TenantIndex index = indexIfLoadedOrLoading(tenantId);
+        if (index == null) {
+            return;
+        }
+        for (Entry<UUID, String> taxCountry : taxCountries.entrySet()) {
+            index.updateTaxCountry(taxCountry.getKey(), taxCountry.getValue());
+        }
+    }
+
+    /**
+     * Records new VAT Identification Numbers (VATINs) for some accounts, when
+     * the index of their tenant is loaded or being loaded. This is to be
+     * called once these VATINs are saved, so that they are listed without
+     * fetching them again.
+     *
+     * @param tenantId
+     *            The identifier of the tenant.
+     * @param vatins
+     *            The raw values of the saved VATIN custom fields, by the
+     *            identifiers of their accounts.
+     */
+    public void putVatins(@Nonnull UUID tenantId, @Nonnull Map<UUID, String> vatins) {
+        TenantIndex index = indexIfLoadedOrLoading(tenantId);
+        if (index == null) {
+            return;
+        }
+        for (Entry<UUID, String> vatin : vatins.entrySet()) {
+            index.updateVatin(vatin.getKey(), vatin.getValue());
+        }
+    }
+
+    /**
+     * This implementation refreshes the tax fields of the accounts whose
+     * custom fields are created or deleted.
+     * <p>
+     * Events that designate custom fields on other objects than accounts are
+     * ignored. Events that only designate the custom field itself cannot tell,
+     * and are handled. As many such events are sent for the fields of one
+     * invoice, they are coalesced per account when an executor is provided.
+     * <p>
+     * {@inheritDoc}
+     */
+    @Override
+    public void handleKillbillEvent(ExtBusEvent event) {
+        if (!CUSTOM_FIELD_CREATION.equals(event.getEventType())
+                && !CUSTOM_FIELD_DELETION.equals(event.getEventType())) {
+            return;
+        }
+        ObjectType objectType = event.getObjectType();
+        if ((objectType != null) && !ACCOUNT.equals(objectType) && !CUSTOM_FIELD.equals(objectType)) {
+            return;
+        }
+        final UUID tenantId = event.getTenantId();
+        final UUID accountId = event.getAccountId();
+        if (refreshExecutor == null) {
+            refreshAccount(tenantId, accountId);
+            return;
+        }
+        if ((tenantId == null) || (accountId == null) || (indexIfLoadedOrLoading(tenantId) == null)) {
+            return;
+        }
+        // Note: other tasks of the executor have keys of other types or
+        // sizes, which never equal these keys
+        boolean submitted = refreshExecutor.submit(ImmutableList.of(tenantId, accountId), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refreshAccount(tenantId, accountId);
+                } catch (RuntimeException exc) {
+                    // Failures on worker threads never reach the event bus
+                    logService.log(LOG_ERROR, "Cannot refresh the tax fields of account [" + accountId
+                            + "] for tenant [" + tenantId + "]", exc);
+                    throw exc;
+                }
+            }
+        });
+        if (!submitted) {
+            logService.log(LOG_DEBUG, "The tax fields of account [" + accountId + "] are already about to be"
+                    + " refreshed for tenant [" + tenantId + "]");
+        }
+    }
+
+    /**
+     * @return The index of a tenant, that is loaded first if needed. Never
+     *         {@code null}.
+     */
+    private TenantIndex loadedIndex(UUID tenantId) {
+        TenantIndex index = tenantIndexes.getUnchecked(tenantId);
+        // Note: the loaded index is in the cache by now
+        loadingIndexes.remove(tenantId, index);
+        return index;
+    }
+
+    /**
+     * @return The index of a tenant, when loaded or being loaded, or
+     *         {@code null}.
+     */
+    @Nullable
+    private TenantIndex indexIfLoadedOrLoading(UUID tenantId) {
+        // Note: an index is removed from the indexes being loaded only once
+        // it is in the cache, so they must be looked up in this order
+        TenantIndex index = loadingIndexes.get(tenantId);
+        if (index != null) {
+            return index;
+        }
+        return tenantIndexes.getIfPresent(tenantId);
+    }
+
+    /**
+     * The index of the tax fields of the accounts of one tenant.
+     */
+    private static final class TenantIndex {
+        /** Sorted by account, so that pages of all values are consistent. */
+        private final ConcurrentMap<UUID, String> taxCountries = new ConcurrentSkipListMap<UUID, String>();
+        private final ConcurrentMap<UUID, String> vatins = new ConcurrentSkipListMap<UUID, String>();
+        private final ConcurrentMap<Country, Set<UUID>> accountsByTaxCountry = newConcurrentMap();
+
+        /**
+         * The accounts whose tax country or VATIN have been updated while
+         * loading this index, or {@code null} once it is loaded.
+         */
+        private Set<UUID> taxCountriesUpdatedWhileLoading = newHashSet();
+        private Set<UUID> vatinsUpdatedWhileLoading = newHashSet();
+
+        private synchronized void updateTaxCountry(UUID accountId, @Nullable String taxCountry) {
+            if (taxCountriesUpdatedWhileLoading != null) {
+                taxCountriesUpdatedWhileLoading.add(accountId);
+            }
+            putTaxCountry(accountId, taxCountry);
+        }
+
+        private synchronized void loadTaxCountry(UUID accountId, @Nullable String taxCountry) {
+            if (!taxCountriesUpdatedWhileLoading.contains(accountId)) {
+                putTaxCountry(accountId, taxCountry);
+            }
+        }
+
+        private synchronized void updateVatin(UUID accountId, @Nullable String vatin) {
+            if (vatinsUpdatedWhileLoading != null) {
+                vatinsUpdatedWhileLoading.add(accountId);
+            }
+            putVatin(accountId, vatin);
+        }
+
+        private synchronized void loadVatin(UUID accountId, @Nullable String vatin) {
+            if (!vatinsUpdatedWhileLoading.contains(accountId)) {
+                putVatin(accountId, vatin);
+            }
+        }
+
+        private synchronized void loaded() {
+            taxCountriesUpdatedWhileLoading = null;
+            vatinsUpdatedWhileLoading = null;
+        }
+
+        private void putTaxCountry(UUID accountId, @Nullable String taxCountry) {
+            String previous = taxCountry == null ? taxCountries.remove(accountId) : taxCountries.put(accountId,
+                    taxCountry);
+            Country previousCountry = toCountryOrNull(previous);
+            if (previousCountry != null) {
+                accountsByTaxCountry.get(previousCountry).remove(accountId);
+            }
+            Country country = toCountryOrNull(taxCountry);
+            if (country == null) {
+                return;
+            }
+            Set<UUID> accounts = accountsByTaxCountry.get(country);
+            if (accounts == null) {
+                accounts = newSetFromMap(Maps.<UUID, Boolean> newConcurrentMap());
+                accountsByTaxCountry.put(country, accounts);
+            }
+            accounts.add(accountId);
+        }
+
+        private void putVatin(UUID accountId, @Nullable String vatin) {
+            if (vatin == null) {
+                vatins.remove(accountId);
+            } else {
+                vatins.put(accountId, vatin);
+            }
+        }
+    }
+
+    private static Country toCountryOrNull(@Nullable String country) {
+        if (country == null) {
+            return null;
+        }
+        try {
+            return Country.of(country);
+        } catch (IllegalArgumentException exc) {
+            return null;
+        }
+    }
+
+    /**
+     * Loads the index of a tenant, that receives the updates of accounts while
+     * being loaded. It remains listed in the {@link #loadingIndexes} until it
+     * is {@linkplain #loadedIndex retrieved} from the cache.
+     */
+    private TenantIndex loadTenantIndex(UUID tenantId) {
+        TenantContext tenantContext = new PluginTenantContext(tenantId);
+        TenantIndex index = new TenantIndex();
+        loadingIndexes.put(tenantId, index);
+        try {
+            for (CustomField field : customFieldService.findAllAccountFieldsByFieldNameAndTenant(
+                    TAX_COUNTRY_CUSTOM_FIELD_NAME, tenantContext)) {
+                index.loadTaxCountry(field.getObjectId(), field.getFieldValue());
+            }
+            for (CustomField field : customFieldService.findAllAccountFieldsByFieldNameAndTenant(
+                    VATIN_CUSTOM_FIELD_NAME, tenantContext)) {
+                index.loadVatin(field.getObjectId(), field.getFieldValue());
+            }
+        } catch (RuntimeException exc) {
+            loadingIndexes.remove(tenantId, index);
+            throw exc;
+        }
+        index.loaded();
+        return index;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import java.util.UUID;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A resource for the outcome of one update in a batch of account updates.
+ *
+ * @author Benjamin Gandon
+ */
+public final class AccountUpdateStatusRsc {
+
+    /**
+     * The possible outcomes of an account update.
+     */
+    public static enum Status {
+        /** The update is properly saved. */
+        SAVED,
+        /** The update is not valid, and is ignored. */
+        INVALID,
+        /** Another update for the same account precedes in the batch. */
+        DUPLICATE,
+        /** The update is valid, but could not be saved. */
+        FAILED;
+    }
+
+    /** The position of the update in the batch, starting at {@code 0}. */
+    public final int index;
+    /** The identifier of the updated account, if known. */
+    public final UUID accountId;
+    /** The outcome of the update. */
+    public final Status status;
+
+    /**
+     * Constructs a new account update status resource.
+     *
+     * @param index
+     *            The position of the update in the batch.
+     * @param accountId
+     *            An account identifier, or {@code null} when unknown.
+     * @param status
+     *            The outcome of the update.
+     */
+    @JsonCreator
+    public AccountUpdateStatusRsc(@JsonProperty("index") int index, @JsonProperty("accountId") UUID accountId,
+            @JsonProperty("status") Status status) {
+        this.index = index;
+        this.accountId = accountId;
+        this.status = status;
+    }
+}
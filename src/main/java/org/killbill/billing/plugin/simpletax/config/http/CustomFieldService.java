@@ -21,13 +21,27 @@ import static com.google.common.collect.Iterables.addAll;
 import static com.google.common.collect.Iterables.filter;
 import static com.google.common.collect.Iterables.tryFind;
 import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.google.common.collect.Queues.newConcurrentLinkedQueue;
 import static org.killbill.billing.ObjectType.ACCOUNT;
 import static org.killbill.billing.ObjectType.INVOICE_ITEM;
 import static org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxActivator.PLUGIN_NAME;
 import static org.osgi.service.log.LogService.LOG_ERROR;
 
+import java.io.Closeable;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -35,6 +49,7 @@ import javax.annotation.Nullable;
 import org.joda.time.DateTime;
 import org.killbill.billing.ObjectType;
 import org.killbill.billing.plugin.api.PluginCallContext;
+import org.killbill.billing.plugin.simpletax.util.AdaptivePageSize;
 import org.killbill.billing.plugin.simpletax.util.ImmutableCustomField;
 import org.killbill.billing.util.api.CustomFieldApiException;
 import org.killbill.billing.util.api.CustomFieldUserApi;
@@ -44,7 +59,10 @@ import org.killbill.billing.util.customfield.CustomField;
 import org.killbill.billing.util.entity.Pagination;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableList;
 
 /**
@@ -63,9 +81,13 @@ public class CustomFieldService {
 
     private CustomFieldUserApi customFieldApi;
     private OSGIKillbillLogService logService;
+    private AdaptivePageSize pageSize;
+    private ExecutorService prefetchExecutor;
 
     /**
-     * Constructs a service for manipulating custom fields.
+     * Constructs a service for manipulating custom fields, that searches
+     * custom fields with pages of {@value #PAGE_SIZE} results, one after the
+     * other.
      *
      * @param customFieldApi
      *            The Kill Bill service API class to use.
@@ -73,9 +95,31 @@ public class CustomFieldService {
      *            The Kill Bill logging service to use.
      */
     public CustomFieldService(CustomFieldUserApi customFieldApi, OSGIKillbillLogService logService) {
+        this(customFieldApi, logService, null, null);
+    }
+
+    /**
+     * Constructs a service for manipulating custom fields.
+     *
+     * @param customFieldApi
+     *            The Kill Bill service API class to use.
+     * @param logService
+     *            The Kill Bill logging service to use.
+     * @param pageSize
+     *            The size of pages of search results, or {@code null} for
+     *            pages of {@value #PAGE_SIZE} results.
+     * @param prefetchExecutor
+     *            The executor that fetches the next page of search results
+     *            while the current one is consumed, or {@code null} to fetch
+     *            pages only when they are needed.
+     */
+    public CustomFieldService(CustomFieldUserApi customFieldApi, OSGIKillbillLogService logService,
+            @Nullable AdaptivePageSize pageSize, @Nullable ExecutorService prefetchExecutor) {
         super();
         this.customFieldApi = customFieldApi;
         this.logService = logService;
+        this.pageSize = pageSize;
+        this.prefetchExecutor = prefetchExecutor;
     }
 
     /**
@@ -129,15 +173,196 @@ public class CustomFieldService {
     @Nonnull
     public List<CustomField> findAllAccountFieldsByFieldNameAndTenant(String fieldName, TenantContext tenantContext) {
         List<CustomField> fields = newArrayList();
+        SearchResults results = new SearchResults(fieldName, START_OFFSET, tenantContext);
+        try {
+            addAll(fields, filter(results, new RetainFieldsWithNameAndObjectType(fieldName, ACCOUNT)));
+        } finally {
+            results.close();
+        }
+        return fields;
+    }
+
+    /**
+     * Lazily searches custom fields on account objects that match a specific
+     * field name in the context of a given tenant.
+     * <p>
+     * Offsets and limits apply to the raw search results, before they are
+     * filtered on their field names and object types, so that they can be
+     * passed as is to the Kill Bill search API.
+     *
+     * @param fieldName
+     *            A specific field name that returned fields will match.
+     * @param offset
+     *            The offset of the first search result to consider.
+     * @param limit
+     *            The maximum number of search results to consider, or
+     *            {@code null} to consider all search results, page after
+     *            page, while iterating over the returned page.
+     * @param tenantContext
+     *            The tenant on which to operate.
+     * @return A page of matching custom fields, to be iterated over only once,
+     *         and to be {@linkplain ResultsPage#close() closed} when done.
+     *         Never {@code null}.
+     */
+    @Nonnull
+    public ResultsPage<CustomField> searchAccountFieldsByFieldNameAndTenant(String fieldName, long offset,
+            @Nullable Long limit, TenantContext tenantContext) {
         Predicate<CustomField> onlyAccountFieldsWithExpectedName = new RetainFieldsWithNameAndObjectType(fieldName,
                 ACCOUNT);
-        Pagination<CustomField> page;
-        Long nextOffset = START_OFFSET;
-        do {
-            page = customFieldApi.searchCustomFields(fieldName, nextOffset, PAGE_SIZE, tenantContext);
-            addAll(fields, filter(page, onlyAccountFieldsWithExpectedName));
-            nextOffset = page.getNextOffset();
-        } while (nextOffset != null);
+        if (limit == null) {
+            SearchResults results = new SearchResults(fieldName, offset, tenantContext);
+            return ResultsPage.of(filter(results, onlyAccountFieldsWithExpectedName), null, null, results);
+        }
+        Pagination<CustomField> page = customFieldApi.searchCustomFields(fieldName, offset, limit, tenantContext);
+        return ResultsPage.of(filter(page, onlyAccountFieldsWithExpectedName), page.getNextOffset(),
+                page.getTotalNbRecords());
+    }
+
+    /**
+     * The search results from a given offset, that are fetched page after page
+     * while iterating over them. When a prefetch executor is set, the next
+     * page is fetched while the current one is iterated over.
+     * <p>
+     * Closing these results cancels the pages that are prefetched but not
+     * consumed yet, so that abandoned iterations do not keep the prefetch
+     * executor busy.
+     */
+    private final class SearchResults implements Iterable<CustomField>, Closeable {
+        private final String searchKey;
+        private final long offset;
+        private final TenantContext tenantContext;
+        private final Queue<Future<Pagination<CustomField>>> prefetchedPages = newConcurrentLinkedQueue();
+
+        private SearchResults(String searchKey, long offset, TenantContext tenantContext) {
+            this.searchKey = searchKey;
+            this.offset = offset;
+            this.tenantContext = tenantContext;
+        }
+
+        @Override
+        public Iterator<CustomField> iterator() {
+            return new AbstractIterator<CustomField>() {
+                private Iterator<CustomField> page = null;
+                private Long nextOffset = offset;
+                private Future<Pagination<CustomField>> prefetchedPage = null;
+
+                @Override
+                protected CustomField computeNext() {
+                    while ((page == null) || !page.hasNext()) {
+                        if (nextOffset == null) {
+                            return endOfData();
+                        }
+                        Pagination<CustomField> results;
+                        if (prefetchedPage == null) {
+                            results = searchPage(searchKey, nextOffset, tenantContext);
+                        } else {
+                            prefetchedPages.remove(prefetchedPage);
+                            results = getPage(prefetchedPage);
+                        }
+                        nextOffset = results.getNextOffset();
+                        prefetchedPage = nextOffset == null ? null : prefetchPage(searchKey, nextOffset,
+                                tenantContext);
+                        if (prefetchedPage != null) {
+                            prefetchedPages.add(prefetchedPage);
+                        }
+                        page = results.iterator();
+                    }
+                    return page.next();
+                }
+            };
+        }
+
+        /**
+         * Cancels the prefetched pages that are not consumed yet. Searches
+         * that are already running are not interrupted, so that the
+         * connections they use are left in a clean state.
+         */
+        @Override
+        public void close() {
+            Future<Pagination<CustomField>> prefetchedPage;
+            while ((prefetchedPage = prefetchedPages.poll()) != null) {
+                prefetchedPage.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Fetches a page of search results, adapting the size of pages to the
+     * latency of searches when an adaptive page size is set.
+     */
+    private Pagination<CustomField> searchPage(String searchKey, long offset, TenantContext tenantContext) {
+        if (pageSize == null) {
+            return customFieldApi.searchCustomFields(searchKey, offset, PAGE_SIZE, tenantContext);
+        }
+        int limit = pageSize.get();
+        long start = System.nanoTime();
+        Pagination<CustomField> results = customFieldApi.searchCustomFields(searchKey, offset, (long) limit,
+                tenantContext);
+        pageSize.record(limit, System.nanoTime() - start);
+        return results;
+    }
+
+    /**
+     * @return The page of search results that is being fetched in the
+     *         background, or {@code null} when no prefetch executor is
+     *         available.
+     */
+    @Nullable
+    private Future<Pagination<CustomField>> prefetchPage(final String searchKey, final long offset,
+            final TenantContext tenantContext) {
+        if (prefetchExecutor == null) {
+            return null;
+        }
+        try {
+            return prefetchExecutor.submit(new Callable<Pagination<CustomField>>() {
+                @Override
+                public Pagination<CustomField> call() {
+                    return searchPage(searchKey, offset, tenantContext);
+                }
+            });
+        } catch (RejectedExecutionException exc) {
+            // The executor is either saturated or shut down, so the page is
+            // fetched when needed
+            return null;
+        }
+    }
+
+    private static Pagination<CustomField> getPage(Future<Pagination<CustomField>> page) {
+        try {
+            return page.get();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while fetching custom fields", exc);
+        } catch (ExecutionException exc) {
+            throw Throwables.propagate(exc.getCause());
+        }
+    }
+
+    /**
+     * Finds all custom fields on the invoice items of a given account that
+     * match a specific field name, with one single call to Kill Bill.
+     *
+     * @param fieldName
+     *            A specific field name that returned fields will match.
+     * @param accountId
+     *            An identifier for an account.
+     * @param tenantContext
+     *            The tenant on which to operate.
+     * @return The matching custom fields, by the identifiers of their invoice
+     *         items. Never {@code null}.
+     */
+    @Nonnull
+    public Map<UUID, CustomField> findAllInvoiceItemFieldsByFieldNameAndAccount(String fieldName, UUID accountId,
+            TenantContext tenantContext) {
+        Map<UUID, CustomField> fields = newHashMap();
+        List<CustomField> invoiceItemFields = customFieldApi.getCustomFieldsForAccountType(accountId, INVOICE_ITEM,
+                tenantContext);
+        if (invoiceItemFields == null) {
+            return fields;
+        }
+        for (CustomField field : filter(invoiceItemFields, new RetainFieldsWithName(fieldName))) {
+            fields.put(field.getObjectId(), field);
+        }
         return fields;
     }
 
@@ -152,6 +377,25 @@ public class CustomFieldService {
         return tryFind(invoiceItemFields, new RetainFieldsWithName(fieldName)).orNull();
     }
 
+    /**
+     * Finds all custom fields on a given account object in the context of a
+     * given tenant, with one single call to Kill Bill.
+     *
+     * @param accountId
+     *            An identifier for an account.
+     * @param tenantContext
+     *            The tenant on which to operate.
+     * @return The custom fields of the account. Never {@code null}.
+     */
+    @Nonnull
+    public List<CustomField> findAllFieldsOfAccount(UUID accountId, TenantContext tenantContext) {
+        List<CustomField> accountFields = customFieldApi.getCustomFieldsForObject(accountId, ACCOUNT, tenantContext);
+        if (accountFields == null) {
+            return ImmutableList.of();
+        }
+        return accountFields;
+    }
+
     /**
      * Finds a custom field on a given account object that matches a specific
      * field name in the context of a given tenant.
@@ -192,6 +436,176 @@ public class CustomFieldService {
         return saveAccountField(fieldValue, fieldName, accountId, ACCOUNT, tenantContext);
     }
 
+    /**
+     * Persists new values for a custom field on many account objects, with
+     * bulk calls to Kill Bill.
+     * <p>
+     * Existing fields are looked up account by account, so that accounts that
+     * do not exist are left out before anything is removed. Existing fields
+     * are then removed with one single call, and new fields are added with one
+     * single call. When adding them all at once fails, the fields that are not
+     * added yet are added one after the other, so that only the faulty ones
+     * fail and get their previous field back.
+     *
+     * @param fieldValues
+     *            The new field values, by the identifiers of their accounts.
+     * @param fieldName
+     *            The field name.
+     * @param tenantContext
+     *            The tenant on which to operate.
+     * @return Whether the new value of each account is properly saved, by the
+     *         identifiers of the accounts. Never {@code null}.
+     */
+    @Nonnull
+    public Map<UUID, Boolean> saveAccountFields(Map<UUID, String> fieldValues, String fieldName,
+            TenantContext tenantContext) {
+        Map<UUID, Boolean> saved = newLinkedHashMap();
+        if (fieldValues.isEmpty()) {
+            return saved;
+        }
+        Map<UUID, Optional<CustomField>> existingFields = findAccountFieldsByFieldName(fieldName,
+                fieldValues.keySet(), tenantContext);
+        List<CustomField> removedFields = newArrayList();
+        Map<UUID, CustomField> newFields = newLinkedHashMap();
+        for (Entry<UUID, String> fieldValue : fieldValues.entrySet()) {
+            Optional<CustomField> existingField = existingFields.get(fieldValue.getKey());
+            if (existingField == null) {
+                saved.put(fieldValue.getKey(), false);
+                continue;
+            }
+            if (existingField.isPresent()) {
+                removedFields.add(existingField.get());
+            }
+            newFields.put(fieldValue.getKey(), ImmutableCustomField.builder()//
+                    .withObjectType(ACCOUNT).withObjectId(fieldValue.getKey())//
+                    .withFieldName(fieldName).withFieldValue(fieldValue.getValue())//
+                    .build());
+        }
+        if (newFields.isEmpty()) {
+            return saved;
+        }
+        CallContext context = new PluginCallContext(PLUGIN_NAME, new DateTime(), tenantContext.getTenantId());
+        if (!removedFields.isEmpty()) {
+            try {
+                customFieldApi.removeCustomFields(removedFields, context);
+            } catch (CustomFieldApiException exc) {
+                logService.log(LOG_ERROR, "while removing " + removedFields.size() + " custom fields '" + fieldName
+                        + "' on " + ACCOUNT + " objects. Saving them one after the other.", exc);
+                for (CustomField newField : newFields.values()) {
+                    saved.put(newField.getObjectId(), saveAccountField(newField.getFieldValue(), fieldName,
+                            newField.getObjectId(), tenantContext));
+                }
+                return saved;
+            }
+        }
+        try {
+            customFieldApi.addCustomFields(ImmutableList.copyOf(newFields.values()), context);
+            for (UUID accountId : newFields.keySet()) {
+                saved.put(accountId, true);
+            }
+            return saved;
+        } catch (CustomFieldApiException exc) {
+            logService.log(LOG_ERROR, "while adding " + newFields.size() + " custom fields '" + fieldName + "' on "
+                    + ACCOUNT + " objects. Adding them one after the other.", exc);
+        } catch (IllegalStateException exc) {
+            if (!isObjectDoesNotExist(exc)) {
+                throw exc;
+            }
+            logService.log(LOG_ERROR, "while adding " + newFields.size() + " custom fields '" + fieldName + "' on "
+                    + ACCOUNT + " objects, some of which do not exist anymore. Adding them one after the other.",
+                    exc);
+        }
+        // Bulk additions are not transactional, so some fields might be added
+        // already, and must not be added twice.
+        Map<UUID, Optional<CustomField>> currentFields = findAccountFieldsByFieldName(fieldName, newFields.keySet(),
+                tenantContext);
+        for (Entry<UUID, CustomField> newField : newFields.entrySet()) {
+            Optional<CustomField> currentField = currentFields.get(newField.getKey());
+            if ((currentField != null) && currentField.isPresent()
+                    && newField.getValue().getFieldValue().equals(currentField.get().getFieldValue())) {
+                saved.put(newField.getKey(), true);
+                continue;
+            }
+            saved.put(newField.getKey(), addOrRestoreField(newField.getValue(),
+                    existingFields.get(newField.getKey()).orNull(), context));
+        }
+        return saved;
+    }
+
+    /**
+     * Looks up the custom fields with the given name on the given accounts,
+     * one account after the other, so that no field is ever missed.
+     *
+     * @return The custom field with the given name, if any, by the
+     *         identifiers of the accounts. Accounts that do not exist are left
+     *         out.
+     */
+    private Map<UUID, Optional<CustomField>> findAccountFieldsByFieldName(String fieldName, Set<UUID> accountIds,
+            TenantContext tenantContext) {
+        Map<UUID, Optional<CustomField>> fields = newHashMap();
+        Predicate<CustomField> withFieldName = new RetainFieldsWithName(fieldName);
+        for (UUID accountId : accountIds) {
+            List<CustomField> accountFields;
+            try {
+                accountFields = customFieldApi.getCustomFieldsForObject(accountId, ACCOUNT, tenantContext);
+            } catch (IllegalStateException exc) {
+                if (!isObjectDoesNotExist(exc)) {
+                    throw exc;
+                }
+                logService.log(LOG_ERROR, "Cannot save custom field '" + fieldName + "' on *non-existing* "
+                        + ACCOUNT + " object [" + accountId + "]", exc);
+                continue;
+            }
+            if (accountFields == null) {
+                fields.put(accountId, Optional.<CustomField> absent());
+            } else {
+                fields.put(accountId, tryFind(accountFields, withFieldName));
+            }
+        }
+        return fields;
+    }
+
+    private static boolean isObjectDoesNotExist(IllegalStateException exc) {
+        return "org.killbill.billing.util.callcontext.InternalCallContextFactory$ObjectDoesNotExist".equals(exc
+                .getClass().getName());
+    }
+
+    /**
+     * Adds a new custom field, or adds back the field it was to replace, when
+     * adding the new field fails.
+     *
+     * @return {@code true} when the new field is properly added, or
+     *         {@code false} otherwise.
+     */
+    private boolean addOrRestoreField(CustomField newField, @Nullable CustomField removedField, CallContext context) {
+        try {
+            customFieldApi.addCustomFields(ImmutableList.of(newField), context);
+            return true;
+        } catch (CustomFieldApiException exc) {
+            logService.log(LOG_ERROR, "while adding custom field '" + newField.getFieldName() + "' with value ["
+                    + newField.getFieldValue() + "] on " + newField.getObjectType() + " object ["
+                    + newField.getObjectId() + "]", exc);
+        } catch (IllegalStateException exc) {
+            if (!isObjectDoesNotExist(exc)) {
+                throw exc;
+            }
+            logService.log(LOG_ERROR, "while adding custom field '" + newField.getFieldName() + "' with value ["
+                    + newField.getFieldValue() + "] on *non-existing* " + newField.getObjectType() + " object ["
+                    + newField.getObjectId() + "]", exc);
+            return false;
+        }
+        if (removedField != null) {
+            try {
+                customFieldApi.addCustomFields(ImmutableList.of(removedField), context);
+            } catch (CustomFieldApiException exc) {
+                logService.log(LOG_ERROR, "while adding back the previously removed custom field '"
+                        + removedField.getFieldName() + "' with value [" + removedField.getFieldValue() + "] on "
+                        + removedField.getObjectType() + " object [" + removedField.getObjectId() + "]", exc);
+            }
+        }
+        return false;
+    }
+
     public boolean saveInvoiceItemField(String fieldValue, String fieldName, UUID invoiceItemId,
             TenantContext tenantContext) {
         return saveAccountField(fieldValue, fieldName, invoiceItemId, INVOICE_ITEM, tenantContext);
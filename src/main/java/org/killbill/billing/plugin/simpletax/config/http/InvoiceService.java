@@ -17,6 +17,7 @@
 package org.killbill.billing.plugin.simpletax.config.http;
 
 import static com.google.common.collect.Lists.newArrayList;
+import static org.osgi.service.log.LogService.LOG_DEBUG;
 import static org.osgi.service.log.LogService.LOG_ERROR;
 
 import java.util.Iterator;
@@ -24,6 +25,7 @@ import java.util.List;
 import java.util.UUID;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceApiException;
@@ -33,13 +35,36 @@ import org.killbill.billing.util.callcontext.TenantContext;
 import org.killbill.billing.util.entity.Pagination;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A service class that eases accessing invoices.
+ * <p>
+ * The invoices of invoice items are resolved with an index that is lazily
+ * fed by the invoices this service loads, typically when listing the tax
+ * codes of an invoice before updating those of one of its items, and by the
+ * invoices that the plugin already loads when computing taxes, which costs no
+ * extra call to Kill Bill. A full-text search of invoices is only the fallback
+ * when this index misses. Invoice creation events are not used for feeding
+ * it, because fetching each new invoice would slow down the event bus for all
+ * the invoices that are never looked up.
+ *
+ * @author Benjamin Gandon
+ */
 public class InvoiceService {
     private static final long START_OFFSET = 0L;
     private static final long PAGE_SIZE = 1L;
 
+    private static final int MAX_INDEXED_ITEMS = 100000;
+
     private InvoiceUserApi invoiceApi;
     private OSGIKillbillLogService logService;
 
+    /** The identifiers of invoices, by the identifiers of their items. */
+    private final Cache<UUID, UUID> invoiceIdsByItem = CacheBuilder.newBuilder().maximumSize(MAX_INDEXED_ITEMS)
+            .build();
+
     public InvoiceService(InvoiceUserApi invoiceApi, OSGIKillbillLogService logService) {
         super();
         this.invoiceApi = invoiceApi;
@@ -48,17 +73,70 @@ public class InvoiceService {
 
     @Nonnull
     public List<InvoiceItem> findAllInvoiceItemsByInvoice(UUID invoiceId, TenantContext tenantContext) {
+        Invoice invoice = findInvoice(invoiceId, tenantContext);
+        if (invoice == null) {
+            return newArrayList();
+        }
+        return invoice.getInvoiceItems();
+    }
+
+    /**
+     * Finds an invoice, along with its items.
+     *
+     * @param invoiceId
+     *            The identifier of the invoice.
+     * @param tenantContext
+     *            The tenant on which to operate.
+     * @return The invoice, or {@code null} if it cannot be accessed.
+     */
+    @Nullable
+    public Invoice findInvoice(UUID invoiceId, TenantContext tenantContext) {
         Invoice invoice;
         try {
             invoice = invoiceApi.getInvoice(invoiceId, tenantContext);
         } catch (InvoiceApiException exc) {
             logService.log(LOG_ERROR, "while accessing invoice [" + invoiceId + "] in order to list its items", exc);
-            return newArrayList();
+            return null;
         }
-        return invoice.getInvoiceItems();
+        indexItemsOf(invoice);
+        return invoice;
     }
 
+    /**
+     * Looks up the identifier of the invoice of an invoice item in the index,
+     * without calling Kill Bill.
+     *
+     * @param invoiceItemId
+     *            The identifier of the invoice item.
+     * @return The identifier of the invoice, or {@code null} if the invoice
+     *         item is not indexed.
+     */
+    @Nullable
+    public UUID getIndexedInvoiceId(UUID invoiceItemId) {
+        return invoiceIdsByItem.getIfPresent(invoiceItemId);
+    }
+
+    /**
+     * Finds the invoice of an invoice item.
+     *
+     * @param invoiceItemId
+     *            The identifier of the invoice item.
+     * @param tenantContext
+     *            The tenant on which to operate.
+     * @return The invoice, or {@code null} if none is found.
+     */
+    @Nullable
     public Invoice findInvoiceByInvoiceItem(UUID invoiceItemId, TenantContext tenantContext) {
+        UUID invoiceId = invoiceIdsByItem.getIfPresent(invoiceItemId);
+        if (invoiceId != null) {
+            try {
+                return invoiceApi.getInvoice(invoiceId, tenantContext);
+            } catch (InvoiceApiException exc) {
+                logService.log(LOG_DEBUG, "Cannot access invoice [" + invoiceId + "] of invoice item ["
+                        + invoiceItemId + "]. Falling back to a search.", exc);
+            }
+        }
+
         String searchTerm = invoiceItemId.toString();
         // TODO: ask the Kill Bill guys whether such search query would actually
         // find the right invoice
@@ -67,6 +145,24 @@ public class InvoiceService {
         if (!itr.hasNext()) {
             return null;
         }
-        return itr.next();
+        Invoice invoice = itr.next();
+        indexItemsOf(invoice);
+        return invoice;
+    }
+
+    /**
+     * Records the invoice of each item of an invoice that has been loaded
+     * elsewhere, so that these items are later resolved without any search.
+     *
+     * @param invoice
+     *            The invoice whose items are to be indexed, or {@code null}.
+     */
+    public void indexItemsOf(@Nullable Invoice invoice) {
+        if ((invoice == null) || (invoice.getInvoiceItems() == null)) {
+            return;
+        }
+        for (InvoiceItem item : invoice.getInvoiceItems()) {
+            invoiceIdsByItem.put(item.getId(), invoice.getId());
+        }
     }
 }
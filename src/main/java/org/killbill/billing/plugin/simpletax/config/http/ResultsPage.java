@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static com.google.common.collect.Iterables.filter;
+import static com.google.common.collect.Iterables.limit;
+import static com.google.common.collect.Iterables.skip;
+import static com.google.common.collect.Iterables.transform;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicates;
+
+/**
+ * A page of results that are meant to be streamed to the client, along with
+ * the offset of the next page, if any.
+ * <p>
+ * The elements of a page might be lazily fetched while iterating over them,
+ * and then they should only be iterated over once. Pages should be closed
+ * when done with them, so that any background fetching is cancelled.
+ *
+ * @param <T>
+ *            The type of results.
+ * @author Benjamin Gandon
+ */
+public final class ResultsPage<T> implements Iterable<T>, Closeable {
+
+    private final Iterable<T> results;
+    private final Long nextOffset;
+    private final Long totalNbRecords;
+    private final Closeable resources;
+
+    private ResultsPage(Iterable<T> results, Long nextOffset, Long totalNbRecords, Closeable resources) {
+        super();
+        this.results = results;
+        this.nextOffset = nextOffset;
+        this.totalNbRecords = totalNbRecords;
+        this.resources = resources;
+    }
+
+    /**
+     * Constructs a new page of results.
+     *
+     * @param results
+     *            The results in this page.
+     * @param nextOffset
+     *            The offset of the next page, or {@code null} if this is the
+     *            last page.
+     * @param totalNbRecords
+     *            The total number of records, or {@code null} if unknown.
+     * @return A new page. Never {@code null}.
+     */
+    @Nonnull
+    public static <T> ResultsPage<T> of(@Nonnull Iterable<T> results, @Nullable Long nextOffset,
+            @Nullable Long totalNbRecords) {
+        return of(results, nextOffset, totalNbRecords, null);
+    }
+
+    /**
+     * Constructs a new page of results, that releases some resources when it
+     * is closed.
+     *
+     * @param results
+     *            The results in this page.
+     * @param nextOffset
+     *            The offset of the next page, or {@code null} if this is the
+     *            last page.
+     * @param totalNbRecords
+     *            The total number of records, or {@code null} if unknown.
+     * @param resources
+     *            The resources to close along with this page, or
+     *            {@code null} if none.
+     * @return A new page. Never {@code null}.
+     */
+    @Nonnull
+    public static <T> ResultsPage<T> of(@Nonnull Iterable<T> results, @Nullable Long nextOffset,
+            @Nullable Long totalNbRecords, @Nullable Closeable resources) {
+        return new ResultsPage<T>(results, nextOffset, totalNbRecords, resources);
+    }
+
+    /**
+     * Constructs a page of results out of all available results.
+     * <p>
+     * Consecutive pages are consistent only when the iteration order of the
+     * given results is stable, like for sorted collections.
+     *
+     * @param allResults
+     *            All the available results.
+     * @param offset
+     *            The offset of the first result in the page.
+     * @param maxNbRecords
+     *            The maximum number of results in the page, or {@code null}
+     *            for all the results from the offset.
+     * @return A new page. Never {@code null}.
+     */
+    @Nonnull
+    public static <T> ResultsPage<T> slice(@Nonnull Collection<T> allResults, long offset,
+            @Nullable Long maxNbRecords) {
+        long total = allResults.size();
+        Iterable<T> results = skip(allResults, (int) Math.min(offset, total));
+        Long nextOffset = null;
+        if (maxNbRecords != null) {
+            results = limit(results, (int) Math.min(maxNbRecords, total));
+            nextOffset = offset + maxNbRecords < total ? offset + maxNbRecords : null;
+        }
+        return new ResultsPage<T>(results, nextOffset, total, null);
+    }
+
+    /**
+     * Lazily converts the results of this page, leaving out the {@code null}
+     * converted results.
+     *
+     * @param function
+     *            The conversion function.
+     * @return A new page with the converted results, the same offset of next
+     *         page, and the same resources to close. Never {@code null}.
+     */
+    @Nonnull
+    public <R> ResultsPage<R> transformOrSkip(@Nonnull Function<? super T, R> function) {
+        Iterable<R> transformed = filter(transform(results, function), Predicates.<R> notNull());
+        return new ResultsPage<R>(transformed, nextOffset, totalNbRecords, resources);
+    }
+
+    /**
+     * @return The offset of the next page, or {@code null} if this is the last
+     *         page.
+     */
+    @Nullable
+    public Long getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * @return The total number of records, or {@code null} if unknown.
+     */
+    @Nullable
+    public Long getTotalNbRecords() {
+        return totalNbRecords;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return results.iterator();
+    }
+
+    /**
+     * Releases the resources of this page, like the results that are being
+     * fetched in the background. The results should not be iterated over
+     * once the page is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (resources != null) {
+            resources.close();
+        }
+    }
+}
@@ -16,19 +16,24 @@
  */
 package org.killbill.billing.plugin.simpletax.config.http;
 
+import static com.google.common.collect.Lists.newArrayList;
 import static java.util.regex.Pattern.compile;
 import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
 import static javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+import static javax.servlet.http.HttpServletResponse.SC_NO_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_OK;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.UUID_LOOSE_PATTERN;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.toUUIDOrNull;
 import static org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxActivator.PLUGIN_NAME;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -38,9 +43,13 @@ import org.killbill.billing.plugin.simpletax.config.http.TaxCodeController.TaxCo
 import org.killbill.billing.plugin.simpletax.config.http.TaxCodeController.TaxCodesPUTRsc;
 import org.killbill.billing.plugin.simpletax.config.http.TaxCountryController.TaxCountryRsc;
 import org.killbill.billing.plugin.simpletax.config.http.VatinController.VATINRsc;
+import org.killbill.billing.plugin.simpletax.internal.Country;
+import org.killbill.billing.plugin.simpletax.util.PluginMetrics;
 import org.killbill.billing.tenant.api.Tenant;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
@@ -53,20 +62,47 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  * GET /accounts/{accountId:\w+-\w+-\w+-\w+-\w+}/vatin
  * PUT /accounts/{accountId:\w+-\w+-\w+-\w+-\w+}/vatin
  * GET /vatins
+ * GET /vatins?offset={offset:\d+}&amp;limit={limit:\d+}
  * GET /vatins?account={accountId:\w+-\w+-\w+-\w+-\w+}
+ * POST /vatins
  *
  * GET /accounts/{accountId:\w+-\w+-\w+-\w+-\w+}/taxCountry
  * PUT /accounts/{accountId:\w+-\w+-\w+-\w+-\w+}/taxCountry
  * GET /taxCountries
+ * GET /taxCountries?offset={offset:\d+}&amp;limit={limit:\d+}
  * GET /taxCountries?account={accountId:\w+-\w+-\w+-\w+-\w+}
+ * GET /taxCountries?country={countryCode:[A-Z]{2}}
+ * POST /taxCountries
  *
  * GET /invoices/{invoiceId:\w+-\w+-\w+-\w+-\w+}/taxCodes
  * POST /invoices/{invoiceId:\w+-\w+-\w+-\w+-\w+}/taxCodes
  *
  * GET /invoiceItems/{invoiceItemId:\w+-\w+-\w+-\w+-\w+}/taxCodes
  * PUT /invoiceItems/{invoiceItemId:\w+-\w+-\w+-\w+-\w+}/taxCodes
+ *
+ * POST /accounts/{accountId:\w+-\w+-\w+-\w+-\w+}/taxCodes/backfill
+ *
+ * GET /metrics
  * </pre>
  * <p>
+ * Listing all tax countries or all VATINs streams the resources to the
+ * client as they are fetched. Such lists can be paginated with the
+ * {@code offset} and {@code limit} parameters, which apply to the underlying
+ * search results. The offset of the next page, if any, and the total number
+ * of records, when known, are returned in the same
+ * {@code X-Killbill-Pagination-*} headers as the Kill Bill API.
+ * <p>
+ * Posting an array of tax countries or VATINs updates many accounts at once.
+ * Each resource is validated on its own, and the response lists the
+ * {@linkplain AccountUpdateStatusRsc status} of each one of them, in the same
+ * order.
+ * <p>
+ * Back-filling the tax codes of an account copies the tax codes custom fields
+ * of its invoice items into the table of tax codes, when this table is used.
+ * <p>
+ * The metrics of the plugin are the same for all tenants. They are returned
+ * as a JSON object, that maps their names to their current values.
+ * <p>
  * We don't use the standard <code>/accounts/{accountId}/customFields</code>
  * endpoint here because they don't enforce any data validation.
  *
@@ -99,6 +135,13 @@ public class SimpleTaxServlet extends PluginServlet {
     private static final String TAX_COUNTRIES_PATH = "/taxCountries";
     private static final String VATINS_PATH = "/vatins";
     private static final String ACCOUNT_PARAM_NAME = "account";
+    private static final String OFFSET_PARAM_NAME = "offset";
+    private static final String LIMIT_PARAM_NAME = "limit";
+    private static final long START_OFFSET = 0L;
+    private static final long NO_LIMIT = 0L;
+    private static final String NEXT_OFFSET_HEADER = "X-Killbill-Pagination-NextOffset";
+    private static final String TOTAL_NB_RECORDS_HEADER = "X-Killbill-Pagination-TotalNbRecords";
+    private static final String COUNTRY_PARAM_NAME = "country";
     private static final Pattern LOOSE_UUID = compile(UUID_LOOSE_PATTERN);
 
     private static final String INVOICES_PATH = "/invoices";
@@ -107,6 +150,10 @@ public class SimpleTaxServlet extends PluginServlet {
     private static final Pattern INVOICE_ITEM_PATTERN = compile(INVOICE_ITEMS_PATH + "/(" + UUID_LOOSE_PATTERN
             + ")/(\\w+)");
     private static final String TAX_CODES_RESOURCE_NAME = "taxCodes";
+    private static final Pattern ACCOUNT_TAX_CODES_BACKFILL_PATTERN = compile(ACCOUNTS_PATH + "/("
+            + UUID_LOOSE_PATTERN + ")/" + TAX_CODES_RESOURCE_NAME + "/backfill");
+
+    private static final String METRICS_PATH = "/metrics";
 
     private static String accountResourceUri(UUID accountId, String resourceName) {
         return resourceUri(ACCOUNTS_PATH, accountId, resourceName).toString();
@@ -130,6 +177,7 @@ public class SimpleTaxServlet extends PluginServlet {
     private TaxCountryController taxCountryController;
     private VatinController vatinController;
     private TaxCodeController taxCodeController;
+    private PluginMetrics metrics;
 
     /**
      * Constructs a new servlet for configuring data related to the simple tax
@@ -141,13 +189,16 @@ public class SimpleTaxServlet extends PluginServlet {
      *            The tax country controller to use.
      * @param taxCodeController
      *            The tax code controller to use.
+     * @param metrics
+     *            The registry of plugin metrics.
      */
     public SimpleTaxServlet(VatinController vatinController, TaxCountryController taxCountryController,
-            TaxCodeController taxCodeController) {
+            TaxCodeController taxCodeController, PluginMetrics metrics) {
         super();
         this.taxCountryController = taxCountryController;
         this.vatinController = vatinController;
         this.taxCodeController = taxCodeController;
+        this.metrics = metrics;
     }
 
     /**
@@ -156,13 +207,18 @@ public class SimpleTaxServlet extends PluginServlet {
      * <pre>
      * GET /accounts/{accountId:\w+-\w+-\w+-\w+-\w+}/taxCountry
      * GET /taxCountries
+     * GET /taxCountries?offset={offset:\d+}&amp;limit={limit:\d+}
      * GET /taxCountries?account={accountId:\w+-\w+-\w+-\w+-\w+}
+     * GET /taxCountries?country={countryCode:[A-Z]{2}}
      *
      * GET /accounts/{accountId:\w+-\w+-\w+-\w+-\w+}/vatin
      * GET /vatins
+     * GET /vatins?offset={offset:\d+}&amp;limit={limit:\d+}
      * GET /vatins?account={accountId:\w+-\w+-\w+-\w+-\w+}
      *
      * GET /invoices/{invoiceId:\w+-\w+-\w+-\w+-\w+}/taxCodes
+     *
+     * GET /metrics
      * </pre>
      *
      * Other endpoints could be provided in the future, when the Kill Bill API
@@ -204,10 +260,29 @@ public class SimpleTaxServlet extends PluginServlet {
         }
 
         if (TAX_COUNTRIES_PATH.equals(pathInfo)) {
+            String country = req.getParameter(COUNTRY_PARAM_NAME);
+            if (!isBlank(country)) {
+                Country taxCountry;
+                try {
+                    taxCountry = Country.of(country);
+                } catch (IllegalArgumentException exc) {
+                    resp.sendError(SC_BAD_REQUEST, "Illegal value [" + country + "] for request parameter ["
+                            + COUNTRY_PARAM_NAME + "]");
+                    return;
+                }
+                Object value = taxCountryController.listAccountsOfTaxCountry(taxCountry, tenant);
+                writeJsonOkResponse(value, resp);
+                return;
+            }
             String account = req.getParameter(ACCOUNT_PARAM_NAME);
             if (isBlank(account)) {
-                Object value = taxCountryController.listTaxCountries(null, tenant);
-                writeJsonOkResponse(value, resp);
+                PageRequest pageRequest = pageRequestOrSendError(req, resp);
+                if (pageRequest == null) {
+                    return;
+                }
+                ResultsPage<?> page = taxCountryController.streamTaxCountries(tenant, pageRequest.offset,
+                        pageRequest.maxNbRecords);
+                writeJsonStreamedOkResponse(page, resp);
                 return;
             }
             UUID accountId = null;
@@ -226,8 +301,13 @@ public class SimpleTaxServlet extends PluginServlet {
         if (VATINS_PATH.equals(pathInfo)) {
             String account = req.getParameter(ACCOUNT_PARAM_NAME);
             if (isBlank(account)) {
-                Object value = vatinController.listVatins(null, tenant);
-                writeJsonOkResponse(value, resp);
+                PageRequest pageRequest = pageRequestOrSendError(req, resp);
+                if (pageRequest == null) {
+                    return;
+                }
+                ResultsPage<?> page = vatinController.streamVatins(tenant, pageRequest.offset,
+                        pageRequest.maxNbRecords);
+                writeJsonStreamedOkResponse(page, resp);
                 return;
             }
             UUID accountId = null;
@@ -277,14 +357,25 @@ public class SimpleTaxServlet extends PluginServlet {
             writeJsonOkResponse(value, resp);
         }
 
+        if (METRICS_PATH.equals(pathInfo)) {
+            writeJsonOkResponse(metrics.snapshot(), resp);
+            return;
+        }
+
         buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
     }
 
     /**
-     * This implementation serves this HTTP end point:
+     * This implementation serves these HTTP end points:
      *
      * <pre>
+     * POST /taxCountries
+     *
+     * POST /vatins
+     *
      * POST /invoices/{invoiceId:\w+-\w+-\w+-\w+-\w+}/taxCodes
+     *
+     * POST /accounts/{accountId:\w+-\w+-\w+-\w+-\w+}/taxCodes/backfill
      * </pre>
      */
     @Override
@@ -297,6 +388,27 @@ public class SimpleTaxServlet extends PluginServlet {
         }
         String pathInfo = req.getPathInfo();
 
+        if (TAX_COUNTRIES_PATH.equals(pathInfo)) {
+            List<TaxCountryRsc> taxCountries = readJsonArrayOrNull(req, TaxCountryRsc.class);
+            if (taxCountries == null) {
+                resp.sendError(SC_BAD_REQUEST, "Invalid array of tax country resources in request body");
+                return;
+            }
+            Object value = taxCountryController.saveAccountTaxCountries(taxCountries, tenant);
+            writeJsonOkResponse(value, resp);
+            return;
+        }
+        if (VATINS_PATH.equals(pathInfo)) {
+            List<VATINRsc> vatins = readJsonArrayOrNull(req, VATINRsc.class);
+            if (vatins == null) {
+                resp.sendError(SC_BAD_REQUEST, "Invalid array of VAT Identification Number resources in request body");
+                return;
+            }
+            Object value = vatinController.saveAccountVatins(vatins, tenant);
+            writeJsonOkResponse(value, resp);
+            return;
+        }
+
         Matcher matcher = INVOICE_PATTERN.matcher(pathInfo);
         if (matcher.matches()) {
             UUID invoiceId = toUUIDOrNull(matcher.group(RESOURCE_IDENTIFIER_GROUP));
@@ -328,6 +440,22 @@ public class SimpleTaxServlet extends PluginServlet {
             return;
         }
 
+        matcher = ACCOUNT_TAX_CODES_BACKFILL_PATTERN.matcher(pathInfo);
+        if (matcher.matches()) {
+            UUID accountId = toUUIDOrNull(matcher.group(RESOURCE_IDENTIFIER_GROUP));
+            if (accountId == null) {
+                buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
+                return;
+            }
+            boolean backfilled = taxCodeController.backfillTaxCodesOfAccount(accountId, tenant);
+            if (!backfilled) {
+                resp.sendError(SC_INTERNAL_SERVER_ERROR, "Could not back-fill Tax Codes of account");
+                return;
+            }
+            resp.setStatus(SC_NO_CONTENT);
+            return;
+        }
+
         buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
     }
 
@@ -436,9 +564,118 @@ public class SimpleTaxServlet extends PluginServlet {
         buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
     }
 
+    /**
+     * Reads a JSON array of resources from the request body, converting its
+     * elements one after the other, so that invalid elements are only
+     * replaced by {@code null} elements.
+     *
+     * @return The resources, or {@code null} when the request body is not a
+     *         JSON array.
+     */
+    @Nullable
+    private <T> List<T> readJsonArrayOrNull(HttpServletRequest req, Class<T> resourceType) throws IOException {
+        JsonNode array;
+        try {
+            array = JSON_MAPPER.readTree(getRequestData(req));
+        } catch (JsonProcessingException exc) {
+            return null;
+        }
+        if ((array == null) || !array.isArray()) {
+            return null;
+        }
+        List<T> resources = newArrayList();
+        for (JsonNode element : array) {
+            T resource;
+            try {
+                resource = JSON_MAPPER.treeToValue(element, resourceType);
+            } catch (JsonProcessingException exc) {
+                resource = null;
+            }
+            resources.add(resource);
+        }
+        return resources;
+    }
+
     private void writeJsonOkResponse(Object value, HttpServletResponse resp) throws IOException {
         byte[] data = JSON_MAPPER.writeValueAsBytes(value);
         setJsonContentType(resp);
         buildOKResponse(data, resp);
     }
+
+    /**
+     * Writes the resources of a page as a JSON array, one after the other, so
+     * that they are never all held in memory.
+     */
+    private void writeJsonStreamedOkResponse(ResultsPage<?> page, HttpServletResponse resp) throws IOException {
+        setJsonContentType(resp);
+        resp.setStatus(SC_OK);
+        if (page.getNextOffset() != null) {
+            resp.setHeader(NEXT_OFFSET_HEADER, page.getNextOffset().toString());
+        }
+        if (page.getTotalNbRecords() != null) {
+            resp.setHeader(TOTAL_NB_RECORDS_HEADER, page.getTotalNbRecords().toString());
+        }
+        try {
+            JsonGenerator json = JSON_MAPPER.getFactory().createGenerator(resp.getOutputStream());
+            json.writeStartArray();
+            for (Object resource : page) {
+                json.writeObject(resource);
+            }
+            json.writeEndArray();
+            json.close();
+        } finally {
+            // Cancels any prefetched results when the client went away
+            page.close();
+        }
+    }
+
+    /**
+     * Parses the {@value #OFFSET_PARAM_NAME} and {@value #LIMIT_PARAM_NAME}
+     * request parameters, and sends a {@code 400 Bad Request} error when they
+     * are illegal.
+     *
+     * @return The requested page, or {@code null} when an error has been sent.
+     */
+    @Nullable
+    private static PageRequest pageRequestOrSendError(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+        long offset = nonNegativeParam(req, OFFSET_PARAM_NAME, START_OFFSET);
+        long limit = nonNegativeParam(req, LIMIT_PARAM_NAME, NO_LIMIT);
+        if ((offset < 0) || (limit < 0)) {
+            resp.sendError(SC_BAD_REQUEST, "Illegal values for request parameters [" + OFFSET_PARAM_NAME + "] or ["
+                    + LIMIT_PARAM_NAME + "]");
+            return null;
+        }
+        return new PageRequest(offset, limit == NO_LIMIT ? null : limit);
+    }
+
+    /**
+     * The offset and maximum number of records of a requested page.
+     */
+    private static final class PageRequest {
+        private final long offset;
+        private final Long maxNbRecords;
+
+        private PageRequest(long offset, @Nullable Long maxNbRecords) {
+            this.offset = offset;
+            this.maxNbRecords = maxNbRecords;
+        }
+    }
+
+    /**
+     * @return The value of a non-negative numeric request parameter, the
+     *         given default value when the parameter is blank, or {@code -1}
+     *         when the parameter is not a non-negative number.
+     */
+    private static long nonNegativeParam(HttpServletRequest req, String paramName, long defaultValue) {
+        String value = req.getParameter(paramName);
+        if (isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(Long.parseLong(value.trim()), -1L);
+        } catch (NumberFormatException exc) {
+            return -1L;
+        }
+    }
 }
@@ -17,28 +17,38 @@
 package org.killbill.billing.plugin.simpletax.config.http;
 
 import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.TAX_CODES_JOIN_SEPARATOR;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.splitTaxCodes;
 import static org.killbill.billing.plugin.simpletax.internal.TaxCodeService.TAX_CODES_FIELD_NAME;
 import static org.osgi.service.log.LogService.LOG_DEBUG;
+import static org.osgi.service.log.LogService.LOG_ERROR;
 
+import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.plugin.api.PluginTenantContext;
+import org.killbill.billing.plugin.simpletax.SimpleTaxPlugin;
+import org.killbill.billing.plugin.simpletax.dao.TaxCodesDao;
 import org.killbill.billing.plugin.simpletax.internal.TaxCodeService;
 import org.killbill.billing.tenant.api.Tenant;
 import org.killbill.billing.util.callcontext.TenantContext;
 import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.clock.Clock;
+import org.killbill.clock.DefaultClock;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
 /**
@@ -48,6 +58,9 @@ public class TaxCodeController {
     private OSGIKillbillLogService logService;
     private CustomFieldService customFieldService;
     private InvoiceService invoiceService;
+    private TaxCodesDao taxCodesDao;
+    private Clock clock;
+    private SimpleTaxPlugin plugin;
 
     /**
      * @param customFieldService
@@ -59,20 +72,55 @@ public class TaxCodeController {
      */
     public TaxCodeController(CustomFieldService customFieldService, InvoiceService invoiceService,
             OSGIKillbillLogService logService) {
+        this(customFieldService, invoiceService, logService, new DefaultClock(), null, null);
+    }
+
+    /**
+     * @param customFieldService
+     *            The service to use when accessing custom fields.
+     * @param invoiceService
+     *            The service to use when accessing invoices.
+     * @param logService
+     *            The Kill Bill log service to use.
+     * @param clock
+     *            The clock to use when saving tax codes in the table of tax
+     *            codes.
+     * @param taxCodesDao
+     *            The data access object for the table of tax codes, or
+     *            {@code null} when this table is not used.
+     * @param plugin
+     *            The plugin that tells which tenants read the table of tax
+     *            codes, and that back-fills this table, or {@code null} when
+     *            this table is not used.
+     */
+    public TaxCodeController(CustomFieldService customFieldService, InvoiceService invoiceService,
+            OSGIKillbillLogService logService, Clock clock, @Nullable TaxCodesDao taxCodesDao,
+            @Nullable SimpleTaxPlugin plugin) {
         super();
         this.logService = logService;
         this.customFieldService = customFieldService;
         this.invoiceService = invoiceService;
+        this.clock = clock;
+        this.taxCodesDao = taxCodesDao;
+        this.plugin = plugin;
     }
 
     public List<TaxCodesGETRsc> listInvoiceTaxCodes(@Nonnull UUID invoiceId, Tenant tenant) {
         TenantContext tenantContext = new PluginTenantContext(tenant.getId());
 
-        List<InvoiceItem> items = invoiceService.findAllInvoiceItemsByInvoice(invoiceId, tenantContext);
-
         List<TaxCodesGETRsc> taxCodes = newArrayList();
-        for (InvoiceItem item : items) {
-            TaxCodesGETRsc rsc = fetchTaxCodesOfInvoiceItem(invoiceId, item.getId(), tenantContext);
+        Invoice invoice = invoiceService.findInvoice(invoiceId, tenantContext);
+        if ((invoice == null) || invoice.getInvoiceItems().isEmpty()) {
+            return taxCodes;
+        }
+
+        Map<UUID, String> taxCodesOfItems = fetchTaxCodesOfInvoiceItems(invoice, tenantContext);
+        for (InvoiceItem item : invoice.getInvoiceItems()) {
+            String taxCodesCSV = taxCodesOfItems.get(item.getId());
+            if (taxCodesCSV == null) {
+                continue;
+            }
+            TaxCodesGETRsc rsc = toTaxCodesGETRscOrNull(invoiceId, item.getId(), taxCodesCSV);
             if (rsc != null) {
                 taxCodes.add(rsc);
             }
@@ -81,6 +129,53 @@ public class TaxCodeController {
         return taxCodes;
     }
 
+    /**
+     * Fetches the tax codes of all items of an invoice at once, from the table
+     * of tax codes when it is enabled for the tenant, and from the custom
+     * fields on the invoice items of its account for any taxable item that
+     * has no row in this table.
+     *
+     * @return The tax codes, by the identifiers of their invoice items. Never
+     *         {@code null}.
+     */
+    private Map<UUID, String> fetchTaxCodesOfInvoiceItems(Invoice invoice, TenantContext tenantContext) {
+        Map<UUID, String> taxCodesOfItems = newHashMap();
+        if (readsTaxCodesTable(tenantContext)) {
+            try {
+                for (CustomField field : taxCodesDao.getTaxFieldsOfInvoices(tenantContext.getTenantId(),
+                        ImmutableSet.of(invoice.getId())).get(invoice.getId())) {
+                    taxCodesOfItems.put(field.getObjectId(), field.getFieldValue());
+                }
+            } catch (SQLException exc) {
+                logService.log(LOG_ERROR, "while reading tax codes of invoice [" + invoice.getId()
+                        + "] from the table of tax codes. Falling back to custom fields.", exc);
+            }
+            if (!hasTaxableItemsMissingFrom(taxCodesOfItems, invoice)) {
+                return taxCodesOfItems;
+            }
+        }
+        for (CustomField field : customFieldService.findAllInvoiceItemFieldsByFieldNameAndAccount(
+                TAX_CODES_FIELD_NAME, invoice.getAccountId(), tenantContext).values()) {
+            if (!taxCodesOfItems.containsKey(field.getObjectId())) {
+                taxCodesOfItems.put(field.getObjectId(), field.getFieldValue());
+            }
+        }
+        return taxCodesOfItems;
+    }
+
+    private boolean readsTaxCodesTable(TenantContext tenantContext) {
+        return (taxCodesDao != null) && (plugin != null) && plugin.readsTaxCodesTable(tenantContext.getTenantId());
+    }
+
+    private boolean hasTaxableItemsMissingFrom(Map<UUID, String> taxCodesOfItems, Invoice invoice) {
+        for (InvoiceItem item : invoice.getInvoiceItems()) {
+            if (plugin.isTaxable(item) && !taxCodesOfItems.containsKey(item.getId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public boolean saveInvoiceTaxCodes(@Nonnull UUID invoiceId, TaxCodesPOSTRsc taxCodes, Tenant tenant) {
         return saveTaxCodesOfInvoiceItem(taxCodes.invoiceItemId, taxCodes, tenant);
     }
@@ -99,14 +194,42 @@ public class TaxCodeController {
     public TaxCodesGETRsc getTaxCodesOfInvoiceItem(@Nonnull UUID invoiceItemId, Tenant tenant) {
         TenantContext tenantContext = new PluginTenantContext(tenant.getId());
 
-        Invoice invoice = invoiceService.findInvoiceByInvoiceItem(invoiceItemId, tenantContext);
-        if (invoice == null) {
+        UUID invoiceId = findInvoiceIdOfInvoiceItem(invoiceItemId, tenantContext);
+        if (invoiceId == null) {
             logService.log(LOG_DEBUG,
                     "No invoice found for invoice item [" + invoiceItemId + "] in tenant [" + tenant.getApiKey() + "]");
             return null;
         }
 
-        return fetchTaxCodesOfInvoiceItem(invoice.getId(), invoiceItemId, tenantContext);
+        return fetchTaxCodesOfInvoiceItem(invoiceId, invoiceItemId, tenantContext);
+    }
+
+    /**
+     * Finds the invoice of an invoice item in the index of invoice items
+     * first, then in the table of tax codes when it is used, and only then
+     * with a full-text search of invoices.
+     *
+     * @return The identifier of the invoice, or {@code null} if none is found.
+     */
+    @Nullable
+    private UUID findInvoiceIdOfInvoiceItem(UUID invoiceItemId, TenantContext tenantContext) {
+        UUID invoiceId = invoiceService.getIndexedInvoiceId(invoiceItemId);
+        if (invoiceId != null) {
+            return invoiceId;
+        }
+        if (taxCodesDao != null) {
+            try {
+                invoiceId = taxCodesDao.getInvoiceIdOfInvoiceItem(tenantContext.getTenantId(), invoiceItemId);
+            } catch (SQLException exc) {
+                logService.log(LOG_ERROR, "while reading the invoice of invoice item [" + invoiceItemId
+                        + "] from the table of tax codes. Falling back to a search.", exc);
+            }
+            if (invoiceId != null) {
+                return invoiceId;
+            }
+        }
+        Invoice invoice = invoiceService.findInvoiceByInvoiceItem(invoiceItemId, tenantContext);
+        return invoice == null ? null : invoice.getId();
     }
 
     /**
@@ -133,8 +256,73 @@ public class TaxCodeController {
 
     public boolean saveTaxCodesOfInvoiceItem(@Nonnull UUID invoiceItemId, TaxCodesPUTRsc taxCodes, Tenant tenant) {
         TenantContext tenantContext = new PluginTenantContext(tenant.getId());
-        return customFieldService.saveInvoiceItemField(joinTaxCodes(taxCodes.taxCodes), TAX_CODES_FIELD_NAME,
-                invoiceItemId, tenantContext);
+        String taxCodesCSV = joinTaxCodes(taxCodes.taxCodes);
+        boolean saved = customFieldService.saveInvoiceItemField(taxCodesCSV, TAX_CODES_FIELD_NAME, invoiceItemId,
+                tenantContext);
+        if (saved && (taxCodesDao != null)) {
+            saveTaxCodesInTable(invoiceItemId, taxCodesCSV, tenantContext);
+        }
+        return saved;
+    }
+
+    /**
+     * Saves the tax codes of an invoice item to the table of tax codes, after
+     * they have been saved as a custom field. Custom fields remain the source
+     * of truth, so any error here is only reported.
+     * <p>
+     * The existing row of the item is updated in place. A new row is only
+     * inserted when the invoice of the item is indexed, because searching for
+     * it would cost a full-text search on each update. Items without rows are
+     * read from custom fields anyway, until the table is back-filled.
+     */
+    private void saveTaxCodesInTable(UUID invoiceItemId, String taxCodesCSV, TenantContext tenantContext) {
+        try {
+            if (taxCodesDao.updateTaxCodesOfInvoiceItem(tenantContext.getTenantId(), invoiceItemId, taxCodesCSV,
+                    clock.getUTCNow())) {
+                return;
+            }
+            UUID invoiceId = invoiceService.getIndexedInvoiceId(invoiceItemId);
+            Invoice invoice = invoiceId == null ? null : invoiceService.findInvoice(invoiceId, tenantContext);
+            if (invoice == null) {
+                logService.log(LOG_DEBUG, "Invoice item [" + invoiceItemId + "] has no row in the table of tax codes"
+                        + " and its invoice is not indexed. The table needs to be back-filled.");
+                return;
+            }
+            taxCodesDao.saveTaxCodes(tenantContext.getTenantId(), invoice.getAccountId(), invoice.getId(),
+                    ImmutableMap.of(invoiceItemId, taxCodesCSV), clock.getUTCNow());
+        } catch (SQLException exc) {
+            logService.log(LOG_ERROR, "while saving tax codes [" + taxCodesCSV + "] of invoice item ["
+                    + invoiceItemId + "] to the table of tax codes. The table needs to be back-filled.", exc);
+        }
+    }
+
+    /**
+     * Back-fills the table of tax codes for a given account, with the tax
+     * codes custom fields on its invoice items.
+     *
+     * @param accountId
+     *            The identifier of the account.
+     * @param tenant
+     *            The tenant of the account.
+     * @return {@code true} when the table has been back-filled, or
+     *         {@code false} when this table is not used or could not be
+     *         back-filled.
+     * @see SimpleTaxPlugin#backfillTaxCodes(UUID, UUID)
+     */
+    public boolean backfillTaxCodesOfAccount(@Nonnull UUID accountId, Tenant tenant) {
+        if ((taxCodesDao == null) || (plugin == null)) {
+            logService.log(LOG_DEBUG, "Cannot back-fill the tax codes of account [" + accountId
+                    + "] because the table of tax codes is not enabled in the default configuration");
+            return false;
+        }
+        try {
+            plugin.backfillTaxCodes(accountId, tenant.getId());
+        } catch (RuntimeException exc) {
+            logService.log(LOG_ERROR, "while back-filling the tax codes of account [" + accountId
+                    + "] in tenant [" + tenant.getApiKey() + "]", exc);
+            return false;
+        }
+        return true;
     }
 
     private static TaxCodesGETRsc toTaxCodesGETRscOrNull(UUID invoiceId, UUID invoiceItemId, String taxCodes) {
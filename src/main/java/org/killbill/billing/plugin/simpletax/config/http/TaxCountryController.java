@@ -21,6 +21,8 @@ import static org.killbill.billing.plugin.simpletax.config.http.CustomFieldServi
 import static org.osgi.service.log.LogService.LOG_ERROR;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.UUID;
 
 import javax.annotation.Nonnull;
@@ -35,6 +37,7 @@ import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 
 /**
@@ -45,6 +48,8 @@ import com.google.common.collect.ImmutableList;
 public class TaxCountryController {
     private OSGIKillbillLogService logService;
     private CustomFieldService customFieldService;
+    private AccountTaxFieldsIndex index;
+    private AccountFieldsBatchUpdate<TaxCountryRsc> batchUpdate;
 
     /**
      * Constructs a new controller for tax country end points.
@@ -55,50 +60,148 @@ public class TaxCountryController {
      *            The Kill Bill log service to use.
      */
     public TaxCountryController(CustomFieldService customFieldService, OSGIKillbillLogService logService) {
+        this(customFieldService, logService, null);
+    }
+
+    /**
+     * Constructs a new controller for tax country end points, that lists tax
+     * countries from an in-memory index.
+     *
+     * @param customFieldService
+     *            The service to use when accessing custom fields.
+     * @param logService
+     *            The Kill Bill log service to use.
+     * @param index
+     *            The index of account tax fields to list tax countries from,
+     *            or {@code null} to search custom fields each time.
+     */
+    public TaxCountryController(CustomFieldService customFieldService, OSGIKillbillLogService logService,
+            @Nullable AccountTaxFieldsIndex index) {
         super();
         this.logService = logService;
         this.customFieldService = customFieldService;
+        this.index = index;
+        this.batchUpdate = new AccountFieldsBatchUpdate<TaxCountryRsc>(customFieldService,
+                TAX_COUNTRY_CUSTOM_FIELD_NAME) {
+            @Override
+            protected boolean isValid(@Nullable TaxCountryRsc taxCountry) {
+                return (taxCountry != null) && (taxCountry.accountId != null) && (taxCountry.taxCountry != null);
+            }
+
+            @Override
+            protected UUID accountIdOf(@Nullable TaxCountryRsc taxCountry) {
+                return taxCountry == null ? null : taxCountry.accountId;
+            }
+
+            @Override
+            protected String fieldValueOf(@Nonnull TaxCountryRsc taxCountry) {
+                return taxCountry.taxCountry.getCode();
+            }
+
+            @Override
+            protected void indexSavedValues(UUID tenantId, Map<UUID, String> savedValues) {
+                if (TaxCountryController.this.index != null) {
+                    TaxCountryController.this.index.putTaxCountries(tenantId, savedValues);
+                }
+            }
+        };
     }
 
     /**
-     * Lists JSON resources for tax countries taking any restrictions into
-     * account.
+     * Lists JSON resources for the tax country of an account.
+     * <p>
+     * The tax countries of all accounts are listed with
+     * {@link #streamTaxCountries(Tenant, long, Long)}.
      *
      * @param accountId
-     *            Any account on which the tax countries should be restricted.
-     *            Might be {@code null}.
+     *            The account on which the tax countries should be restricted.
+     *            Must not be {@code null}.
      * @param tenant
      *            The tenant on which to operate.
      * @return A list of {@linkplain TaxCountryRsc account tax countries
      *         resources}. Never {@code null}.
      */
     // TODO: return a List<TaxCountryRsc>
-    public Object listTaxCountries(@Nullable UUID accountId, Tenant tenant) {
+    public Object listTaxCountries(@Nonnull UUID accountId, Tenant tenant) {
         TenantContext tenantContext = new PluginTenantContext(tenant.getId());
-
-        List<CustomField> fields;
-        if (accountId == null) {
-            fields = customFieldService.findAllAccountFieldsByFieldNameAndTenant(TAX_COUNTRY_CUSTOM_FIELD_NAME,
-                    tenantContext);
-        } else {
-            CustomField field = customFieldService.findFieldByNameAndAccountAndTenant(
-                    TAX_COUNTRY_CUSTOM_FIELD_NAME, accountId, tenantContext);
-            if (field == null) {
-                return ImmutableList.of();
-            }
-            fields = ImmutableList.of(field);
+        CustomField field = customFieldService.findFieldByNameAndAccountAndTenant(TAX_COUNTRY_CUSTOM_FIELD_NAME,
+                accountId, tenantContext);
+        if (field == null) {
+            return ImmutableList.of();
+        }
+        TaxCountryRsc taxCountry = toTaxCountryJsonOrNull(accountId, field.getFieldValue());
+        if (taxCountry == null) {
+            return ImmutableList.of();
         }
+        return ImmutableList.of(taxCountry);
+    }
 
+    /**
+     * Lists JSON resources for the accounts that have a given tax country.
+     *
+     * @param taxCountry
+     *            The tax country of the accounts to list.
+     * @param tenant
+     *            The tenant on which to operate.
+     * @return A list of {@linkplain TaxCountryRsc account tax countries
+     *         resources}. Never {@code null}.
+     */
+    @Nonnull
+    public List<TaxCountryRsc> listAccountsOfTaxCountry(@Nonnull Country taxCountry, Tenant tenant) {
         List<TaxCountryRsc> taxCountries = newArrayList();
-        for (CustomField field : fields) {
-            TaxCountryRsc taxCountry = toTaxCountryJsonOrNull(field.getObjectId(), field.getFieldValue());
-            if (taxCountry != null) {
-                taxCountries.add(taxCountry);
+        if (index != null) {
+            for (UUID accountId : index.getAccountsOfTaxCountry(tenant.getId(), taxCountry)) {
+                taxCountries.add(new TaxCountryRsc(accountId, taxCountry));
+            }
+            return taxCountries;
+        }
+        TenantContext tenantContext = new PluginTenantContext(tenant.getId());
+        for (CustomField field : customFieldService.findAllAccountFieldsByFieldNameAndTenant(
+                TAX_COUNTRY_CUSTOM_FIELD_NAME, tenantContext)) {
+            TaxCountryRsc rsc = toTaxCountryJsonOrNull(field.getObjectId(), field.getFieldValue());
+            if ((rsc != null) && taxCountry.equals(rsc.taxCountry)) {
+                taxCountries.add(rsc);
             }
         }
         return taxCountries;
     }
 
+    /**
+     * Lists JSON resources for the tax countries of all accounts, in a page
+     * that is meant to be streamed to the client.
+     *
+     * @param tenant
+     *            The tenant on which to operate.
+     * @param offset
+     *            The offset of the first record to consider.
+     * @param maxNbRecords
+     *            The maximum number of records to consider, or {@code null}
+     *            for all records.
+     * @return A page of {@linkplain TaxCountryRsc account tax countries
+     *         resources}, to be iterated over only once. Never {@code null}.
+     */
+    @Nonnull
+    public ResultsPage<TaxCountryRsc> streamTaxCountries(Tenant tenant, long offset, @Nullable Long maxNbRecords) {
+        if (index == null) {
+            TenantContext tenantContext = new PluginTenantContext(tenant.getId());
+            ResultsPage<CustomField> fields = customFieldService.searchAccountFieldsByFieldNameAndTenant(
+                    TAX_COUNTRY_CUSTOM_FIELD_NAME, offset, maxNbRecords, tenantContext);
+            return fields.transformOrSkip(new Function<CustomField, TaxCountryRsc>() {
+                @Override
+                public TaxCountryRsc apply(CustomField field) {
+                    return toTaxCountryJsonOrNull(field.getObjectId(), field.getFieldValue());
+                }
+            });
+        }
+        return ResultsPage.slice(index.getTaxCountries(tenant.getId()).entrySet(), offset, maxNbRecords)
+                .transformOrSkip(new Function<Entry<UUID, String>, TaxCountryRsc>() {
+                    @Override
+                    public TaxCountryRsc apply(Entry<UUID, String> entry) {
+                        return toTaxCountryJsonOrNull(entry.getKey(), entry.getValue());
+                    }
+                });
+    }
+
     /**
      * Returns a JSON resource for any tax country that could be attached to the
      * given account.
@@ -142,14 +245,38 @@ public class TaxCountryController {
     public boolean saveAccountTaxCountry(@Nonnull UUID accountId, @Nonnull TaxCountryRsc taxCountryRsc, Tenant tenant) {
         TenantContext tenantContext = new PluginTenantContext(tenant.getId());
         String newValue = taxCountryRsc.taxCountry.getCode();
-        return customFieldService.saveAccountField(newValue, TAX_COUNTRY_CUSTOM_FIELD_NAME, accountId, tenantContext);
+        boolean saved = customFieldService.saveAccountField(newValue, TAX_COUNTRY_CUSTOM_FIELD_NAME, accountId,
+                tenantContext);
+        if (saved && (index != null)) {
+            index.refreshAccount(tenant.getId(), accountId);
+        }
+        return saved;
+    }
+
+    /**
+     * Persists new tax countries for many accounts at once, with bulk calls to
+     * Kill Bill.
+     *
+     * @param taxCountries
+     *            The new tax country resources to persist. Any {@code null}
+     *            element stands for an invalid resource. Must not be
+     *            {@code null}.
+     * @param tenant
+     *            The tenant on which to operate.
+     * @return The {@linkplain AccountUpdateStatusRsc status} of each
+     *         resource, in the same order. Never {@code null}.
+     */
+    @Nonnull
+    public List<AccountUpdateStatusRsc> saveAccountTaxCountries(@Nonnull List<TaxCountryRsc> taxCountries,
+            Tenant tenant) {
+        return batchUpdate.save(taxCountries, tenant);
     }
 
     // TODO: rename to toTaxCountryRscOrNull
     private TaxCountryRsc toTaxCountryJsonOrNull(@Nonnull UUID accountId, @Nullable String country) {
         Country taxCountry;
         try {
-            taxCountry = new Country(country);
+            taxCountry = Country.of(country);
         } catch (IllegalArgumentException exc) {
             logService.log(LOG_ERROR, "Illegal value of [" + country + "] in field '" + TAX_COUNTRY_CUSTOM_FIELD_NAME
                     + "' for account " + accountId, exc);
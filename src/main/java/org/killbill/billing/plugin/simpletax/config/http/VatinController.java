@@ -16,11 +16,12 @@
  */
 package org.killbill.billing.plugin.simpletax.config.http;
 
-import static com.google.common.collect.Lists.newArrayList;
 import static org.killbill.billing.plugin.simpletax.config.http.CustomFieldService.VATIN_CUSTOM_FIELD_NAME;
 import static org.osgi.service.log.LogService.LOG_ERROR;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.UUID;
 
 import javax.annotation.Nonnull;
@@ -35,6 +36,7 @@ import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 
 /**
@@ -46,6 +48,8 @@ import com.google.common.collect.ImmutableList;
 public class VatinController {
     private OSGIKillbillLogService logService;
     private CustomFieldService customFieldService;
+    private AccountTaxFieldsIndex index;
+    private AccountFieldsBatchUpdate<VATINRsc> batchUpdate;
 
     /**
      * Constructs a new controller for the end points related to VAT
@@ -57,48 +61,117 @@ public class VatinController {
      *            The Kill Bill log service to use.
      */
     public VatinController(CustomFieldService customFieldService, OSGIKillbillLogService logService) {
+        this(customFieldService, logService, null);
+    }
+
+    /**
+     * Constructs a new controller for the end points related to VAT
+     * Identification Numbers (VATINs), that lists them from an in-memory index.
+     *
+     * @param customFieldService
+     *            The service to use when accessing custom fields.
+     * @param logService
+     *            The Kill Bill log service to use.
+     * @param index
+     *            The index of account tax fields to list VATINs from, or
+     *            {@code null} to search custom fields each time.
+     */
+    public VatinController(CustomFieldService customFieldService, OSGIKillbillLogService logService,
+            @Nullable AccountTaxFieldsIndex index) {
         super();
         this.logService = logService;
         this.customFieldService = customFieldService;
+        this.index = index;
+        this.batchUpdate = new AccountFieldsBatchUpdate<VATINRsc>(customFieldService, VATIN_CUSTOM_FIELD_NAME) {
+            @Override
+            protected boolean isValid(@Nullable VATINRsc vatin) {
+                return (vatin != null) && (vatin.accountId != null) && (vatin.vatin != null);
+            }
+
+            @Override
+            protected UUID accountIdOf(@Nullable VATINRsc vatin) {
+                return vatin == null ? null : vatin.accountId;
+            }
+
+            @Override
+            protected String fieldValueOf(@Nonnull VATINRsc vatin) {
+                return vatin.vatin.getNumber();
+            }
+
+            @Override
+            protected void indexSavedValues(UUID tenantId, Map<UUID, String> savedValues) {
+                if (VatinController.this.index != null) {
+                    VatinController.this.index.putVatins(tenantId, savedValues);
+                }
+            }
+        };
     }
 
     /**
-     * Lists JSON resources for VAT Identification Numbers (VATINs) taking any
-     * restrictions into account.
+     * Lists JSON resources for the VAT Identification Number (VATIN) of an
+     * account.
+     * <p>
+     * The VATINs of all accounts are listed with
+     * {@link #streamVatins(Tenant, long, Long)}.
      *
      * @param accountId
-     *            Any account on which the VAT Identification Numbers (VATINs)
-     *            should be restricted. Might be {@code null}.
+     *            The account on which the VAT Identification Numbers (VATINs)
+     *            should be restricted. Must not be {@code null}.
      * @param tenant
      *            The tenant on which to operate.
      * @return A list of {@linkplain VATINRsc account VAT Identification Number
      *         (VATIN) resources}. Never {@code null}.
      */
     // TODO: return a List<VATINRsc>
-    public Object listVatins(@Nullable UUID accountId, @Nonnull Tenant tenant) {
+    public Object listVatins(@Nonnull UUID accountId, @Nonnull Tenant tenant) {
         TenantContext tenantContext = new PluginTenantContext(tenant.getId());
-
-        List<CustomField> fields;
-        if (accountId == null) {
-            fields = customFieldService
-                    .findAllAccountFieldsByFieldNameAndTenant(VATIN_CUSTOM_FIELD_NAME, tenantContext);
-        } else {
-            CustomField field = customFieldService.findFieldByNameAndAccountAndTenant(
-                    VATIN_CUSTOM_FIELD_NAME, accountId, tenantContext);
-            if (field == null) {
-                return ImmutableList.of();
-            }
-            fields = ImmutableList.of(field);
+        CustomField field = customFieldService.findFieldByNameAndAccountAndTenant(VATIN_CUSTOM_FIELD_NAME,
+                accountId, tenantContext);
+        if (field == null) {
+            return ImmutableList.of();
+        }
+        VATINRsc vatin = toVATINJsonOrNull(accountId, field.getFieldValue());
+        if (vatin == null) {
+            return ImmutableList.of();
         }
+        return ImmutableList.of(vatin);
+    }
 
-        List<VATINRsc> vatins = newArrayList();
-        for (CustomField field : fields) {
-            VATINRsc vatin = toVATINJsonOrNull(field.getObjectId(), field.getFieldValue());
-            if (vatin != null) {
-                vatins.add(vatin);
-            }
+    /**
+     * Lists JSON resources for the VAT Identification Numbers (VATINs) of all
+     * accounts, in a page that is meant to be streamed to the client.
+     *
+     * @param tenant
+     *            The tenant on which to operate.
+     * @param offset
+     *            The offset of the first record to consider.
+     * @param maxNbRecords
+     *            The maximum number of records to consider, or {@code null}
+     *            for all records.
+     * @return A page of {@linkplain VATINRsc account VAT Identification
+     *         Number (VATIN) resources}, to be iterated over only once. Never
+     *         {@code null}.
+     */
+    @Nonnull
+    public ResultsPage<VATINRsc> streamVatins(Tenant tenant, long offset, @Nullable Long maxNbRecords) {
+        if (index == null) {
+            TenantContext tenantContext = new PluginTenantContext(tenant.getId());
+            ResultsPage<CustomField> fields = customFieldService.searchAccountFieldsByFieldNameAndTenant(
+                    VATIN_CUSTOM_FIELD_NAME, offset, maxNbRecords, tenantContext);
+            return fields.transformOrSkip(new Function<CustomField, VATINRsc>() {
+                @Override
+                public VATINRsc apply(CustomField field) {
+                    return toVATINJsonOrNull(field.getObjectId(), field.getFieldValue());
+                }
+            });
         }
-        return vatins;
+        return ResultsPage.slice(index.getVatins(tenant.getId()).entrySet(), offset, maxNbRecords)
+                .transformOrSkip(new Function<Entry<UUID, String>, VATINRsc>() {
+                    @Override
+                    public VATINRsc apply(Entry<UUID, String> entry) {
+                        return toVATINJsonOrNull(entry.getKey(), entry.getValue());
+                    }
+                });
     }
 
     /**
@@ -144,7 +217,30 @@ public class VatinController {
     public boolean saveAccountVatin(@Nonnull UUID accountId, @Nonnull VATINRsc vatinRsc, Tenant tenant) {
         TenantContext tenantContext = new PluginTenantContext(tenant.getId());
         String newValue = vatinRsc.vatin.getNumber();
-        return customFieldService.saveAccountField(newValue, VATIN_CUSTOM_FIELD_NAME, accountId, tenantContext);
+        boolean saved = customFieldService.saveAccountField(newValue, VATIN_CUSTOM_FIELD_NAME, accountId,
+                tenantContext);
+        if (saved && (index != null)) {
+            index.refreshAccount(tenant.getId(), accountId);
+        }
+        return saved;
+    }
+
+    /**
+     * Persists new VAT Identification Numbers for many accounts at once, with
+     * bulk calls to Kill Bill.
+     *
+     * @param vatins
+     *            The new VAT Identification Number resources to persist. Any
+     *            {@code null} element stands for an invalid resource. Must not
+     *            be {@code null}.
+     * @param tenant
+     *            The tenant on which to operate.
+     * @return The {@linkplain AccountUpdateStatusRsc status} of each
+     *         resource, in the same order. Never {@code null}.
+     */
+    @Nonnull
+    public List<AccountUpdateStatusRsc> saveAccountVatins(@Nonnull List<VATINRsc> vatins, Tenant tenant) {
+        return batchUpdate.save(vatins, tenant);
     }
 
     private VATINRsc toVATINJsonOrNull(UUID accountId, String vatin) {
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.dao;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Lists.partition;
+import static com.google.common.collect.Maps.newHashMap;
+import static java.util.UUID.fromString;
+import static org.killbill.billing.ObjectType.INVOICE_ITEM;
+import static org.killbill.billing.plugin.simpletax.internal.TaxCodeService.TAX_CODES_FIELD_NAME;
+import static org.killbill.billing.plugin.simpletax.internal.TaxCodeService.mergeTaxCodesOfInvoiceItems;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.dao.PluginDao;
+import org.killbill.billing.plugin.simpletax.util.ImmutableCustomField;
+import org.killbill.billing.util.customfield.CustomField;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * A data access object for the table of the tax codes of invoice items, that
+ * is owned by the plugin and created by the {@code ddl.sql} script.
+ * <p>
+ * This table duplicates the custom fields named
+ * {@value org.killbill.billing.plugin.simpletax.internal.TaxCodeService#TAX_CODES_FIELD_NAME}
+ * on invoice items, which remain the source of truth. Its rows are indexed by
+ * tenant, account and invoice, so that the tax codes of some invoices can be
+ * read without loading all the custom fields of the invoice items of an
+ * account.
+ * <p>
+ * Instances of this class are thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+public class TaxCodesDao extends PluginDao {
+
+    /** The name of the table of tax codes. */
+    public static final String TAX_CODES_TABLE_NAME = "simpletax_tax_codes";
+
+    /**
+     * The maximum number of invoices whose tax codes are read with one single
+     * query.
+     */
+    private static final int MAX_INVOICES_PER_QUERY = 100;
+
+    /** The tax codes of the taxable items that have none. */
+    private static final String NO_TAX_CODES = "";
+
+    private static final String SELECT_TAX_CODES_OF_INVOICES = "select kb_invoice_id, kb_invoice_item_id, tax_codes"
+            + " from " + TAX_CODES_TABLE_NAME + " where kb_tenant_id = ? and kb_invoice_id in (";
+    private static final String SELECT_INVOICE_OF_INVOICE_ITEM = "select kb_invoice_id from " + TAX_CODES_TABLE_NAME
+            + " where kb_invoice_item_id = ? and kb_tenant_id = ?";
+    private static final String UPDATE_TAX_CODES = "update " + TAX_CODES_TABLE_NAME
+            + " set tax_codes = ?, updated_date = ? where kb_invoice_item_id = ? and kb_tenant_id = ?";
+    private static final String INSERT_TAX_CODES = "insert into " + TAX_CODES_TABLE_NAME
+            + " (kb_tenant_id, kb_account_id, kb_invoice_id, kb_invoice_item_id, tax_codes, created_date,"
+            + " updated_date) values (?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_TAX_CODES_OF_ACCOUNT = "select kb_invoice_item_id, tax_codes from "
+            + TAX_CODES_TABLE_NAME + " where kb_account_id = ? and kb_tenant_id = ?";
+    private static final String DELETE_TAX_CODES_OF_ACCOUNT = "delete from " + TAX_CODES_TABLE_NAME
+            + " where kb_account_id = ? and kb_tenant_id = ?";
+
+    /**
+     * Creates a data access object for the tax codes table.
+     *
+     * @param dataSource
+     *            The data source of the Kill Bill database.
+     * @throws SQLException
+     *             when the database cannot be accessed.
+     */
+    public TaxCodesDao(DataSource dataSource) throws SQLException {
+        super(dataSource);
+    }
+
+    /**
+     * Reads the tax codes of the items of some invoices.
+     * <p>
+     * The rows are returned as tax codes custom fields, just as if they were
+     * read from Kill Bill, so that they can be used interchangeably.
+     *
+     * @param tenantId
+     *            The identifier of the tenant.
+     * @param invoiceIds
+     *            The identifiers of the invoices.
+     * @return A new immutable multi-map of the tax codes custom fields on the
+     *         invoice items, grouped by the identifier of their related
+     *         invoice. Never {@code null}, and guaranteed not having any
+     *         {@code null} elements.
+     * @throws SQLException
+     *             when the tax codes cannot be read.
+     * @throws NullPointerException
+     *             when {@code tenantId} or {@code invoiceIds} is {@code null}.
+     */
+    @Nonnull
+    public SetMultimap<UUID, CustomField> getTaxFieldsOfInvoices(@Nonnull final UUID tenantId,
+            @Nonnull Collection<UUID> invoiceIds) throws SQLException {
+        checkNotNull(tenantId);
+        if (invoiceIds.isEmpty()) {
+            return ImmutableSetMultimap.of();
+        }
+        final List<List<UUID>> batches = partition(ImmutableList.copyOf(invoiceIds), MAX_INVOICES_PER_QUERY);
+        return execute(dataSource.getConnection(), new WithConnectionCallback<SetMultimap<UUID, CustomField>>() {
+            @Override
+            public SetMultimap<UUID, CustomField> withConnection(Connection conn) throws SQLException {
+                ImmutableSetMultimap.Builder<UUID, CustomField> taxFields = ImmutableSetMultimap.builder();
+                for (List<UUID> batch : batches) {
+                    PreparedStatement stmt = conn.prepareStatement(selectTaxCodesOfInvoices(batch.size()));
+                    try {
+                        int index = 1;
+                        stmt.setString(index++, tenantId.toString());
+                        for (UUID invoiceId : batch) {
+                            stmt.setString(index++, invoiceId.toString());
+                        }
+                        ResultSet rs = stmt.executeQuery();
+                        while (rs.next()) {
+                            taxFields.put(fromString(rs.getString(1)),
+                                    taxCodesField(fromString(rs.getString(2)), rs.getString(3)));
+                        }
+                    } finally {
+                        stmt.close();
+                    }
+                }
+                return taxFields.build();
+            }
+        });
+    }
+
+    /**
+     * Reads the invoice of an invoice item, from the row of its tax codes.
+     *
+     * @param tenantId
+     *            The identifier of the tenant.
+     * @param invoiceItemId
+     *            The identifier of the invoice item.
+     * @return The identifier of the invoice, or {@code null} if the invoice
+     *         item has no row.
+     * @throws SQLException
+     *             when the row cannot be read.
+     * @throws NullPointerException
+     *             when any argument is {@code null}.
+     */
+    @Nullable
+    public UUID getInvoiceIdOfInvoiceItem(@Nonnull final UUID tenantId, @Nonnull final UUID invoiceItemId)
+            throws SQLException {
+        checkNotNull(tenantId);
+        checkNotNull(invoiceItemId);
+        return execute(dataSource.getConnection(), new WithConnectionCallback<UUID>() {
+            @Override
+            public UUID withConnection(Connection conn) throws SQLException {
+                PreparedStatement stmt = conn.prepareStatement(SELECT_INVOICE_OF_INVOICE_ITEM);
+                try {
+                    stmt.setString(1, invoiceItemId.toString());
+                    stmt.setString(2, tenantId.toString());
+                    ResultSet rs = stmt.executeQuery();
+                    return rs.next() ? fromString(rs.getString(1)) : null;
+                } finally {
+                    stmt.close();
+                }
+            }
+        });
+    }
+
+    private static String selectTaxCodesOfInvoices(int invoicesCount) {
+        StringBuilder sql = new StringBuilder(SELECT_TAX_CODES_OF_INVOICES);
+        for (int i = 0; i < invoicesCount; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(')').toString();
+    }
+
+    private static CustomField taxCodesField(UUID invoiceItemId, String taxCodes) {
+        return ImmutableCustomField.builder()//
+                .withObjectType(INVOICE_ITEM).withObjectId(invoiceItemId)//
+                .withFieldName(TAX_CODES_FIELD_NAME).withFieldValue(taxCodes)//
+                .build();
+    }
+
+    /**
+     * Saves the tax codes of some items of an invoice, replacing any tax codes
+     * they previously had, all at once.
+     *
+     * @param tenantId
+     *            The identifier of the tenant.
+     * @param accountId
+     *            The identifier of the account of the invoice.
+     * @param invoiceId
+     *            The identifier of the invoice.
+     * @param taxCodesOfInvoiceItems
+     *            The comma-separated lists of tax codes names, mapped from the
+     *            identifiers of their related invoice items.
+     * @param utcNow
+     *            The current date and time.
+     * @throws SQLException
+     *             when the tax codes cannot be saved, in which case none is
+     *             saved.
+     * @throws NullPointerException
+     *             when any argument is {@code null}.
+     */
+    public void saveTaxCodes(@Nonnull final UUID tenantId, @Nonnull final UUID accountId,
+            @Nonnull final UUID invoiceId, @Nonnull final Map<UUID, String> taxCodesOfInvoiceItems,
+            @Nonnull DateTime utcNow) throws SQLException {
+        checkNotNull(tenantId);
+        checkNotNull(accountId);
+        checkNotNull(invoiceId);
+        if (taxCodesOfInvoiceItems.isEmpty()) {
+            return;
+        }
+        final Timestamp now = new Timestamp(utcNow.getMillis());
+        inTransaction(new WithConnectionCallback<Void>() {
+            @Override
+            public Void withConnection(Connection conn) throws SQLException {
+                List<Entry<UUID, String>> newEntries = newArrayList();
+                PreparedStatement update = conn.prepareStatement(UPDATE_TAX_CODES);
+                try {
+                    for (Entry<UUID, String> entry : taxCodesOfInvoiceItems.entrySet()) {
+                        update.setString(1, entry.getValue());
+                        update.setTimestamp(2, now);
+                        update.setString(3, entry.getKey().toString());
+                        update.setString(4, tenantId.toString());
+                        if (update.executeUpdate() == 0) {
+                            newEntries.add(entry);
+                        }
+                    }
+                } finally {
+                    update.close();
+                }
+                insertTaxCodes(conn, tenantId, accountId, invoiceId, newEntries, now);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Updates the tax codes of an invoice item, only when it already has a
+     * row, which requires no knowledge of its invoice.
+     *
+     * @param tenantId
+     *            The identifier of the tenant.
+     * @param invoiceItemId
+     *            The identifier of the invoice item.
+     * @param taxCodes
+     *            The comma-separated list of tax codes names.
+     * @param utcNow
+     *            The current date and time.
+     * @return {@code true} if the row has been updated, or {@code false} if
+     *         the invoice item has no row.
+     * @throws SQLException
+     *             when the tax codes cannot be updated.
+     * @throws NullPointerException
+     *             when any argument is {@code null}.
+     */
+    public boolean updateTaxCodesOfInvoiceItem(@Nonnull final UUID tenantId, @Nonnull final UUID invoiceItemId,
+            @Nonnull final String taxCodes, @Nonnull DateTime utcNow) throws SQLException {
+        checkNotNull(tenantId);
+        checkNotNull(invoiceItemId);
+        checkNotNull(taxCodes);
+        final Timestamp now = new Timestamp(utcNow.getMillis());
+        return execute(dataSource.getConnection(), new WithConnectionCallback<Boolean>() {
+            @Override
+            public Boolean withConnection(Connection conn) throws SQLException {
+                PreparedStatement update = conn.prepareStatement(UPDATE_TAX_CODES);
+                try {
+                    update.setString(1, taxCodes);
+                    update.setTimestamp(2, now);
+                    update.setString(3, invoiceItemId.toString());
+                    update.setString(4, tenantId.toString());
+                    return update.executeUpdate() > 0;
+                } finally {
+                    update.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Updates the tax codes of the invoice items of an account that already
+     * have a row, with the values of the tax codes custom fields on these
+     * items. This is meant for keeping the table in sync with the custom
+     * fields, that remain the source of truth, whenever they are changed.
+     * <p>
+     * Items that have a row but no tax codes custom field are given an empty
+     * list of tax codes. Only the rows whose tax codes change are updated.
+     *
+     * @param tenantId
+     *            The identifier of the tenant.
+     * @param accountId
+     *            The identifier of the account.
+     * @param taxFieldsOfInvoiceItems
+     *            The tax codes custom fields on the invoice items of the
+     *            account. Several fields on the same item are merged.
+     * @param utcNow
+     *            The current date and time.
+     * @return The number of updated rows.
+     * @throws SQLException
+     *             when the tax codes cannot be updated, in which case none is
+     *             updated.
+     * @throws NullPointerException
+     *             when any argument is {@code null}.
+     */
+    public int syncTaxCodesOfAccount(@Nonnull final UUID tenantId, @Nonnull final UUID accountId,
+            @Nonnull Iterable<CustomField> taxFieldsOfInvoiceItems, @Nonnull DateTime utcNow) throws SQLException {
+        checkNotNull(tenantId);
+        checkNotNull(accountId);
+        final Map<UUID, String> taxCodesOfInvoiceItems = mergeTaxCodesOfInvoiceItems(taxFieldsOfInvoiceItems);
+        final Timestamp now = new Timestamp(utcNow.getMillis());
+        return inTransaction(new WithConnectionCallback<Integer>() {
+            @Override
+            public Integer withConnection(Connection conn) throws SQLException {
+                Map<UUID, String> changedTaxCodes = newHashMap();
+                PreparedStatement select = conn.prepareStatement(SELECT_TAX_CODES_OF_ACCOUNT);
+                try {
+                    select.setString(1, accountId.toString());
+                    select.setString(2, tenantId.toString());
+                    ResultSet rs = select.executeQuery();
+                    while (rs.next()) {
+                        UUID invoiceItemId = fromString(rs.getString(1));
+                        String taxCodes = taxCodesOfInvoiceItems.get(invoiceItemId);
+                        if (taxCodes == null) {
+                            taxCodes = NO_TAX_CODES;
+                        }
+                        if (!taxCodes.equals(rs.getString(2))) {
+                            changedTaxCodes.put(invoiceItemId, taxCodes);
+                        }
+                    }
+                } finally {
+                    select.close();
+                }
+                if (changedTaxCodes.isEmpty()) {
+                    return 0;
+                }
+                PreparedStatement update = conn.prepareStatement(UPDATE_TAX_CODES);
+                try {
+                    for (Entry<UUID, String> entry : changedTaxCodes.entrySet()) {
+                        update.setString(1, entry.getValue());
+                        update.setTimestamp(2, now);
+                        update.setString(3, entry.getKey().toString());
+                        update.setString(4, tenantId.toString());
+                        update.addBatch();
+                    }
+                    update.executeBatch();
+                } finally {
+                    update.close();
+                }
+                return changedTaxCodes.size();
+            }
+        });
+    }
+
+    /**
+     * Replaces all the tax codes of an account, with the values of the tax
+     * codes custom fields on its invoice items. This is meant for back-filling
+     * the table from the custom fields, that remain the source of truth.
+     * Several fields on the same item are merged into one single row.
+     *
+     * @param tenantId
+     *            The identifier of the tenant.
+     * @param accountId
+     *            The identifier of the account.
+     * @param taxFieldsOfInvoices
+     *            The tax codes custom fields on the invoice items of the
+     *            account, grouped by the identifier of their related invoice.
+     * @param utcNow
+     *            The current date and time.
+     * @throws SQLException
+     *             when the tax codes cannot be replaced, in which case the
+     *             previous ones are kept.
+     * @throws NullPointerException
+     *             when any argument is {@code null}.
+     */
+    public void replaceTaxCodesOfAccount(@Nonnull final UUID tenantId, @Nonnull final UUID accountId,
+            @Nonnull final SetMultimap<UUID, CustomField> taxFieldsOfInvoices, @Nonnull DateTime utcNow)
+            throws SQLException {
+        checkNotNull(tenantId);
+        checkNotNull(accountId);
+        final Timestamp now = new Timestamp(utcNow.getMillis());
+        inTransaction(new WithConnectionCallback<Void>() {
+            @Override
+            public Void withConnection(Connection conn) throws SQLException {
+                PreparedStatement delete = conn.prepareStatement(DELETE_TAX_CODES_OF_ACCOUNT);
+                try {
+                    delete.setString(1, accountId.toString());
+                    delete.setString(2, tenantId.toString());
+                    delete.executeUpdate();
+                } finally {
+                    delete.close();
+                }
+                for (UUID invoiceId : taxFieldsOfInvoices.keySet()) {
+                    List<Entry<UUID, String>> entries = newArrayList(mergeTaxCodesOfInvoiceItems(
+                            taxFieldsOfInvoices.get(invoiceId)).entrySet());
+                    insertTaxCodes(conn, tenantId, accountId, invoiceId, entries, now);
+                }
+                return null;
+            }
+        });
+    }
+
+    private static void insertTaxCodes(Connection conn, UUID tenantId, UUID accountId, UUID invoiceId,
+            List<Entry<UUID, String>> taxCodesOfInvoiceItems, Timestamp now) throws SQLException {
+        if (taxCodesOfInvoiceItems.isEmpty()) {
+            return;
+        }
+        PreparedStatement insert = conn.prepareStatement(INSERT_TAX_CODES);
+        try {
+            for (Entry<UUID, String> entry : taxCodesOfInvoiceItems) {
+                insert.setString(1, tenantId.toString());
+                insert.setString(2, accountId.toString());
+                insert.setString(3, invoiceId.toString());
+                insert.setString(4, entry.getKey().toString());
+                insert.setString(5, entry.getValue());
+                insert.setTimestamp(6, now);
+                insert.setTimestamp(7, now);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        } finally {
+            insert.close();
+        }
+    }
+
+    private <T> T inTransaction(final WithConnectionCallback<T> callback) throws SQLException {
+        return execute(dataSource.getConnection(), new WithConnectionCallback<T>() {
+            @Override
+            public T withConnection(Connection conn) throws SQLException {
+                boolean autoCommit = conn.getAutoCommit();
+                conn.setAutoCommit(false);
+                try {
+                    T result = callback.withConnection(conn);
+                    conn.commit();
+                    return result;
+                } catch (SQLException exc) {
+                    conn.rollback();
+                    throw exc;
+                } catch (RuntimeException exc) {
+                    conn.rollback();
+                    throw exc;
+                } finally {
+                    conn.setAutoCommit(autoCommit);
+                }
+            }
+        });
+    }
+}
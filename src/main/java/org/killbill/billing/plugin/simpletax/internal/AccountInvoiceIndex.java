@@ -0,0 +1,243 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static org.killbill.billing.plugin.simpletax.util.InvoiceHelpers.amountWithAdjustments;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * An immutable index of the items of all invoices of an account, that is built
+ * in one single pass over those items, so that later computations can rely on
+ * lookups instead of scanning invoices again and again.
+ * <p>
+ * Classifying items as taxable, tax or adjustment items is up to the
+ * {@linkplain Builder builder} user, because the related rules are provided by
+ * the {@link org.killbill.billing.plugin.api.invoice.PluginInvoicePluginApi}
+ * superclass of the plugin.
+ * <p>
+ * The adjusted amounts of taxable items and tax items are computed once and
+ * for all when the index is built, because they are typically needed several
+ * times for the same items.
+ *
+ * @author Benjamin Gandon
+ */
+public class AccountInvoiceIndex {
+
+    private Map<UUID, Invoice> invoiceOfItem;
+    private SetMultimap<UUID, InvoiceItem> adjustmentsOfItem;
+    private SetMultimap<UUID, InvoiceItem> taxItemsOfItem;
+    private ListMultimap<UUID, InvoiceItem> taxableItemsOfInvoice;
+    private Map<UUID, BigDecimal> adjustedAmountOfItem;
+
+    private AccountInvoiceIndex() {
+        super();
+    }
+
+    /**
+     * @param itemId
+     *            The identifier of an invoice item.
+     * @return The invoice that the item belongs to, or {@code null} if the item
+     *         doesn't belong to any of the indexed invoices.
+     */
+    @Nullable
+    public Invoice getInvoiceOf(UUID itemId) {
+        return invoiceOfItem.get(itemId);
+    }
+
+    /**
+     * @return The adjustment items of all indexed invoices, grouped by the
+     *         identifiers of the items they adjust. Never {@code null}.
+     */
+    @Nonnull
+    public SetMultimap<UUID, InvoiceItem> getAllAdjustments() {
+        return adjustmentsOfItem;
+    }
+
+    /**
+     * @param taxableItem
+     *            A taxable item.
+     * @return The tax items that relate to the given taxable item, in the same
+     *         invoice. Never {@code null}, and guaranteed not having any
+     *         {@code null} elements.
+     */
+    @Nonnull
+    public Set<InvoiceItem> getTaxItemsOf(InvoiceItem taxableItem) {
+        return taxItemsOfItem.get(taxableItem.getId());
+    }
+
+    /**
+     * @param invoice
+     *            An indexed invoice.
+     * @return The taxable items of the given invoice, in the order they appear
+     *         in the invoice. Never {@code null}, and guaranteed not having any
+     *         {@code null} elements.
+     */
+    @Nonnull
+    public List<InvoiceItem> getTaxableItemsOf(Invoice invoice) {
+        return taxableItemsOfInvoice.get(invoice.getId());
+    }
+
+    /**
+     * Returns the amount of a given invoice item, taking any adjustments into
+     * consideration.
+     * <p>
+     * The amounts of indexed taxable items and tax items are pre-computed.
+     * Amounts of other items are computed on the fly.
+     *
+     * @param item
+     *            An invoice item.
+     * @return The adjusted amount of the item. Never {@code null}.
+     * @see org.killbill.billing.plugin.simpletax.util.InvoiceHelpers#amountWithAdjustments
+     */
+    @Nonnull
+    public BigDecimal getAdjustedAmount(InvoiceItem item) {
+        BigDecimal adjustedAmount = adjustedAmountOfItem.get(item.getId());
+        if (adjustedAmount == null) {
+            adjustedAmount = amountWithAdjustments(item, adjustmentsOfItem);
+        }
+        return adjustedAmount;
+    }
+
+    /**
+     * @return A new {@link AccountInvoiceIndex} builder.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * A builder class for {@link AccountInvoiceIndex}es. Items are expected to
+     * be declared invoice after invoice, along with their classification.
+     *
+     * @author Benjamin Gandon
+     */
+    public static class Builder {
+
+        private Map<UUID, Invoice> invoiceOfItem = newHashMap();
+        private ImmutableSetMultimap.Builder<UUID, InvoiceItem> adjustmentsOfItem = ImmutableSetMultimap.builder();
+        private List<InvoiceItem> taxItems = newArrayList();
+        private List<Invoice> invoiceOfTaxItems = newArrayList();
+        private ImmutableListMultimap.Builder<UUID, InvoiceItem> taxableItemsOfInvoice = ImmutableListMultimap
+                .builder();
+
+        private Builder() {
+            super();
+        }
+
+        /**
+         * @param invoice
+         *            The invoice that the item belongs to.
+         * @param item
+         *            Any item of the invoice.
+         * @return this builder
+         */
+        public Builder withItem(Invoice invoice, InvoiceItem item) {
+            invoiceOfItem.put(item.getId(), invoice);
+            return this;
+        }
+
+        /**
+         * @param invoice
+         *            The invoice that the item belongs to.
+         * @param taxableItem
+         *            A taxable item of the invoice.
+         * @return this builder
+         */
+        public Builder withTaxableItem(Invoice invoice, InvoiceItem taxableItem) {
+            taxableItemsOfInvoice.put(invoice.getId(), taxableItem);
+            return this;
+        }
+
+        /**
+         * @param invoice
+         *            The invoice that the item belongs to.
+         * @param taxItem
+         *            A tax item of the invoice.
+         * @return this builder
+         */
+        public Builder withTaxItem(Invoice invoice, InvoiceItem taxItem) {
+            taxItems.add(taxItem);
+            invoiceOfTaxItems.add(invoice);
+            return this;
+        }
+
+        /**
+         * @param adjustmentItem
+         *            An adjustment item of any invoice.
+         * @return this builder
+         */
+        public Builder withAdjustment(InvoiceItem adjustmentItem) {
+            adjustmentsOfItem.put(adjustmentItem.getLinkedItemId(), adjustmentItem);
+            return this;
+        }
+
+        /**
+         * Tax items are only related to the taxable items of their own
+         * invoice. Tax items that relate to items of other invoices are
+         * ignored.
+         *
+         * @return A new {@link AccountInvoiceIndex}, with the items declared
+         *         in this builder.
+         */
+        public AccountInvoiceIndex build() {
+            ImmutableSetMultimap.Builder<UUID, InvoiceItem> taxItemsOfItem = ImmutableSetMultimap.builder();
+            for (int idx = 0; idx < taxItems.size(); idx++) {
+                InvoiceItem taxItem = taxItems.get(idx);
+                Invoice invoiceOfTaxedItem = invoiceOfItem.get(taxItem.getLinkedItemId());
+                if ((invoiceOfTaxedItem != null)
+                        && invoiceOfTaxedItem.getId().equals(invoiceOfTaxItems.get(idx).getId())) {
+                    taxItemsOfItem.put(taxItem.getLinkedItemId(), taxItem);
+                }
+            }
+
+            AccountInvoiceIndex index = new AccountInvoiceIndex();
+            index.invoiceOfItem = ImmutableMap.copyOf(invoiceOfItem);
+            index.adjustmentsOfItem = adjustmentsOfItem.build();
+            index.taxItemsOfItem = taxItemsOfItem.build();
+            index.taxableItemsOfInvoice = taxableItemsOfInvoice.build();
+
+            Map<UUID, BigDecimal> adjustedAmountOfItem = newHashMap();
+            for (InvoiceItem item : index.taxableItemsOfInvoice.values()) {
+                adjustedAmountOfItem.put(item.getId(), amountWithAdjustments(item, index.adjustmentsOfItem));
+            }
+            for (InvoiceItem item : index.taxItemsOfItem.values()) {
+                adjustedAmountOfItem.put(item.getId(), amountWithAdjustments(item, index.adjustmentsOfItem));
+            }
+            index.adjustedAmountOfItem = ImmutableMap.copyOf(adjustedAmountOfItem);
+            return index;
+        }
+    }
+}
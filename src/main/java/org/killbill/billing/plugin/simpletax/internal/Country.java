@@ -21,38 +21,43 @@ import static java.util.Locale.getISOCountries;
 import static org.killbill.billing.plugin.simpletax.util.ShortToStringStyle.SHORT_STYLE;
 
 import java.util.Locale;
-import java.util.Set;
 
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
-import org.killbill.billing.plugin.simpletax.util.ConcurrentLazyValue;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonValue;
-import com.google.common.base.Supplier;
-import com.google.common.collect.ImmutableSet;
 
 /**
  * An immutable country, based on ISO 3166-1 alpha-2 standard. This class helps
  * in manipulating consistent, predictable and type-safe country codes.
+ * <p>
+ * Canonical instances are to be obtained with {@link #of(String)}, which
+ * doesn't allocate any new object.
  *
  * @author Benjamin Gandon
  */
 public class Country {
 
-    private static final Supplier<Set<String>> COUNTRIES = new ConcurrentLazyValue<Set<String>>() {
-        @Override
-        protected Set<String> initialize() {
-            return ImmutableSet.copyOf(getISOCountries());
+    private static final int LETTERS = 'Z' - 'A' + 1;
+
+    /** Canonical countries, indexed by the two letters of their codes. */
+    private static final Country[] COUNTRIES = new Country[LETTERS * LETTERS];
+    static {
+        for (String code : getISOCountries()) {
+            COUNTRIES[indexOf(code)] = new Country(code, hashOf(code));
         }
-    };
+    }
 
-    private String code;
+    private final String code;
+    private final int hash;
 
     /**
      * Constructs a new country. The country code must be an element of
      * {@link Locale#getISOCountries()}.
+     * <p>
+     * Prefer using {@link #of(String)}, which returns canonical instances.
      *
      * @param code
      *            The ISO 3166-1 alpha-2 country code.
@@ -60,11 +65,55 @@ public class Country {
      *             when the country code is not an element of
      *             {@link Locale#getISOCountries()}.
      */
-    @JsonCreator
     public Country(String code) throws IllegalArgumentException {
         super();
-        checkArgument(COUNTRIES.get().contains(code), "Illegal country code: [%s]", code);
+        this.code = of(code).code;
+        hash = hashOf(this.code);
+    }
+
+    private Country(String code, int hash) {
+        super();
         this.code = code;
+        this.hash = hash;
+    }
+
+    /**
+     * Returns the canonical instance of a country. The country code must be an
+     * element of {@link Locale#getISOCountries()}.
+     *
+     * @param code
+     *            The ISO 3166-1 alpha-2 country code.
+     * @return The country. Never {@code null}.
+     * @throws IllegalArgumentException
+     *             when the country code is not an element of
+     *             {@link Locale#getISOCountries()}.
+     */
+    @JsonCreator
+    public static Country of(String code) throws IllegalArgumentException {
+        int index = indexOf(code);
+        Country country = index < 0 ? null : COUNTRIES[index];
+        checkArgument(country != null, "Illegal country code: [%s]", code);
+        return country;
+    }
+
+    /**
+     * @return The index of a two-uppercase-letters code, or {@code -1} for any
+     *         other string.
+     */
+    private static int indexOf(String code) {
+        if ((code == null) || (code.length() != 2)) {
+            return -1;
+        }
+        int first = code.charAt(0) - 'A';
+        int second = code.charAt(1) - 'A';
+        if ((first < 0) || (first >= LETTERS) || (second < 0) || (second >= LETTERS)) {
+            return -1;
+        }
+        return (first * LETTERS) + second;
+    }
+
+    private static int hashOf(String code) {
+        return new HashCodeBuilder().append(code).toHashCode();
     }
 
     /**
@@ -108,7 +157,7 @@ public class Country {
 
     @Override
     public int hashCode() {
-        return new HashCodeBuilder().append(code).toHashCode();
+        return hash;
     }
 
     @Override
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.killbill.billing.catalog.api.CatalogApiException;
+import org.killbill.billing.catalog.api.Plan;
+import org.killbill.billing.catalog.api.Product;
+import org.killbill.billing.catalog.api.StaticCatalog;
+import org.killbill.billing.plugin.simpletax.util.CheckedSupplier;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A cache for the names of the products of catalog plans, for one tenant.
+ * <p>
+ * Plans that are not found in the catalog are cached as such, but failures to
+ * retrieve the catalog itself are not, so that they are retried on next use.
+ * <p>
+ * Cached names remain valid as long as the catalog of the tenant doesn't
+ * change, so this cache is to be {@linkplain #invalidateAll() invalidated}
+ * whenever a new catalog version is uploaded.
+ * <p>
+ * Instances of this class are thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+public class PlanProductCache {
+
+    private static final int MAX_CACHED_PLANS = 10000;
+
+    private final Cache<String, Optional<String>> productNameOfPlan = CacheBuilder.newBuilder()//
+            .maximumSize(MAX_CACHED_PLANS)//
+            .build();
+
+    /**
+     * Finds the name of the product of a plan, either from this cache or from
+     * the catalog.
+     *
+     * @param planName
+     *            The name of a plan.
+     * @param catalog
+     *            The catalog to use when the plan is not cached yet.
+     * @return The name of the product of the plan, or {@code null} if the plan
+     *         has no product, if it cannot be found in the catalog, or if the
+     *         catalog cannot be retrieved.
+     */
+    @Nullable
+    public String findProductName(@Nonnull String planName,
+            CheckedSupplier<StaticCatalog, CatalogApiException> catalog) {
+        Optional<String> productName = productNameOfPlan.getIfPresent(planName);
+        if (productName != null) {
+            return productName.orNull();
+        }
+
+        StaticCatalog currentCatalog;
+        try {
+            currentCatalog = catalog.get();
+        } catch (CatalogApiException unavailable) {
+            return null;
+        }
+        try {
+            Plan plan = currentCatalog.findCurrentPlan(planName);
+            Product product = plan.getProduct();
+            productName = Optional.fromNullable(product == null ? null : product.getName());
+        } catch (CatalogApiException notFound) {
+            productName = Optional.absent();
+        }
+        productNameOfPlan.put(planName, productName);
+        return productName.orNull();
+    }
+
+    /**
+     * Discards all cached product names.
+     */
+    public void invalidateAll() {
+        productNameOfPlan.invalidateAll();
+    }
+}
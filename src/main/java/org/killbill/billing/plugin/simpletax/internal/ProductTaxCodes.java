@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static com.google.common.collect.Maps.newLinkedHashMap;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The tax codes of a product, partitioned by the countries they are
+ * restricted to.
+ * <p>
+ * Each partition holds the tax codes of one country together with the tax
+ * codes that are not restricted to any country, in their original order. The
+ * tax codes that are not restricted to any country are also held apart, for
+ * the countries that have no specific tax code.
+ * <p>
+ * Instances of this class are immutable.
+ *
+ * @author Benjamin Gandon
+ */
+public final class ProductTaxCodes {
+
+    private static final ProductTaxCodes EMPTY = of(ImmutableList.<TaxCode> of());
+
+    private final Map<Country, TaxCodeTimeline> byCountry;
+    private final TaxCodeTimeline countryLess;
+
+    private ProductTaxCodes(Map<Country, TaxCodeTimeline> byCountry, TaxCodeTimeline countryLess) {
+        super();
+        this.byCountry = byCountry;
+        this.countryLess = countryLess;
+    }
+
+    /**
+     * @return The tax codes of a product that has none. Never {@code null}.
+     */
+    @Nonnull
+    public static ProductTaxCodes empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Partitions the tax codes of a product by country.
+     *
+     * @param taxCodes
+     *            The tax codes of the product, in order of preference.
+     * @return The partitioned tax codes. Never {@code null}.
+     * @throws NullPointerException
+     *             when {@code taxCodes} is {@code null}, or contains any
+     *             {@code null} element.
+     */
+    @Nonnull
+    public static ProductTaxCodes of(@Nonnull Iterable<TaxCode> taxCodes) {
+        Map<Country, ImmutableList.Builder<TaxCode>> partitions = newLinkedHashMap();
+        for (TaxCode taxCode : taxCodes) {
+            Country country = taxCode.getCountry();
+            if ((country != null) && !partitions.containsKey(country)) {
+                partitions.put(country, ImmutableList.<TaxCode> builder());
+            }
+        }
+        ImmutableList.Builder<TaxCode> countryLess = ImmutableList.builder();
+        for (TaxCode taxCode : taxCodes) {
+            Country country = taxCode.getCountry();
+            if (country != null) {
+                partitions.get(country).add(taxCode);
+                continue;
+            }
+            countryLess.add(taxCode);
+            for (ImmutableList.Builder<TaxCode> partition : partitions.values()) {
+                partition.add(taxCode);
+            }
+        }
+
+        ImmutableMap.Builder<Country, TaxCodeTimeline> byCountry = ImmutableMap.builder();
+        for (Entry<Country, ImmutableList.Builder<TaxCode>> partition : partitions.entrySet()) {
+            byCountry.put(partition.getKey(), TaxCodeTimeline.of(partition.getValue().build()));
+        }
+        return new ProductTaxCodes(byCountry.build(), TaxCodeTimeline.of(countryLess.build()));
+    }
+
+    /**
+     * Returns the tax codes that apply in a given country, i.e. those that are
+     * restricted to this country and those that are not restricted to any
+     * country.
+     *
+     * @param country
+     *            A country, or {@code null} when unknown, in which case only
+     *            the tax codes that are not restricted to any country apply.
+     * @return The timeline of applicable tax codes, in their original order.
+     *         Never {@code null}.
+     */
+    @Nonnull
+    public TaxCodeTimeline inCountry(@Nullable Country country) {
+        TaxCodeTimeline taxCodes = country == null ? null : byCountry.get(country);
+        return taxCodes == null ? countryLess : taxCodes;
+    }
+
+    /**
+     * @return The countries that have specific tax codes, in order of first
+     *         appearance. Never {@code null}.
+     */
+    @Nonnull
+    public Set<Country> getCountries() {
+        return byCountry.keySet();
+    }
+}
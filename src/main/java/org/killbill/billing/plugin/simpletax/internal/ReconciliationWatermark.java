@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static com.google.common.collect.Maps.newConcurrentMap;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.util.customfield.CustomField;
+
+import com.google.common.collect.Multimap;
+
+/**
+ * A per-account record of the historical invoices that have been found
+ * properly taxed, along with a fingerprint of what they were made of at that
+ * time.
+ * <p>
+ * An invoice whose fingerprint hasn't changed since it was last reconciled
+ * doesn't need to be examined again. The fingerprint covers the invoice items,
+ * the adjustments that relate to them (whatever the invoice these adjustments
+ * belong to), and the custom fields that hold their tax codes.
+ * <p>
+ * A watermark is only valid for the {@linkplain SimpleTaxConfig configuration}
+ * it was built with, because tax codes definitions could change with it.
+ * <p>
+ * Instances of this class are thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+public class ReconciliationWatermark {
+
+    private final SimpleTaxConfig config;
+
+    private final ConcurrentMap<UUID, Long> fingerprintsOfReconciledInvoices = newConcurrentMap();
+
+    private final AtomicInteger runsSinceFullSweep = new AtomicInteger();
+
+    /**
+     * Constructs an empty watermark, for which no invoice is reconciled yet.
+     *
+     * @param config
+     *            The plugin configuration in which invoices are reconciled.
+     */
+    public ReconciliationWatermark(@Nonnull SimpleTaxConfig config) {
+        super();
+        this.config = config;
+    }
+
+    /**
+     * @param cfg
+     *            The plugin configuration currently in use.
+     * @return {@code true} if this watermark was built with another
+     *         configuration, and thus cannot be trusted anymore.
+     */
+    public boolean isObsoleteFor(@Nullable SimpleTaxConfig cfg) {
+        return config != cfg;
+    }
+
+    /**
+     * Records the start of a new invoicing run, and tells whether all
+     * historical invoices should be re-examined in this run.
+     *
+     * @param fullSweepInterval
+     *            The number of runs after which a full sweep is due. Values
+     *            lower than {@code 1} disable periodic full sweeps.
+     * @return {@code true} if a full sweep is due for this run.
+     */
+    public boolean startRun(int fullSweepInterval) {
+        if (fullSweepInterval < 1) {
+            return false;
+        }
+        if (runsSinceFullSweep.incrementAndGet() < fullSweepInterval) {
+            return false;
+        }
+        runsSinceFullSweep.set(0);
+        return true;
+    }
+
+    /**
+     * @param invoice
+     *            An historical invoice.
+     * @param fingerprint
+     *            The current {@linkplain #fingerprint fingerprint} of the
+     *            invoice.
+     * @return {@code true} if the invoice has been reconciled before and
+     *         hasn't changed since.
+     */
+    public boolean isReconciled(@Nonnull Invoice invoice, long fingerprint) {
+        Long reconciledFingerprint = fingerprintsOfReconciledInvoices.get(invoice.getId());
+        return (reconciledFingerprint != null) && (reconciledFingerprint.longValue() == fingerprint);
+    }
+
+    /**
+     * Records that an invoice has been found properly taxed.
+     *
+     * @param invoice
+     *            An historical invoice, that requires no new tax item nor
+     *            adjustment.
+     * @param fingerprint
+     *            The current {@linkplain #fingerprint fingerprint} of the
+     *            invoice.
+     */
+    public void markReconciled(@Nonnull Invoice invoice, long fingerprint) {
+        fingerprintsOfReconciledInvoices.put(invoice.getId(), fingerprint);
+    }
+
+    /**
+     * Records that an invoice needs to be examined again on next run.
+     *
+     * @param invoice
+     *            An historical invoice, for which new tax items or adjustments
+     *            have just been issued.
+     */
+    public void markUnreconciled(@Nonnull Invoice invoice) {
+        fingerprintsOfReconciledInvoices.remove(invoice.getId());
+    }
+
+    /**
+     * Computes a fingerprint of all that is relevant to the taxation of an
+     * invoice.
+     * <p>
+     * The result doesn't depend on the order in which adjustments or custom
+     * fields are listed.
+     *
+     * @param invoice
+     *            The invoice to fingerprint.
+     * @param allAdjustments
+     *            The adjustment items of all invoices of the account, grouped
+     *            by the identifiers of the items they adjust.
+     * @param taxFields
+     *            The custom fields of the invoice items, that hold their tax
+     *            codes.
+     * @return The fingerprint of the invoice.
+     */
+    public static long fingerprint(@Nonnull Invoice invoice, @Nonnull Multimap<UUID, InvoiceItem> allAdjustments,
+            @Nonnull Iterable<CustomField> taxFields) {
+        long fingerprint = mix(hash(invoice.getId()));
+        for (InvoiceItem item : invoice.getInvoiceItems()) {
+            fingerprint += mix((hash(item.getId()) ^ hash(item.getLinkedItemId()))
+                    + 31L * hash(item.getInvoiceItemType()) + hash(item.getAmount()));
+            for (InvoiceItem adjustment : allAdjustments.get(item.getId())) {
+                fingerprint += mix(hash(adjustment.getId()) + hash(adjustment.getAmount()));
+            }
+        }
+        for (CustomField field : taxFields) {
+            fingerprint += mix(hash(field.getObjectId()) + 31L * hash(field.getFieldValue()));
+        }
+        return fingerprint;
+    }
+
+    private static long hash(@Nullable UUID id) {
+        return id == null ? 0L : mix(id.getMostSignificantBits()) ^ id.getLeastSignificantBits();
+    }
+
+    private static long hash(@Nullable Object obj) {
+        return obj == null ? 0L : obj.hashCode();
+    }
+
+    /** The finalization step of MurmurHash3, spreading bits over 64 bits. */
+    private static long mix(long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
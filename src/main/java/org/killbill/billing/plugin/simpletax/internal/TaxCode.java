@@ -16,11 +16,12 @@
  */
 package org.killbill.billing.plugin.simpletax.internal;
 
+import static com.google.common.base.Objects.equal;
+import static java.math.BigDecimal.ZERO;
 import static org.killbill.billing.plugin.simpletax.util.ShortToStringStyle.SHORT_STYLE;
 
 import java.math.BigDecimal;
 
-import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.joda.time.LocalDate;
@@ -29,17 +30,22 @@ import org.joda.time.LocalDate;
  * Immutable holder class for tax codes definitions.
  * <p>
  * Tax codes are uniquely identified by their name.
+ * <p>
+ * Tax codes are often hashed, as members of sets and values of multi-maps, so
+ * their hash code is computed once, at construction time. Rates that only
+ * differ in their scale are considered equal.
  *
  * @author Benjamin Gandon
  */
-public class TaxCode {
+public final class TaxCode {
 
-    private String name;
-    private String taxItemDescription;
-    private BigDecimal rate;
-    private LocalDate startingOn;
-    private LocalDate stoppingOn;
-    private Country country;
+    private final String name;
+    private final String taxItemDescription;
+    private final BigDecimal rate;
+    private final LocalDate startingOn;
+    private final LocalDate stoppingOn;
+    private final Country country;
+    private final int hash;
 
     /**
      * constructs a new tax code definition.
@@ -71,6 +77,24 @@ public class TaxCode {
         this.startingOn = startingOn;
         this.stoppingOn = stoppingOn;
         this.country = country;
+        hash = new HashCodeBuilder()//
+                .append(name)//
+                .append(taxItemDescription)//
+                .append(rate == null ? 0 : normalized(rate).toString())//
+                .append(startingOn)//
+                .append(stoppingOn)//
+                .append(country)//
+                .toHashCode();
+    }
+
+    /**
+     * @return The same number with no trailing zeros, so that numbers that
+     *         only differ in their scale have the same representation.
+     */
+    private static BigDecimal normalized(BigDecimal number) {
+        // Note: zero is special-cased because stripTrailingZeros() does not
+        // strip the zeros of zero values, up to Java 7
+        return number.signum() == 0 ? ZERO : number.stripTrailingZeros();
     }
 
     @Override
@@ -85,33 +109,24 @@ public class TaxCode {
             return false;
         }
         TaxCode rhs = (TaxCode) obj;
-        if (!new EqualsBuilder()//
-                .append(name, rhs.name)//
-                .append(taxItemDescription, rhs.taxItemDescription)//
-                .append(startingOn, rhs.startingOn)//
-                .append(stoppingOn, rhs.stoppingOn)//
-                .append(country, rhs.country)//
-                .isEquals()) {
+        if (hash != rhs.hash) {
+            return false;
+        }
+        if (!equal(name, rhs.name) || !equal(taxItemDescription, rhs.taxItemDescription)
+                || !equal(startingOn, rhs.startingOn) || !equal(stoppingOn, rhs.stoppingOn)
+                || !equal(country, rhs.country)) {
             return false;
         }
         // Custom processing BigDecimal equality ignoring scale
         if (rate == null) {
             return rhs.rate == null;
         }
-        return rate.compareTo(rhs.rate) == 0;
+        return (rhs.rate != null) && (rate.compareTo(rhs.rate) == 0);
     }
 
     @Override
     public int hashCode() {
-        return new HashCodeBuilder()//
-                .append(name)//
-                .append(taxItemDescription)//
-                // Custom processing BigDecimal hash ignoring scale
-                .append(rate == null ? 0 : rate.toString())//
-                .append(startingOn)//
-                .append(stoppingOn)//
-                .append(country)//
-                .toHashCode();
+        return hash;
     }
 
     @Override
@@ -16,19 +16,20 @@
  */
 package org.killbill.billing.plugin.simpletax.internal;
 
-import static org.apache.commons.collections4.map.LazyMap.lazyMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.google.common.collect.Sets.newLinkedHashSet;
+import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.TAX_CODES_JOIN_SEPARATOR;
+import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.splitTaxCodes;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
-import org.apache.commons.collections4.Transformer;
 import org.killbill.billing.catalog.api.CatalogApiException;
-import org.killbill.billing.catalog.api.Plan;
-import org.killbill.billing.catalog.api.Product;
 import org.killbill.billing.catalog.api.StaticCatalog;
 import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceItem;
@@ -36,6 +37,8 @@ import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
 import org.killbill.billing.plugin.simpletax.util.CheckedSupplier;
 import org.killbill.billing.util.customfield.CustomField;
 
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.SetMultimap;
 
@@ -51,6 +54,7 @@ public class TaxCodeService {
     public static final String TAX_CODES_FIELD_NAME = "taxCodes";
 
     private CheckedSupplier<StaticCatalog, CatalogApiException> catalog;
+    private PlanProductCache planProductCache;
     private SimpleTaxConfig cfg;
     private SetMultimap<UUID, CustomField> taxFieldsOfInvoices;
 
@@ -67,66 +71,90 @@ public class TaxCodeService {
      */
     public TaxCodeService(CheckedSupplier<StaticCatalog, CatalogApiException> catalog, SimpleTaxConfig cfg,
             SetMultimap<UUID, CustomField> taxFieldsOfInvoices) {
+        this(catalog, new PlanProductCache(), cfg, taxFieldsOfInvoices);
+    }
+
+    /**
+     * Creates a service that helps listing tax codes, sharing the products of
+     * catalog plans that have already been resolved for the same tenant.
+     *
+     * @param catalog
+     *            The Kill Bill catalog to use.
+     * @param planProductCache
+     *            The cache of the products of catalog plans for the tenant.
+     * @param cfg
+     *            The plugin configuration.
+     * @param taxFieldsOfInvoices
+     *            The tax fields of all account invoices, grouped by their
+     *            related taxable items.
+     */
+    public TaxCodeService(CheckedSupplier<StaticCatalog, CatalogApiException> catalog,
+            PlanProductCache planProductCache, SimpleTaxConfig cfg,
+            SetMultimap<UUID, CustomField> taxFieldsOfInvoices) {
         super();
         this.catalog = catalog;
+        this.planProductCache = planProductCache;
         this.cfg = cfg;
         this.taxFieldsOfInvoices = taxFieldsOfInvoices;
     }
 
     /**
-     * Enumerate configured tax codes for the items of a given invoice. The
-     * order of configured tax codes is preserved.
+     * Enumerate configured tax codes that apply in a given country, for the
+     * items of a given invoice. The order of configured tax codes is
+     * preserved.
      * <p>
-     * Final resolution is not done here because it represents custom logic that
-     * is regulation-dependent.
+     * Tax codes are partitioned by country when the configuration is loaded,
+     * so that no filtering is involved here.
      *
      * @param invoice
      *            the invoice the items of which need to be taxed.
-     * @return An immutable multi-map of unique applicable tax codes, grouped by
-     *         the identifiers of their related invoice items. Never
+     * @param country
+     *            The country where taxes apply, or {@code null} when unknown.
+     * @return An immutable map of the non-empty timelines of applicable tax
+     *         codes, by the identifiers of their related invoice items. Never
      *         {@code null}, and guaranteed not having any {@code null} values.
      * @throws NullPointerException
      *             when {@code invoice} is {@code null}.
      */
     @Nonnull
-    public SetMultimap<UUID, TaxCode> resolveTaxCodesFromConfig(Invoice invoice) {
-        ImmutableSetMultimap.Builder<UUID, TaxCode> taxCodesOfInvoiceItems = ImmutableSetMultimap.builder();
-
-        // This lazy map helps us in building a cache for the values we've
-        // already met, and allows us an easy-to-understand syntax below.
-        Map<String, Product> productOfPlanName = lazyMap(new HashMap<String, Product>(),
-                new Transformer<String, Product>() {
-                    @Override
-                    public Product transform(String planName) {
-                        try {
-                            Plan plan = catalog.get().findCurrentPlan(planName);
-                            return plan.getProduct();
-                        } catch (CatalogApiException notFound) {
-                            return null;
-                        }
-                    }
-                });
-
+    public Map<UUID, TaxCodeTimeline> resolveTaxCodesFromConfig(Invoice invoice, @Nullable Country country) {
+        ImmutableMap.Builder<UUID, TaxCodeTimeline> taxCodesOfInvoiceItems = ImmutableMap.builder();
         for (InvoiceItem invoiceItem : invoice.getInvoiceItems()) {
             String planName = invoiceItem.getPlanName();
             if (planName == null) {
                 continue;
             }
 
-            Product product = productOfPlanName.get(planName);
-            if (product == null) {
+            String productName = planProductCache.findProductName(planName, catalog);
+            if (productName == null) {
                 continue;
             }
 
-            Set<TaxCode> taxCodes = cfg.getConfiguredTaxCodes(product.getName());
+            TaxCodeTimeline taxCodes = cfg.getConfiguredTaxCodes(productName, country);
             if (taxCodes.isEmpty()) {
                 continue;
             }
-            taxCodesOfInvoiceItems.putAll(invoiceItem.getId(), taxCodes);
+            taxCodesOfInvoiceItems.put(invoiceItem.getId(), taxCodes);
         }
         return taxCodesOfInvoiceItems.build();
     }
 
+    /**
+     * Lists the custom fields named {@value #TAX_CODES_FIELD_NAME} that are
+     * attached to the items of a given invoice.
+     *
+     * @param invoice
+     *            An invoice.
+     * @return The tax fields of the invoice items. Never {@code null}, and
+     *         guaranteed not having any {@code null} values.
+     * @throws NullPointerException
+     *             when {@code invoice} is {@code null}.
+     */
+    @Nonnull
+    public Set<CustomField> getTaxFieldsOf(Invoice invoice) {
+        return taxFieldsOfInvoices.get(invoice.getId());
+    }
+
     /**
      * Find tax codes that apply to the items of a given invoice, looking for
      * custom fields named {@value #TAX_CODES_FIELD_NAME} that can be attached
@@ -154,11 +182,57 @@ public class TaxCodeService {
             if (taxCodesCSV == null) {
                 continue;
             }
-            UUID invoiceItemId = taxField.getObjectId();
-            Set<TaxCode> taxCodes = cfg.findTaxCodes(taxCodesCSV, "from custom field '" + TAX_CODES_FIELD_NAME
-                    + "' of invoice item [" + invoiceItemId + "]");
+            final UUID invoiceItemId = taxField.getObjectId();
+            Set<TaxCode> taxCodes = cfg.findTaxCodes(taxCodesCSV, new Supplier<String>() {
+                @Override
+                public String get() {
+                    return "from custom field '" + TAX_CODES_FIELD_NAME + "' of invoice item [" + invoiceItemId + "]";
+                }
+            });
             taxCodesOfInvoiceItems.putAll(invoiceItemId, taxCodes);
         }
         return taxCodesOfInvoiceItems.build();
     }
+
+    /**
+     * Merges the values of the custom fields named
+     * {@value #TAX_CODES_FIELD_NAME} that are attached to the same invoice
+     * items, just like {@link #findExistingTaxCodes} merges their tax codes.
+     *
+     * @param taxFields
+     *            Custom fields on invoice items. Fields with other names, or
+     *            with no value, are ignored.
+     * @return A new immutable map of the merged comma-separated lists of tax
+     *         codes names, by the identifiers of their related invoice items.
+     *         Never {@code null}.
+     * @throws NullPointerException
+     *             when {@code taxFields} is {@code null}.
+     */
+    @Nonnull
+    public static Map<UUID, String> mergeTaxCodesOfInvoiceItems(@Nonnull Iterable<CustomField> taxFields) {
+        Map<UUID, Set<String>> namesOfInvoiceItems = newLinkedHashMap();
+        for (CustomField taxField : taxFields) {
+            if (!TAX_CODES_FIELD_NAME.equals(taxField.getFieldName()) || (taxField.getFieldValue() == null)) {
+                continue;
+            }
+            Set<String> names = namesOfInvoiceItems.get(taxField.getObjectId());
+            if (names == null) {
+                names = newLinkedHashSet();
+                namesOfInvoiceItems.put(taxField.getObjectId(), names);
+            }
+            names.addAll(splitTaxCodes(taxField.getFieldValue()));
+        }
+        ImmutableMap.Builder<UUID, String> taxCodesOfInvoiceItems = ImmutableMap.builder();
+        for (Entry<UUID, Set<String>> names : namesOfInvoiceItems.entrySet()) {
+            StringBuilder csv = new StringBuilder();
+            for (String name : names.getValue()) {
+                if (csv.length() > 0) {
+                    csv.append(TAX_CODES_JOIN_SEPARATOR);
+                }
+                csv.append(name);
+            }
+            taxCodesOfInvoiceItems.put(names.getKey(), csv.toString());
+        }
+        return taxCodesOfInvoiceItems.build();
+    }
 }
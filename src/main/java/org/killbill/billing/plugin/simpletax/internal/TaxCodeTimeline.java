@@ -0,0 +1,208 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.joda.time.LocalDate;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Ordering;
+
+/**
+ * An immutable list of tax codes, indexed by their dates of application, so
+ * that the tax code applicable on a given date is found with a binary search.
+ * <p>
+ * Tax codes apply from their {@linkplain TaxCode#getStartingOn() starting
+ * date} included, to their {@linkplain TaxCode#getStoppingOn() stopping date}
+ * excluded. Tax codes that have no starting date, or no stopping date, apply
+ * since forever, or for ever.
+ * <p>
+ * When the periods of some tax codes overlap, the first applicable one in the
+ * original order is the one that is found, with a plain linear scan.
+ * <p>
+ * Iterating over a timeline yields its tax codes in their original order.
+ *
+ * @author Benjamin Gandon
+ */
+public final class TaxCodeTimeline implements Iterable<TaxCode> {
+
+    private static final Ordering<TaxCode> BY_STARTING_DATE = Ordering.<LocalDate> natural().<LocalDate> nullsFirst()
+            .onResultOf(new Function<TaxCode, LocalDate>() {
+                @Override
+                public LocalDate apply(TaxCode taxCode) {
+                    return taxCode.getStartingOn();
+                }
+            });
+
+    private final List<TaxCode> taxCodes;
+    private final TaxCode[] sortedCodes;
+    private final Set<TaxCode> overlappingCodes;
+
+    private TaxCodeTimeline(List<TaxCode> taxCodes, TaxCode[] sortedCodes, Set<TaxCode> overlappingCodes) {
+        super();
+        this.taxCodes = taxCodes;
+        this.sortedCodes = sortedCodes;
+        this.overlappingCodes = overlappingCodes;
+    }
+
+    /**
+     * Builds the timeline of some tax codes.
+     *
+     * @param taxCodes
+     *            The tax codes, in order of preference.
+     * @return A new timeline. Never {@code null}.
+     * @throws NullPointerException
+     *             when {@code taxCodes} is {@code null}, or contains any
+     *             {@code null} element.
+     */
+    @Nonnull
+    public static TaxCodeTimeline of(@Nonnull Iterable<TaxCode> taxCodes) {
+        List<TaxCode> codes = ImmutableList.copyOf(taxCodes);
+
+        ImmutableList.Builder<TaxCode> applicableCodes = ImmutableList.builder();
+        for (TaxCode code : codes) {
+            if (!isEmptyPeriod(code)) {
+                applicableCodes.add(code);
+            }
+        }
+        List<TaxCode> sorted = BY_STARTING_DATE.sortedCopy(applicableCodes.build());
+
+        ImmutableSet.Builder<TaxCode> overlapping = ImmutableSet.builder();
+        TaxCode furthest = null;
+        for (TaxCode code : sorted) {
+            if ((furthest != null) && overlaps(furthest, code)) {
+                overlapping.add(furthest).add(code);
+            }
+            if ((furthest == null) || stopsAfter(code, furthest)) {
+                furthest = code;
+            }
+        }
+        return new TaxCodeTimeline(codes, sorted.toArray(new TaxCode[sorted.size()]), overlapping.build());
+    }
+
+    private static boolean isEmptyPeriod(TaxCode code) {
+        LocalDate start = code.getStartingOn();
+        LocalDate stop = code.getStoppingOn();
+        return (start != null) && (stop != null) && !start.isBefore(stop);
+    }
+
+    /**
+     * @return Whether the period of {@code next}, that doesn't start before
+     *         the period of {@code previous}, starts before the period of
+     *         {@code previous} stops.
+     */
+    private static boolean overlaps(TaxCode previous, TaxCode next) {
+        LocalDate stop = previous.getStoppingOn();
+        LocalDate start = next.getStartingOn();
+        return (stop == null) || (start == null) || start.isBefore(stop);
+    }
+
+    private static boolean stopsAfter(TaxCode code, TaxCode other) {
+        LocalDate stop = code.getStoppingOn();
+        LocalDate otherStop = other.getStoppingOn();
+        return (otherStop != null) && ((stop == null) || stop.isAfter(otherStop));
+    }
+
+    /**
+     * @return Whether this timeline has no tax code at all.
+     */
+    public boolean isEmpty() {
+        return taxCodes.isEmpty();
+    }
+
+    /**
+     * @return Whether the periods of some tax codes overlap.
+     */
+    public boolean hasOverlaps() {
+        return !overlappingCodes.isEmpty();
+    }
+
+    /**
+     * @return An immutable set of the tax codes whose periods overlap, in
+     *         order of their starting dates. Never {@code null}.
+     */
+    @Nonnull
+    public Set<TaxCode> getOverlappingCodes() {
+        return overlappingCodes;
+    }
+
+    /**
+     * Finds the tax code that applies on a given date.
+     *
+     * @param date
+     *            The date of application.
+     * @return The applicable tax code, or {@code null} if none applies.
+     * @throws NullPointerException
+     *             when {@code date} is {@code null}.
+     */
+    @Nullable
+    public TaxCode find(@Nonnull LocalDate date) {
+        checkNotNull(date);
+        if (hasOverlaps()) {
+            for (TaxCode code : taxCodes) {
+                if (appliesOn(code, date)) {
+                    return code;
+                }
+            }
+            return null;
+        }
+
+        // Search for the last tax code starting on or before the date
+        int low = 0;
+        int high = sortedCodes.length - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            LocalDate start = sortedCodes[mid].getStartingOn();
+            if ((start == null) || !date.isBefore(start)) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found < 0) {
+            return null;
+        }
+        TaxCode candidate = sortedCodes[found];
+        return appliesOn(candidate, date) ? candidate : null;
+    }
+
+    private static boolean appliesOn(TaxCode code, LocalDate date) {
+        LocalDate start = code.getStartingOn();
+        if ((start != null) && date.isBefore(start)) {
+            return false;
+        }
+        LocalDate stop = code.getStoppingOn();
+        return (stop == null) || date.isBefore(stop);
+    }
+
+    @Override
+    public Iterator<TaxCode> iterator() {
+        return taxCodes.iterator();
+    }
+}
@@ -16,9 +16,16 @@
  */
 package org.killbill.billing.plugin.simpletax.plumbing;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.killbill.billing.osgi.api.OSGIPluginProperties.PLUGIN_NAME_PROP;
+import static org.osgi.service.log.LogService.LOG_WARNING;
 
+import java.sql.SQLException;
 import java.util.Hashtable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import javax.servlet.Servlet;
 import javax.servlet.http.HttpServlet;
@@ -27,12 +34,17 @@ import org.killbill.billing.invoice.plugin.api.InvoicePluginApi;
 import org.killbill.billing.plugin.api.notification.PluginConfigurationEventHandler;
 import org.killbill.billing.plugin.simpletax.SimpleTaxPlugin;
 import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.config.http.AccountTaxFieldsIndex;
 import org.killbill.billing.plugin.simpletax.config.http.CustomFieldService;
 import org.killbill.billing.plugin.simpletax.config.http.InvoiceService;
 import org.killbill.billing.plugin.simpletax.config.http.SimpleTaxServlet;
 import org.killbill.billing.plugin.simpletax.config.http.TaxCodeController;
 import org.killbill.billing.plugin.simpletax.config.http.TaxCountryController;
 import org.killbill.billing.plugin.simpletax.config.http.VatinController;
+import org.killbill.billing.plugin.simpletax.dao.TaxCodesDao;
+import org.killbill.billing.plugin.simpletax.util.AdaptivePageSize;
+import org.killbill.billing.plugin.simpletax.util.CoalescingExecutor;
+import org.killbill.billing.plugin.simpletax.util.PluginMetrics;
 import org.killbill.clock.Clock;
 import org.killbill.clock.DefaultClock;
 import org.killbill.killbill.osgi.libs.killbill.KillbillActivatorBase;
@@ -40,6 +52,8 @@ import org.killbill.killbill.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillEventDispatcher.OSGIKillbillEventHandler;
 import org.osgi.framework.BundleContext;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * Activator class for the Simple Tax Plugin.
  *
@@ -50,7 +64,25 @@ public class SimpleTaxActivator extends KillbillActivatorBase {
     /** The name for this plugin. */
     public static final String PLUGIN_NAME = "killbill-simple-tax";
 
+    private static final String POST_TREATMENT_EXECUTOR_NAME = "simple-tax-post-treatment";
+    private static final long POST_TREATMENT_DRAIN_TIMEOUT_SECONDS = 30;
+    private static final String SEARCH_PREFETCH_THREADS_NAME_FORMAT = "simple-tax-search-prefetch-%d";
+    /**
+     * Prefetches are bounded, so that concurrent searches cannot pile up
+     * threads. Rejected prefetches are fetched when needed instead.
+     */
+    private static final int SEARCH_PREFETCH_THREADS = 2;
+    private static final int SEARCH_PREFETCH_QUEUE_CAPACITY = 8;
+    private static final long SEARCH_PREFETCH_KEEP_ALIVE_SECONDS = 60L;
+
     private SimpleTaxConfigurationHandler configHandler;
+    private PluginMetrics metrics = new PluginMetrics();
+    private CoalescingExecutor postTreatmentExecutor;
+    private TaxCodesDao taxCodesDao;
+    private AdaptivePageSize searchPageSize;
+    private ExecutorService searchPrefetchExecutor;
+    private ForkJoinPool reconciliationPool;
+    private Clock clock = new DefaultClock();
 
     /**
      * This method is the first to be called.
@@ -70,16 +102,52 @@ public class SimpleTaxActivator extends KillbillActivatorBase {
 
         createDefaultConfig();
         CustomFieldService customFieldService = createCustomFieldService();
+        // Note: the plugin feeds the index of invoice items of the controllers
+        InvoiceService invoiceService = createInvoiceService();
 
-        final SimpleTaxPlugin plugin = createPlugin(customFieldService);
+        final SimpleTaxPlugin plugin = createPlugin(customFieldService, invoiceService);
         register(InvoicePluginApi.class, plugin, context);
         dispatcher.registerEventHandler(plugin);
 
-        InvoiceService invoiceService = createInvoiceService();
-        HttpServlet servlet = createServlet(customFieldService, invoiceService);
+        AccountTaxFieldsIndex accountTaxFieldsIndex = new AccountTaxFieldsIndex(customFieldService,
+                postTreatmentExecutor, logService);
+        dispatcher.registerEventHandler(accountTaxFieldsIndex);
+
+        HttpServlet servlet = createServlet(customFieldService, invoiceService, accountTaxFieldsIndex, plugin);
         register(Servlet.class, servlet, context);
     }
 
+    /**
+     * This method is called when the plugin is stopped.
+     * <p>
+     * It waits for pending invoice post-treatments to complete and releases
+     * the resources held by the plugin, before unregistering it from the
+     * system.
+     * <p>
+     * {@inheritDoc}
+     *
+     * @see org.killbill.killbill.osgi.libs.killbill.KillbillActivatorBase#stop(org.osgi.framework.BundleContext)
+     */
+    @Override
+    public void stop(BundleContext context) throws Exception {
+        if (postTreatmentExecutor != null) {
+            if (!postTreatmentExecutor.shutdown(POST_TREATMENT_DRAIN_TIMEOUT_SECONDS, SECONDS)) {
+                logService.log(LOG_WARNING, "Some invoices could not be post-treated within "
+                        + POST_TREATMENT_DRAIN_TIMEOUT_SECONDS + " seconds, while stopping the plugin");
+            }
+            postTreatmentExecutor = null;
+        }
+        if (searchPrefetchExecutor != null) {
+            searchPrefetchExecutor.shutdownNow();
+            searchPrefetchExecutor = null;
+        }
+        if (reconciliationPool != null) {
+            reconciliationPool.shutdown();
+            reconciliationPool = null;
+        }
+        super.stop(context);
+    }
+
     /**
      * This method is called by {@link KillbillActivatorBase#start}.
      * <p>
@@ -91,7 +159,7 @@ public class SimpleTaxActivator extends KillbillActivatorBase {
      */
     @Override
     public OSGIKillbillEventHandler getOSGIKillbillEventHandler() {
-        configHandler = new SimpleTaxConfigurationHandler(PLUGIN_NAME, killbillAPI, logService);
+        configHandler = new SimpleTaxConfigurationHandler(PLUGIN_NAME, killbillAPI, logService, metrics);
         return new PluginConfigurationEventHandler(configHandler);
     }
 
@@ -105,31 +173,68 @@ public class SimpleTaxActivator extends KillbillActivatorBase {
      * Later on, the plugin will access any per-tenant configuration that might
      * have been uploaded into the database, with the use of the created
      * configuration manager (a.k.a. “config handler”).
+     * <p>
+     * The executor that post-treats new invoices, and that also refreshes the
+     * indexed tax fields of accounts, is shared by all tenants, so it is
+     * created here, based on the default configuration only. So is the data
+     * access object for the table of tax codes, the pool that reconciles
+     * invoices in parallel, and so are the page size and the prefetch executor
+     * for searching custom fields.
+     *
+     * @throws SQLException
+     *             when the table of tax codes is enabled, but the database
+     *             cannot be accessed.
      */
-    private void createDefaultConfig() {
+    private void createDefaultConfig() throws SQLException {
         SimpleTaxConfig defaultConfig = configHandler.createConfigurable(getConfigService().getProperties());
         configHandler.setDefaultConfigurable(defaultConfig);
+
+        int workers = defaultConfig.getPostTreatmentWorkers();
+        if (workers > 0) {
+            postTreatmentExecutor = new CoalescingExecutor(POST_TREATMENT_EXECUTOR_NAME, workers,
+                    defaultConfig.getPostTreatmentQueueCapacity(), metrics);
+        }
+        reconciliationPool = new ForkJoinPool(defaultConfig.getReconciliationParallelism());
+        if (defaultConfig.isTaxCodesTableEnabled()) {
+            taxCodesDao = new TaxCodesDao(dataSource.getDataSource());
+        }
+        int pageSize = defaultConfig.getSearchPageSize();
+        int maxPageSize = defaultConfig.getMaxSearchPageSize();
+        searchPageSize = new AdaptivePageSize(pageSize, Math.max(pageSize / 10, 1), maxPageSize,
+                defaultConfig.getSearchTargetLatency());
+        if (defaultConfig.isSearchPrefetchEnabled()) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(SEARCH_PREFETCH_THREADS, SEARCH_PREFETCH_THREADS,
+                    SEARCH_PREFETCH_KEEP_ALIVE_SECONDS, SECONDS, new ArrayBlockingQueue<Runnable>(
+                            SEARCH_PREFETCH_QUEUE_CAPACITY), new ThreadFactoryBuilder()
+                            .setNameFormat(SEARCH_PREFETCH_THREADS_NAME_FORMAT).setDaemon(true).build());
+            executor.allowCoreThreadTimeOut(true);
+            searchPrefetchExecutor = executor;
+        }
     }
 
     private CustomFieldService createCustomFieldService() {
-        return new CustomFieldService(killbillAPI.getCustomFieldUserApi(), logService);
+        return new CustomFieldService(killbillAPI.getCustomFieldUserApi(), logService, searchPageSize,
+                searchPrefetchExecutor);
     }
 
     private InvoiceService createInvoiceService() {
         return new InvoiceService(killbillAPI.getInvoiceUserApi(), logService);
     }
 
-    private SimpleTaxPlugin createPlugin(CustomFieldService customFieldService) {
-        Clock clock = new DefaultClock();
+    private SimpleTaxPlugin createPlugin(CustomFieldService customFieldService, InvoiceService invoiceService) {
         return new SimpleTaxPlugin(configHandler, customFieldService, killbillAPI, getConfigService(), logService,
-                clock);
+                clock, metrics, postTreatmentExecutor, taxCodesDao, reconciliationPool, invoiceService);
     }
 
-    private HttpServlet createServlet(CustomFieldService customFieldService, InvoiceService invoiceService) {
-        TaxCountryController taxCountryController = new TaxCountryController(customFieldService, logService);
-        VatinController vatinController = new VatinController(customFieldService, logService);
-        TaxCodeController taxCodeController = new TaxCodeController(customFieldService, invoiceService, logService);
-        return new SimpleTaxServlet(vatinController, taxCountryController, taxCodeController);
+    private HttpServlet createServlet(CustomFieldService customFieldService, InvoiceService invoiceService,
+            AccountTaxFieldsIndex accountTaxFieldsIndex, SimpleTaxPlugin plugin) {
+        TaxCountryController taxCountryController = new TaxCountryController(customFieldService, logService,
+                accountTaxFieldsIndex);
+        VatinController vatinController = new VatinController(customFieldService, logService,
+                accountTaxFieldsIndex);
+        TaxCodeController taxCodeController = new TaxCodeController(customFieldService, invoiceService, logService,
+                clock, taxCodesDao, plugin);
+        return new SimpleTaxServlet(vatinController, taxCountryController, taxCodeController, metrics);
     }
 
     private <S> void register(Class<S> serviceClass, S serviceInstance, BundleContext context) {
@@ -16,24 +16,90 @@
  */
 package org.killbill.billing.plugin.simpletax.plumbing;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.killbill.billing.tenant.api.TenantKV.TenantKey.PLUGIN_CONFIG_;
+import static org.osgi.service.log.LogService.LOG_ERROR;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
 
+import org.killbill.billing.plugin.api.PluginTenantContext;
 import org.killbill.billing.plugin.api.notification.PluginTenantConfigurableConfigurationHandler;
 import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.util.PluginMetrics;
+import org.killbill.billing.tenant.api.TenantApiException;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
 
 /**
  * A per-tenant configuration handler for the simple-tax plugin.
+ * <p>
+ * Per-tenant configurations are held in a bounded cache, and are parsed again
+ * from the tenant configuration store when they are not cached anymore.
+ * Tenants that have no specific configuration use the default one.
+ * <p>
+ * Configurations with identical properties are parsed once, and shared by all
+ * the tenants that use them.
+ * <p>
+ * Configurations that are being loaded while some configuration is
+ * invalidated are not kept in cache, because they might have been read
+ * before the change that caused the invalidation.
+ * <p>
+ * Tenant configuration changes only invalidate cached configurations, so that
+ * no per-tenant configuration is ever held outside of the bounded cache.
  *
  * @author Benjamin Gandon
  */
 public class SimpleTaxConfigurationHandler extends PluginTenantConfigurableConfigurationHandler<SimpleTaxConfig> {
 
-    private OSGIKillbillLogService logService;
+    /** The number of per-tenant configurations found in cache. */
+    public static final String TENANT_CONFIG_HITS_METRIC = "tenantConfigs.hits";
+
+    /** The number of per-tenant configurations loaded from the store. */
+    public static final String TENANT_CONFIG_MISSES_METRIC = "tenantConfigs.misses";
+
+    /** The number of configurations that are shared with other tenants. */
+    public static final String TENANT_CONFIG_SHARED_METRIC = "tenantConfigs.shared";
+
+    /** The distribution of the times taken to parse configurations. */
+    public static final String CONFIG_PARSE_TIME_METRIC = "tenantConfigs.parseTimeMillis";
+
+    /**
+     * The distribution of the sizes of parsed configurations, in characters of
+     * property names and values, as an estimate of their heap usage.
+     */
+    public static final String CONFIG_WEIGHT_METRIC = "tenantConfigs.weightChars";
+
+    private static final int MAX_CACHED_TENANTS = 1000;
+
+    private final String configKey;
+    private final OSGIKillbillAPI services;
+    private final OSGIKillbillLogService logService;
+    private final PluginMetrics metrics;
+
+    private final Cache<UUID, SimpleTaxConfig> tenantConfigs = CacheBuilder.newBuilder()//
+            .maximumSize(MAX_CACHED_TENANTS)//
+            .build();
+    private final Cache<Map<String, String>, SimpleTaxConfig> sharedConfigs = CacheBuilder.newBuilder()//
+            .weakValues()//
+            .build();
+
+    private volatile SimpleTaxConfig defaultConfig;
+
+    /** Incremented each time that cached configurations are invalidated. */
+    private final AtomicLong invalidations = new AtomicLong();
 
     /**
      * Constructs a new configuration handler.
@@ -47,13 +113,155 @@ public class SimpleTaxConfigurationHandler extends PluginTenantConfigurableConfi
      *            The service to use when logging events.
      */
     public SimpleTaxConfigurationHandler(String pluginName, OSGIKillbillAPI services, OSGIKillbillLogService logService) {
+        this(pluginName, services, logService, new PluginMetrics());
+    }
+
+    /**
+     * Constructs a new configuration handler that reports its metrics.
+     *
+     * @param pluginName
+     *            The plugin name to use when accessing per-tenant
+     *            configuration.
+     * @param services
+     *            The Kill Bill meta-API.
+     * @param logService
+     *            The service to use when logging events.
+     * @param metrics
+     *            The registry where to report the cache hits and misses, and
+     *            the parsing times of configurations.
+     */
+    public SimpleTaxConfigurationHandler(String pluginName, OSGIKillbillAPI services,
+            OSGIKillbillLogService logService, PluginMetrics metrics) {
         super(pluginName, services, logService);
+        configKey = PLUGIN_CONFIG_.toString() + pluginName;
+        this.services = services;
         this.logService = logService;
+        this.metrics = metrics;
     }
 
     @Override
     protected SimpleTaxConfig createConfigurable(Properties pluginConfig) {
         Map<String, String> props = Maps.fromProperties(pluginConfig);
-        return new SimpleTaxConfig(props, logService);
+        SimpleTaxConfig config = sharedConfigs.getIfPresent(props);
+        if (config != null) {
+            metrics.increment(TENANT_CONFIG_SHARED_METRIC);
+            return config;
+        }
+        long startedAt = System.nanoTime();
+        config = new SimpleTaxConfig(props, logService);
+        metrics.record(CONFIG_PARSE_TIME_METRIC, NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+        metrics.record(CONFIG_WEIGHT_METRIC, weightOf(props));
+        sharedConfigs.put(props, config);
+        return config;
+    }
+
+    private static long weightOf(Map<String, String> props) {
+        long weight = 0L;
+        for (Entry<String, String> prop : props.entrySet()) {
+            weight += prop.getKey().length() + prop.getValue().length();
+        }
+        return weight;
+    }
+
+    @Override
+    public void setDefaultConfigurable(SimpleTaxConfig defaultConfigurable) {
+        super.setDefaultConfigurable(defaultConfigurable);
+        defaultConfig = defaultConfigurable;
+        // Tenants with no specific configuration are cached with the default
+        invalidations.incrementAndGet();
+        tenantConfigs.invalidateAll();
+    }
+
+    /**
+     * This implementation only discards the cached configuration of the
+     * tenant, so that it is parsed again on next use, and never kept beyond
+     * the bounded cache of per-tenant configurations. Changes to the default
+     * configuration are handled as usual.
+     * <p>
+     * {@inheritDoc}
+     */
+    @Override
+    protected void configure(@Nullable UUID kbTenantId, Properties properties) {
+        if (kbTenantId == null) {
+            super.configure(null, properties);
+            return;
+        }
+        invalidate(kbTenantId);
+    }
+
+    /**
+     * Returns the configuration of a tenant, either from cache, or from the
+     * tenant configuration store.
+     *
+     * @param kbTenantId
+     *            The tenant identifier, or {@code null} for the default
+     *            configuration.
+     * @return The configuration of the tenant, or the default configuration
+     *         when the tenant has none, or when it cannot be loaded.
+     */
+    @Override
+    public SimpleTaxConfig getConfigurable(@Nullable UUID kbTenantId) {
+        if (kbTenantId == null) {
+            return defaultConfig;
+        }
+        SimpleTaxConfig config = tenantConfigs.getIfPresent(kbTenantId);
+        if (config != null) {
+            metrics.increment(TENANT_CONFIG_HITS_METRIC);
+            return config;
+        }
+        metrics.increment(TENANT_CONFIG_MISSES_METRIC);
+
+        long invalidationsBeforeLoad = invalidations.get();
+        Properties pluginConfig;
+        try {
+            pluginConfig = loadTenantConfig(kbTenantId);
+        } catch (TenantApiException exc) {
+            logService.log(LOG_ERROR, "Cannot load configuration of tenant [" + kbTenantId
+                    + "]. Using default configuration.", exc);
+            return defaultConfig;
+        } catch (IOException exc) {
+            logService.log(LOG_ERROR, "Cannot parse configuration of tenant [" + kbTenantId
+                    + "]. Using default configuration.", exc);
+            return defaultConfig;
+        }
+        config = pluginConfig == null ? defaultConfig : createConfigurable(pluginConfig);
+        if (config != null) {
+            tenantConfigs.put(kbTenantId, config);
+            if (invalidations.get() != invalidationsBeforeLoad) {
+                // Might be stale, so don't keep it for next time
+                tenantConfigs.invalidate(kbTenantId);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * @return The configuration properties of the tenant, or {@code null} if
+     *         the tenant has no specific configuration.
+     */
+    @Nullable
+    private Properties loadTenantConfig(UUID kbTenantId) throws TenantApiException, IOException {
+        List<String> values = services.getTenantUserApi().getTenantValuesForKey(configKey,
+                new PluginTenantContext(kbTenantId));
+        if ((values == null) || values.isEmpty() || (values.get(0) == null)) {
+            return null;
+        }
+        Properties pluginConfig = new Properties();
+        pluginConfig.load(new StringReader(values.get(0)));
+        return pluginConfig;
+    }
+
+    /**
+     * Discards the cached configuration of a tenant, so that it is loaded
+     * again on next use.
+     *
+     * @param kbTenantId
+     *            The tenant identifier. Ignored when {@code null}.
+     */
+    public void invalidate(@Nullable UUID kbTenantId) {
+        if (kbTenantId != null) {
+            invalidations.incrementAndGet();
+            tenantConfigs.invalidate(kbTenantId);
+        }
     }
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.resolving;
+
+import static java.lang.invoke.MethodHandles.publicLookup;
+import static java.lang.invoke.MethodType.methodType;
+import static org.osgi.service.log.LogService.LOG_ERROR;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+
+import org.killbill.billing.plugin.simpletax.TaxComputationContext;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
+
+/**
+ * A factory of tax resolvers that invokes their public constructor accepting
+ * one single {@link TaxComputationContext} argument.
+ * <p>
+ * The constructor is resolved once into a method handle, so that no
+ * reflection is involved when creating tax resolvers. Tax resolvers that are
+ * {@linkplain ShareableTaxResolver shareable} are only created once.
+ * <p>
+ * When the tax resolver class cannot be instantiated at all, because it is
+ * abstract, not accessible, or fails to initialize, the issue is reported
+ * once, and a {@link NullTaxResolver} is created from then on. Exceptions
+ * thrown by the constructor depend on the context it is given, and are
+ * reported each time.
+ * <p>
+ * Instances of this class are thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+public final class ConstructorTaxResolverFactory implements TaxResolverFactory {
+
+    private static final String FALLBACK_MSG = "Cannot instanciate tax resolver. Defaulting to ["
+            + NullTaxResolver.class.getName() + "].";
+
+    private final MethodHandle constructor;
+    private final boolean shareable;
+    private final OSGIKillbillLogService logService;
+
+    private final AtomicBoolean broken = new AtomicBoolean();
+    private volatile Throwable permanentIssue;
+    private volatile TaxResolver sharedResolver;
+
+    /**
+     * Constructs a new factory of tax resolvers.
+     *
+     * @param constructor
+     *            The public constructor of the tax resolvers to create, that
+     *            accepts one single {@link TaxComputationContext} argument.
+     * @param logService
+     *            The service to use when reporting instantiation issues.
+     * @throws NullPointerException
+     *             when {@code constructor} is {@code null}.
+     */
+    public ConstructorTaxResolverFactory(@Nonnull Constructor<? extends TaxResolver> constructor,
+            OSGIKillbillLogService logService) {
+        super();
+        MethodHandle handle = null;
+        try {
+            handle = publicLookup().unreflectConstructor(constructor).asType(
+                    methodType(TaxResolver.class, TaxComputationContext.class));
+        } catch (IllegalAccessException exc) {
+            permanentIssue = exc;
+        }
+        this.constructor = handle;
+        shareable = ShareableTaxResolver.class.isAssignableFrom(constructor.getDeclaringClass());
+        this.logService = logService;
+    }
+
+    @Override
+    public TaxResolver createTaxResolver(TaxComputationContext ctx) {
+        TaxResolver resolver = sharedResolver;
+        if (resolver != null) {
+            return resolver;
+        }
+        if (permanentIssue != null) {
+            return fallback(ctx);
+        }
+
+        Throwable issue;
+        try {
+            resolver = (TaxResolver) constructor.invokeExact(ctx);
+            if (shareable) {
+                sharedResolver = resolver;
+            }
+            return resolver;
+        } catch (InstantiationException exc) {
+            permanentIssue = exc;
+            return fallback(ctx);
+        } catch (LinkageError err) {
+            // Covers ExceptionInInitializerError, and any subsequent
+            // NoClassDefFoundError for the same class
+            permanentIssue = err;
+            return fallback(ctx);
+        } catch (Error err) {
+            throw err;
+        } catch (Throwable exc) {
+            // Report exceptions thrown by the constructor the same way
+            // Constructor.newInstance() does
+            issue = new InvocationTargetException(exc);
+        }
+        logService.log(LOG_ERROR, FALLBACK_MSG, issue);
+        return new NullTaxResolver(ctx);
+    }
+
+    private TaxResolver fallback(TaxComputationContext ctx) {
+        if (broken.compareAndSet(false, true)) {
+            logService.log(LOG_ERROR, FALLBACK_MSG, permanentIssue);
+        }
+        return new NullTaxResolver(ctx);
+    }
+}
@@ -27,6 +27,7 @@ import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.plugin.simpletax.TaxComputationContext;
 import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
 import org.killbill.billing.plugin.simpletax.internal.TaxCode;
+import org.killbill.billing.plugin.simpletax.internal.TaxCodeTimeline;
 
 import com.google.common.base.Predicate;
 
@@ -49,6 +50,8 @@ import com.google.common.base.Predicate;
  * instant.</li>
  * <li>Otherwise, when no taxation time zone is configured, the applicable date
  * is kept interpreted in the time zone of the account.</li>
+ * <li>When tax codes are given as a {@link TaxCodeTimeline}, the applicable one
+ * is found with a binary search on their dates.</li>
  * </ul>
  *
  * @author Benjamin Gandon
@@ -81,6 +84,9 @@ public class InvoiceItemEndDateBasedResolver implements TaxResolver {
         final LocalDate taxationDate = taxationTimeZone == null ? applicableDate : convertTimeZone(applicableDate,
                 accountTimeZone, taxationTimeZone);
 
+        if (taxCodes instanceof TaxCodeTimeline) {
+            return ((TaxCodeTimeline) taxCodes).find(taxationDate);
+        }
         return tryFind(taxCodes, new Predicate<TaxCode>() {
             @Override
             public boolean apply(TaxCode taxCode) {
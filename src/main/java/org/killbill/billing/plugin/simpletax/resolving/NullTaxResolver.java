@@ -22,10 +22,13 @@ import org.killbill.billing.plugin.simpletax.internal.TaxCode;
 
 /**
  * A default fail-safe tax resolver that disables taxation altogether.
+ * <p>
+ * Being stateless, this tax resolver is {@linkplain ShareableTaxResolver
+ * shareable}.
  *
  * @author Benjamin Gandon
  */
-public class NullTaxResolver implements TaxResolver {
+public class NullTaxResolver implements ShareableTaxResolver {
 
     /**
      * The mandatory public constructor for tax resolvers, which accepts a
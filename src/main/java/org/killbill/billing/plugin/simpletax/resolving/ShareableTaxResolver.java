@@ -0,0 +1,31 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.resolving;
+
+/**
+ * A marker interface for stateless tax resolvers, that don't depend on the
+ * {@link org.killbill.billing.plugin.simpletax.TaxComputationContext} they are
+ * created with.
+ * <p>
+ * One single instance of such tax resolvers is created for each tenant
+ * configuration, and then reused for all invoices. Implementations must thus
+ * be thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+public interface ShareableTaxResolver extends TaxResolver {
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.resolving;
+
+import javax.annotation.Nonnull;
+
+import org.killbill.billing.plugin.simpletax.TaxComputationContext;
+
+/**
+ * Factories of {@link TaxResolver} instances, that are resolved once per
+ * tenant configuration, and then used for each invoice to tax.
+ *
+ * @author Benjamin Gandon
+ */
+public interface TaxResolverFactory {
+
+    /**
+     * Provides a tax resolver for a given tax computation context.
+     * <p>
+     * When the tax resolver cannot be created, implementations must fall back
+     * to a fail-safe {@link NullTaxResolver}.
+     *
+     * @param ctx
+     *            The context data to use when resolving tax codes.
+     * @return A tax resolver, which might be shared with other contexts when
+     *         it is {@linkplain ShareableTaxResolver shareable}. Never
+     *         {@code null}.
+     */
+    @Nonnull
+    TaxResolver createTaxResolver(TaxComputationContext ctx);
+
+}
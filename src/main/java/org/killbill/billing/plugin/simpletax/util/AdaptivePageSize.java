@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A page size that adapts to the observed latency of fetching pages.
+ * <p>
+ * The page size doubles when a page is fetched in less than half the target
+ * latency, and is halved when a page takes longer than the target latency to
+ * be fetched, so that each page is fetched in about the target latency. The
+ * page size always stays between given bounds.
+ * <p>
+ * Instances of this class are thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+public class AdaptivePageSize {
+
+    private final int minPageSize;
+    private final int maxPageSize;
+    private final long targetLatencyNanos;
+    private final AtomicInteger pageSize;
+
+    /**
+     * Constructs a new adaptive page size.
+     *
+     * @param initialPageSize
+     *            The initial page size.
+     * @param minPageSize
+     *            The minimum page size. Must be strictly positive.
+     * @param maxPageSize
+     *            The maximum page size. Must not be lower than
+     *            {@code minPageSize}.
+     * @param targetLatencyMillis
+     *            The target latency for fetching one page, in milliseconds, or
+     *            {@code 0} for a page size that never changes.
+     * @throws IllegalArgumentException
+     *             when the bounds are not consistent, or when
+     *             {@code targetLatencyMillis} is negative.
+     */
+    public AdaptivePageSize(int initialPageSize, int minPageSize, int maxPageSize, long targetLatencyMillis) {
+        checkArgument(minPageSize > 0, "expecting a strictly positive minimum page size, but got [%s]", minPageSize);
+        checkArgument(maxPageSize >= minPageSize, "expecting a maximum page size of at least [%s], but got [%s]",
+                minPageSize, maxPageSize);
+        checkArgument(targetLatencyMillis >= 0, "expecting a non-negative target latency, but got [%s]",
+                targetLatencyMillis);
+        this.minPageSize = minPageSize;
+        this.maxPageSize = maxPageSize;
+        this.targetLatencyNanos = MILLISECONDS.toNanos(targetLatencyMillis);
+        this.pageSize = new AtomicInteger(Math.min(Math.max(initialPageSize, minPageSize), maxPageSize));
+    }
+
+    /**
+     * @return The current page size.
+     */
+    public int get() {
+        return pageSize.get();
+    }
+
+    /**
+     * Adapts the page size to the latency of fetching one page.
+     *
+     * @param fetchedPageSize
+     *            The size of the page that was fetched.
+     * @param latencyNanos
+     *            The time it took to fetch this page, in nanoseconds.
+     */
+    public void record(int fetchedPageSize, long latencyNanos) {
+        if (targetLatencyNanos == 0L) {
+            return;
+        }
+        if (latencyNanos > targetLatencyNanos) {
+            pageSize.set(Math.max(fetchedPageSize / 2, minPageSize));
+        } else if (latencyNanos < targetLatencyNanos / 2) {
+            pageSize.set((int) Math.min(fetchedPageSize * 2L, maxPageSize));
+        }
+    }
+}
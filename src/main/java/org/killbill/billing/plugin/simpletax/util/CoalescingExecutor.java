@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Sets.newConcurrentHashSet;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * An executor for keyed tasks, that runs them on a bounded pool of worker
+ * threads and coalesces the tasks that are submitted with the same key while a
+ * previous one is still waiting in the queue.
+ * <p>
+ * When the queue is full, tasks are run by the submitting thread, which slows
+ * down producers as a back-pressure mechanism. So are they once this executor
+ * has been shut down.
+ * <p>
+ * Failures of tasks that are run by the submitting thread are propagated to
+ * it. Failures of tasks that are run by worker threads cannot be, so they are
+ * only counted, and tasks are expected to report them on their own.
+ * <p>
+ * The following metrics are recorded, prefixed with the name of the executor:
+ * <dl>
+ * <dt>{@value #QUEUE_DEPTH_METRIC}</dt>
+ * <dd>The distribution of the number of queued tasks, upon submission.</dd>
+ * <dt>{@value #WAIT_TIME_METRIC}</dt>
+ * <dd>The distribution of the times, in milliseconds, that tasks waited in the
+ * queue.</dd>
+ * <dt>{@value #PROCESSING_TIME_METRIC}</dt>
+ * <dd>The distribution of the times, in milliseconds, that tasks took to
+ * run.</dd>
+ * <dt>{@value #COALESCED_METRIC}</dt>
+ * <dd>The number of tasks that were coalesced with a pending one.</dd>
+ * <dt>{@value #FAILURES_METRIC}</dt>
+ * <dd>The number of tasks that failed with an exception.</dd>
+ * </dl>
+ * Instances of this class are thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+public class CoalescingExecutor {
+
+    /** The suffix for the metric of queue depths. */
+    public static final String QUEUE_DEPTH_METRIC = ".queueDepth";
+    /** The suffix for the metric of wait times. */
+    public static final String WAIT_TIME_METRIC = ".waitTimeMillis";
+    /** The suffix for the metric of processing times. */
+    public static final String PROCESSING_TIME_METRIC = ".processingTimeMillis";
+    /** The suffix for the metric of coalesced tasks. */
+    public static final String COALESCED_METRIC = ".coalesced";
+    /** The suffix for the metric of failed tasks. */
+    public static final String FAILURES_METRIC = ".failures";
+
+    private final String name;
+    private final PluginMetrics metrics;
+    private final ThreadPoolExecutor executor;
+    private final Set<Object> pendingKeys = newConcurrentHashSet();
+
+    /**
+     * Constructs a new coalescing executor, and starts its worker threads.
+     *
+     * @param name
+     *            The name of this executor, used for naming threads and
+     *            metrics.
+     * @param workers
+     *            The number of worker threads. Must be strictly positive.
+     * @param queueCapacity
+     *            The maximum number of queued tasks. Must be strictly
+     *            positive.
+     * @param metrics
+     *            The registry in which metrics are to be recorded.
+     * @throws IllegalArgumentException
+     *             when {@code workers} or {@code queueCapacity} are not
+     *             strictly positive.
+     */
+    public CoalescingExecutor(@Nonnull String name, int workers, int queueCapacity, @Nonnull PluginMetrics metrics) {
+        checkArgument(workers > 0, "expecting a strictly positive number of workers, but got [%s]", workers);
+        checkArgument(queueCapacity > 0, "expecting a strictly positive queue capacity, but got [%s]", queueCapacity);
+        this.name = name;
+        this.metrics = metrics;
+        executor = new ThreadPoolExecutor(workers, workers, 0L, MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                queueCapacity), new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build(),
+                new RunInSubmittingThreadPolicy());
+    }
+
+    /**
+     * Submits a task for asynchronous execution, unless another task with the
+     * same key is still waiting in the queue, in which case the new task is
+     * discarded.
+     * <p>
+     * When the queue is full, or when this executor has been shut down, the
+     * task is run synchronously by the calling thread, and any exception it
+     * throws is propagated.
+     *
+     * @param key
+     *            The key that identifies equivalent tasks.
+     * @param task
+     *            The task to run.
+     * @return {@code true} if the task was run or queued, or {@code false} if
+     *         it was coalesced with a pending one.
+     */
+    public boolean submit(@Nonnull final Object key, @Nonnull final Runnable task) {
+        if (!pendingKeys.add(key)) {
+            metrics.increment(name + COALESCED_METRIC);
+            return false;
+        }
+        metrics.record(name + QUEUE_DEPTH_METRIC, executor.getQueue().size());
+        executor.execute(new TimedTask(key, task));
+        return true;
+    }
+
+    /**
+     * A submitted task, that releases its key and records its metrics when
+     * run.
+     */
+    private final class TimedTask implements Runnable {
+        private final Object key;
+        private final Runnable task;
+        private final long submittedAt = System.nanoTime();
+
+        private TimedTask(Object key, Runnable task) {
+            super();
+            this.key = key;
+            this.task = task;
+        }
+
+        /**
+         * Runs the task on a worker thread, where failures cannot be
+         * propagated to anyone.
+         */
+        @Override
+        public void run() {
+            try {
+                runAndPropagate();
+            } catch (RuntimeException exc) {
+                // Already counted, and reported by the task itself
+            }
+        }
+
+        private void runAndPropagate() {
+            pendingKeys.remove(key);
+            long startedAt = System.nanoTime();
+            metrics.record(name + WAIT_TIME_METRIC, NANOSECONDS.toMillis(startedAt - submittedAt));
+            try {
+                task.run();
+            } catch (RuntimeException exc) {
+                metrics.increment(name + FAILURES_METRIC);
+                throw exc;
+            } finally {
+                metrics.record(name + PROCESSING_TIME_METRIC, NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+            }
+        }
+    }
+
+    /**
+     * Runs rejected tasks in the submitting thread, whether the queue is full
+     * or this executor has been shut down, so that their keys are always
+     * released.
+     */
+    private static final class RunInSubmittingThreadPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable rejected, ThreadPoolExecutor executor) {
+            ((TimedTask) rejected).runAndPropagate();
+        }
+    }
+
+    /**
+     * Stops accepting new asynchronous tasks, and waits for the queued ones to
+     * complete.
+     *
+     * @param timeout
+     *            The maximum time to wait.
+     * @param unit
+     *            The time unit of the {@code timeout} argument.
+     * @return {@code true} if all tasks have completed, or {@code false} if
+     *         the timeout elapsed before.
+     * @throws InterruptedException
+     *             when interrupted while waiting.
+     */
+    public boolean shutdown(long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.util;
+
+import static com.google.common.math.LongMath.checkedAdd;
+import static com.google.common.math.LongMath.checkedMultiply;
+import static java.math.RoundingMode.HALF_UP;
+
+import java.math.BigDecimal;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.math.LongMath;
+
+/**
+ * Fixed-point arithmetic helpers for amounts and rates, that work on the
+ * unscaled {@code long} values of {@link BigDecimal}s whenever possible.
+ * <p>
+ * Results are always identical to those of the equivalent {@link BigDecimal}
+ * operations, both in value and in {@linkplain BigDecimal#scale() scale}.
+ * Whenever an operand does not fit in a {@code long} with a reasonable scale,
+ * or when any intermediate result overflows, computations fall back to the
+ * {@link BigDecimal} implementation.
+ *
+ * @author Benjamin Gandon
+ */
+public final class FixedPointMath {
+    private FixedPointMath() {
+    }
+
+    /**
+     * The maximum number of decimal digits that an unscaled value can have, so
+     * that it fits in a {@code long}.
+     */
+    private static final int MAX_LONG_DIGITS = 18;
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_LONG_DIGITS + 1];
+    static {
+        POWERS_OF_TEN[0] = 1L;
+        for (int exp = 1; exp < POWERS_OF_TEN.length; exp++) {
+            POWERS_OF_TEN[exp] = POWERS_OF_TEN[exp - 1] * 10L;
+        }
+    }
+
+    /**
+     * Multiplies an amount by a rate, and rounds the result to the given scale,
+     * {@linkplain java.math.RoundingMode#HALF_UP rounding half up}.
+     * <p>
+     * This is strictly equivalent to
+     * {@code amount.multiply(rate).setScale(scale, HALF_UP)}.
+     *
+     * @param amount
+     *            The amount to multiply.
+     * @param rate
+     *            The rate to apply.
+     * @param scale
+     *            The scale of the result.
+     * @return The rounded product. Never {@code null}.
+     * @throws NullPointerException
+     *             when {@code amount} or {@code rate} are {@code null}.
+     */
+    @Nonnull
+    public static BigDecimal multiplyAndRound(@Nonnull BigDecimal amount, @Nonnull BigDecimal rate, int scale) {
+        if (fitsInLong(amount) && fitsInLong(rate) && (scale >= 0)) {
+            int productScale = amount.scale() + rate.scale();
+            try {
+                long product = checkedMultiply(unscaled(amount), unscaled(rate));
+                if (productScale == scale) {
+                    return BigDecimal.valueOf(product, scale);
+                }
+                if ((productScale > scale) && (productScale - scale <= MAX_LONG_DIGITS)) {
+                    long rounded = LongMath.divide(product, POWERS_OF_TEN[productScale - scale], HALF_UP);
+                    return BigDecimal.valueOf(rounded, scale);
+                }
+                if ((productScale < scale) && (scale - productScale <= MAX_LONG_DIGITS)) {
+                    long rescaled = checkedMultiply(product, POWERS_OF_TEN[scale - productScale]);
+                    return BigDecimal.valueOf(rescaled, scale);
+                }
+            } catch (ArithmeticException overflow) {
+                // Fall back to BigDecimal below
+            }
+        }
+        return amount.multiply(rate).setScale(scale, HALF_UP);
+    }
+
+    /**
+     * @return A new accumulator for summing amounts, starting at zero.
+     */
+    public static Sum sum() {
+        return new Sum();
+    }
+
+    /**
+     * A mutable accumulator for summing amounts, that doesn't allocate any
+     * intermediate {@link BigDecimal} as long as the sum fits in a
+     * {@code long}.
+     * <p>
+     * The final result is strictly equivalent to successively
+     * {@linkplain BigDecimal#add(BigDecimal) adding} the amounts to
+     * {@link BigDecimal#ZERO}.
+     * <p>
+     * Instances of this class are not thread-safe.
+     *
+     * @author Benjamin Gandon
+     */
+    public static final class Sum {
+
+        private long unscaledSum;
+        private int scale;
+        private BigDecimal fallbackSum;
+
+        private Sum() {
+            super();
+        }
+
+        /**
+         * @param amount
+         *            The amount to add to this sum.
+         * @return this sum
+         * @throws NullPointerException
+         *             when {@code amount} is {@code null}.
+         */
+        public Sum add(@Nonnull BigDecimal amount) {
+            if (fallbackSum == null) {
+                if (addAsLong(amount)) {
+                    return this;
+                }
+                fallbackSum = BigDecimal.valueOf(unscaledSum, scale);
+            }
+            fallbackSum = fallbackSum.add(amount);
+            return this;
+        }
+
+        private boolean addAsLong(BigDecimal amount) {
+            if (!fitsInLong(amount)) {
+                return false;
+            }
+            try {
+                int amountScale = amount.scale();
+                long alignedSum = unscaledSum;
+                long alignedAmount = unscaled(amount);
+                if (amountScale > scale) {
+                    alignedSum = checkedMultiply(alignedSum, POWERS_OF_TEN[amountScale - scale]);
+                } else if (amountScale < scale) {
+                    alignedAmount = checkedMultiply(alignedAmount, POWERS_OF_TEN[scale - amountScale]);
+                }
+                unscaledSum = checkedAdd(alignedSum, alignedAmount);
+                scale = Math.max(scale, amountScale);
+                return true;
+            } catch (ArithmeticException overflow) {
+                return false;
+            }
+        }
+
+        /**
+         * @return The current value of this sum. Never {@code null}.
+         */
+        @Nonnull
+        public BigDecimal toBigDecimal() {
+            if (fallbackSum != null) {
+                return fallbackSum;
+            }
+            return BigDecimal.valueOf(unscaledSum, scale);
+        }
+    }
+
+    private static boolean fitsInLong(BigDecimal value) {
+        return (value.scale() >= 0) && (value.scale() <= MAX_LONG_DIGITS)
+                && (value.precision() <= MAX_LONG_DIGITS);
+    }
+
+    private static long unscaled(BigDecimal value) {
+        return value.unscaledValue().longValue();
+    }
+}
@@ -17,6 +17,7 @@
 package org.killbill.billing.plugin.simpletax.util;
 
 import static java.math.BigDecimal.ZERO;
+import static org.killbill.billing.plugin.simpletax.util.FixedPointMath.sum;
 
 import java.math.BigDecimal;
 import java.util.UUID;
@@ -55,11 +56,11 @@ public final class InvoiceHelpers {
     public static BigDecimal amountWithAdjustments(@Nonnull InvoiceItem item,
             @Nonnull Multimap<UUID, InvoiceItem> allAdjustments) {
         Iterable<InvoiceItem> adjustments = allAdjustments.get(item.getId());
-        BigDecimal amount = sumItems(adjustments);
+        FixedPointMath.Sum amount = addItems(sum(), adjustments);
         if (item.getAmount() != null) {
-            amount = amount.add(item.getAmount());
+            amount.add(item.getAmount());
         }
-        return amount;
+        return amount.toBigDecimal();
     }
 
     /**
@@ -70,11 +71,11 @@ public final class InvoiceHelpers {
      * @return The sum of amounts, never {@code null}.
      */
     public static BigDecimal sumAmounts(Iterable<BigDecimal> amounts) {
-        BigDecimal sum = ZERO;
+        FixedPointMath.Sum sum = sum();
         for (BigDecimal amount : amounts) {
-            sum = sum.add(amount);
+            sum.add(amount);
         }
-        return sum;
+        return sum.toBigDecimal();
     }
 
     /**
@@ -100,10 +101,13 @@ public final class InvoiceHelpers {
         if (invoiceItems == null) {
             return ZERO;
         }
-        BigDecimal sum = ZERO;
+        return addItems(sum(), invoiceItems).toBigDecimal();
+    }
+
+    private static FixedPointMath.Sum addItems(FixedPointMath.Sum sum, Iterable<InvoiceItem> invoiceItems) {
         for (InvoiceItem item : invoiceItems) {
             if (item.getAmount() != null) {
-                sum = sum.add(item.getAmount());
+                sum.add(item.getAmount());
             }
         }
         return sum;
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.util;
+
+import static com.google.common.collect.Maps.newConcurrentMap;
+import static org.killbill.billing.plugin.simpletax.util.ShortToStringStyle.SHORT_STYLE;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+
+/**
+ * A minimal registry of named metrics for the plugin, that are either counters
+ * or distributions of values.
+ * <p>
+ * Metrics are created on first use. Instances of this class are thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+public class PluginMetrics {
+
+    private final ConcurrentMap<String, AtomicLong> counters = newConcurrentMap();
+    private final ConcurrentMap<String, Distribution> distributions = newConcurrentMap();
+
+    /**
+     * Increments a counter.
+     *
+     * @param name
+     *            The name of the counter.
+     */
+    public void increment(@Nonnull String name) {
+        add(name, 1L);
+    }
+
+    /**
+     * Adds a given amount to a counter.
+     *
+     * @param name
+     *            The name of the counter.
+     * @param delta
+     *            The amount to add.
+     */
+    public void add(@Nonnull String name, long delta) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.addAndGet(delta);
+    }
+
+    /**
+     * Records a value in a distribution.
+     *
+     * @param name
+     *            The name of the distribution.
+     * @param value
+     *            The value to record.
+     */
+    public void record(@Nonnull String name, long value) {
+        distribution(name).record(value);
+    }
+
+    /**
+     * @param name
+     *            The name of a counter.
+     * @return The current value of the counter, or {@code 0} if it has never
+     *         been incremented.
+     */
+    public long getCount(@Nonnull String name) {
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0L : counter.get();
+    }
+
+    /**
+     * @param name
+     *            The name of a distribution.
+     * @return The distribution, which is empty when no value has been recorded
+     *         yet. Never {@code null}.
+     */
+    @Nonnull
+    public Distribution distribution(@Nonnull String name) {
+        Distribution distribution = distributions.get(name);
+        if (distribution == null) {
+            Distribution newDistribution = new Distribution();
+            distribution = distributions.putIfAbsent(name, newDistribution);
+            if (distribution == null) {
+                distribution = newDistribution;
+            }
+        }
+        return distribution;
+    }
+
+    /**
+     * @return A new immutable map of the current values of all metrics, sorted
+     *         by name. Counters are mapped to their values, and distributions
+     *         to a {@linkplain Distribution#summary() summary} of their
+     *         values, so that snapshots can be rendered as JSON.
+     */
+    @Nonnull
+    public Map<String, Object> snapshot() {
+        ImmutableSortedMap.Builder<String, Object> snapshot = ImmutableSortedMap.naturalOrder();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            snapshot.put(counter.getKey(), counter.getValue().get());
+        }
+        for (Map.Entry<String, Distribution> distribution : distributions.entrySet()) {
+            snapshot.put(distribution.getKey(), distribution.getValue().summary());
+        }
+        return snapshot.build();
+    }
+
+    /**
+     * A distribution of recorded values, that keeps track of their count, sum
+     * and maximum.
+     *
+     * @author Benjamin Gandon
+     */
+    public static final class Distribution {
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+        private Distribution() {
+            super();
+        }
+
+        private void record(long value) {
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax = max.get();
+            while ((value > currentMax) && !max.compareAndSet(currentMax, value)) {
+                currentMax = max.get();
+            }
+        }
+
+        /**
+         * @return The number of recorded values.
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return The sum of recorded values.
+         */
+        public long getSum() {
+            return sum.get();
+        }
+
+        /**
+         * @return The greatest recorded value, or {@code 0} if none has been
+         *         recorded yet.
+         */
+        public long getMax() {
+            return getCount() == 0L ? 0L : max.get();
+        }
+
+        /**
+         * @return The mean of recorded values, or {@code 0} if none has been
+         *         recorded yet.
+         */
+        public double getMean() {
+            long n = getCount();
+            return n == 0L ? 0.0 : (double) getSum() / n;
+        }
+
+        /**
+         * @return A new immutable map of the count, mean and maximum of
+         *         recorded values.
+         */
+        @Nonnull
+        public Map<String, Object> summary() {
+            return ImmutableMap.<String, Object> of("count", getCount(), "mean", getMean(), "max", getMax());
+        }
+
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this, SHORT_STYLE)//
+                    .append("count", getCount())//
+                    .append("mean", getMean())//
+                    .append("max", getMax())//
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+/*! SET default_storage_engine=INNODB */;
+
+drop table if exists simpletax_tax_codes;
+create table simpletax_tax_codes (
+  record_id serial
+, kb_tenant_id char(36) not null
+, kb_account_id char(36) not null
+, kb_invoice_id char(36) not null
+, kb_invoice_item_id char(36) not null
+, tax_codes varchar(255) not null
+, created_date datetime not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index simpletax_tax_codes_kb_invoice_item_id on simpletax_tax_codes(kb_invoice_item_id, kb_tenant_id);
+create index simpletax_tax_codes_kb_account_id on simpletax_tax_codes(kb_account_id, kb_tenant_id);
+create index simpletax_tax_codes_kb_tenant_id_kb_invoice_id on simpletax_tax_codes(kb_tenant_id, kb_invoice_id);
@@ -17,6 +17,7 @@
 package org.killbill.billing.plugin.simpletax;
 
 import static com.google.common.collect.Collections2.filter;
+import static com.google.common.collect.Iterables.getOnlyElement;
 import static com.google.common.collect.Lists.newArrayList;
 import static com.googlecode.catchexception.CatchException.catchException;
 import static com.googlecode.catchexception.CatchException.caughtException;
@@ -24,6 +25,7 @@ import static java.math.BigDecimal.ONE;
 import static java.math.BigDecimal.TEN;
 import static java.math.BigDecimal.valueOf;
 import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.apache.commons.lang3.StringUtils.startsWith;
 import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.containsString;
@@ -32,6 +34,7 @@ import static org.killbill.billing.ErrorCode.CAT_NO_SUCH_PLAN;
 import static org.killbill.billing.ErrorCode.UNEXPECTED_ERROR;
 import static org.killbill.billing.ErrorCode.__UNKNOWN_ERROR_CODE;
 import static org.killbill.billing.ObjectType.ACCOUNT;
+import static org.killbill.billing.ObjectType.CUSTOM_FIELD;
 import static org.killbill.billing.ObjectType.INVOICE;
 import static org.killbill.billing.ObjectType.INVOICE_ITEM;
 import static org.killbill.billing.catalog.api.Currency.EUR;
@@ -39,9 +42,14 @@ import static org.killbill.billing.invoice.api.InvoiceItemType.EXTERNAL_CHARGE;
 import static org.killbill.billing.invoice.api.InvoiceItemType.ITEM_ADJ;
 import static org.killbill.billing.invoice.api.InvoiceItemType.RECURRING;
 import static org.killbill.billing.invoice.api.InvoiceItemType.TAX;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.CUSTOM_FIELD_CREATION;
 import static org.killbill.billing.notification.plugin.api.ExtBusEventType.INVOICE_CREATION;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.TENANT_CONFIG_CHANGE;
 import static org.killbill.billing.plugin.TestUtils.buildAccount;
 import static org.killbill.billing.plugin.TestUtils.buildOSGIKillbillAPI;
+import static org.killbill.billing.plugin.simpletax.SimpleTaxPlugin.TAX_CODES_PERSISTED_METRIC;
+import static org.killbill.billing.plugin.simpletax.SimpleTaxPlugin.TAX_CODES_PERSISTENCE_CALLS_METRIC;
+import static org.killbill.billing.plugin.simpletax.SimpleTaxPlugin.TAX_CODES_TABLE_FALLBACKS_METRIC;
 import static org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig.PROPERTY_PREFIX;
 import static org.killbill.billing.plugin.simpletax.config.TestSimpleTaxConfig.TAX_RESOLVER_PROP;
 import static org.killbill.billing.plugin.simpletax.config.http.CustomFieldService.TAX_COUNTRY_CUSTOM_FIELD_NAME;
@@ -50,7 +58,9 @@ import static org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxActivator.
 import static org.killbill.billing.test.helpers.Promise.holder;
 import static org.mockito.ArgumentCaptor.forClass;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
@@ -58,6 +68,7 @@ import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
@@ -76,7 +87,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
 
+import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.killbill.billing.account.api.Account;
 import org.killbill.billing.account.api.AccountUserApi;
@@ -93,6 +106,8 @@ import org.killbill.billing.payment.api.Payment;
 import org.killbill.billing.payment.api.PluginProperty;
 import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
 import org.killbill.billing.plugin.simpletax.config.http.CustomFieldService;
+import org.killbill.billing.plugin.simpletax.config.http.InvoiceService;
+import org.killbill.billing.plugin.simpletax.dao.TaxCodesDao;
 import org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxConfigurationHandler;
 import org.killbill.billing.plugin.simpletax.resolving.InvoiceItemEndDateBasedResolver;
 import org.killbill.billing.plugin.simpletax.resolving.fixtures.AbstractTaxResolver;
@@ -100,6 +115,8 @@ import org.killbill.billing.plugin.simpletax.resolving.fixtures.InitFailingTaxRe
 import org.killbill.billing.plugin.simpletax.resolving.fixtures.InvalidConstructorTaxResolver;
 import org.killbill.billing.plugin.simpletax.resolving.fixtures.PrivateConstructorTaxResolver;
 import org.killbill.billing.plugin.simpletax.resolving.fixtures.ThrowingTaxResolver;
+import org.killbill.billing.plugin.simpletax.util.CoalescingExecutor;
+import org.killbill.billing.plugin.simpletax.util.PluginMetrics;
 import org.killbill.billing.tenant.api.TenantUserApi;
 import org.killbill.billing.test.helpers.CustomFieldBuilder;
 import org.killbill.billing.test.helpers.InvoiceBuilder;
@@ -128,6 +145,8 @@ import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.SetMultimap;
 
 /**
  * Tests for {@link SimpleTaxPlugin}.
@@ -168,7 +187,9 @@ public class TestSimpleTaxPlugin {
     private OSGIConfigPropertiesService cfgService;
     private Clock clock = new DefaultClock();
 
+    private Map<String, String> defaultCfg;
     private SimpleTaxPlugin plugin;
+    private PluginMetrics metrics;
 
     private Account account;
     private Invoice invoiceA, invoiceB, invoiceC, invoiceD, invoiceE, invoiceF, invoiceG, invoiceH;
@@ -183,6 +204,8 @@ public class TestSimpleTaxPlugin {
 
     @Captor
     private ArgumentCaptor<List<CustomField>> fields;
+    @Captor
+    private ArgumentCaptor<SetMultimap<UUID, CustomField>> rows;
 
     @BeforeClass(groups = "fast")
     public void init() throws Exception {
@@ -193,6 +216,7 @@ public class TestSimpleTaxPlugin {
         initMocks(this);
 
         account = createAccount(FR);
+        metrics = new PluginMetrics();
 
         services = buildOSGIKillbillAPI(account, mock(Payment.class), null);
         accountUserApi = services.getAccountUserApi();
@@ -209,7 +233,8 @@ public class TestSimpleTaxPlugin {
         cfg.put(pfx + "taxCodes." + VAT_20_0 + ".country", FR);
         cfg.put(pfx + "products.planA-product", VAT_20_0);
 
-        plugin = pluginForConfig(cfg.build());
+        defaultCfg = cfg.build();
+        plugin = pluginForConfig(defaultCfg);
 
         initInvoices(VAT_20_0);
     }
@@ -234,9 +259,24 @@ public class TestSimpleTaxPlugin {
     }
 
     private SimpleTaxPlugin pluginForConfig(Map<String, String> cfg) {
+        return pluginForConfig(cfg, null);
+    }
+
+    private SimpleTaxPlugin pluginForConfig(Map<String, String> cfg, CoalescingExecutor postTreatmentExecutor) {
+        return pluginForConfig(cfg, postTreatmentExecutor, null);
+    }
+
+    private SimpleTaxPlugin pluginForConfig(Map<String, String> cfg, CoalescingExecutor postTreatmentExecutor,
+            TaxCodesDao taxCodesDao) {
+        return pluginForConfig(cfg, postTreatmentExecutor, taxCodesDao, null);
+    }
+
+    private SimpleTaxPlugin pluginForConfig(Map<String, String> cfg, CoalescingExecutor postTreatmentExecutor,
+            TaxCodesDao taxCodesDao, ForkJoinPool reconciliationPool) {
         SimpleTaxConfigurationHandler cfgHandler = new SimpleTaxConfigurationHandler(PLUGIN_NAME, services, logService);
         cfgHandler.setDefaultConfigurable(new SimpleTaxConfig(cfg, logService));
-        return new SimpleTaxPlugin(cfgHandler, customFieldService, services, cfgService, logService, clock);
+        return new SimpleTaxPlugin(cfgHandler, customFieldService, services, cfgService, logService, clock,
+                metrics, postTreatmentExecutor, taxCodesDao, reconciliationPool);
     }
 
     private void initInvoices(String taxCode) {
@@ -376,6 +416,19 @@ public class TestSimpleTaxPlugin {
                 .thenReturn(fields);
     }
 
+    private SetMultimap<UUID, CustomField> fieldsByInvoice(Invoice... invoices) {
+        ImmutableSetMultimap.Builder<UUID, CustomField> fieldsByInvoice = ImmutableSetMultimap.builder();
+        for (Invoice invoice : invoices) {
+            fieldsByInvoice.putAll(invoice.getId(), fieldsRelatedTo(invoice));
+        }
+        return fieldsByInvoice.build();
+    }
+
+    private static CustomField noTaxCodesField(InvoiceItem item) {
+        return new CustomFieldBuilder().withObjectType(INVOICE_ITEM).withObjectId(item.getId())//
+                .withFieldName(TAX_CODES_FIELD_NAME).withFieldValue("").build();
+    }
+
     private List<CustomField> fieldsRelatedTo(Invoice... invoices) {
         ImmutableSet.Builder<UUID> knownItemIdentifiers = ImmutableSet.builder();
         for (Invoice invoice : invoices) {
@@ -907,4 +960,317 @@ public class TestSimpleTaxPlugin {
 
         assertEquals(items.size(), 1);
     }
+
+    @Test(groups = "fast")
+    public void shouldReconcileInParallelInSameOrderAsSequentially() throws Exception {
+        // Given
+        initCatalogStub();
+        Invoice newInvoice = invoiceD;
+        withInvoices(invoiceA, invoiceB, invoiceC, invoiceE, invoiceH, newInvoice);
+        List<InvoiceItem> expectedItems = plugin.getAdditionalInvoiceItems(newInvoice, properties, context);
+
+        ImmutableMap.Builder<String, String> cfg = ImmutableMap.builder();
+        cfg.put(PROPERTY_PREFIX + "taxResolver", InvoiceItemEndDateBasedResolver.class.getName());
+        cfg.put(PROPERTY_PREFIX + "taxCodes." + VAT_20_0 + ".taxItem.description", "Test VAT");
+        cfg.put(PROPERTY_PREFIX + "taxCodes." + VAT_20_0 + ".rate", "0.20");
+        cfg.put(PROPERTY_PREFIX + "taxCodes." + VAT_20_0 + ".country", FR);
+        cfg.put(PROPERTY_PREFIX + "products.planA-product", VAT_20_0);
+        cfg.put(PROPERTY_PREFIX + "reconciliation.parallelThreshold", "1");
+        cfg.put(PROPERTY_PREFIX + "reconciliation.parallelism", "3");
+        ForkJoinPool reconciliationPool = new ForkJoinPool(2);
+        SimpleTaxPlugin parallelPlugin = pluginForConfig(cfg.build(), null, null, reconciliationPool);
+
+        // When
+        List<InvoiceItem> items;
+        try {
+            items = parallelPlugin.getAdditionalInvoiceItems(newInvoice, properties, context);
+        } finally {
+            reconciliationPool.shutdown();
+        }
+
+        // Then
+        assertEquals(items.size(), expectedItems.size());
+        assertTrue(items.size() >= 3);
+        for (int i = 0; i < items.size(); i++) {
+            InvoiceItem item = items.get(i);
+            InvoiceItem expectedItem = expectedItems.get(i);
+            assertEquals(item.getInvoiceItemType(), expectedItem.getInvoiceItemType());
+            assertEquals(item.getLinkedItemId(), expectedItem.getLinkedItemId());
+            assertEquals(item.getInvoiceId(), expectedItem.getInvoiceId());
+            assertEquals(item.getAmount(), expectedItem.getAmount());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void shouldReadTaxCodesFromTableWhenEnabled() throws Exception {
+        // Given
+        initCatalogStub();
+        Invoice newInvoice = invoiceD;
+        Invoice[] invoices = { invoiceA, invoiceB, invoiceC, invoiceE, invoiceH, newInvoice };
+        withInvoices(invoices);
+        List<InvoiceItem> expectedItems = plugin.getAdditionalInvoiceItems(newInvoice, properties, context);
+
+        UUID tenantId = UUID.randomUUID();
+        when(context.getTenantId()).thenReturn(tenantId);
+        TaxCodesDao taxCodesDao = mock(TaxCodesDao.class);
+        when(taxCodesDao.getTaxFieldsOfInvoices(eq(tenantId), anyCollectionOf(UUID.class)))//
+                .thenReturn(ImmutableSetMultimap.<UUID, CustomField> builder().putAll(fieldsByInvoice(invoices))//
+                        .put(invoiceH.getId(), noTaxCodesField(taxableH.get())).build());
+        Map<String, String> cfg = ImmutableMap.<String, String> builder().putAll(defaultCfg)//
+                .put(PROPERTY_PREFIX + "persistence.taxCodesTable", "true").build();
+        SimpleTaxPlugin tablePlugin = pluginForConfig(cfg, null, taxCodesDao);
+
+        // When
+        List<InvoiceItem> items = tablePlugin.getAdditionalInvoiceItems(newInvoice, properties, context);
+
+        // Then
+        assertEquals(items.size(), expectedItems.size());
+        assertTrue(items.size() >= 3);
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals(items.get(i).getLinkedItemId(), expectedItems.get(i).getLinkedItemId());
+            assertEquals(items.get(i).getAmount(), expectedItems.get(i).getAmount());
+        }
+        // Only the plugin that doesn't use the table reads custom fields
+        verify(customFieldUserApi, times(1)).getCustomFieldsForAccountType(eq(account.getId()), eq(INVOICE_ITEM),
+                any(TenantContext.class));
+        assertEquals(metrics.getCount(TAX_CODES_TABLE_FALLBACKS_METRIC), 0L);
+    }
+
+    @Test(groups = "fast")
+    public void shouldReadCustomFieldsOfInvoicesMissingFromTaxCodesTable() throws Exception {
+        // Given
+        initCatalogStub();
+        Invoice newInvoice = invoiceD;
+        Invoice[] invoices = { invoiceA, invoiceB, invoiceC, invoiceE, invoiceH, newInvoice };
+        withInvoices(invoices);
+        List<InvoiceItem> expectedItems = plugin.getAdditionalInvoiceItems(newInvoice, properties, context);
+
+        UUID tenantId = UUID.randomUUID();
+        when(context.getTenantId()).thenReturn(tenantId);
+        TaxCodesDao taxCodesDao = mock(TaxCodesDao.class);
+        // Note: the table has not been back-filled for invoices B and H
+        when(taxCodesDao.getTaxFieldsOfInvoices(eq(tenantId), anyCollectionOf(UUID.class)))//
+                .thenReturn(fieldsByInvoice(invoiceA, invoiceC, invoiceE, newInvoice));
+        Map<String, String> cfg = ImmutableMap.<String, String> builder().putAll(defaultCfg)//
+                .put(PROPERTY_PREFIX + "persistence.taxCodesTable", "true").build();
+        SimpleTaxPlugin tablePlugin = pluginForConfig(cfg, null, taxCodesDao);
+
+        // When
+        List<InvoiceItem> items = tablePlugin.getAdditionalInvoiceItems(newInvoice, properties, context);
+
+        // Then
+        assertEquals(items.size(), expectedItems.size());
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals(items.get(i).getLinkedItemId(), expectedItems.get(i).getLinkedItemId());
+            assertEquals(items.get(i).getAmount(), expectedItems.get(i).getAmount());
+        }
+        verify(customFieldUserApi, times(2)).getCustomFieldsForAccountType(eq(account.getId()), eq(INVOICE_ITEM),
+                any(TenantContext.class));
+        assertEquals(metrics.getCount(TAX_CODES_TABLE_FALLBACKS_METRIC), 1L);
+    }
+
+    @Test(groups = "fast")
+    public void shouldBackfillOneRowForEachTaxableItem() throws Exception {
+        // Given
+        UUID tenantId = UUID.randomUUID();
+        when(invoiceUserApi.getInvoicesByAccount(eq(account.getId()), any(TenantContext.class)))//
+                .thenReturn(asList(invoiceA, invoiceH));
+        when(customFieldUserApi.getCustomFieldsForAccountType(eq(account.getId()), eq(INVOICE_ITEM),
+                any(TenantContext.class))).thenReturn(fieldsRelatedTo(invoiceA, invoiceH));
+        TaxCodesDao taxCodesDao = mock(TaxCodesDao.class);
+        SimpleTaxPlugin tablePlugin = pluginForConfig(defaultCfg, null, taxCodesDao);
+
+        // When
+        tablePlugin.backfillTaxCodes(account.getId(), tenantId);
+
+        // Then
+        verify(taxCodesDao).replaceTaxCodesOfAccount(eq(tenantId), eq(account.getId()), rows.capture(),
+                any(DateTime.class));
+        assertEquals(rows.getValue().size(), 2);
+        CustomField rowOfA = getOnlyElement(rows.getValue().get(invoiceA.getId()));
+        assertEquals(rowOfA.getObjectId(), taxableA.get().getId());
+        assertEquals(rowOfA.getFieldValue(), VAT_20_0);
+        CustomField rowOfH = getOnlyElement(rows.getValue().get(invoiceH.getId()));
+        assertEquals(rowOfH.getObjectId(), taxableH.get().getId());
+        assertEquals(rowOfH.getFieldValue(), "");
+    }
+
+    @Test(groups = "fast")
+    public void shouldFeedIndexOfInvoiceItemsWithLoadedInvoices() throws Exception {
+        // Given
+        initCatalogStub();
+        withInvoices(invoiceA, invoiceD);
+        InvoiceService invoiceService = new InvoiceService(invoiceUserApi, logService);
+        SimpleTaxConfigurationHandler cfgHandler = new SimpleTaxConfigurationHandler(PLUGIN_NAME, services, logService);
+        cfgHandler.setDefaultConfigurable(new SimpleTaxConfig(defaultCfg, logService));
+        SimpleTaxPlugin indexingPlugin = new SimpleTaxPlugin(cfgHandler, customFieldService, services, cfgService,
+                logService, clock, metrics, null, null, null, invoiceService);
+
+        // When
+        indexingPlugin.getAdditionalInvoiceItems(invoiceD, properties, context);
+
+        // Then
+        assertEquals(invoiceService.getIndexedInvoiceId(taxableA.get().getId()), invoiceA.getId());
+        verify(invoiceUserApi, never()).searchInvoices(anyString(), anyLong(), anyLong(), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldSyncTaxCodesTableOnCustomFieldEvents() throws Exception {
+        // Given
+        UUID tenantId = UUID.randomUUID();
+        List<CustomField> invoiceItemFields = fieldsRelatedTo(invoiceA);
+        when(customFieldUserApi.getCustomFieldsForAccountType(eq(account.getId()), eq(INVOICE_ITEM),
+                any(TenantContext.class))).thenReturn(invoiceItemFields);
+        TaxCodesDao taxCodesDao = mock(TaxCodesDao.class);
+        Map<String, String> cfg = ImmutableMap.<String, String> builder().putAll(defaultCfg)//
+                .put(PROPERTY_PREFIX + "persistence.taxCodesTable", "true").build();
+        SimpleTaxPlugin tablePlugin = pluginForConfig(cfg, null, taxCodesDao);
+
+        ExtBusEvent event = mock(ExtBusEvent.class);
+        when(event.getEventType()).thenReturn(CUSTOM_FIELD_CREATION);
+        when(event.getObjectType()).thenReturn(CUSTOM_FIELD);
+        when(event.getAccountId()).thenReturn(account.getId());
+        when(event.getTenantId()).thenReturn(tenantId);
+
+        // When
+        tablePlugin.handleKillbillEvent(event);
+
+        // Then
+        verify(taxCodesDao).syncTaxCodesOfAccount(eq(tenantId), eq(account.getId()), eq(invoiceItemFields),
+                any(DateTime.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotSyncTaxCodesTableWhenNotRead() throws Exception {
+        // Given
+        TaxCodesDao taxCodesDao = mock(TaxCodesDao.class);
+        SimpleTaxPlugin tablePlugin = pluginForConfig(defaultCfg, null, taxCodesDao);
+
+        ExtBusEvent event = mock(ExtBusEvent.class);
+        when(event.getEventType()).thenReturn(CUSTOM_FIELD_CREATION);
+        when(event.getObjectType()).thenReturn(CUSTOM_FIELD);
+        when(event.getAccountId()).thenReturn(account.getId());
+        when(event.getTenantId()).thenReturn(UUID.randomUUID());
+
+        // When
+        tablePlugin.handleKillbillEvent(event);
+
+        // Then
+        verifyZeroInteractions(taxCodesDao);
+    }
+
+    @Test(groups = "fast")
+    public void shouldReuseAccountDataOnceWhenHandlingInvoiceCreation() throws Exception {
+        // Given
+        initCatalogStub();
+        Invoice newInvoice = invoiceF;
+        withInvoices(invoiceD, newInvoice);
+
+        ExtBusEvent event = mock(ExtBusEvent.class);
+        when(event.getEventType()).thenReturn(INVOICE_CREATION);
+        when(event.getObjectType()).thenReturn(INVOICE);
+        when(event.getObjectId()).thenReturn(newInvoice.getId());
+
+        // When
+        plugin.getAdditionalInvoiceItems(newInvoice, properties, context);
+        plugin.handleKillbillEvent(event);
+
+        // Then
+        verify(invoiceUserApi).getInvoicesByAccount(eq(account.getId()), any(TenantContext.class));
+        verify(customFieldUserApi).getCustomFieldsForAccountType(eq(account.getId()), eq(INVOICE_ITEM),
+                any(TenantContext.class));
+        verify(catalogUserApi).getCurrentCatalog(anyString(), any(TenantContext.class));
+
+        // When
+        plugin.handleKillbillEvent(event);
+
+        // Then
+        verify(invoiceUserApi, times(2)).getInvoicesByAccount(eq(account.getId()), any(TenantContext.class));
+        verify(customFieldUserApi, times(2)).getCustomFieldsForAccountType(eq(account.getId()), eq(INVOICE_ITEM),
+                any(TenantContext.class));
+        // Products of plans are cached per tenant
+        verify(catalogUserApi).getCurrentCatalog(anyString(), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldResolveProductsOfPlansAgainAfterTenantConfigChange() throws Exception {
+        // Given
+        initCatalogStub();
+        withInvoices(invoiceD, invoiceF);
+        plugin.getAdditionalInvoiceItems(invoiceF, properties, context);
+        plugin.getAdditionalInvoiceItems(invoiceF, properties, context);
+        verify(staticCatalog).findCurrentPlan("planA");
+
+        ExtBusEvent event = mock(ExtBusEvent.class);
+        when(event.getEventType()).thenReturn(TENANT_CONFIG_CHANGE);
+
+        // When
+        plugin.handleKillbillEvent(event);
+        plugin.getAdditionalInvoiceItems(invoiceF, properties, context);
+
+        // Then
+        verify(catalogUserApi, times(2)).getCurrentCatalog(anyString(), any(TenantContext.class));
+        verify(staticCatalog, times(2)).findCurrentPlan("planA");
+    }
+
+    @Test(groups = "fast")
+    public void shouldPersistAllTaxCodesOfInvoiceInOneCall() throws Exception {
+        // Given
+        initCatalogStub();
+        Promise<InvoiceItem> taxable1 = holder(), taxable2 = holder();
+        Invoice newInvoice = new InvoiceBuilder(account)//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(RECURRING).withPlanName("planA").withAmount(SIX)//
+                        .withStartDate(lastMonth).withEndDate(today)//
+                        .thenSaveTo(taxable1))//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(RECURRING).withPlanName("planA").withAmount(SEVEN)//
+                        .withStartDate(lastMonth).withEndDate(today)//
+                        .thenSaveTo(taxable2))//
+                .build();
+        withInvoices(newInvoice);
+
+        ExtBusEvent event = mock(ExtBusEvent.class);
+        when(event.getEventType()).thenReturn(INVOICE_CREATION);
+        when(event.getObjectType()).thenReturn(INVOICE);
+        when(event.getObjectId()).thenReturn(newInvoice.getId());
+
+        // When
+        plugin.handleKillbillEvent(event);
+
+        // Then
+        verify(customFieldUserApi).addCustomFields(fields.capture(), any(CallContext.class));
+        assertEquals(fields.getValue().size(), 2);
+        assertEquals(fields.getValue().get(0).getObjectId(), taxable1.get().getId());
+        assertEquals(fields.getValue().get(0).getFieldValue(), VAT_20_0);
+        assertEquals(fields.getValue().get(1).getObjectId(), taxable2.get().getId());
+        assertEquals(fields.getValue().get(1).getFieldValue(), VAT_20_0);
+
+        assertEquals(metrics.getCount(TAX_CODES_PERSISTED_METRIC), 2L);
+        assertEquals(metrics.distribution(TAX_CODES_PERSISTENCE_CALLS_METRIC).getCount(), 1L);
+        assertEquals(metrics.distribution(TAX_CODES_PERSISTENCE_CALLS_METRIC).getMax(), 1L);
+    }
+
+    @Test(groups = "fast")
+    public void shouldAddTaxCodesAsynchronouslyWithPostTreatmentExecutor() throws Exception {
+        // Given
+        initCatalogStub();
+        withInvoices(invoiceD);
+        CoalescingExecutor executor = new CoalescingExecutor("test", 1, 10, metrics);
+        SimpleTaxPlugin asyncPlugin = pluginForConfig(defaultCfg, executor);
+
+        ExtBusEvent event = mock(ExtBusEvent.class);
+        when(event.getEventType()).thenReturn(INVOICE_CREATION);
+        when(event.getObjectType()).thenReturn(INVOICE);
+        when(event.getObjectId()).thenReturn(invoiceD.getId());
+
+        // When
+        asyncPlugin.handleKillbillEvent(event);
+        executor.shutdown(10, SECONDS);
+
+        // Then
+        verify(customFieldUserApi).addCustomFields(fields.capture(), any(CallContext.class));
+        assertEquals(fields.getValue().size(), 1);
+        assertEquals(fields.getValue().get(0).getFieldValue(), VAT_20_0);
+    }
 }
@@ -24,6 +24,7 @@ import static org.apache.commons.lang3.StringUtils.EMPTY;
 import static org.joda.time.DateTimeZone.forID;
 import static org.joda.time.DateTimeZone.forOffsetHours;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.bigDecimal;
+import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.bool;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.convertTimeZone;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.country;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.integer;
@@ -152,6 +153,28 @@ public class TestConvertionHelpers {
         assertEquals(integer(cfgOf(RATE, "\t42 "), RATE, 0), 42);
     }
 
+    @Test(groups = "fast")
+    public void shouldReturnDefaultBoolean() {
+        // Expect
+        assertEquals(bool(EMPTY_CFG, "plip", true), true);
+
+        assertEquals(bool(cfgOf(RATE, EMPTY), RATE, false), false);
+        assertEquals(bool(cfgOf(RATE, " \t\r\n\f"), RATE, true), true);
+
+        assertEquals(bool(cfgOf(RATE, "boom!"), RATE, false), false);
+        assertEquals(bool(cfgOf(RATE, "boom!"), RATE, true), true);
+        assertEquals(bool(cfgOf(RATE, "1"), RATE, false), false);
+    }
+
+    @Test(groups = "fast")
+    public void shouldConvertBooleanWithTrimming() {
+        // Expect
+        assertEquals(bool(cfgOf(RATE, "true"), RATE, false), true);
+        assertEquals(bool(cfgOf(RATE, "FALSE"), RATE, true), false);
+        assertEquals(bool(cfgOf(RATE, "\tyes "), RATE, false), true);
+        assertEquals(bool(cfgOf(RATE, " off"), RATE, true), false);
+    }
+
     @Test(groups = "fast")
     public void shouldReturnDefaultString() {
         // Expect
@@ -311,6 +334,19 @@ public class TestConvertionHelpers {
         assertEquals(convertTimeZone(today, LONDON, LONDON), today);
     }
 
+    @Test(groups = "fast")
+    public void shouldConvertTimeZoneConsistentlyWhenCached() {
+        // Given
+        DateTimeZone samoa = forID("Pacific/Apia");
+        LocalDate skippedDay = new LocalDate("2011-12-30");
+
+        for (int i = 0; i < 2; i++) {
+            // Expect
+            assertEquals(convertTimeZone(today, PARIS, LONDON), yesterday);
+            assertEquals(convertTimeZone(skippedDay, samoa, samoa), new LocalDate("2011-12-31"));
+        }
+    }
+
     @Test(groups = "fast")
     public void shouldConvertUUID() {
         // Expect
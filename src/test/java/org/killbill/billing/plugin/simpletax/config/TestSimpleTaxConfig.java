@@ -31,6 +31,7 @@ import static org.mockito.MockitoAnnotations.initMocks;
 import static org.osgi.service.log.LogService.LOG_ERROR;
 import static org.osgi.service.log.LogService.LOG_WARNING;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
 
 import java.lang.reflect.Constructor;
 import java.math.BigDecimal;
@@ -42,6 +43,7 @@ import org.joda.time.LocalDate;
 import org.killbill.billing.plugin.simpletax.TaxComputationContext;
 import org.killbill.billing.plugin.simpletax.internal.Country;
 import org.killbill.billing.plugin.simpletax.internal.TaxCode;
+import org.killbill.billing.plugin.simpletax.internal.TaxCodeTimeline;
 import org.killbill.billing.plugin.simpletax.resolving.InvoiceItemEndDateBasedResolver;
 import org.killbill.billing.plugin.simpletax.resolving.NullTaxResolver;
 import org.killbill.billing.plugin.simpletax.resolving.TaxResolver;
@@ -214,6 +216,27 @@ public class TestSimpleTaxConfig {
         verifyNoMoreInteractions(logService);
     }
 
+    @Test(groups = "fast")
+    public void shouldEarlyComplainOnOverlappingTaxCodes() {
+        // Given
+        Map<String, String> cfg = cfgBuilder()//
+                .putAll(WITH_NOOP_TAX_RESOLVER)//
+                .putAll(WITH_TAX_CODE_A)//
+                .putAll(WITH_TAX_CODE_C)//
+                .put("org.killbill.billing.plugin.simpletax.products.productC", "taxA, taxC")//
+                .build();
+
+        // When
+        new SimpleTaxConfig(cfg, logService);
+
+        // Then
+        verify(logService).log(
+                eq(LOG_ERROR),
+                argThat(allOf(containsString("org.killbill.billing.plugin.simpletax.products.productC"),
+                        containsString("[taxA, taxC] have overlapping dates in country [FR]"))));
+        verifyNoMoreInteractions(logService);
+    }
+
     @Test(groups = "fast")
     public void shouldDefineTaxCodeWithAllProperties() {
         // Given
@@ -296,10 +319,10 @@ public class TestSimpleTaxConfig {
         SimpleTaxConfig config = new SimpleTaxConfig(cfg, logService);
 
         // When
-        Set<TaxCode> taxCodes = config.getConfiguredTaxCodes("non-existing-product");
+        TaxCodeTimeline taxCodes = config.getConfiguredTaxCodes("non-existing-product", null);
 
         // Then
-        assertEquals(taxCodes, ImmutableSet.of());
+        assertEquals(ImmutableSet.copyOf(taxCodes), ImmutableSet.of());
         verifyNoMoreInteractions(logService);
     }
 
@@ -313,32 +336,48 @@ public class TestSimpleTaxConfig {
         SimpleTaxConfig config = new SimpleTaxConfig(cfg, logService);
 
         // When
-        Set<TaxCode> taxCodes = config.getConfiguredTaxCodes("productB");
+        TaxCodeTimeline taxCodes = config.getConfiguredTaxCodes("productB", null);
 
         // Then
-        assertEquals(taxCodes, ImmutableSet.of(TAX_A));
+        assertEquals(ImmutableSet.copyOf(taxCodes), ImmutableSet.of(TAX_A));
         verifyNoMoreInteractions(logService);
     }
 
     @Test(groups = "fast")
-    public void shouldReturnedConfiguredTaxCodeAndComplainForUndefinedTaxCode() {
+    public void shouldReturnedConfiguredTaxCodeAndComplainOnceForUndefinedTaxCode() {
         // Given
         Map<String, String> cfg = cfgBuilder().putAll(WITH_NOOP_TAX_RESOLVER)//
                 .putAll(WITH_TAX_CODE_A)//
                 .putAll(WITH_PRODUCT_A)//
                 .build();
         SimpleTaxConfig config = new SimpleTaxConfig(cfg, logService);
-        reset(logService);
 
         // When
-        Set<TaxCode> taxCodes = config.getConfiguredTaxCodes("productA");
+        TaxCodeTimeline taxCodes = config.getConfiguredTaxCodes("productA", null);
 
         // Then
-        assertEquals(taxCodes, ImmutableSet.of(TAX_A));
-        verify(logService).log(eq(LOG_ERROR), argThat(allOf(containsString("plop"), containsString("is undefined"))));
+        assertEquals(ImmutableSet.copyOf(taxCodes), ImmutableSet.of(TAX_A));
+        assertSame(config.getConfiguredTaxCodes("productA", null), taxCodes);
+        verify(logService).log(eq(LOG_ERROR), argThat(allOf(containsString("plop"), containsString("is not defined"))));
         verifyNoMoreInteractions(logService);
     }
 
+    @Test(groups = "fast")
+    public void shouldShareIdenticalTaxCodesOfDistinctConfigs() {
+        // Given
+        Map<String, String> cfg = cfgBuilder().putAll(WITH_NOOP_TAX_RESOLVER)//
+                .putAll(WITH_TAX_CODE_A)//
+                .build();
+
+        // When
+        SimpleTaxConfig config = new SimpleTaxConfig(cfg, logService);
+        SimpleTaxConfig otherConfig = new SimpleTaxConfig(ImmutableMap.copyOf(cfg), logService);
+
+        // Then
+        assertEquals(config.findTaxCode("taxA"), TAX_A);
+        assertSame(otherConfig.findTaxCode("taxA"), config.findTaxCode("taxA"));
+    }
+
     @Test(groups = "fast")
     public void shouldReturnedTaxCodesOrComplain() {
         // Given
@@ -358,6 +397,49 @@ public class TestSimpleTaxConfig {
         verifyNoMoreInteractions(logService);
     }
 
+    @Test(groups = "fast")
+    public void shouldCacheResolvedTaxCodesAndOnlyBuildErrorContextOnErrors() {
+        // Given
+        Map<String, String> cfg = cfgBuilder().putAll(WITH_NOOP_TAX_RESOLVER)//
+                .putAll(WITH_TAX_CODE_A)//
+                .build();
+        SimpleTaxConfig config = new SimpleTaxConfig(cfg, logService);
+        reset(logService);
+        Supplier<String> noContext = new Supplier<String>() {
+            @Override
+            public String get() {
+                throw new AssertionError("no error context should be needed");
+            }
+        };
+
+        // When
+        Set<TaxCode> taxCodes = config.findTaxCodes("taxA", noContext);
+
+        // Then
+        assertEquals(taxCodes, ImmutableSet.of(TAX_A));
+        assertSame(config.findTaxCodes("taxA", noContext), taxCodes);
+        verifyNoMoreInteractions(logService);
+    }
+
+    @Test(groups = "fast")
+    public void shouldComplainForEachLookupOfCachedUndefinedTaxCodes() {
+        // Given
+        Map<String, String> cfg = cfgBuilder().putAll(WITH_NOOP_TAX_RESOLVER)//
+                .putAll(WITH_TAX_CODE_A)//
+                .build();
+        SimpleTaxConfig config = new SimpleTaxConfig(cfg, logService);
+        reset(logService);
+
+        // When
+        config.findTaxCodes("taxA, bim", "from plip");
+        config.findTaxCodes("taxA, bim", "from plop");
+
+        // Then
+        verify(logService).log(eq(LOG_ERROR), argThat(allOf(containsString("bim"), containsString("from plip"))));
+        verify(logService).log(eq(LOG_ERROR), argThat(allOf(containsString("bim"), containsString("from plop"))));
+        verifyNoMoreInteractions(logService);
+    }
+
     private static Builder<String, String> cfgBuilder() {
         return ImmutableMap.<String, String> builder();
     }
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.killbill.billing.ObjectType.INVOICE_ITEM;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.CUSTOM_FIELD_CREATION;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.INVOICE_CREATION;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.plugin.simpletax.internal.Country;
+import org.killbill.billing.plugin.simpletax.util.CoalescingExecutor;
+import org.killbill.billing.plugin.simpletax.util.PluginMetrics;
+import org.killbill.billing.test.helpers.CustomFieldBuilder;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests for {@link AccountTaxFieldsIndex}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestAccountTaxFieldsIndex {
+    private static final Country FR = new Country("FR");
+
+    @Mock
+    private CustomFieldService customFieldService;
+    @Mock
+    private OSGIKillbillLogService logService;
+
+    private AccountTaxFieldsIndex index;
+
+    private UUID tenantId = randomUUID();
+    private UUID account1 = randomUUID();
+    private UUID account2 = randomUUID();
+
+    @BeforeMethod
+    public void setup() {
+        initMocks(this);
+        when(customFieldService.findAllAccountFieldsByFieldNameAndTenant(eq("taxCountry"), any(TenantContext.class)))
+                .thenReturn(ImmutableList.of(//
+                        new CustomFieldBuilder().withObjectId(account1).withFieldValue("FR").build(),//
+                        new CustomFieldBuilder().withObjectId(account2).withFieldValue("boom").build()));
+        when(customFieldService.findAllAccountFieldsByFieldNameAndTenant(eq("VATIdNum"), any(TenantContext.class)))
+                .thenReturn(ImmutableList.of(//
+                        new CustomFieldBuilder().withObjectId(account1).withFieldValue("FR78666666666").build()));
+        index = new AccountTaxFieldsIndex(customFieldService);
+    }
+
+    @Test(groups = "fast")
+    public void shouldSearchCustomFieldsOnlyOnce() {
+        // When
+        index.getTaxCountries(tenantId);
+        index.getVatins(tenantId);
+        index.getAccountsOfTaxCountry(tenantId, FR);
+
+        // Then
+        verify(customFieldService).findAllAccountFieldsByFieldNameAndTenant(eq("taxCountry"),
+                any(TenantContext.class));
+        verify(customFieldService).findAllAccountFieldsByFieldNameAndTenant(eq("VATIdNum"), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldIndexRawValuesAndValidCountries() {
+        // Expect
+        assertEquals(index.getTaxCountries(tenantId), ImmutableMap.of(account1, "FR", account2, "boom"));
+        assertEquals(index.getVatins(tenantId), ImmutableMap.of(account1, "FR78666666666"));
+        assertEquals(index.getAccountsOfTaxCountry(tenantId, FR), ImmutableSet.of(account1));
+        assertTrue(index.getAccountsOfTaxCountry(tenantId, new Country("US")).isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void shouldRefreshAccountOnCustomFieldEvents() {
+        // Given
+        index.getTaxCountries(tenantId);
+        withTaxCountryOfAccount2("FR");
+
+        // When
+        index.handleKillbillEvent(customFieldEventOnAccount2());
+
+        // Then
+        verify(customFieldService).findAllFieldsOfAccount(eq(account2), any(TenantContext.class));
+        assertEquals(index.getTaxCountries(tenantId), ImmutableMap.of(account1, "FR", account2, "FR"));
+        assertEquals(index.getAccountsOfTaxCountry(tenantId, FR), ImmutableSet.of(account1, account2));
+        assertEquals(index.getVatins(tenantId), ImmutableMap.of(account1, "FR78666666666"));
+    }
+
+    @Test(groups = "fast")
+    public void shouldCoalescePendingRefreshesOfSameAccount() throws Exception {
+        // Given
+        CoalescingExecutor executor = new CoalescingExecutor("test", 1, 10, new PluginMetrics());
+        index = new AccountTaxFieldsIndex(customFieldService, executor, logService);
+        index.getTaxCountries(tenantId);
+        withTaxCountryOfAccount2("FR");
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.submit("running", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        // When
+        index.handleKillbillEvent(customFieldEventOnAccount2());
+        index.handleKillbillEvent(customFieldEventOnAccount2());
+        index.handleKillbillEvent(customFieldEventOnAccount2());
+        release.countDown();
+
+        // Then
+        assertTrue(executor.shutdown(10, SECONDS));
+        verify(customFieldService).findAllFieldsOfAccount(eq(account2), any(TenantContext.class));
+        assertEquals(index.getTaxCountries(tenantId), ImmutableMap.of(account1, "FR", account2, "FR"));
+    }
+
+    private void withTaxCountryOfAccount2(String taxCountry) {
+        when(customFieldService.findAllFieldsOfAccount(eq(account2), any(TenantContext.class)))//
+                .thenReturn(ImmutableList.of(//
+                        new CustomFieldBuilder().withObjectId(account2).withFieldName("taxCodes")
+                                .withFieldValue("VAT_20_0").build(),//
+                        new CustomFieldBuilder().withObjectId(account2).withFieldName("taxCountry")
+                                .withFieldValue(taxCountry).build()));
+    }
+
+    private ExtBusEvent customFieldEventOnAccount2() {
+        ExtBusEvent event = mock(ExtBusEvent.class);
+        when(event.getEventType()).thenReturn(CUSTOM_FIELD_CREATION);
+        when(event.getTenantId()).thenReturn(tenantId);
+        when(event.getAccountId()).thenReturn(account2);
+        return event;
+    }
+
+    @Test(groups = "fast")
+    public void shouldRemoveAccountFromReverseIndexWhenFieldIsDeleted() {
+        // Given
+        index.getTaxCountries(tenantId);
+
+        // When
+        index.refreshAccount(tenantId, account1);
+
+        // Then
+        assertEquals(index.getTaxCountries(tenantId), ImmutableMap.of(account2, "boom"));
+        assertTrue(index.getAccountsOfTaxCountry(tenantId, FR).isEmpty());
+        assertTrue(index.getVatins(tenantId).isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void shouldIgnoreOtherEventsAndUnloadedTenants() {
+        // Given
+        ExtBusEvent otherEvent = mock(ExtBusEvent.class);
+        when(otherEvent.getEventType()).thenReturn(INVOICE_CREATION);
+        when(otherEvent.getTenantId()).thenReturn(tenantId);
+        when(otherEvent.getAccountId()).thenReturn(account1);
+
+        // When
+        index.handleKillbillEvent(otherEvent);
+        index.refreshAccount(tenantId, account1);
+
+        // Then
+        verifyZeroInteractions(customFieldService);
+        index.getVatins(tenantId);
+        verify(customFieldService, times(2)).findAllAccountFieldsByFieldNameAndTenant(any(String.class),
+                any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldIgnoreCustomFieldEventsOnOtherObjectsThanAccounts() {
+        // Given
+        index.getTaxCountries(tenantId);
+        ExtBusEvent event = mock(ExtBusEvent.class);
+        when(event.getEventType()).thenReturn(CUSTOM_FIELD_CREATION);
+        when(event.getObjectType()).thenReturn(INVOICE_ITEM);
+        when(event.getTenantId()).thenReturn(tenantId);
+        when(event.getAccountId()).thenReturn(account1);
+
+        // When
+        index.handleKillbillEvent(event);
+
+        // Then
+        verify(customFieldService, never()).findAllFieldsOfAccount(eq(account1), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldKeepAccountsUpdatedWhileLoadingTenantIndex() {
+        // Given
+        when(customFieldService.findAllAccountFieldsByFieldNameAndTenant(eq("taxCountry"), any(TenantContext.class)))
+                .thenAnswer(new Answer<List<CustomField>>() {
+                    @Override
+                    public List<CustomField> answer(InvocationOnMock invocation) throws Throwable {
+                        // Saved after the search, but before its results are indexed
+                        index.putTaxCountries(tenantId, ImmutableMap.of(account2, "FR"));
+                        return ImmutableList.of(//
+                                new CustomFieldBuilder().withObjectId(account1).withFieldValue("FR").build(),//
+                                new CustomFieldBuilder().withObjectId(account2).withFieldValue("boom").build());
+                    }
+                });
+
+        // When
+        index.getTaxCountries(tenantId);
+
+        // Then
+        assertEquals(index.getTaxCountries(tenantId), ImmutableMap.of(account1, "FR", account2, "FR"));
+        assertEquals(index.getAccountsOfTaxCountry(tenantId, FR), ImmutableSet.of(account1, account2));
+    }
+}
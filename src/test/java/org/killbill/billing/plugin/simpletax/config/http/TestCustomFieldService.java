@@ -18,6 +18,7 @@ package org.killbill.billing.plugin.simpletax.config.http;
 
 import static com.google.common.collect.Iterators.forArray;
 import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
 import static java.util.UUID.randomUUID;
 import static org.apache.commons.lang3.StringUtils.contains;
 import static org.hamcrest.Matchers.allOf;
@@ -28,6 +29,7 @@ import static org.killbill.billing.ObjectType.INVOICE;
 import static org.killbill.billing.test.helpers.CustomFieldBuilder.copy;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
@@ -49,9 +51,14 @@ import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.killbill.billing.ObjectType;
+import org.killbill.billing.plugin.simpletax.util.AdaptivePageSize;
 import org.killbill.billing.test.helpers.CustomFieldBuilder;
 import org.killbill.billing.util.api.CustomFieldApiException;
 import org.killbill.billing.util.api.CustomFieldUserApi;
@@ -70,6 +77,9 @@ import org.mockito.stubbing.Answer;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 /**
@@ -164,6 +174,104 @@ public class TestCustomFieldService {
         assertEquals(field3.getFieldValue(), "page2");
     }
 
+    @Test(groups = "fast")
+    public void shouldSearchAccountFieldsLazily() {
+        // Given
+        TenantContext tenant = mock(TenantContext.class);
+        withThreePagesOfSearchResults(tenant);
+
+        // When
+        ResultsPage<CustomField> fields = service.searchAccountFieldsByFieldNameAndTenant("toto", 0L, null, tenant);
+
+        // Then
+        verify(customFieldApi, never()).searchCustomFields(anyString(), anyLong(), anyLong(), eq(tenant));
+        assertNull(fields.getNextOffset());
+        assertEquals(fields.iterator().next().getFieldValue(), "page0-account");
+        verify(customFieldApi).searchCustomFields(anyString(), anyLong(), anyLong(), eq(tenant));
+    }
+
+    @Test(groups = "fast")
+    public void shouldSearchOnePageOfAccountFields() {
+        // Given
+        TenantContext tenant = mock(TenantContext.class);
+        withThreePagesOfSearchResults(tenant);
+
+        // When
+        ResultsPage<CustomField> fields = service.searchAccountFieldsByFieldNameAndTenant("toto", PAGE_SIZE,
+                PAGE_SIZE, tenant);
+
+        // Then
+        List<CustomField> page = newArrayList(fields);
+        assertEquals(page.size(), 1);
+        assertEquals(page.get(0).getFieldValue(), "page1-toto");
+        assertEquals(fields.getNextOffset(), Long.valueOf(2 * PAGE_SIZE));
+        verify(customFieldApi).searchCustomFields(anyString(), anyLong(), anyLong(), eq(tenant));
+    }
+
+    @Test(groups = "fast")
+    public void shouldPrefetchNextPageOfSearchResults() {
+        // Given
+        TenantContext tenant = mock(TenantContext.class);
+        withThreePagesOfSearchResults(tenant);
+        AdaptivePageSize pageSize = new AdaptivePageSize((int) PAGE_SIZE, 1, (int) PAGE_SIZE, 0L);
+        CustomFieldService prefetchingService = new CustomFieldService(customFieldApi, logService, pageSize,
+                newDirectExecutorService());
+
+        // When
+        ResultsPage<CustomField> fields = prefetchingService.searchAccountFieldsByFieldNameAndTenant("toto", 0L,
+                null, tenant);
+        CustomField first = fields.iterator().next();
+
+        // Then
+        assertEquals(first.getFieldValue(), "page0-account");
+        verify(customFieldApi).searchCustomFields("toto", 0L, PAGE_SIZE, tenant);
+        verify(customFieldApi).searchCustomFields("toto", PAGE_SIZE, PAGE_SIZE, tenant);
+        verify(customFieldApi, never()).searchCustomFields("toto", 2 * PAGE_SIZE, PAGE_SIZE, tenant);
+    }
+
+    @Test(groups = "fast")
+    public void shouldFindAllAccountFieldsWithPrefetching() {
+        // Given
+        TenantContext tenant = mock(TenantContext.class);
+        withThreePagesOfSearchResults(tenant);
+        AdaptivePageSize pageSize = new AdaptivePageSize((int) PAGE_SIZE, 1, (int) PAGE_SIZE, 0L);
+        CustomFieldService prefetchingService = new CustomFieldService(customFieldApi, logService, pageSize,
+                newDirectExecutorService());
+
+        // When
+        List<CustomField> fields = prefetchingService.findAllAccountFieldsByFieldNameAndTenant("toto", tenant);
+
+        // Then
+        assertEquals(fields.size(), 3);
+        assertEquals(fields.get(0).getFieldValue(), "page0-account");
+        assertEquals(fields.get(1).getFieldValue(), "page1-toto");
+        assertEquals(fields.get(2).getFieldValue(), "page2");
+        verify(customFieldApi, times(3)).searchCustomFields(anyString(), anyLong(), anyLong(), eq(tenant));
+    }
+
+    @Test(groups = "fast")
+    @SuppressWarnings("unchecked")
+    public void shouldCancelPrefetchedPageWhenClosingSearchResults() throws Exception {
+        // Given
+        TenantContext tenant = mock(TenantContext.class);
+        withThreePagesOfSearchResults(tenant);
+        Future<Pagination<CustomField>> prefetchedPage = mock(Future.class);
+        ExecutorService prefetchExecutor = mock(ExecutorService.class);
+        when(prefetchExecutor.submit(any(Callable.class))).thenReturn(prefetchedPage);
+        CustomFieldService prefetchingService = new CustomFieldService(customFieldApi, logService, null,
+                prefetchExecutor);
+        ResultsPage<CustomField> fields = prefetchingService.searchAccountFieldsByFieldNameAndTenant("toto", 0L,
+                null, tenant);
+        fields.iterator().next();
+
+        // When
+        fields.close();
+
+        // Then
+        verify(prefetchedPage).cancel(false);
+        verify(prefetchedPage, never()).get();
+    }
+
     private void withAccountFields(List<CustomField> fields, TenantContext tenant) {
         when(customFieldApi.getCustomFieldsForObject(any(UUID.class), any(ObjectType.class), eq(tenant)))//
                 .thenReturn(fields);
@@ -186,6 +294,16 @@ public class TestCustomFieldService {
         assertNull(service.findFieldByNameAndAccountAndTenant("plop", randomUUID(), tenant));
     }
 
+    @Test(groups = "fast")
+    public void shouldAcceptNullListWhenFindingAllAccountFields() {
+        // Given
+        TenantContext tenant = mock(TenantContext.class);
+        withAccountFields(null, tenant);
+
+        // Expect
+        assertTrue(service.findAllFieldsOfAccount(randomUUID(), tenant).isEmpty());
+    }
+
     @Test(groups = "fast")
     public void shouldFindAccountField() {
         // Given
@@ -492,4 +610,127 @@ public class TestCustomFieldService {
         assertTrue(contains(errMsg2, "tata"));
         assertTrue(contains(errMsg2, accountId.toString()));
     }
+
+    @Test(groups = "fast")
+    public void shouldSaveAccountFieldsWithBulkCalls() throws Exception {
+        // Given
+        CustomFieldUserApi customFieldApi = mock(CustomFieldUserApi.class);
+        OSGIKillbillLogService logService = mock(OSGIKillbillLogService.class);
+        CustomFieldService service = new CustomFieldService(customFieldApi, logService);
+
+        UUID accountId = randomUUID();
+        UUID otherAccountId = randomUUID();
+        when(customFieldApi.getCustomFieldsForObject(accountId, ACCOUNT, defaultTenant))//
+                .thenReturn(newArrayList(new CustomFieldBuilder()//
+                        .withObjectType(ACCOUNT)//
+                        .withObjectId(accountId)//
+                        .withFieldName("toto")//
+                        .withFieldValue("tata")//
+                        .build()));
+
+        // When
+        Map<UUID, Boolean> saved = service.saveAccountFields(ImmutableMap.of(accountId, "titi", otherAccountId,
+                "tutu"), "toto", defaultTenant);
+
+        // Then
+        assertEquals(saved, ImmutableMap.of(accountId, true, otherAccountId, true));
+        verify(customFieldApi).removeCustomFields(removedFields.capture(), any(CallContext.class));
+        assertEquals(removedFields.getValue().size(), 1);
+        assertEquals(removedFields.getValue().get(0).getFieldValue(), "tata");
+
+        verify(customFieldApi).addCustomFields(addedFields.capture(), any(CallContext.class));
+        assertEquals(addedFields.getValue().size(), 2);
+        assertEquals(addedFields.getValue().get(0).getObjectId(), accountId);
+        assertEquals(addedFields.getValue().get(0).getFieldValue(), "titi");
+        assertEquals(addedFields.getValue().get(1).getObjectId(), otherAccountId);
+        assertEquals(addedFields.getValue().get(1).getFieldValue(), "tutu");
+
+        verifyZeroInteractions(logService);
+    }
+
+    @Test(groups = "fast")
+    public void shouldSaveAccountFieldsOneByOneWhenBulkAddFails() throws Exception {
+        // Given
+        CustomFieldUserApi customFieldApi = mock(CustomFieldUserApi.class);
+        OSGIKillbillLogService logService = mock(OSGIKillbillLogService.class);
+        CustomFieldService service = new CustomFieldService(customFieldApi, logService);
+
+        UUID accountId = randomUUID();
+        final UUID faultyAccountId = randomUUID();
+        final CustomField faultyAccountField = new CustomFieldBuilder()//
+                .withObjectType(ACCOUNT)//
+                .withObjectId(faultyAccountId)//
+                .withFieldName("toto")//
+                .withFieldValue("tata")//
+                .build();
+        when(customFieldApi.getCustomFieldsForObject(faultyAccountId, ACCOUNT, defaultTenant))//
+                .thenReturn(newArrayList(faultyAccountField));
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                for (Object field : (List<?>) invocation.getArguments()[0]) {
+                    if ((field != faultyAccountField) && faultyAccountId.equals(((CustomField) field).getObjectId())) {
+                        throw new CustomFieldApiException(UNEXPECTED_ERROR, "test");
+                    }
+                }
+                return null;
+            }
+        }).when(customFieldApi).addCustomFields(anyListOf(CustomField.class), any(CallContext.class));
+
+        // When
+        Map<UUID, Boolean> saved = service.saveAccountFields(ImmutableMap.of(accountId, "titi", faultyAccountId,
+                "tutu"), "toto", defaultTenant);
+
+        // Then
+        assertEquals(saved, ImmutableMap.of(accountId, true, faultyAccountId, false));
+        verify(customFieldApi).removeCustomFields(eq(ImmutableList.of(faultyAccountField)), any(CallContext.class));
+        verify(customFieldApi, times(4)).addCustomFields(addedFields.capture(), any(CallContext.class));
+        assertEquals(addedFields.getAllValues().get(0).size(), 2);
+        assertEquals(addedFields.getAllValues().get(3), ImmutableList.of(faultyAccountField));
+        verify(logService, times(2)).log(eq(LOG_ERROR), anyString(), any(CustomFieldApiException.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotAddTwiceFieldsAddedByFailedBulkCall() throws Exception {
+        // Given
+        CustomFieldUserApi customFieldApi = mock(CustomFieldUserApi.class);
+        OSGIKillbillLogService logService = mock(OSGIKillbillLogService.class);
+        CustomFieldService service = new CustomFieldService(customFieldApi, logService);
+
+        UUID accountId = randomUUID();
+        UUID otherAccountId = randomUUID();
+        CustomField addedField = new CustomFieldBuilder()//
+                .withObjectType(ACCOUNT)//
+                .withObjectId(accountId)//
+                .withFieldName("toto")//
+                .withFieldValue("titi")//
+                .build();
+        when(customFieldApi.getCustomFieldsForObject(accountId, ACCOUNT, defaultTenant))//
+                .thenReturn(ImmutableList.<CustomField> of(), ImmutableList.of(addedField));
+        final List<List<CustomField>> additions = newArrayList();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                List<?> fields = (List<?>) invocation.getArguments()[0];
+                additions.add(Lists.newArrayList(Iterables.filter(fields, CustomField.class)));
+                if (fields.size() > 1) {
+                    throw new CustomFieldApiException(UNEXPECTED_ERROR, "test");
+                }
+                return null;
+            }
+        }).when(customFieldApi).addCustomFields(anyListOf(CustomField.class), any(CallContext.class));
+
+        // When
+        Map<UUID, Boolean> saved = service.saveAccountFields(ImmutableMap.of(accountId, "titi", otherAccountId,
+                "tutu"), "toto", defaultTenant);
+
+        // Then
+        assertEquals(saved, ImmutableMap.of(accountId, true, otherAccountId, true));
+        verify(customFieldApi, never()).removeCustomFields(anyListOf(CustomField.class), any(CallContext.class));
+        assertEquals(additions.size(), 2);
+        assertEquals(additions.get(0).size(), 2);
+        assertEquals(additions.get(1).size(), 1);
+        assertEquals(additions.get(1).get(0).getObjectId(), otherAccountId);
+    }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static org.killbill.billing.ErrorCode.INVOICE_NOT_FOUND;
+import static org.killbill.billing.catalog.api.Currency.EUR;
+import static org.killbill.billing.plugin.TestUtils.buildAccount;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.UUID;
+
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceApiException;
+import org.killbill.billing.invoice.api.InvoiceUserApi;
+import org.killbill.billing.test.helpers.InvoiceBuilder;
+import org.killbill.billing.test.helpers.InvoiceItemBuilder;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.entity.Pagination;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link InvoiceService}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestInvoiceService {
+
+    @Mock
+    private InvoiceUserApi invoiceApi;
+    @Mock
+    private OSGIKillbillLogService logService;
+
+    @InjectMocks
+    private InvoiceService service;
+
+    @Mock
+    private TenantContext tenantContext;
+    @Mock
+    private Pagination<Invoice> searchResults;
+
+    private Invoice invoice;
+    private UUID itemId;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        initMocks(this);
+        invoice = new InvoiceBuilder(buildAccount(EUR, "FR"))//
+                .withItem(new InvoiceItemBuilder())//
+                .withItem(new InvoiceItemBuilder())//
+                .build();
+        itemId = invoice.getInvoiceItems().get(1).getId();
+        when(invoiceApi.getInvoice(eq(invoice.getId()), any(TenantContext.class))).thenReturn(invoice);
+        when(invoiceApi.searchInvoices(anyString(), anyLong(), anyLong(), any(TenantContext.class)))//
+                .thenReturn(searchResults);
+        when(searchResults.iterator()).thenReturn(ImmutableList.of(invoice).iterator());
+    }
+
+    @Test(groups = "fast")
+    public void shouldSearchInvoiceOfUnknownItemOnlyOnce() throws Exception {
+        // When
+        Invoice first = service.findInvoiceByInvoiceItem(itemId, tenantContext);
+        Invoice second = service.findInvoiceByInvoiceItem(itemId, tenantContext);
+
+        // Then
+        assertSame(first, invoice);
+        assertSame(second, invoice);
+        verify(invoiceApi).searchInvoices(itemId.toString(), 0L, 1L, tenantContext);
+        verify(invoiceApi).getInvoice(invoice.getId(), tenantContext);
+    }
+
+    @Test(groups = "fast")
+    public void shouldIndexItemsOfFoundInvoices() throws Exception {
+        // Given
+        service.findInvoice(invoice.getId(), tenantContext);
+
+        // When
+        Invoice found = service.findInvoiceByInvoiceItem(itemId, tenantContext);
+
+        // Then
+        assertSame(found, invoice);
+        verify(invoiceApi, never()).searchInvoices(anyString(), anyLong(), anyLong(), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldFallBackToSearchWhenIndexedInvoiceIsNotAccessible() throws Exception {
+        // Given
+        service.findInvoice(invoice.getId(), tenantContext);
+        when(invoiceApi.getInvoice(invoice.getId(), tenantContext))//
+                .thenThrow(new InvoiceApiException(INVOICE_NOT_FOUND, invoice.getId()));
+
+        // When
+        Invoice found = service.findInvoiceByInvoiceItem(itemId, tenantContext);
+
+        // Then
+        assertSame(found, invoice);
+        verify(invoiceApi, times(2)).getInvoice(invoice.getId(), tenantContext);
+        verify(invoiceApi).searchInvoices(itemId.toString(), 0L, 1L, tenantContext);
+    }
+
+    @Test(groups = "fast")
+    public void shouldIndexItemsOfInvoicesLoadedElsewhere() throws Exception {
+        // Given
+        assertNull(service.getIndexedInvoiceId(itemId));
+
+        // When
+        service.indexItemsOf(invoice);
+
+        // Then
+        assertEquals(service.getIndexedInvoiceId(itemId), invoice.getId());
+        verifyZeroInteractions(invoiceApi);
+    }
+}
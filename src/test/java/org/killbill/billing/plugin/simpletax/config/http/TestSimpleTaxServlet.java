@@ -20,17 +20,24 @@ import static java.util.UUID.randomUUID;
 import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
 import static javax.servlet.http.HttpServletResponse.SC_CREATED;
 import static javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+import static javax.servlet.http.HttpServletResponse.SC_NO_CONTENT;
 import static javax.servlet.http.HttpServletResponse.SC_NOT_FOUND;
 import static javax.servlet.http.HttpServletResponse.SC_OK;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
+import static org.killbill.billing.plugin.simpletax.config.http.AccountUpdateStatusRsc.Status.INVALID;
+import static org.killbill.billing.plugin.simpletax.config.http.AccountUpdateStatusRsc.Status.SAVED;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
 
+import java.util.List;
 import java.util.UUID;
 
 import javax.servlet.http.HttpServletRequest;
@@ -39,6 +46,7 @@ import org.killbill.billing.plugin.simpletax.config.http.TaxCountryController.Ta
 import org.killbill.billing.plugin.simpletax.config.http.VatinController.VATINRsc;
 import org.killbill.billing.plugin.simpletax.internal.Country;
 import org.killbill.billing.plugin.simpletax.internal.VATIN;
+import org.killbill.billing.plugin.simpletax.util.PluginMetrics;
 import org.killbill.billing.tenant.api.Tenant;
 import org.killbill.billing.test.helpers.ServletMocks;
 import org.mockito.ArgumentCaptor;
@@ -49,6 +57,9 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+
 /**
  * @author Benjamin Gandon
  */
@@ -75,6 +86,10 @@ public class TestSimpleTaxServlet {
     private TaxCountryController taxCountryController;
     @Mock
     private VatinController vatinController;
+    @Mock
+    private TaxCodeController taxCodeController;
+    @Mock
+    private PluginMetrics metrics;
 
     @InjectMocks
     private SimpleTaxServlet servlet;
@@ -83,10 +98,18 @@ public class TestSimpleTaxServlet {
     private ArgumentCaptor<TaxCountryRsc> taxCountryRsc;
     @Captor
     private ArgumentCaptor<VATINRsc> vatinRsc;
+    @Captor
+    private ArgumentCaptor<List<TaxCountryRsc>> taxCountryRscs;
+    @Captor
+    private ArgumentCaptor<List<VATINRsc>> vatinRscs;
 
     @BeforeMethod
     public void setup() {
         initMocks(this);
+        when(taxCountryController.streamTaxCountries(any(Tenant.class), anyLong(), any(Long.class)))//
+                .thenReturn(ResultsPage.of(ImmutableList.<TaxCountryRsc> of(), null, null));
+        when(vatinController.streamVatins(any(Tenant.class), anyLong(), any(Long.class)))//
+                .thenReturn(ResultsPage.of(ImmutableList.<VATINRsc> of(), null, null));
     }
 
     // ==================== GET ====================
@@ -242,7 +265,7 @@ public class TestSimpleTaxServlet {
 
         // Then
         verifyZeroInteractions(vatinController);
-        verify(taxCountryController).listTaxCountries(null, tenant);
+        verify(taxCountryController).streamTaxCountries(tenant, 0L, null);
         assertEquals(mocks.getResponseContentType(), APPLICATION_JSON);
         assertEquals(mocks.getResponseStatus(), SC_OK);
     }
@@ -261,11 +284,52 @@ public class TestSimpleTaxServlet {
 
         // Then
         verifyZeroInteractions(vatinController);
-        verify(taxCountryController).listTaxCountries(null, tenant);
+        verify(taxCountryController).streamTaxCountries(tenant, 0L, null);
         assertEquals(mocks.getResponseContentType(), APPLICATION_JSON);
         assertEquals(mocks.getResponseStatus(), SC_OK);
     }
 
+    @Test(groups = "fast")
+    public void shouldStreamPageOfTaxCountries() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+        UUID accountId = randomUUID();
+
+        when(mocks.req().getPathInfo()).thenReturn(TAX_COUNTRIES_RSC_URI);
+        when(mocks.req().getParameter("offset")).thenReturn("200");
+        when(mocks.req().getParameter("limit")).thenReturn("100");
+        when(taxCountryController.streamTaxCountries(tenant, 200L, 100L))//
+                .thenReturn(ResultsPage.of(ImmutableList.of(new TaxCountryRsc(accountId, FRANCE)), 300L, 1234L));
+
+        // When
+        servlet.doGet(mocks.req(), mocks.resp());
+
+        // Then
+        assertEquals(mocks.getResponseStatus(), SC_OK);
+        assertEquals(mocks.getResponseContentType(), APPLICATION_JSON);
+        assertEquals(mocks.getResponseContent(), "[{\"accountId\":\"" + accountId + "\",\"taxCountry\":\"FR\"}]");
+        assertEquals(mocks.getHeaders().get("X-Killbill-Pagination-NextOffset"), ImmutableList.of("300"));
+        assertEquals(mocks.getHeaders().get("X-Killbill-Pagination-TotalNbRecords"), ImmutableList.of("1234"));
+    }
+
+    @Test(groups = "fast")
+    public void shouldRespondBadRequestWhenDispatchingGetTaxCountriesWithInvalidLimit() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        withTenant(mocks.req());
+
+        when(mocks.req().getPathInfo()).thenReturn(TAX_COUNTRIES_RSC_URI);
+        when(mocks.req().getParameter("limit")).thenReturn("-1");
+
+        // When
+        servlet.doGet(mocks.req(), mocks.resp());
+
+        // Then
+        verifyZeroInteractions(taxCountryController, vatinController);
+        assertEquals(mocks.getResponseStatus(), SC_BAD_REQUEST);
+    }
+
     @Test(groups = "fast", dataProvider = "invalidAccountUUIDs")
     public void shouldRespondBadRequestWhenDispatchingGetTaxCountriesWithInvalidAccountRestriction(String accountId)
             throws Exception {
@@ -319,7 +383,7 @@ public class TestSimpleTaxServlet {
 
         // Then
         verifyZeroInteractions(taxCountryController);
-        verify(vatinController).listVatins(null, tenant);
+        verify(vatinController).streamVatins(tenant, 0L, null);
         assertEquals(mocks.getResponseContentType(), APPLICATION_JSON);
         assertEquals(mocks.getResponseStatus(), SC_OK);
     }
@@ -338,7 +402,7 @@ public class TestSimpleTaxServlet {
 
         // Then
         verifyZeroInteractions(taxCountryController);
-        verify(vatinController).listVatins(null, tenant);
+        verify(vatinController).streamVatins(tenant, 0L, null);
         assertEquals(mocks.getResponseContentType(), APPLICATION_JSON);
         assertEquals(mocks.getResponseStatus(), SC_OK);
     }
@@ -383,6 +447,27 @@ public class TestSimpleTaxServlet {
 
     // ==================== GET /... ====================
 
+    @Test(groups = "fast")
+    public void shouldRenderMetrics() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        withTenant(mocks.req());
+
+        when(mocks.req().getPathInfo()).thenReturn("/metrics");
+        when(metrics.snapshot()).thenReturn(ImmutableSortedMap.<String, Object> of(//
+                "tenantConfigs.hits", 3L, "taxCodes.persistence.fields", 12L));
+
+        // When
+        servlet.doGet(mocks.req(), mocks.resp());
+
+        // Then
+        verifyZeroInteractions(taxCountryController, vatinController);
+        assertEquals(mocks.getResponseStatus(), SC_OK);
+        assertEquals(mocks.getResponseContentType(), APPLICATION_JSON);
+        assertEquals(mocks.getResponseContent(),
+                "{\"taxCodes.persistence.fields\":12,\"tenantConfigs.hits\":3}");
+    }
+
     @Test(groups = "fast")
     public void shouldRespondNotFoundWhenDispatchingGetWithUknownURI() throws Exception {
         // Given
@@ -616,4 +701,114 @@ public class TestSimpleTaxServlet {
         verifyZeroInteractions(taxCountryController, vatinController);
         assertEquals(mocks.getResponseStatus(), SC_NOT_FOUND);
     }
+
+    // ==================== POST ====================
+
+    @Test(groups = "fast")
+    public void shouldRespondBadRequestWhenDispatchingPostTaxCountriesWithNoArray() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        withTenant(mocks.req());
+
+        when(mocks.req().getPathInfo()).thenReturn(TAX_COUNTRIES_RSC_URI);
+        mocks.withRequestBody("{\"accountId\":\"" + randomUUID() + "\",\"taxCountry\":\"" + FR + "\"}");
+
+        // When
+        servlet.doPost(mocks.req(), mocks.resp());
+
+        // Then
+        verifyZeroInteractions(taxCountryController, vatinController);
+        assertEquals(mocks.getResponseStatus(), SC_BAD_REQUEST);
+    }
+
+    @Test(groups = "fast")
+    public void shouldDispatchPostTaxCountriesWithInvalidElements() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+
+        UUID accountId = randomUUID();
+        UUID otherAccountId = randomUUID();
+        when(mocks.req().getPathInfo()).thenReturn(TAX_COUNTRIES_RSC_URI);
+        mocks.withRequestBody("[{\"accountId\":\"" + accountId + "\",\"taxCountry\":\"" + FR + "\"},"
+                + "{\"accountId\":\"" + otherAccountId + "\",\"taxCountry\":\"KK\"}]");
+
+        when(taxCountryController.saveAccountTaxCountries(anyListOf(TaxCountryRsc.class), eq(tenant))).thenReturn(
+                ImmutableList.of(new AccountUpdateStatusRsc(0, accountId, SAVED), new AccountUpdateStatusRsc(1,
+                        null, INVALID)));
+
+        // When
+        servlet.doPost(mocks.req(), mocks.resp());
+
+        // Then
+        verifyZeroInteractions(vatinController);
+        verify(taxCountryController).saveAccountTaxCountries(taxCountryRscs.capture(), eq(tenant));
+        assertEquals(taxCountryRscs.getValue().size(), 2);
+        assertEquals(taxCountryRscs.getValue().get(0).accountId, accountId);
+        assertEquals(taxCountryRscs.getValue().get(0).taxCountry, FRANCE);
+        assertNull(taxCountryRscs.getValue().get(1));
+        assertEquals(mocks.getResponseStatus(), SC_OK);
+        assertEquals(mocks.getResponseContent(), "[{\"index\":0,\"accountId\":\"" + accountId
+                + "\",\"status\":\"SAVED\"},{\"index\":1,\"accountId\":null,\"status\":\"INVALID\"}]");
+    }
+
+    @Test(groups = "fast")
+    public void shouldDispatchPostVATINs() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+
+        UUID accountId = randomUUID();
+        when(mocks.req().getPathInfo()).thenReturn(VATINS_RSC_URI);
+        mocks.withRequestBody("[{\"accountId\":\"" + accountId + "\",\"vatin\":\"" + FR_TEST6_VATIN_NUM + "\"}]");
+
+        when(vatinController.saveAccountVatins(anyListOf(VATINRsc.class), eq(tenant))).thenReturn(
+                ImmutableList.of(new AccountUpdateStatusRsc(0, accountId, SAVED)));
+
+        // When
+        servlet.doPost(mocks.req(), mocks.resp());
+
+        // Then
+        verifyZeroInteractions(taxCountryController);
+        verify(vatinController).saveAccountVatins(vatinRscs.capture(), eq(tenant));
+        assertEquals(vatinRscs.getValue().size(), 1);
+        assertEquals(vatinRscs.getValue().get(0).accountId, accountId);
+        assertEquals(vatinRscs.getValue().get(0).vatin, FR_TEST6_VATIN);
+        assertEquals(mocks.getResponseStatus(), SC_OK);
+    }
+
+    @Test(groups = "fast")
+    public void shouldDispatchPostAccountTaxCodesBackfill() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+
+        UUID accountId = randomUUID();
+        when(mocks.req().getPathInfo()).thenReturn("/accounts/" + accountId + "/taxCodes/backfill");
+        when(taxCodeController.backfillTaxCodesOfAccount(accountId, tenant)).thenReturn(true);
+
+        // When
+        servlet.doPost(mocks.req(), mocks.resp());
+
+        // Then
+        verify(taxCodeController).backfillTaxCodesOfAccount(accountId, tenant);
+        assertEquals(mocks.getResponseStatus(), SC_NO_CONTENT);
+    }
+
+    @Test(groups = "fast")
+    public void shouldRespondInternalServerErrorWhenBackfillingAccountTaxCodesFails() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+
+        UUID accountId = randomUUID();
+        when(mocks.req().getPathInfo()).thenReturn("/accounts/" + accountId + "/taxCodes/backfill");
+        when(taxCodeController.backfillTaxCodesOfAccount(accountId, tenant)).thenReturn(false);
+
+        // When
+        servlet.doPost(mocks.req(), mocks.resp());
+
+        // Then
+        assertEquals(mocks.getResponseStatus(), SC_INTERNAL_SERVER_ERROR);
+    }
 }
@@ -16,16 +16,286 @@
  */
 package org.killbill.billing.plugin.simpletax.config.http;
 
+import static java.util.UUID.randomUUID;
+import static javax.servlet.http.HttpServletResponse.SC_OK;
+import static org.apache.commons.lang3.StringUtils.countMatches;
+import static org.killbill.billing.ObjectType.INVOICE_ITEM;
+import static org.killbill.billing.catalog.api.Currency.EUR;
+import static org.killbill.billing.plugin.TestUtils.buildAccount;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceUserApi;
+import org.killbill.billing.plugin.simpletax.SimpleTaxPlugin;
+import org.killbill.billing.plugin.simpletax.config.http.TaxCodeController.TaxCodeRsc;
+import org.killbill.billing.plugin.simpletax.config.http.TaxCodeController.TaxCodesGETRsc;
+import org.killbill.billing.plugin.simpletax.config.http.TaxCodeController.TaxCodesPUTRsc;
+import org.killbill.billing.plugin.simpletax.dao.TaxCodesDao;
+import org.killbill.billing.plugin.simpletax.util.PluginMetrics;
+import org.killbill.billing.tenant.api.Tenant;
+import org.killbill.billing.test.helpers.CustomFieldBuilder;
+import org.killbill.billing.test.helpers.InvoiceBuilder;
+import org.killbill.billing.test.helpers.InvoiceItemBuilder;
+import org.killbill.billing.test.helpers.ServletMocks;
+import org.killbill.billing.util.api.CustomFieldUserApi;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.clock.DefaultClock;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+
 /**
  * @author Benjamin Gandon
  */
 @SuppressWarnings("javadoc")
 public class TestTaxCodeController {
 
+    private static final int NB_ITEMS = 50;
+
     @Test
     public void should() {
         ;
     }
+
+    @Test(groups = "fast")
+    public void shouldListTaxCodesOfInvoiceWithOneCustomFieldCall() throws Exception {
+        // Given
+        Account account = buildAccount(EUR, "FR");
+        InvoiceBuilder invoiceBuilder = new InvoiceBuilder(account);
+        for (int i = 0; i < NB_ITEMS; i++) {
+            invoiceBuilder.withItem(new InvoiceItemBuilder());
+        }
+        Invoice invoice = invoiceBuilder.build();
+        List<InvoiceItem> items = invoice.getInvoiceItems();
+
+        InvoiceUserApi invoiceApi = mock(InvoiceUserApi.class);
+        when(invoiceApi.getInvoice(eq(invoice.getId()), any(TenantContext.class))).thenReturn(invoice);
+        CustomFieldUserApi customFieldApi = mock(CustomFieldUserApi.class);
+        CustomFieldBuilder field = new CustomFieldBuilder().withObjectType(INVOICE_ITEM);
+        CustomField taxCodesOfFirstItem = field.withObjectId(items.get(0).getId()).withFieldName("taxCodes")
+                .withFieldValue("VAT_20_0%").build();
+        CustomField taxCodesOfOtherInvoice = field.withObjectId(randomUUID()).withFieldValue("VAT_5_5%").build();
+        CustomField otherFieldOfLastItem = field.withObjectId(items.get(NB_ITEMS - 1).getId())
+                .withFieldName("foo").withFieldValue("bar").build();
+        when(customFieldApi.getCustomFieldsForAccountType(eq(account.getId()), eq(INVOICE_ITEM),
+                any(TenantContext.class)))//
+                .thenReturn(ImmutableList.of(taxCodesOfFirstItem, taxCodesOfOtherInvoice, otherFieldOfLastItem));
+
+        OSGIKillbillLogService logService = mock(OSGIKillbillLogService.class);
+        TaxCodeController controller = new TaxCodeController(new CustomFieldService(customFieldApi, logService),
+                new InvoiceService(invoiceApi, logService), logService);
+        SimpleTaxServlet servlet = new SimpleTaxServlet(mock(VatinController.class),
+                mock(TaxCountryController.class), controller, new PluginMetrics());
+
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = mock(Tenant.class);
+        when(tenant.getId()).thenReturn(randomUUID());
+        when(mocks.req().getAttribute("killbill_tenant")).thenReturn(tenant);
+        when(mocks.req().getPathInfo()).thenReturn("/invoices/" + invoice.getId() + "/taxCodes");
+
+        // When
+        servlet.doGet(mocks.req(), mocks.resp());
+
+        // Then
+        assertEquals(mocks.getResponseStatus(), SC_OK);
+        String content = mocks.getResponseContent();
+        assertEquals(countMatches(content, "\"invoiceItemId\""), 1);
+        assertTrue(content.contains(items.get(0).getId().toString()));
+        assertTrue(content.contains("VAT_20_0%"));
+        assertFalse(content.contains("VAT_5_5%"));
+        verify(invoiceApi).getInvoice(eq(invoice.getId()), any(TenantContext.class));
+        verify(customFieldApi).getCustomFieldsForAccountType(eq(account.getId()), eq(INVOICE_ITEM),
+                any(TenantContext.class));
+        verify(customFieldApi, never()).getCustomFieldsForObject(any(UUID.class), eq(INVOICE_ITEM),
+                any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldMergeTaxCodesOfItemsMissingFromTable() throws Exception {
+        // Given
+        Account account = buildAccount(EUR, "FR");
+        Invoice invoice = new InvoiceBuilder(account).withItem(new InvoiceItemBuilder())
+                .withItem(new InvoiceItemBuilder()).build();
+        List<InvoiceItem> items = invoice.getInvoiceItems();
+        Tenant tenant = mock(Tenant.class);
+        when(tenant.getId()).thenReturn(randomUUID());
+
+        InvoiceUserApi invoiceApi = mock(InvoiceUserApi.class);
+        when(invoiceApi.getInvoice(eq(invoice.getId()), any(TenantContext.class))).thenReturn(invoice);
+        CustomFieldUserApi customFieldApi = mock(CustomFieldUserApi.class);
+        CustomFieldBuilder field = new CustomFieldBuilder().withObjectType(INVOICE_ITEM).withFieldName("taxCodes");
+        when(customFieldApi.getCustomFieldsForAccountType(eq(account.getId()), eq(INVOICE_ITEM),
+                any(TenantContext.class)))//
+                .thenReturn(ImmutableList.of(//
+                        field.withObjectId(items.get(0).getId()).withFieldValue("VAT_5_5%").build(),//
+                        field.withObjectId(items.get(1).getId()).withFieldValue("VAT_10_0%").build()));
+        TaxCodesDao taxCodesDao = mock(TaxCodesDao.class);
+        when(taxCodesDao.getTaxFieldsOfInvoices(eq(tenant.getId()), anyCollectionOf(UUID.class)))//
+                .thenReturn(ImmutableSetMultimap.of(invoice.getId(),//
+                        field.withObjectId(items.get(0).getId()).withFieldValue("VAT_20_0%").build()));
+        SimpleTaxPlugin plugin = mock(SimpleTaxPlugin.class);
+        when(plugin.readsTaxCodesTable(tenant.getId())).thenReturn(true);
+        when(plugin.isTaxable(any(InvoiceItem.class))).thenReturn(true);
+
+        OSGIKillbillLogService logService = mock(OSGIKillbillLogService.class);
+        TaxCodeController controller = new TaxCodeController(new CustomFieldService(customFieldApi, logService),
+                new InvoiceService(invoiceApi, logService), logService, new DefaultClock(), taxCodesDao, plugin);
+
+        // When
+        List<TaxCodesGETRsc> taxCodes = controller.listInvoiceTaxCodes(invoice.getId(), tenant);
+
+        // Then
+        assertEquals(taxCodes.size(), 2);
+        assertEquals(taxCodes.get(0).invoiceItemId, items.get(0).getId());
+        assertEquals(taxCodes.get(0).taxCodes.iterator().next().name, "VAT_20_0%");
+        assertEquals(taxCodes.get(1).invoiceItemId, items.get(1).getId());
+        assertEquals(taxCodes.get(1).taxCodes.iterator().next().name, "VAT_10_0%");
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotReadTableOfTaxCodesForTenantsThatDontEnableIt() throws Exception {
+        // Given
+        Account account = buildAccount(EUR, "FR");
+        Invoice invoice = new InvoiceBuilder(account).withItem(new InvoiceItemBuilder()).build();
+        Tenant tenant = mock(Tenant.class);
+        when(tenant.getId()).thenReturn(randomUUID());
+
+        InvoiceUserApi invoiceApi = mock(InvoiceUserApi.class);
+        when(invoiceApi.getInvoice(eq(invoice.getId()), any(TenantContext.class))).thenReturn(invoice);
+        CustomFieldUserApi customFieldApi = mock(CustomFieldUserApi.class);
+        when(customFieldApi.getCustomFieldsForAccountType(eq(account.getId()), eq(INVOICE_ITEM),
+                any(TenantContext.class)))//
+                .thenReturn(ImmutableList.of(new CustomFieldBuilder().withObjectType(INVOICE_ITEM)
+                        .withObjectId(invoice.getInvoiceItems().get(0).getId()).withFieldName("taxCodes")
+                        .withFieldValue("VAT_20_0%").build()));
+        TaxCodesDao taxCodesDao = mock(TaxCodesDao.class);
+        SimpleTaxPlugin plugin = mock(SimpleTaxPlugin.class);
+        when(plugin.readsTaxCodesTable(tenant.getId())).thenReturn(false);
+
+        OSGIKillbillLogService logService = mock(OSGIKillbillLogService.class);
+        TaxCodeController controller = new TaxCodeController(new CustomFieldService(customFieldApi, logService),
+                new InvoiceService(invoiceApi, logService), logService, new DefaultClock(), taxCodesDao, plugin);
+
+        // When
+        List<TaxCodesGETRsc> taxCodes = controller.listInvoiceTaxCodes(invoice.getId(), tenant);
+
+        // Then
+        assertEquals(taxCodes.size(), 1);
+        assertEquals(taxCodes.get(0).taxCodes.iterator().next().name, "VAT_20_0%");
+        verify(taxCodesDao, never()).getTaxFieldsOfInvoices(any(UUID.class), anyCollectionOf(UUID.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldFindInvoiceOfItemInTableOfTaxCodesWithoutSearch() throws Exception {
+        // Given
+        UUID invoiceId = randomUUID();
+        UUID invoiceItemId = randomUUID();
+        Tenant tenant = mock(Tenant.class);
+        when(tenant.getId()).thenReturn(randomUUID());
+
+        InvoiceUserApi invoiceApi = mock(InvoiceUserApi.class);
+        CustomFieldUserApi customFieldApi = mock(CustomFieldUserApi.class);
+        when(customFieldApi.getCustomFieldsForObject(eq(invoiceItemId), eq(INVOICE_ITEM), any(TenantContext.class)))//
+                .thenReturn(ImmutableList.of(new CustomFieldBuilder().withObjectType(INVOICE_ITEM)
+                        .withObjectId(invoiceItemId).withFieldName("taxCodes").withFieldValue("VAT_20_0%").build()));
+        TaxCodesDao taxCodesDao = mock(TaxCodesDao.class);
+        when(taxCodesDao.getInvoiceIdOfInvoiceItem(tenant.getId(), invoiceItemId)).thenReturn(invoiceId);
+
+        OSGIKillbillLogService logService = mock(OSGIKillbillLogService.class);
+        TaxCodeController controller = new TaxCodeController(new CustomFieldService(customFieldApi, logService),
+                new InvoiceService(invoiceApi, logService), logService, new DefaultClock(), taxCodesDao,
+                mock(SimpleTaxPlugin.class));
+
+        // When
+        TaxCodesGETRsc taxCodes = controller.getTaxCodesOfInvoiceItem(invoiceItemId, tenant);
+
+        // Then
+        assertNotNull(taxCodes);
+        assertEquals(taxCodes.invoiceId, invoiceId);
+        assertEquals(taxCodes.taxCodes.iterator().next().name, "VAT_20_0%");
+        verify(invoiceApi, never()).searchInvoices(anyString(), anyLong(), anyLong(), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotLookUpInvoiceWhenUpdatingTaxCodesOfItemWithRow() throws Exception {
+        // Given
+        UUID invoiceItemId = randomUUID();
+        Tenant tenant = mock(Tenant.class);
+        when(tenant.getId()).thenReturn(randomUUID());
+
+        InvoiceUserApi invoiceApi = mock(InvoiceUserApi.class);
+        TaxCodesDao taxCodesDao = mock(TaxCodesDao.class);
+        when(taxCodesDao.updateTaxCodesOfInvoiceItem(eq(tenant.getId()), eq(invoiceItemId), eq("VAT_20_0%"),
+                any(DateTime.class))).thenReturn(true);
+
+        OSGIKillbillLogService logService = mock(OSGIKillbillLogService.class);
+        TaxCodeController controller = new TaxCodeController(new CustomFieldService(
+                mock(CustomFieldUserApi.class), logService), new InvoiceService(invoiceApi, logService),
+                logService, new DefaultClock(), taxCodesDao, mock(SimpleTaxPlugin.class));
+
+        // When
+        boolean saved = controller.saveTaxCodesOfInvoiceItem(invoiceItemId,
+                new TaxCodesPUTRsc(ImmutableSet.of(new TaxCodeRsc("VAT_20_0%"))), tenant);
+
+        // Then
+        assertTrue(saved);
+        verify(taxCodesDao, never()).saveTaxCodes(any(UUID.class), any(UUID.class), any(UUID.class),
+                anyMapOf(UUID.class, String.class), any(DateTime.class));
+        verify(invoiceApi, never()).getInvoice(any(UUID.class), any(TenantContext.class));
+        verify(invoiceApi, never()).searchInvoices(anyString(), anyLong(), anyLong(), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldInsertRowOfItemWhoseInvoiceIsIndexed() throws Exception {
+        // Given
+        Account account = buildAccount(EUR, "FR");
+        Invoice invoice = new InvoiceBuilder(account).withItem(new InvoiceItemBuilder()).build();
+        UUID invoiceItemId = invoice.getInvoiceItems().get(0).getId();
+        Tenant tenant = mock(Tenant.class);
+        when(tenant.getId()).thenReturn(randomUUID());
+
+        InvoiceUserApi invoiceApi = mock(InvoiceUserApi.class);
+        when(invoiceApi.getInvoice(eq(invoice.getId()), any(TenantContext.class))).thenReturn(invoice);
+        InvoiceService invoiceService = new InvoiceService(invoiceApi, mock(OSGIKillbillLogService.class));
+        invoiceService.indexItemsOf(invoice);
+        TaxCodesDao taxCodesDao = mock(TaxCodesDao.class);
+
+        OSGIKillbillLogService logService = mock(OSGIKillbillLogService.class);
+        TaxCodeController controller = new TaxCodeController(new CustomFieldService(
+                mock(CustomFieldUserApi.class), logService), invoiceService, logService, new DefaultClock(),
+                taxCodesDao, mock(SimpleTaxPlugin.class));
+
+        // When
+        controller.saveTaxCodesOfInvoiceItem(invoiceItemId,
+                new TaxCodesPUTRsc(ImmutableSet.of(new TaxCodeRsc("VAT_20_0%"))), tenant);
+
+        // Then
+        verify(taxCodesDao).saveTaxCodes(eq(tenant.getId()), eq(account.getId()), eq(invoice.getId()),
+                eq(ImmutableMap.of(invoiceItemId, "VAT_20_0%")), any(DateTime.class));
+        verify(invoiceApi, never()).searchInvoices(anyString(), anyLong(), anyLong(), any(TenantContext.class));
+    }
 }
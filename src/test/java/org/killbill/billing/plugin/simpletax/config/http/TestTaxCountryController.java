@@ -18,6 +18,10 @@ package org.killbill.billing.plugin.simpletax.config.http;
 
 import static com.google.common.collect.Lists.newArrayList;
 import static java.util.UUID.randomUUID;
+import static org.killbill.billing.plugin.simpletax.config.http.AccountUpdateStatusRsc.Status.DUPLICATE;
+import static org.killbill.billing.plugin.simpletax.config.http.AccountUpdateStatusRsc.Status.FAILED;
+import static org.killbill.billing.plugin.simpletax.config.http.AccountUpdateStatusRsc.Status.INVALID;
+import static org.killbill.billing.plugin.simpletax.config.http.AccountUpdateStatusRsc.Status.SAVED;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
@@ -33,17 +37,21 @@ import java.util.List;
 import java.util.UUID;
 
 import org.killbill.billing.plugin.api.PluginTenantContext;
+import org.killbill.billing.plugin.simpletax.config.http.AccountUpdateStatusRsc.Status;
 import org.killbill.billing.plugin.simpletax.config.http.TaxCountryController.TaxCountryRsc;
 import org.killbill.billing.plugin.simpletax.internal.Country;
 import org.killbill.billing.tenant.api.Tenant;
 import org.killbill.billing.test.helpers.CustomFieldBuilder;
 import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.customfield.CustomField;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableMap;
+
 /**
  * @author Benjamin Gandon
  */
@@ -100,23 +108,21 @@ public class TestTaxCountryController {
     }
 
     @Test(groups = "fast")
-    public void shouldListTaxCountries() throws Exception {
+    public void shouldStreamTaxCountries() throws Exception {
         // Given
         UUID accountId = randomUUID();
         CustomFieldBuilder builder = new CustomFieldBuilder().withObjectId(accountId);
-        when(customFieldService.findAllAccountFieldsByFieldNameAndTenant("taxCountry", tenantContext))//
-                .thenReturn(newArrayList(//
+        when(customFieldService.searchAccountFieldsByFieldNameAndTenant("taxCountry", 0L, null, tenantContext))//
+                .thenReturn(ResultsPage.<CustomField> of(newArrayList(//
                         builder.withFieldName("taxCountry").withFieldValue("FR").build(),//
-                        builder.withFieldName("taxCountry").withFieldValue("US").build()));
+                        builder.withFieldName("taxCountry").withFieldValue("US").build()), null, null));
 
         // When
-        Object resources = controller.listTaxCountries(null, tenant);
+        ResultsPage<TaxCountryRsc> page = controller.streamTaxCountries(tenant, 0L, null);
 
         // Then
-        assertNotNull(resources);
-        assertTrue(resources instanceof List);
-
-        List<TaxCountryRsc> taxCountries = check((List<?>) resources, TaxCountryRsc.class);
+        assertNull(page.getNextOffset());
+        List<TaxCountryRsc> taxCountries = newArrayList(page);
         assertEquals(taxCountries.size(), 2);
 
         TaxCountryRsc taxCountry1 = taxCountries.get(0);
@@ -128,6 +134,38 @@ public class TestTaxCountryController {
         assertEquals(taxCountry2.taxCountry, US);
     }
 
+    @Test(groups = "fast")
+    public void shouldStreamConsecutivePagesOfIndexedTaxCountriesSortedByAccount() throws Exception {
+        // Given
+        UUID account1 = new UUID(0L, 1L);
+        UUID account2 = new UUID(0L, 2L);
+        UUID account3 = new UUID(0L, 3L);
+        CustomFieldBuilder builder = new CustomFieldBuilder().withFieldName("taxCountry");
+        when(customFieldService.findAllAccountFieldsByFieldNameAndTenant(eq("taxCountry"), any(TenantContext.class)))
+                .thenReturn(newArrayList(//
+                        builder.withObjectId(account3).withFieldValue("FR").build(),//
+                        builder.withObjectId(account1).withFieldValue("US").build(),//
+                        builder.withObjectId(account2).withFieldValue("FR").build()));
+        controller = new TaxCountryController(customFieldService, logService, new AccountTaxFieldsIndex(
+                customFieldService));
+
+        // When
+        ResultsPage<TaxCountryRsc> page1 = controller.streamTaxCountries(tenant, 0L, 2L);
+        ResultsPage<TaxCountryRsc> page2 = controller.streamTaxCountries(tenant, page1.getNextOffset(), 2L);
+
+        // Then
+        List<TaxCountryRsc> taxCountries = newArrayList(page1);
+        assertEquals(taxCountries.size(), 2);
+        assertEquals(taxCountries.get(0).accountId, account1);
+        assertEquals(taxCountries.get(1).accountId, account2);
+        assertEquals(page1.getTotalNbRecords(), Long.valueOf(3L));
+
+        taxCountries = newArrayList(page2);
+        assertEquals(taxCountries.size(), 1);
+        assertEquals(taxCountries.get(0).accountId, account3);
+        assertNull(page2.getNextOffset());
+    }
+
     @Test(groups = "fast")
     public void shouldListNoTaxCountry() {
         // Given
@@ -256,4 +294,31 @@ public class TestTaxCountryController {
         // Then
         verify(customFieldService).saveAccountField("FR", "taxCountry", accountId, tenantContext);
     }
+
+    @Test(groups = "fast")
+    public void shouldSaveTaxCountriesAndReportStatuses() {
+        // Given
+        UUID accountId = randomUUID();
+        UUID faultyAccountId = randomUUID();
+        List<TaxCountryRsc> taxCountries = newArrayList(new TaxCountryRsc(accountId, FR), null,
+                new TaxCountryRsc(faultyAccountId, US), new TaxCountryRsc(accountId, US));
+        when(customFieldService.saveAccountFields(ImmutableMap.of(accountId, "FR", faultyAccountId, "US"),
+                "taxCountry", tenantContext)).thenReturn(ImmutableMap.of(accountId, true, faultyAccountId, false));
+
+        // When
+        List<AccountUpdateStatusRsc> statuses = controller.saveAccountTaxCountries(taxCountries, tenant);
+
+        // Then
+        assertEquals(statuses.size(), 4);
+        assertStatus(statuses.get(0), 0, accountId, SAVED);
+        assertStatus(statuses.get(1), 1, null, INVALID);
+        assertStatus(statuses.get(2), 2, faultyAccountId, FAILED);
+        assertStatus(statuses.get(3), 3, accountId, DUPLICATE);
+    }
+
+    private static void assertStatus(AccountUpdateStatusRsc status, int index, UUID accountId, Status expected) {
+        assertEquals(status.index, index);
+        assertEquals(status.accountId, accountId);
+        assertEquals(status.status, expected);
+    }
 }
@@ -38,6 +38,7 @@ import org.killbill.billing.plugin.simpletax.internal.VATIN;
 import org.killbill.billing.tenant.api.Tenant;
 import org.killbill.billing.test.helpers.CustomFieldBuilder;
 import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.customfield.CustomField;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
@@ -102,30 +103,28 @@ public class TestVATINController {
     }
 
     @Test(groups = "fast")
-    public void shouldListVATINs() throws Exception {
+    public void shouldStreamVATINs() throws Exception {
         // Given
         UUID accountId = randomUUID();
         CustomFieldBuilder builder = new CustomFieldBuilder().withObjectId(accountId);
-        when(customFieldService.findAllAccountFieldsByFieldNameAndTenant(eq("VATIdNum"), eq(tenantContext)))//
-                .thenReturn(newArrayList(//
+        when(customFieldService.searchAccountFieldsByFieldNameAndTenant("VATIdNum", 0L, null, tenantContext))//
+                .thenReturn(ResultsPage.<CustomField> of(newArrayList(//
                         builder.withFieldName("VATIdNum").withFieldValue(FR_TEST6_NUM).build(),//
-                        builder.withFieldName("VATIdNum").withFieldValue(FR_TEST7_NUM).build()));
+                        builder.withFieldName("VATIdNum").withFieldValue(FR_TEST7_NUM).build()), null, null));
 
         // When
-        Object resources = controller.listVatins(null, tenant);
+        ResultsPage<VATINRsc> page = controller.streamVatins(tenant, 0L, null);
 
         // Then
-        assertNotNull(resources);
-        assertTrue(resources instanceof List);
-
-        List<VATINRsc> taxCountries = check((List<?>) resources, VATINRsc.class);
-        assertEquals(taxCountries.size(), 2);
+        assertNull(page.getNextOffset());
+        List<VATINRsc> vatins = newArrayList(page);
+        assertEquals(vatins.size(), 2);
 
-        VATINRsc vatin1 = taxCountries.get(0);
+        VATINRsc vatin1 = vatins.get(0);
         assertEquals(vatin1.accountId, accountId);
         assertEquals(vatin1.vatin, FR_TEST6);
 
-        VATINRsc vatin2 = taxCountries.get(1);
+        VATINRsc vatin2 = vatins.get(1);
         assertEquals(vatin2.accountId, accountId);
         assertEquals(vatin2.vatin, FR_TEST7);
     }
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.dao;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.io.Resources.getResource;
+import static java.util.UUID.randomUUID;
+import static org.killbill.billing.ObjectType.INVOICE_ITEM;
+import static org.killbill.billing.plugin.simpletax.internal.TaxCodeService.TAX_CODES_FIELD_NAME;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.test.helpers.CustomFieldBuilder;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.commons.embeddeddb.h2.H2EmbeddedDB;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.io.Resources;
+
+/**
+ * Tests for {@link TaxCodesDao}, against an embedded database.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestTaxCodesDao {
+
+    private static final DateTime NOW = new DateTime("2015-11-01T12:00:00Z");
+
+    private H2EmbeddedDB embeddedDB;
+    private TaxCodesDao dao;
+
+    private final UUID tenantId = randomUUID();
+    private final UUID accountId = randomUUID();
+    private final UUID invoiceA = randomUUID();
+    private final UUID invoiceB = randomUUID();
+    private final UUID itemA1 = randomUUID();
+    private final UUID itemA2 = randomUUID();
+    private final UUID itemB1 = randomUUID();
+
+    @BeforeClass(groups = "slow")
+    public void startDatabase() throws Exception {
+        embeddedDB = new H2EmbeddedDB();
+        embeddedDB.initialize();
+        embeddedDB.start();
+        embeddedDB.executeScript(Resources.toString(getResource("ddl.sql"), UTF_8));
+        embeddedDB.refreshTableNames();
+        dao = new TaxCodesDao(embeddedDB.getDataSource());
+    }
+
+    @BeforeMethod(groups = "slow")
+    public void cleanupTables() throws Exception {
+        embeddedDB.cleanupAllTables();
+    }
+
+    @AfterClass(groups = "slow")
+    public void stopDatabase() throws Exception {
+        embeddedDB.stop();
+    }
+
+    private static CustomField taxField(UUID invoiceItemId, String taxCodes) {
+        return new CustomFieldBuilder()//
+                .withObjectType(INVOICE_ITEM).withObjectId(invoiceItemId)//
+                .withFieldName(TAX_CODES_FIELD_NAME).withFieldValue(taxCodes)//
+                .build();
+    }
+
+    private static Set<String> taxCodesOf(SetMultimap<UUID, CustomField> taxFields, UUID invoiceId) {
+        ImmutableSet.Builder<String> taxCodes = ImmutableSet.builder();
+        for (CustomField field : taxFields.get(invoiceId)) {
+            taxCodes.add(field.getObjectId() + "=" + field.getFieldValue());
+        }
+        return taxCodes.build();
+    }
+
+    @Test(groups = "slow")
+    public void shouldReadTaxCodesOfRequestedInvoicesOnly() throws Exception {
+        // Given
+        dao.saveTaxCodes(tenantId, accountId, invoiceA, ImmutableMap.of(itemA1, "VAT_20", itemA2, "VAT_5_5"), NOW);
+        dao.saveTaxCodes(tenantId, accountId, invoiceB, ImmutableMap.of(itemB1, "VAT_20"), NOW);
+
+        // When
+        SetMultimap<UUID, CustomField> taxFields = dao.getTaxFieldsOfInvoices(tenantId, ImmutableList.of(invoiceA));
+
+        // Then
+        assertEquals(taxFields.keySet(), ImmutableSet.of(invoiceA));
+        assertEquals(taxCodesOf(taxFields, invoiceA), ImmutableSet.of(itemA1 + "=VAT_20", itemA2 + "=VAT_5_5"));
+        for (CustomField field : taxFields.values()) {
+            assertEquals(field.getObjectType(), INVOICE_ITEM);
+            assertEquals(field.getFieldName(), TAX_CODES_FIELD_NAME);
+        }
+    }
+
+    @Test(groups = "slow")
+    public void shouldNotReadTaxCodesOfOtherTenants() throws Exception {
+        // Given
+        dao.saveTaxCodes(tenantId, accountId, invoiceA, ImmutableMap.of(itemA1, "VAT_20"), NOW);
+
+        // Expect
+        assertTrue(dao.getTaxFieldsOfInvoices(randomUUID(), ImmutableList.of(invoiceA)).isEmpty());
+    }
+
+    @Test(groups = "slow")
+    public void shouldReplaceTaxCodesOfInvoiceItems() throws Exception {
+        // Given
+        dao.saveTaxCodes(tenantId, accountId, invoiceA, ImmutableMap.of(itemA1, "VAT_20"), NOW);
+
+        // When
+        dao.saveTaxCodes(tenantId, accountId, invoiceA, ImmutableMap.of(itemA1, "VAT_10", itemA2, "VAT_20"),
+                NOW.plusDays(1));
+
+        // Then
+        SetMultimap<UUID, CustomField> taxFields = dao.getTaxFieldsOfInvoices(tenantId, ImmutableList.of(invoiceA));
+        assertEquals(taxCodesOf(taxFields, invoiceA), ImmutableSet.of(itemA1 + "=VAT_10", itemA2 + "=VAT_20"));
+    }
+
+    @Test(groups = "slow")
+    public void shouldReadTaxCodesOfManyInvoices() throws Exception {
+        // Given
+        ImmutableList.Builder<UUID> builder = ImmutableList.builder();
+        for (int i = 0; i < 250; i++) {
+            UUID invoiceId = randomUUID();
+            dao.saveTaxCodes(tenantId, accountId, invoiceId, ImmutableMap.of(randomUUID(), "VAT_20"), NOW);
+            builder.add(invoiceId);
+        }
+        List<UUID> invoiceIds = builder.build();
+
+        // When
+        SetMultimap<UUID, CustomField> taxFields = dao.getTaxFieldsOfInvoices(tenantId, invoiceIds);
+
+        // Then
+        assertEquals(taxFields.keySet(), ImmutableSet.copyOf(invoiceIds));
+        assertEquals(taxFields.size(), 250);
+    }
+
+    @Test(groups = "slow")
+    public void shouldBackfillTaxCodesOfAccountFromCustomFields() throws Exception {
+        // Given
+        dao.saveTaxCodes(tenantId, accountId, invoiceA, ImmutableMap.of(itemA1, "stale", itemA2, "stale"), NOW);
+        SetMultimap<UUID, CustomField> customFields = ImmutableSetMultimap.of(//
+                invoiceA, taxField(itemA1, "VAT_20"),//
+                invoiceB, taxField(itemB1, "VAT_5_5"));
+
+        // When
+        dao.replaceTaxCodesOfAccount(tenantId, accountId, customFields, NOW.plusDays(1));
+
+        // Then
+        SetMultimap<UUID, CustomField> taxFields = dao.getTaxFieldsOfInvoices(tenantId,
+                ImmutableList.of(invoiceA, invoiceB));
+        assertEquals(taxCodesOf(taxFields, invoiceA), ImmutableSet.of(itemA1 + "=VAT_20"));
+        assertEquals(taxCodesOf(taxFields, invoiceB), ImmutableSet.of(itemB1 + "=VAT_5_5"));
+    }
+
+    @Test(groups = "slow")
+    public void shouldBackfillOneRowForItemsWithSeveralTaxFields() throws Exception {
+        // Given
+        SetMultimap<UUID, CustomField> customFields = ImmutableSetMultimap.of(//
+                invoiceA, taxField(itemA1, "VAT_20"),//
+                invoiceA, taxField(itemA1, "VAT_5_5, VAT_20"),//
+                invoiceA, taxField(itemA2, ""));
+
+        // When
+        dao.replaceTaxCodesOfAccount(tenantId, accountId, customFields, NOW);
+
+        // Then
+        SetMultimap<UUID, CustomField> taxFields = dao.getTaxFieldsOfInvoices(tenantId, ImmutableList.of(invoiceA));
+        assertEquals(taxCodesOf(taxFields, invoiceA), ImmutableSet.of(itemA1 + "=VAT_20, VAT_5_5", itemA2 + "="));
+    }
+
+    @Test(groups = "slow")
+    public void shouldSyncExistingRowsOfAccountWithCustomFields() throws Exception {
+        // Given
+        dao.saveTaxCodes(tenantId, accountId, invoiceA, ImmutableMap.of(itemA1, "VAT_20", itemA2, "VAT_5_5"), NOW);
+        dao.saveTaxCodes(tenantId, accountId, invoiceB, ImmutableMap.of(itemB1, "VAT_20"), NOW);
+        UUID itemWithoutRow = randomUUID();
+
+        // When
+        int updated = dao.syncTaxCodesOfAccount(tenantId, accountId, ImmutableList.of(//
+                taxField(itemA1, "VAT_10"),//
+                taxField(itemB1, "VAT_20"),//
+                taxField(itemWithoutRow, "VAT_20")), NOW.plusDays(1));
+
+        // Then
+        assertEquals(updated, 2);
+        SetMultimap<UUID, CustomField> taxFields = dao.getTaxFieldsOfInvoices(tenantId,
+                ImmutableList.of(invoiceA, invoiceB));
+        assertEquals(taxCodesOf(taxFields, invoiceA), ImmutableSet.of(itemA1 + "=VAT_10", itemA2 + "="));
+        assertEquals(taxCodesOf(taxFields, invoiceB), ImmutableSet.of(itemB1 + "=VAT_20"));
+        assertEquals(taxFields.size(), 3);
+    }
+
+    @Test(groups = "slow")
+    public void shouldUpdateAndResolveOnlyInvoiceItemsWithRows() throws Exception {
+        // Given
+        dao.saveTaxCodes(tenantId, accountId, invoiceA, ImmutableMap.of(itemA1, "VAT_20"), NOW);
+
+        // When
+        boolean updated = dao.updateTaxCodesOfInvoiceItem(tenantId, itemA1, "VAT_10", NOW.plusDays(1));
+        boolean inserted = dao.updateTaxCodesOfInvoiceItem(tenantId, itemA2, "VAT_10", NOW.plusDays(1));
+
+        // Then
+        assertTrue(updated);
+        assertFalse(inserted);
+        SetMultimap<UUID, CustomField> taxFields = dao.getTaxFieldsOfInvoices(tenantId, ImmutableList.of(invoiceA));
+        assertEquals(taxCodesOf(taxFields, invoiceA), ImmutableSet.of(itemA1 + "=VAT_10"));
+        assertEquals(dao.getInvoiceIdOfInvoiceItem(tenantId, itemA1), invoiceA);
+        assertNull(dao.getInvoiceIdOfInvoiceItem(tenantId, itemA2));
+        assertNull(dao.getInvoiceIdOfInvoiceItem(randomUUID(), itemA1));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static java.math.BigDecimal.ONE;
+import static java.math.BigDecimal.TEN;
+import static java.util.UUID.randomUUID;
+import static org.killbill.billing.catalog.api.Currency.EUR;
+import static org.killbill.billing.invoice.api.InvoiceItemType.EXTERNAL_CHARGE;
+import static org.killbill.billing.invoice.api.InvoiceItemType.ITEM_ADJ;
+import static org.killbill.billing.invoice.api.InvoiceItemType.TAX;
+import static org.killbill.billing.plugin.TestUtils.buildAccount;
+import static org.killbill.billing.test.helpers.Promise.holder;
+import static org.killbill.billing.test.helpers.TestUtil.assertEqualsIgnoreScale;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.math.BigDecimal;
+
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.test.helpers.InvoiceBuilder;
+import org.killbill.billing.test.helpers.InvoiceItemBuilder;
+import org.killbill.billing.test.helpers.Promise;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests for {@link AccountInvoiceIndex}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestAccountInvoiceIndex {
+
+    private Account account = buildAccount(EUR, "FR");
+
+    private Promise<InvoiceItem> taxable = holder();
+    private Promise<InvoiceItem> tax = holder();
+    private Promise<InvoiceItem> adjustment = holder();
+    private Promise<InvoiceItem> strayTax = holder();
+
+    private Invoice invoice, otherInvoice;
+
+    private AccountInvoiceIndex index;
+
+    @BeforeClass(groups = "fast")
+    public void init() {
+        invoice = new InvoiceBuilder(account)//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(EXTERNAL_CHARGE).withAmount(TEN).thenSaveTo(taxable))//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(TAX).withLinkedItem(taxable).withAmount(new BigDecimal("2.00")).thenSaveTo(tax))//
+                .build();
+        otherInvoice = new InvoiceBuilder(account)//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(ITEM_ADJ).withLinkedItem(taxable).withAmount(ONE.negate())//
+                        .thenSaveTo(adjustment))//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(TAX).withLinkedItem(taxable).withAmount(ONE).thenSaveTo(strayTax))//
+                .build();
+
+        AccountInvoiceIndex.Builder builder = AccountInvoiceIndex.builder();
+        for (Invoice inv : ImmutableList.of(invoice, otherInvoice)) {
+            for (InvoiceItem item : inv.getInvoiceItems()) {
+                builder.withItem(inv, item);
+            }
+        }
+        index = builder//
+                .withTaxableItem(invoice, taxable.get())//
+                .withTaxItem(invoice, tax.get())//
+                .withAdjustment(adjustment.get())//
+                .withTaxItem(otherInvoice, strayTax.get())//
+                .build();
+    }
+
+    @Test(groups = "fast")
+    public void shouldFindInvoiceOfItems() {
+        // Expect
+        assertSame(index.getInvoiceOf(taxable.get().getId()), invoice);
+        assertSame(index.getInvoiceOf(adjustment.get().getId()), otherInvoice);
+        assertNull(index.getInvoiceOf(randomUUID()));
+    }
+
+    @Test(groups = "fast")
+    public void shouldListTaxableItemsOfInvoices() {
+        // Expect
+        assertEquals(index.getTaxableItemsOf(invoice), ImmutableList.of(taxable.get()));
+        assertTrue(index.getTaxableItemsOf(otherInvoice).isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void shouldGroupAdjustmentsOfAllInvoices() {
+        // Expect
+        assertEquals(index.getAllAdjustments().get(taxable.get().getId()), ImmutableSet.of(adjustment.get()));
+    }
+
+    @Test(groups = "fast")
+    public void shouldOnlyRelateTaxItemsOfTheSameInvoice() {
+        // Expect
+        assertEquals(index.getTaxItemsOf(taxable.get()), ImmutableSet.of(tax.get()));
+        assertTrue(index.getTaxItemsOf(tax.get()).isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void shouldPrecomputeAdjustedAmountsOfTaxableAndTaxItems() {
+        // When
+        BigDecimal adjustedAmount = index.getAdjustedAmount(taxable.get());
+
+        // Then
+        assertEqualsIgnoreScale(adjustedAmount, new BigDecimal("9"));
+        assertSame(index.getAdjustedAmount(taxable.get()), adjustedAmount);
+        assertSame(index.getAdjustedAmount(tax.get()), index.getAdjustedAmount(tax.get()));
+    }
+
+    @Test(groups = "fast")
+    public void shouldComputeAdjustedAmountsOfOtherItems() {
+        // Expect
+        assertEqualsIgnoreScale(index.getAdjustedAmount(adjustment.get()), ONE.negate());
+    }
+}
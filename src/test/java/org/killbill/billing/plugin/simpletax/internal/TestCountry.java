@@ -21,6 +21,7 @@ import static java.util.Locale.FRENCH;
 import static org.killbill.billing.test.helpers.TestUtil.shortIdentityToString;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 
 import org.testng.annotations.DataProvider;
@@ -35,7 +36,7 @@ public class TestCountry {
     private static final Object[][] LEGAL_COUNTRY_CODES = { { "FR" }, { "BE" }, { "CA" }, { "CH" }, { "MA" }, { "DZ" },
             { "TN" }, { "CD" }, { "MU" } };
     private static final Object[][] ILLEGAL_COUNTRY_CODES = { { "" }, { " " }, { "\t" }, { "toto" }, { ".." },
-            { "??" }, { "**" }, { " FR" }, { "FR\t" }, { "FRA" } };
+            { "??" }, { "**" }, { " FR" }, { "FR\t" }, { "FRA" }, { "fr" }, { "ZZ" }, { "F[" } };
 
     private static final Country US = new Country("US");
     private static final Country FR = new Country("FR");
@@ -56,6 +57,26 @@ public class TestCountry {
         new Country(illegalCountryCode);
     }
 
+    @Test(groups = "fast", dataProvider = "illegalCountryCodes", expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectIllegalCanonicalCountryCodes(String illegalCountryCode) {
+        // Expect exception
+        Country.of(illegalCountryCode);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectNullCountryCode() {
+        // Expect exception
+        Country.of(null);
+    }
+
+    @Test(groups = "fast", dataProvider = "legalCountryCodes")
+    public void shouldReturnCanonicalCountries(String legalCountryCode) {
+        // Expect
+        assertSame(Country.of(legalCountryCode), Country.of(legalCountryCode));
+        assertEquals(Country.of(legalCountryCode), new Country(legalCountryCode));
+        assertEquals(Country.of(legalCountryCode).getCode(), legalCountryCode);
+    }
+
     @Test(groups = "fast", dataProvider = "legalCountryCodes")
     public void shouldReturnCountryCode(String legalCountryCode) {
         // Expect
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static org.killbill.billing.ErrorCode.CAT_NO_SUCH_PLAN;
+import static org.killbill.billing.ErrorCode.UNEXPECTED_ERROR;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import org.killbill.billing.catalog.api.CatalogApiException;
+import org.killbill.billing.catalog.api.Plan;
+import org.killbill.billing.catalog.api.Product;
+import org.killbill.billing.catalog.api.StaticCatalog;
+import org.killbill.billing.plugin.simpletax.util.CheckedSupplier;
+import org.mockito.Mock;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link PlanProductCache}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestPlanProductCache {
+
+    @Mock
+    private CheckedSupplier<StaticCatalog, CatalogApiException> catalog;
+    @Mock
+    private StaticCatalog staticCatalog;
+    @Mock
+    private Plan plan;
+    @Mock
+    private Product product;
+
+    private PlanProductCache cache;
+
+    @BeforeMethod(groups = "fast")
+    public void setup() throws Exception {
+        initMocks(this);
+        when(catalog.get()).thenReturn(staticCatalog);
+        when(staticCatalog.findCurrentPlan("plan")).thenReturn(plan);
+        when(staticCatalog.findCurrentPlan("boom")).thenThrow(new CatalogApiException(CAT_NO_SUCH_PLAN, "boom"));
+        when(plan.getProduct()).thenReturn(product);
+        when(product.getName()).thenReturn("product");
+
+        cache = new PlanProductCache();
+    }
+
+    @Test(groups = "fast")
+    public void shouldCacheProductNames() throws Exception {
+        // When
+        String first = cache.findProductName("plan", catalog);
+        String second = cache.findProductName("plan", catalog);
+
+        // Then
+        assertEquals(first, "product");
+        assertEquals(second, "product");
+        verify(catalog).get();
+        verify(staticCatalog).findCurrentPlan("plan");
+    }
+
+    @Test(groups = "fast")
+    public void shouldCachePlansNotFound() throws Exception {
+        // When
+        String first = cache.findProductName("boom", catalog);
+        String second = cache.findProductName("boom", catalog);
+
+        // Then
+        assertNull(first);
+        assertNull(second);
+        verify(staticCatalog).findCurrentPlan("boom");
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotCacheUnavailableCatalog() throws Exception {
+        // Given
+        when(catalog.get()).thenThrow(new CatalogApiException(UNEXPECTED_ERROR, ""))//
+                .thenReturn(staticCatalog);
+
+        // When
+        String first = cache.findProductName("plan", catalog);
+        String second = cache.findProductName("plan", catalog);
+
+        // Then
+        assertNull(first);
+        assertEquals(second, "product");
+        verify(catalog, times(2)).get();
+    }
+
+    @Test(groups = "fast")
+    public void shouldReloadProductNamesOnceInvalidated() throws Exception {
+        // Given
+        cache.findProductName("plan", catalog);
+
+        // When
+        cache.invalidateAll();
+        String productName = cache.findProductName("plan", catalog);
+
+        // Then
+        assertEquals(productName, "product");
+        verify(staticCatalog, times(2)).findCurrentPlan("plan");
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.killbill.billing.test.helpers.TaxCodeBuilder;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests for {@link ProductTaxCodes}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestProductTaxCodes {
+
+    private static final Country FR = new Country("FR");
+    private static final Country US = new Country("US");
+    private static final Country DE = new Country("DE");
+
+    private final TaxCode anywhere = new TaxCodeBuilder().withName("anywhere").build();
+    private final TaxCode inFrance = new TaxCodeBuilder().withName("inFrance").withCountry(FR).build();
+    private final TaxCode inUSA = new TaxCodeBuilder().withName("inUSA").withCountry(US).build();
+
+    @Test(groups = "fast")
+    public void shouldPartitionTaxCodesByCountryInOriginalOrder() {
+        // When
+        ProductTaxCodes taxCodes = ProductTaxCodes.of(ImmutableList.of(inFrance, anywhere, inUSA));
+
+        // Then
+        assertEquals(taxCodes.getCountries(), ImmutableSet.of(FR, US));
+        assertEquals(ImmutableList.copyOf(taxCodes.inCountry(FR)), ImmutableList.of(inFrance, anywhere));
+        assertEquals(ImmutableList.copyOf(taxCodes.inCountry(US)), ImmutableList.of(anywhere, inUSA));
+    }
+
+    @Test(groups = "fast")
+    public void shouldOnlyKeepCountryLessTaxCodesForOtherCountries() {
+        // Given
+        ProductTaxCodes taxCodes = ProductTaxCodes.of(ImmutableList.of(inFrance, anywhere, inUSA));
+
+        // Expect
+        assertEquals(ImmutableList.copyOf(taxCodes.inCountry(DE)), ImmutableList.of(anywhere));
+        assertEquals(ImmutableList.copyOf(taxCodes.inCountry(null)), ImmutableList.of(anywhere));
+    }
+
+    @Test(groups = "fast")
+    public void shouldHaveNoTaxCodesWhenEmpty() {
+        // Expect
+        assertTrue(ProductTaxCodes.empty().getCountries().isEmpty());
+        assertTrue(ProductTaxCodes.empty().inCountry(FR).isEmpty());
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static java.math.BigDecimal.ONE;
+import static java.math.BigDecimal.TEN;
+import static org.killbill.billing.ObjectType.INVOICE_ITEM;
+import static org.killbill.billing.catalog.api.Currency.EUR;
+import static org.killbill.billing.invoice.api.InvoiceItemType.EXTERNAL_CHARGE;
+import static org.killbill.billing.invoice.api.InvoiceItemType.ITEM_ADJ;
+import static org.killbill.billing.invoice.api.InvoiceItemType.TAX;
+import static org.killbill.billing.plugin.TestUtils.buildAccount;
+import static org.killbill.billing.plugin.simpletax.internal.ReconciliationWatermark.fingerprint;
+import static org.killbill.billing.plugin.simpletax.internal.TaxCodeService.TAX_CODES_FIELD_NAME;
+import static org.killbill.billing.test.helpers.Promise.holder;
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.UUID;
+
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.test.helpers.CustomFieldBuilder;
+import org.killbill.billing.test.helpers.InvoiceBuilder;
+import org.killbill.billing.test.helpers.InvoiceItemBuilder;
+import org.killbill.billing.test.helpers.Promise;
+import org.killbill.billing.util.customfield.CustomField;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * Tests for {@link ReconciliationWatermark}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestReconciliationWatermark {
+
+    private static final ImmutableSetMultimap<UUID, InvoiceItem> NO_ADJUSTMENTS = ImmutableSetMultimap.of();
+    private static final List<CustomField> NO_FIELDS = ImmutableList.of();
+
+    private SimpleTaxConfig cfg = mock(SimpleTaxConfig.class);
+
+    private Account account = buildAccount(EUR, "FR");
+
+    private Promise<InvoiceItem> taxable;
+    private Invoice invoice;
+    private InvoiceItem adjustment;
+    private CustomField taxField;
+
+    @BeforeMethod(groups = "fast")
+    public void setup() {
+        taxable = holder();
+        invoice = new InvoiceBuilder(account)//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(EXTERNAL_CHARGE).withAmount(TEN).thenSaveTo(taxable))//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(TAX).withLinkedItem(taxable).withAmount(new BigDecimal("2.00")))//
+                .build();
+
+        Invoice otherInvoice = new InvoiceBuilder(account)//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(ITEM_ADJ).withLinkedItem(taxable).withAmount(ONE.negate()))//
+                .build();
+        adjustment = otherInvoice.getInvoiceItems().get(0);
+
+        taxField = new CustomFieldBuilder()//
+                .withObjectType(INVOICE_ITEM).withObjectId(taxable.get().getId())//
+                .withFieldName(TAX_CODES_FIELD_NAME).withFieldValue("VAT_20_0%")//
+                .build();
+    }
+
+    private Multimap<UUID, InvoiceItem> adjustments(InvoiceItem... adjustments) {
+        ImmutableSetMultimap.Builder<UUID, InvoiceItem> builder = ImmutableSetMultimap.builder();
+        for (InvoiceItem adj : adjustments) {
+            builder.put(adj.getLinkedItemId(), adj);
+        }
+        return builder.build();
+    }
+
+    @Test(groups = "fast")
+    public void shouldComputeSameFingerprintForSameInvoice() {
+        // Expect
+        assertEquals(fingerprint(invoice, adjustments(adjustment), ImmutableList.of(taxField)),
+                fingerprint(invoice, adjustments(adjustment), ImmutableList.of(taxField)));
+    }
+
+    @Test(groups = "fast")
+    public void shouldChangeFingerprintWhenAdjustmentsChange() {
+        // Given
+        long before = fingerprint(invoice, NO_ADJUSTMENTS, NO_FIELDS);
+
+        // When
+        long after = fingerprint(invoice, adjustments(adjustment), NO_FIELDS);
+
+        // Then
+        assertNotEquals(after, before);
+    }
+
+    @Test(groups = "fast")
+    public void shouldChangeFingerprintWhenTaxCodesChange() {
+        // Given
+        CustomField otherTaxField = new CustomFieldBuilder()//
+                .withObjectType(INVOICE_ITEM).withObjectId(taxable.get().getId())//
+                .withFieldName(TAX_CODES_FIELD_NAME).withFieldValue("VAT_19_6%")//
+                .build();
+        long noTaxCodes = fingerprint(invoice, NO_ADJUSTMENTS, NO_FIELDS);
+        long someTaxCodes = fingerprint(invoice, NO_ADJUSTMENTS, ImmutableList.of(taxField));
+
+        // When
+        long otherTaxCodes = fingerprint(invoice, NO_ADJUSTMENTS, ImmutableList.of(otherTaxField));
+
+        // Then
+        assertNotEquals(someTaxCodes, noTaxCodes);
+        assertNotEquals(otherTaxCodes, noTaxCodes);
+        assertNotEquals(otherTaxCodes, someTaxCodes);
+    }
+
+    @Test(groups = "fast")
+    public void shouldChangeFingerprintWhenItemsChange() {
+        // Given
+        long before = fingerprint(invoice, NO_ADJUSTMENTS, NO_FIELDS);
+
+        // When
+        invoice.getInvoiceItems().add(new InvoiceItemBuilder().withInvoice(invoice)//
+                .withType(ITEM_ADJ).withLinkedItem(taxable).withAmount(ONE.negate()).build());
+        long after = fingerprint(invoice, NO_ADJUSTMENTS, NO_FIELDS);
+
+        // Then
+        assertNotEquals(after, before);
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotDependOnTheOrderOfTaxFields() {
+        // Given
+        CustomField otherField = new CustomFieldBuilder()//
+                .withObjectType(INVOICE_ITEM).withObjectId(invoice.getInvoiceItems().get(1).getId())//
+                .withFieldName(TAX_CODES_FIELD_NAME).withFieldValue("VAT_5_5%")//
+                .build();
+
+        // Expect
+        assertEquals(fingerprint(invoice, NO_ADJUSTMENTS, ImmutableList.of(taxField, otherField)),
+                fingerprint(invoice, NO_ADJUSTMENTS, ImmutableList.of(otherField, taxField)));
+    }
+
+    @Test(groups = "fast")
+    public void shouldRememberReconciledInvoicesUntilTheyChange() {
+        // Given
+        ReconciliationWatermark watermark = new ReconciliationWatermark(cfg);
+        long fingerprint = fingerprint(invoice, NO_ADJUSTMENTS, NO_FIELDS);
+
+        // Expect
+        assertFalse(watermark.isReconciled(invoice, fingerprint));
+
+        watermark.markReconciled(invoice, fingerprint);
+        assertTrue(watermark.isReconciled(invoice, fingerprint));
+        assertFalse(watermark.isReconciled(invoice, fingerprint(invoice, adjustments(adjustment), NO_FIELDS)));
+
+        watermark.markUnreconciled(invoice);
+        assertFalse(watermark.isReconciled(invoice, fingerprint));
+    }
+
+    @Test(groups = "fast")
+    public void shouldRequireFullSweepPeriodically() {
+        // Given
+        ReconciliationWatermark watermark = new ReconciliationWatermark(cfg);
+
+        // Expect
+        assertFalse(watermark.startRun(3));
+        assertFalse(watermark.startRun(3));
+        assertTrue(watermark.startRun(3));
+        assertFalse(watermark.startRun(3));
+        assertFalse(watermark.startRun(3));
+        assertTrue(watermark.startRun(3));
+
+        assertTrue(watermark.startRun(1));
+        assertTrue(watermark.startRun(1));
+    }
+
+    @Test(groups = "fast")
+    public void shouldNeverRequireFullSweepWhenDisabled() {
+        // Given
+        ReconciliationWatermark watermark = new ReconciliationWatermark(cfg);
+
+        // Expect
+        for (int run = 0; run < 100; run++) {
+            assertFalse(watermark.startRun(0));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void shouldBecomeObsoleteWithAnotherConfig() {
+        // Given
+        ReconciliationWatermark watermark = new ReconciliationWatermark(cfg);
+
+        // Expect
+        assertFalse(watermark.isObsoleteFor(cfg));
+        assertTrue(watermark.isObsoleteFor(mock(SimpleTaxConfig.class)));
+        assertTrue(watermark.isObsoleteFor(null));
+    }
+}
@@ -95,6 +95,19 @@ public class TestTaxCode {
         assertFalse(taxE.equals(taxD2));
     }
 
+    @Test(groups = "fast")
+    public void shouldComputeSameHashCodeIgnoringScale() {
+        // Given
+        TaxCode taxD1 = new TaxCodeBuilder().withRate(new BigDecimal("0.1")).build();
+        TaxCode taxD2 = new TaxCodeBuilder().withRate(new BigDecimal("0.100")).build();
+        TaxCode taxZ1 = new TaxCodeBuilder().withRate(new BigDecimal("0.0")).build();
+        TaxCode taxZ2 = new TaxCodeBuilder().withRate(new BigDecimal("0.00")).build();
+
+        // Expect
+        assertEquals(taxD1.hashCode(), taxD2.hashCode());
+        assertEquals(taxZ1.hashCode(), taxZ2.hashCode());
+    }
+
     @Test(groups = "fast")
     public void shouldComputeHashCode() {
         // Expect
@@ -32,6 +32,7 @@ import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
 
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
 
@@ -50,12 +51,14 @@ import org.killbill.billing.test.helpers.Promise;
 import org.killbill.billing.test.helpers.TaxCodeBuilder;
 import org.killbill.billing.util.customfield.CustomField;
 import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
@@ -125,6 +128,7 @@ public class TestTaxCodeService {
         });
 
         taxCodeService = new TaxCodeService(catalog, cfg, taxFieldsOfInvoices);
+        withTaxes(taxCfg());
 
         invoice = new InvoiceBuilder(account)//
                 .withItem(item().withPlanName(null))//
@@ -145,7 +149,7 @@ public class TestTaxCodeService {
                 .put(taxB.getName(), taxB)//
                 .put(taxC.getName(), taxC)//
                 .build();
-        when(cfg.findTaxCodes(anyString(), anyString())).then(new Answer<Set<TaxCode>>() {
+        when(cfg.findTaxCodes(anyString(), Matchers.<Supplier<String>> any())).then(new Answer<Set<TaxCode>>() {
             @Override
             public Set<TaxCode> answer(InvocationOnMock invocation) throws Throwable {
                 String names = (String) invocation.getArguments()[0];
@@ -164,16 +168,24 @@ public class TestTaxCodeService {
 
     private void withTaxes(ImmutableSetMultimap.Builder<String, TaxCode> taxCodesOfProducts) {
         final SetMultimap<String, TaxCode> configuredTaxCodes = taxCodesOfProducts.build();
-        when(cfg.getConfiguredTaxCodes(anyString())).then(new Answer<Set<TaxCode>>() {
+        when(cfg.getConfiguredTaxCodes(anyString(), Matchers.<Country> any())).then(new Answer<TaxCodeTimeline>() {
             @Override
-            public Set<TaxCode> answer(InvocationOnMock invocation) throws Throwable {
+            public TaxCodeTimeline answer(InvocationOnMock invocation) throws Throwable {
                 String productName = (String) invocation.getArguments()[0];
-                Set<TaxCode> taxCodes = configuredTaxCodes.get(productName);
-                return taxCodes == null ? ImmutableSet.<TaxCode> of() : taxCodes;
+                return TaxCodeTimeline.of(configuredTaxCodes.get(productName));
             }
         });
     }
 
+    private SetMultimap<UUID, TaxCode> resolveTaxCodesFromConfig(Invoice invoice) {
+        ImmutableSetMultimap.Builder<UUID, TaxCode> taxCodesOfInvoiceItems = ImmutableSetMultimap.builder();
+        for (Entry<UUID, TaxCodeTimeline> taxCodes : taxCodeService.resolveTaxCodesFromConfig(invoice, null)
+                .entrySet()) {
+            taxCodesOfInvoiceItems.putAll(taxCodes.getKey(), taxCodes.getValue());
+        }
+        return taxCodesOfInvoiceItems.build();
+    }
+
     @Test(groups = "fast")
     public void shouldBeInstanciable() {
         // Expect
@@ -190,7 +202,7 @@ public class TestTaxCodeService {
                 .build();
 
         // Expect
-        assertEquals(taxCodeService.resolveTaxCodesFromConfig(invoice), EMPTY_TAX_CODES);
+        assertEquals(resolveTaxCodesFromConfig(invoice), EMPTY_TAX_CODES);
     }
 
     @Test(groups = "fast")
@@ -201,7 +213,7 @@ public class TestTaxCodeService {
                 .build();
 
         // Expect
-        assertEquals(taxCodeService.resolveTaxCodesFromConfig(invoice), EMPTY_TAX_CODES);
+        assertEquals(resolveTaxCodesFromConfig(invoice), EMPTY_TAX_CODES);
     }
 
     @Test(groups = "fast")
@@ -212,7 +224,7 @@ public class TestTaxCodeService {
                 .build();
 
         // Expect
-        assertEquals(taxCodeService.resolveTaxCodesFromConfig(invoice), EMPTY_TAX_CODES);
+        assertEquals(resolveTaxCodesFromConfig(invoice), EMPTY_TAX_CODES);
     }
 
     @Test(groups = "fast")
@@ -223,7 +235,7 @@ public class TestTaxCodeService {
                 .build();
 
         // Expect
-        assertEquals(taxCodeService.resolveTaxCodesFromConfig(invoice), EMPTY_TAX_CODES);
+        assertEquals(resolveTaxCodesFromConfig(invoice), EMPTY_TAX_CODES);
     }
 
     @Test(groups = "fast")
@@ -234,7 +246,7 @@ public class TestTaxCodeService {
                 .putAll("plan3-product", asList(taxA, taxB, taxC)));
 
         // When
-        SetMultimap<UUID, TaxCode> taxCodesOfInvoiceItems = taxCodeService.resolveTaxCodesFromConfig(invoice);
+        SetMultimap<UUID, TaxCode> taxCodesOfInvoiceItems = resolveTaxCodesFromConfig(invoice);
 
         // Then
         assertEquals(taxCodesOfInvoiceItems, ImmutableSetMultimap.<UUID, TaxCode> builder()//
@@ -243,6 +255,30 @@ public class TestTaxCodeService {
                 .build());
     }
 
+    @Test(groups = "fast")
+    public void shouldResolveTaxCodesOfAccountCountry() {
+        // Given
+        final Country fr = new Country("FR");
+        final TaxCodeTimeline frTaxCodes = TaxCodeTimeline.of(asList(taxA, taxB));
+        when(cfg.getConfiguredTaxCodes(anyString(), Matchers.<Country> any())).then(new Answer<TaxCodeTimeline>() {
+            @Override
+            public TaxCodeTimeline answer(InvocationOnMock invocation) throws Throwable {
+                String productName = (String) invocation.getArguments()[0];
+                Country country = (Country) invocation.getArguments()[1];
+                if ("plan1-product".equals(productName) && fr.equals(country)) {
+                    return frTaxCodes;
+                }
+                return TaxCodeTimeline.of(ImmutableSet.<TaxCode> of());
+            }
+        });
+
+        // When
+        Map<UUID, TaxCodeTimeline> taxCodesOfInvoiceItems = taxCodeService.resolveTaxCodesFromConfig(invoice, fr);
+
+        // Then
+        assertEquals(taxCodesOfInvoiceItems, ImmutableMap.of(item1.get().getId(), frTaxCodes));
+    }
+
     /* *************** Tests for findExistingTaxCodes() *************** */
 
     private static final int MAX_UUID_SEARCH_ITERATIONS = 1000;
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.test.helpers.TaxCodeBuilder;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests for {@link TaxCodeTimeline}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestTaxCodeTimeline {
+
+    private static final long SEED = 0x7113L;
+
+    private final LocalDate day1 = new LocalDate("2014-01-01");
+    private final LocalDate day2 = new LocalDate("2015-01-01");
+    private final LocalDate day3 = new LocalDate("2016-01-01");
+
+    private TaxCode code(String name, LocalDate startingOn, LocalDate stoppingOn) {
+        return new TaxCodeBuilder().withName(name).withStartingOn(startingOn).withStoppingOn(stoppingOn).build();
+    }
+
+    @Test(groups = "fast")
+    public void shouldFindApplicableCodesOfConsecutivePeriods() {
+        // Given
+        TaxCode old = code("old", null, day1);
+        TaxCode current = code("current", day1, day2);
+        TaxCode next = code("next", day3, null);
+        TaxCodeTimeline timeline = TaxCodeTimeline.of(ImmutableList.of(next, old, current));
+
+        // Expect
+        assertFalse(timeline.hasOverlaps());
+        assertEquals(timeline.find(day1.minusDays(1)), old);
+        assertEquals(timeline.find(day1), current);
+        assertEquals(timeline.find(day2.minusDays(1)), current);
+        assertNull(timeline.find(day2));
+        assertEquals(timeline.find(day3.plusYears(10)), next);
+    }
+
+    @Test(groups = "fast")
+    public void shouldIterateInOriginalOrder() {
+        // Given
+        List<TaxCode> codes = ImmutableList.of(code("b", day2, null), code("a", null, day2));
+
+        // Expect
+        assertEquals(ImmutableList.copyOf(TaxCodeTimeline.of(codes)), codes);
+    }
+
+    @Test(groups = "fast")
+    public void shouldDetectOverlapsAndFavorFirstApplicableCode() {
+        // Given
+        TaxCode forever = code("forever", null, null);
+        TaxCode nested = code("nested", day2, day3);
+        TaxCode early = code("early", null, day1);
+        TaxCodeTimeline timeline = TaxCodeTimeline.of(ImmutableList.of(nested, forever, early));
+
+        // Expect
+        assertTrue(timeline.hasOverlaps());
+        assertEquals(timeline.getOverlappingCodes(), ImmutableSet.of(early, forever, nested));
+        assertEquals(timeline.find(day2), nested);
+        assertEquals(timeline.find(day1.minusDays(1)), forever);
+    }
+
+    @Test(groups = "fast")
+    public void shouldIgnoreEmptyPeriodsWhenDetectingOverlaps() {
+        // Given
+        TaxCode empty = code("empty", day2, day2);
+        TaxCode all = code("all", null, null);
+
+        // When
+        TaxCodeTimeline timeline = TaxCodeTimeline.of(ImmutableList.of(empty, all));
+
+        // Then
+        assertFalse(timeline.hasOverlaps());
+        assertEquals(timeline.find(day2), all);
+    }
+
+    @Test(groups = "fast", expectedExceptions = NullPointerException.class)
+    public void shouldThrowNPEOnNullDate() {
+        TaxCodeTimeline.of(ImmutableList.<TaxCode> of()).find(null);
+    }
+
+    @Test(groups = "fast")
+    public void shouldFindSameCodesAsLinearScan() {
+        Random random = new Random(SEED);
+        for (int i = 0; i < 10000; i++) {
+            // Given
+            ImmutableList.Builder<TaxCode> builder = ImmutableList.builder();
+            int count = random.nextInt(6);
+            for (int j = 0; j < count; j++) {
+                builder.add(code("code" + j, randomDay(random), randomDay(random)));
+            }
+            List<TaxCode> codes = builder.build();
+            TaxCodeTimeline timeline = TaxCodeTimeline.of(codes);
+
+            for (int k = 0; k < 10; k++) {
+                LocalDate date = day1.plusDays(random.nextInt(44) - 2);
+
+                // When
+                TaxCode found = timeline.find(date);
+
+                // Then
+                assertEquals(found, firstApplicable(codes, date), codes + " on " + date);
+            }
+        }
+    }
+
+    private LocalDate randomDay(Random random) {
+        return random.nextInt(4) == 0 ? null : day1.plusDays(random.nextInt(40));
+    }
+
+    private static TaxCode firstApplicable(List<TaxCode> codes, LocalDate date) {
+        for (TaxCode code : codes) {
+            if ((code.getStartingOn() != null) && date.isBefore(code.getStartingOn())) {
+                continue;
+            }
+            if ((code.getStoppingOn() != null) && !date.isBefore(code.getStoppingOn())) {
+                continue;
+            }
+            return code;
+        }
+        return null;
+    }
+}
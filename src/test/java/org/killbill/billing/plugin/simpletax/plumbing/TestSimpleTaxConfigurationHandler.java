@@ -17,19 +17,40 @@
 package org.killbill.billing.plugin.simpletax.plumbing;
 
 import static java.math.BigDecimal.ZERO;
+import static java.util.UUID.randomUUID;
+import static org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxConfigurationHandler.TENANT_CONFIG_HITS_METRIC;
+import static org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxConfigurationHandler.TENANT_CONFIG_MISSES_METRIC;
+import static org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxConfigurationHandler.TENANT_CONFIG_SHARED_METRIC;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertSame;
 
+import java.util.List;
 import java.util.Properties;
+import java.util.UUID;
 
 import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.util.PluginMetrics;
+import org.killbill.billing.tenant.api.TenantUserApi;
 import org.killbill.billing.test.helpers.TaxCodeBuilder;
+import org.killbill.billing.util.callcontext.TenantContext;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
+
 /**
  * Tests for {@link SimpleTaxConfigurationHandler}.
  * 
@@ -67,4 +88,136 @@ public class TestSimpleTaxConfigurationHandler {
                 .withRate(ZERO)//
                 .build());
     }
+
+    private static final String CONFIG_KEY = "PLUGIN_CONFIG_pluginName";
+
+    private SimpleTaxConfigurationHandler handlerWithTenantConfig(TenantUserApi tenantUserApi, PluginMetrics metrics) {
+        OSGIKillbillAPI services = mock(OSGIKillbillAPI.class);
+        when(services.getTenantUserApi()).thenReturn(tenantUserApi);
+        SimpleTaxConfigurationHandler handler = new SimpleTaxConfigurationHandler("pluginName", services,
+                logService, metrics);
+        handler.setDefaultConfigurable(handler.createConfigurable(new Properties()));
+        return handler;
+    }
+
+    @Test(groups = "fast")
+    public void shouldShareConfigurablesWithIdenticalProperties() {
+        // Given
+        PluginMetrics metrics = new PluginMetrics();
+        SimpleTaxConfigurationHandler handler = new SimpleTaxConfigurationHandler("pluginName", services,
+                logService, metrics);
+        Properties pluginConfig = new Properties();
+        pluginConfig.put("org.killbill.billing.plugin.simpletax.taxCodes.plop", "");
+        Properties samePluginConfig = new Properties();
+        samePluginConfig.putAll(pluginConfig);
+
+        // When
+        SimpleTaxConfig config = handler.createConfigurable(pluginConfig);
+        SimpleTaxConfig sameConfig = handler.createConfigurable(samePluginConfig);
+
+        // Then
+        assertSame(sameConfig, config);
+        assertEquals(metrics.getCount(TENANT_CONFIG_SHARED_METRIC), 1L);
+    }
+
+    @Test(groups = "fast")
+    public void shouldLoadTenantConfigurableOnceFromStore() throws Exception {
+        // Given
+        PluginMetrics metrics = new PluginMetrics();
+        TenantUserApi tenantUserApi = mock(TenantUserApi.class);
+        when(tenantUserApi.getTenantValuesForKey(eq(CONFIG_KEY), any(TenantContext.class)))//
+                .thenReturn(ImmutableList.of("org.killbill.billing.plugin.simpletax.taxCodes.plop = \n"));
+        SimpleTaxConfigurationHandler handler = handlerWithTenantConfig(tenantUserApi, metrics);
+        UUID tenantId = randomUUID();
+
+        // When
+        SimpleTaxConfig config = handler.getConfigurable(tenantId);
+        SimpleTaxConfig cachedConfig = handler.getConfigurable(tenantId);
+
+        // Then
+        assertNotNull(config.findTaxCode("plop"));
+        assertSame(cachedConfig, config);
+        verify(tenantUserApi).getTenantValuesForKey(eq(CONFIG_KEY), any(TenantContext.class));
+        assertEquals(metrics.getCount(TENANT_CONFIG_MISSES_METRIC), 1L);
+        assertEquals(metrics.getCount(TENANT_CONFIG_HITS_METRIC), 1L);
+    }
+
+    @Test(groups = "fast")
+    public void shouldUseDefaultConfigurableForTenantsWithoutConfig() throws Exception {
+        // Given
+        TenantUserApi tenantUserApi = mock(TenantUserApi.class);
+        when(tenantUserApi.getTenantValuesForKey(eq(CONFIG_KEY), any(TenantContext.class)))//
+                .thenReturn(ImmutableList.<String> of());
+        SimpleTaxConfigurationHandler handler = handlerWithTenantConfig(tenantUserApi, new PluginMetrics());
+
+        // Expect
+        assertSame(handler.getConfigurable(randomUUID()), handler.getConfigurable(null));
+    }
+
+    @Test(groups = "fast")
+    public void shouldLoadTenantConfigurableAgainOnceInvalidated() throws Exception {
+        // Given
+        TenantUserApi tenantUserApi = mock(TenantUserApi.class);
+        when(tenantUserApi.getTenantValuesForKey(eq(CONFIG_KEY), any(TenantContext.class)))//
+                .thenReturn(ImmutableList.of("org.killbill.billing.plugin.simpletax.taxCodes.plop = \n"));
+        SimpleTaxConfigurationHandler handler = handlerWithTenantConfig(tenantUserApi, new PluginMetrics());
+        UUID tenantId = randomUUID();
+        SimpleTaxConfig config = handler.getConfigurable(tenantId);
+
+        // When
+        handler.invalidate(tenantId);
+        SimpleTaxConfig reloadedConfig = handler.getConfigurable(tenantId);
+
+        // Then
+        assertSame(reloadedConfig, config);
+        verify(tenantUserApi, times(2)).getTenantValuesForKey(eq(CONFIG_KEY), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldOnlyInvalidateTenantConfigurableOnConfigChange() throws Exception {
+        // Given
+        TenantUserApi tenantUserApi = mock(TenantUserApi.class);
+        when(tenantUserApi.getTenantValuesForKey(eq(CONFIG_KEY), any(TenantContext.class)))//
+                .thenReturn(ImmutableList.of("org.killbill.billing.plugin.simpletax.taxCodes.plop = \n"));
+        PluginMetrics metrics = new PluginMetrics();
+        SimpleTaxConfigurationHandler handler = handlerWithTenantConfig(tenantUserApi, metrics);
+        UUID tenantId = randomUUID();
+        handler.getConfigurable(tenantId);
+        Properties changedConfig = new Properties();
+        changedConfig.setProperty("org.killbill.billing.plugin.simpletax.taxCodes.changed", "");
+
+        // When
+        handler.configure(tenantId, changedConfig);
+        SimpleTaxConfig reloadedConfig = handler.getConfigurable(tenantId);
+
+        // Then
+        assertNotNull(reloadedConfig.findTaxCode("plop"));
+        assertEquals(metrics.getCount(TENANT_CONFIG_MISSES_METRIC), 2L);
+        verify(tenantUserApi, times(2)).getTenantValuesForKey(eq(CONFIG_KEY), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotCacheTenantConfigurableInvalidatedWhileLoading() throws Exception {
+        // Given
+        TenantUserApi tenantUserApi = mock(TenantUserApi.class);
+        final SimpleTaxConfigurationHandler handler = handlerWithTenantConfig(tenantUserApi, new PluginMetrics());
+        final UUID tenantId = randomUUID();
+        when(tenantUserApi.getTenantValuesForKey(eq(CONFIG_KEY), any(TenantContext.class)))//
+                .then(new Answer<List<String>>() {
+                    @Override
+                    public List<String> answer(InvocationOnMock invocation) throws Throwable {
+                        // A new configuration is uploaded while the old one is read
+                        handler.invalidate(tenantId);
+                        return ImmutableList.of("org.killbill.billing.plugin.simpletax.taxCodes.plop = \n");
+                    }
+                });
+
+        // When
+        SimpleTaxConfig config = handler.getConfigurable(tenantId);
+        handler.getConfigurable(tenantId);
+
+        // Then
+        assertNotNull(config.findTaxCode("plop"));
+        verify(tenantUserApi, times(2)).getTenantValuesForKey(eq(CONFIG_KEY), any(TenantContext.class));
+    }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.resolving;
+
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.osgi.service.log.LogService.LOG_ERROR;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+import java.lang.reflect.InvocationTargetException;
+
+import org.killbill.billing.plugin.simpletax.TaxComputationContext;
+import org.killbill.billing.plugin.simpletax.resolving.fixtures.AbstractTaxResolver;
+import org.killbill.billing.plugin.simpletax.resolving.fixtures.ConcreteTaxResolver;
+import org.killbill.billing.plugin.simpletax.resolving.fixtures.ThrowingTaxResolver;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link ConstructorTaxResolverFactory}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestConstructorTaxResolverFactory {
+
+    private OSGIKillbillLogService logService;
+    private TaxComputationContext ctx;
+
+    @BeforeMethod(groups = "fast")
+    public void setup() {
+        logService = mock(OSGIKillbillLogService.class);
+        ctx = mock(TaxComputationContext.class);
+    }
+
+    private TaxResolverFactory factoryOf(Class<? extends TaxResolver> resolverClass) throws Exception {
+        return new ConstructorTaxResolverFactory(resolverClass.getConstructor(TaxComputationContext.class),
+                logService);
+    }
+
+    @Test(groups = "fast")
+    public void shouldShareShareableTaxResolvers() throws Exception {
+        // Given
+        TaxResolverFactory factory = factoryOf(NullTaxResolver.class);
+
+        // When
+        TaxResolver first = factory.createTaxResolver(ctx);
+        TaxResolver second = factory.createTaxResolver(ctx);
+
+        // Then
+        assertEquals(first.getClass(), NullTaxResolver.class);
+        assertSame(second, first);
+        verifyZeroInteractions(logService);
+    }
+
+    @Test(groups = "fast")
+    public void shouldCreateNewInstancesOfOtherTaxResolvers() throws Exception {
+        // Given
+        TaxResolverFactory factory = factoryOf(ConcreteTaxResolver.class);
+
+        // When
+        TaxResolver first = factory.createTaxResolver(ctx);
+        TaxResolver second = factory.createTaxResolver(ctx);
+
+        // Then
+        assertEquals(first.getClass(), ConcreteTaxResolver.class);
+        assertEquals(second.getClass(), ConcreteTaxResolver.class);
+        assertNotSame(second, first);
+        verifyZeroInteractions(logService);
+    }
+
+    @Test(groups = "fast")
+    public void shouldComplainOnceForAbstractTaxResolvers() throws Exception {
+        // Given
+        TaxResolverFactory factory = factoryOf(AbstractTaxResolver.class);
+
+        // When
+        TaxResolver first = factory.createTaxResolver(ctx);
+        TaxResolver second = factory.createTaxResolver(ctx);
+
+        // Then
+        assertEquals(first.getClass(), NullTaxResolver.class);
+        assertEquals(second.getClass(), NullTaxResolver.class);
+        verify(logService).log(eq(LOG_ERROR), startsWith("Cannot instanciate tax resolver."),
+                isA(InstantiationException.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldComplainEachTimeForThrowingConstructors() throws Exception {
+        // Given
+        TaxResolverFactory factory = factoryOf(ThrowingTaxResolver.class);
+
+        // When
+        factory.createTaxResolver(ctx);
+        TaxResolver resolver = factory.createTaxResolver(ctx);
+
+        // Then
+        assertEquals(resolver.getClass(), NullTaxResolver.class);
+        verify(logService, times(2)).log(eq(LOG_ERROR), startsWith("Cannot instanciate tax resolver."),
+                isA(InvocationTargetException.class));
+    }
+}
@@ -34,8 +34,10 @@ import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.plugin.simpletax.TaxComputationContext;
 import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.internal.AccountInvoiceIndex;
 import org.killbill.billing.plugin.simpletax.internal.TaxCode;
 import org.killbill.billing.plugin.simpletax.internal.TaxCodeService;
+import org.killbill.billing.plugin.simpletax.internal.TaxCodeTimeline;
 import org.killbill.billing.test.helpers.TaxCodeBuilder;
 import org.mockito.Mock;
 import org.testng.annotations.BeforeClass;
@@ -66,6 +68,7 @@ public class TestInvoiceItemEndDateBasedResolver {
     @Mock
     private Account account;
     private Set<Invoice> allInvoices = ImmutableSet.of();
+    private AccountInvoiceIndex invoiceIndex = AccountInvoiceIndex.builder().build();
     private Function<InvoiceItem, BigDecimal> toAdjustedAmount = null;
     private Ordering<InvoiceItem> byAdjustedAmount = null;
     @Mock
@@ -133,7 +136,7 @@ public class TestInvoiceItemEndDateBasedResolver {
     }
 
     private TaxResolver resolverWithConfig(SimpleTaxConfig cfg) {
-        TaxComputationContext ctx = new TaxComputationContext(cfg, account, null, allInvoices,
+        TaxComputationContext ctx = new TaxComputationContext(cfg, account, null, allInvoices, invoiceIndex,
                 toAdjustedAmount, byAdjustedAmount, taxCodeService);
         return new InvoiceItemEndDateBasedResolver(ctx);
     }
@@ -220,6 +223,18 @@ public class TestInvoiceItemEndDateBasedResolver {
         assertNull(resolver.applicableCodeForItem(setOf(tax0216FromTomorrow), itemEndingToday));
     }
 
+    @Test(groups = "fast")
+    public void shouldResolveSameTaxCodesFromTimelines() {
+        // Given
+        TaxCodeTimeline timeline = TaxCodeTimeline.of(taxCodes);
+
+        // Expect
+        assertEquals(resolver.applicableCodeForItem(timeline, itemFromYesterdayToToday), tax0200JustToday);
+        assertEquals(resolver.applicableCodeForItem(timeline, itemStartingYesterday), tax0196UntilYersterday);
+        assertNull(resolver.applicableCodeForItem(TaxCodeTimeline.of(setOf(tax0206BeforeYersterday)),
+                itemEndingToday));
+    }
+
     @SafeVarargs
     private static <T> Set<T> setOf(T... elems) {
         return ImmutableSet.copyOf(elems);
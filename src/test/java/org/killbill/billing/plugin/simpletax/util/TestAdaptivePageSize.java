@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.util;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link AdaptivePageSize}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestAdaptivePageSize {
+
+    private static final long TARGET_LATENCY_MILLIS = 100L;
+
+    private static long millis(long millis) {
+        return MILLISECONDS.toNanos(millis);
+    }
+
+    @Test(groups = "fast")
+    public void shouldStartWithInitialPageSizeWithinBounds() {
+        // Expect
+        assertEquals(new AdaptivePageSize(100, 10, 1000, TARGET_LATENCY_MILLIS).get(), 100);
+        assertEquals(new AdaptivePageSize(1, 10, 1000, TARGET_LATENCY_MILLIS).get(), 10);
+        assertEquals(new AdaptivePageSize(5000, 10, 1000, TARGET_LATENCY_MILLIS).get(), 1000);
+    }
+
+    @Test(groups = "fast")
+    public void shouldGrowWhenFastAndShrinkWhenSlow() {
+        // Given
+        AdaptivePageSize pageSize = new AdaptivePageSize(100, 10, 1000, TARGET_LATENCY_MILLIS);
+
+        // When
+        pageSize.record(100, millis(10));
+
+        // Then
+        assertEquals(pageSize.get(), 200);
+
+        // When
+        pageSize.record(200, millis(500));
+
+        // Then
+        assertEquals(pageSize.get(), 100);
+    }
+
+    @Test(groups = "fast")
+    public void shouldKeepPageSizeWhenCloseToTargetLatency() {
+        // Given
+        AdaptivePageSize pageSize = new AdaptivePageSize(100, 10, 1000, TARGET_LATENCY_MILLIS);
+
+        // When
+        pageSize.record(100, millis(80));
+
+        // Then
+        assertEquals(pageSize.get(), 100);
+    }
+
+    @Test(groups = "fast")
+    public void shouldStayWithinBounds() {
+        // Given
+        AdaptivePageSize pageSize = new AdaptivePageSize(100, 40, 300, TARGET_LATENCY_MILLIS);
+
+        // When
+        for (int i = 0; i < 5; i++) {
+            pageSize.record(pageSize.get(), millis(1));
+        }
+
+        // Then
+        assertEquals(pageSize.get(), 300);
+
+        // When
+        for (int i = 0; i < 5; i++) {
+            pageSize.record(pageSize.get(), millis(1000));
+        }
+
+        // Then
+        assertEquals(pageSize.get(), 40);
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotAdaptWithoutTargetLatency() {
+        // Given
+        AdaptivePageSize pageSize = new AdaptivePageSize(100, 10, 1000, 0L);
+
+        // When
+        pageSize.record(100, millis(1));
+        pageSize.record(100, millis(1000));
+
+        // Then
+        assertEquals(pageSize.get(), 100);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectInconsistentBounds() {
+        new AdaptivePageSize(100, 50, 10, TARGET_LATENCY_MILLIS);
+    }
+}
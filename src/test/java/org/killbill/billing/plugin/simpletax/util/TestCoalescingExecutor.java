@@ -0,0 +1,197 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.util;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.killbill.billing.plugin.simpletax.util.CoalescingExecutor.COALESCED_METRIC;
+import static org.killbill.billing.plugin.simpletax.util.CoalescingExecutor.FAILURES_METRIC;
+import static org.killbill.billing.plugin.simpletax.util.CoalescingExecutor.PROCESSING_TIME_METRIC;
+import static org.killbill.billing.plugin.simpletax.util.CoalescingExecutor.WAIT_TIME_METRIC;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link CoalescingExecutor}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestCoalescingExecutor {
+
+    private static final String NAME = "test";
+
+    private PluginMetrics metrics;
+    private CountDownLatch release;
+    private AtomicInteger runs;
+
+    @BeforeMethod(groups = "fast")
+    public void setup() {
+        metrics = new PluginMetrics();
+        release = new CountDownLatch(1);
+        runs = new AtomicInteger();
+    }
+
+    private Runnable blockingTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                }
+                runs.incrementAndGet();
+            }
+        };
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void shouldRequireWorkers() {
+        new CoalescingExecutor(NAME, 0, 1, metrics);
+    }
+
+    @Test(groups = "fast")
+    public void shouldCoalesceQueuedTasksWithSameKey() throws Exception {
+        // Given
+        CoalescingExecutor executor = new CoalescingExecutor(NAME, 1, 10, metrics);
+        executor.submit("running", blockingTask());
+
+        // When
+        boolean first = executor.submit("queued", blockingTask());
+        boolean second = executor.submit("queued", blockingTask());
+        release.countDown();
+
+        // Then
+        assertTrue(executor.shutdown(10, SECONDS));
+        assertTrue(first);
+        assertFalse(second);
+        assertEquals(runs.get(), 2);
+        assertEquals(metrics.getCount(NAME + COALESCED_METRIC), 1L);
+        assertEquals(metrics.distribution(NAME + WAIT_TIME_METRIC).getCount(), 2L);
+        assertEquals(metrics.distribution(NAME + PROCESSING_TIME_METRIC).getCount(), 2L);
+    }
+
+    @Test(groups = "fast")
+    public void shouldRunInCallerThreadWhenQueueIsFull() throws Exception {
+        // Given
+        CoalescingExecutor executor = new CoalescingExecutor(NAME, 1, 1, metrics);
+        executor.submit("running", blockingTask());
+        executor.submit("queued", blockingTask());
+        final AtomicReference<Thread> runner = new AtomicReference<Thread>();
+
+        // When
+        executor.submit("overflow", new Runnable() {
+            @Override
+            public void run() {
+                runner.set(Thread.currentThread());
+            }
+        });
+        release.countDown();
+
+        // Then
+        assertTrue(executor.shutdown(10, SECONDS));
+        assertEquals(runs.get(), 2);
+        assertSame(runner.get(), Thread.currentThread());
+    }
+
+    @Test(groups = "fast")
+    public void shouldRunSynchronouslyOnceShutDown() throws Exception {
+        // Given
+        CoalescingExecutor executor = new CoalescingExecutor(NAME, 1, 1, metrics);
+        release.countDown();
+        assertTrue(executor.shutdown(10, SECONDS));
+
+        // When
+        executor.submit("late", blockingTask());
+
+        // Then
+        assertEquals(runs.get(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void shouldReleaseKeyOfTaskRunOnceShutDown() throws Exception {
+        // Given
+        CoalescingExecutor executor = new CoalescingExecutor(NAME, 1, 1, metrics);
+        release.countDown();
+        assertTrue(executor.shutdown(10, SECONDS));
+        executor.submit("late", blockingTask());
+
+        // When
+        boolean submitted = executor.submit("late", blockingTask());
+
+        // Then
+        assertTrue(submitted);
+        assertEquals(runs.get(), 2);
+        assertEquals(metrics.getCount(NAME + COALESCED_METRIC), 0L);
+    }
+
+    @Test(groups = "fast")
+    public void shouldPropagateFailureOfTaskRunInCallerThread() throws Exception {
+        // Given
+        CoalescingExecutor executor = new CoalescingExecutor(NAME, 1, 1, metrics);
+        assertTrue(executor.shutdown(10, SECONDS));
+        final IllegalStateException failure = new IllegalStateException();
+
+        // When
+        RuntimeException caught = null;
+        try {
+            executor.submit("failing", new Runnable() {
+                @Override
+                public void run() {
+                    throw failure;
+                }
+            });
+        } catch (RuntimeException exc) {
+            caught = exc;
+        }
+
+        // Then
+        assertSame(caught, failure);
+        assertEquals(metrics.getCount(NAME + FAILURES_METRIC), 1L);
+        assertTrue(executor.submit("failing", blockingTask()));
+    }
+
+    @Test(groups = "fast")
+    public void shouldCountFailureOfTaskRunInWorkerThread() throws Exception {
+        // Given
+        CoalescingExecutor executor = new CoalescingExecutor(NAME, 1, 1, metrics);
+
+        // When
+        executor.submit("failing", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException();
+            }
+        });
+        release.countDown();
+        executor.submit("next", blockingTask());
+
+        // Then
+        assertTrue(executor.shutdown(10, SECONDS));
+        assertEquals(metrics.getCount(NAME + FAILURES_METRIC), 1L);
+        assertEquals(runs.get(), 1);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.util;
+
+import static java.math.BigDecimal.ZERO;
+import static java.math.RoundingMode.HALF_UP;
+import static org.killbill.billing.plugin.simpletax.util.FixedPointMath.multiplyAndRound;
+import static org.killbill.billing.plugin.simpletax.util.FixedPointMath.sum;
+import static org.testng.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link FixedPointMath}.
+ * <p>
+ * Results are compared to those of plain {@link BigDecimal} computations with
+ * {@link BigDecimal#equals(Object)}, so that both values and scales must be
+ * identical.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestFixedPointMath {
+
+    private static final long SEED = 0x5eed1e55L;
+    private static final int ITERATIONS = 100000;
+
+    @Test(groups = "fast", expectedExceptions = IllegalAccessException.class)
+    public void shouldBeAbstractClass() throws Exception {
+        FixedPointMath.class.getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Generates amounts of various magnitudes and scales, including values
+     * that overflow {@code long}s, and unusual negative scales.
+     */
+    private static BigDecimal randomDecimal(Random random) {
+        int bits;
+        switch (random.nextInt(4)) {
+        case 0:
+            bits = 1 + random.nextInt(16);
+            break;
+        case 1:
+            bits = 1 + random.nextInt(40);
+            break;
+        case 2:
+            bits = 1 + random.nextInt(63);
+            break;
+        default:
+            bits = 1 + random.nextInt(100);
+            break;
+        }
+        BigInteger unscaled = new BigInteger(bits, random);
+        if (random.nextBoolean()) {
+            unscaled = unscaled.negate();
+        }
+        int scale = random.nextInt(10) == 0 ? random.nextInt(50) - 25 : random.nextInt(8);
+        return new BigDecimal(unscaled, scale);
+    }
+
+    @Test(groups = "fast")
+    public void shouldMultiplyAndRoundLikeBigDecimal() {
+        Random random = new Random(SEED);
+        for (int i = 0; i < ITERATIONS; i++) {
+            // Given
+            BigDecimal amount = randomDecimal(random);
+            BigDecimal rate = randomDecimal(random);
+            int scale = random.nextInt(10) == 0 ? random.nextInt(40) - 10 : random.nextInt(5);
+
+            // When
+            BigDecimal result = multiplyAndRound(amount, rate, scale);
+
+            // Then
+            assertEquals(result, amount.multiply(rate).setScale(scale, HALF_UP), amount + " * " + rate + " @ "
+                    + scale);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void shouldRoundHalfUpAwayFromZero() {
+        // Expect
+        assertEquals(multiplyAndRound(new BigDecimal("0.25"), new BigDecimal("0.1"), 2), new BigDecimal("0.03"));
+        assertEquals(multiplyAndRound(new BigDecimal("-0.25"), new BigDecimal("0.1"), 2), new BigDecimal("-0.03"));
+        assertEquals(multiplyAndRound(new BigDecimal("0.24"), new BigDecimal("0.1"), 2), new BigDecimal("0.02"));
+        assertEquals(multiplyAndRound(new BigDecimal("10"), new BigDecimal("0.2"), 2), new BigDecimal("2.00"));
+    }
+
+    @Test(groups = "fast")
+    public void shouldSumLikeBigDecimal() {
+        Random random = new Random(SEED);
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            // Given
+            FixedPointMath.Sum sum = sum();
+            BigDecimal expected = ZERO;
+            int count = random.nextInt(20);
+
+            for (int j = 0; j < count; j++) {
+                BigDecimal amount = randomDecimal(random);
+
+                // When
+                sum.add(amount);
+                expected = expected.add(amount);
+
+                // Then
+                assertEquals(sum.toBigDecimal(), expected);
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void shouldSumPastLongCapacity() {
+        // Given
+        BigDecimal big = BigDecimal.valueOf(Long.MAX_VALUE, 2);
+
+        // When
+        BigDecimal result = sum().add(big).add(big).add(new BigDecimal("0.001")).toBigDecimal();
+
+        // Then
+        assertEquals(result, big.add(big).add(new BigDecimal("0.001")));
+    }
+
+    @Test(groups = "fast")
+    public void shouldStartAtZero() {
+        // Expect
+        assertEquals(sum().toBigDecimal(), ZERO);
+    }
+}
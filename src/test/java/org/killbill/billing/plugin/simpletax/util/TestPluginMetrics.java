@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.util;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Tests for {@link PluginMetrics}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestPluginMetrics {
+
+    @Test(groups = "fast")
+    public void shouldCountFromZero() {
+        // Given
+        PluginMetrics metrics = new PluginMetrics();
+
+        // When
+        metrics.increment("calls");
+        metrics.add("calls", 2L);
+
+        // Then
+        assertEquals(metrics.getCount("calls"), 3L);
+        assertEquals(metrics.getCount("unknown"), 0L);
+    }
+
+    @Test(groups = "fast")
+    public void shouldRecordDistributions() {
+        // Given
+        PluginMetrics metrics = new PluginMetrics();
+
+        // When
+        metrics.record("size", 3L);
+        metrics.record("size", 1L);
+
+        // Then
+        PluginMetrics.Distribution size = metrics.distribution("size");
+        assertEquals(size.getCount(), 2L);
+        assertEquals(size.getSum(), 4L);
+        assertEquals(size.getMax(), 3L);
+        assertEquals(size.getMean(), 2.0);
+    }
+
+    @Test(groups = "fast")
+    public void shouldProvideEmptyDistributions() {
+        // Given
+        PluginMetrics.Distribution empty = new PluginMetrics().distribution("none");
+
+        // Expect
+        assertEquals(empty.getCount(), 0L);
+        assertEquals(empty.getMax(), 0L);
+        assertEquals(empty.getMean(), 0.0);
+    }
+
+    @Test(groups = "fast")
+    public void shouldSnapshotMetricsSortedByName() {
+        // Given
+        PluginMetrics metrics = new PluginMetrics();
+        metrics.increment("b");
+        metrics.record("a", 5L);
+
+        // When
+        Map<String, Object> snapshot = metrics.snapshot();
+
+        // Then
+        assertEquals(ImmutableList.copyOf(snapshot.keySet()), ImmutableList.of("a", "b"));
+        assertEquals(snapshot.get("b"), 1L);
+        assertEquals(snapshot.get("a"), ImmutableMap.of("count", 1L, "mean", 5.0, "max", 5L));
+    }
+}